@@ -0,0 +1,130 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.Random;
+
+/**
+ * Builds synthetic NetFlow v9 datagrams for the benchmarks. Every data record uses the same 31 byte
+ * template as testcase001.json.
+ */
+final class BenchmarkPackets {
+  static final int HEADER_LENGTH = 20;
+  static final int TEMPLATE_ID = 256;
+  static final int[][] FIELDS = {
+      {FieldType.IPV4_SRC_ADDR, 4},
+      {FieldType.IPV4_DST_ADDR, 4},
+      {FieldType.IN_BYTES, 4},
+      {FieldType.IN_PKTS, 4},
+      {FieldType.FIRST_SWITCHED, 4},
+      {FieldType.LAST_SWITCHED, 4},
+      {FieldType.L4_SRC_PORT, 2},
+      {FieldType.L4_DST_PORT, 2},
+      {FieldType.PROTOCOL, 1},
+      {FieldType.TCP_FLAGS, 1},
+      {FieldType.SRC_TOS, 1}
+  };
+  static final int RECORD_LENGTH = 31;
+  static final int TEMPLATE_FLOWSET_LENGTH = 8 + FIELDS.length * 4;
+
+  private BenchmarkPackets() {
+
+  }
+
+  /**
+   * Template only datagram filled with template flowsets for consecutive template ids.
+   */
+  static ByteBuf templates(int maxLength) {
+    final int count = (maxLength - HEADER_LENGTH) / TEMPLATE_FLOWSET_LENGTH;
+    ByteBuf buffer = Unpooled.buffer(maxLength);
+    writeHeader(buffer, count);
+    for (int i = 0; i < count; i++) {
+      writeTemplate(buffer, TEMPLATE_ID + i);
+    }
+    return buffer;
+  }
+
+  /**
+   * Datagram with a single data flowset filled with records.
+   */
+  static ByteBuf data(int maxLength) {
+    final int records = dataRecords(maxLength - HEADER_LENGTH);
+    ByteBuf buffer = Unpooled.buffer(maxLength);
+    writeHeader(buffer, records);
+    writeData(buffer, records, new Random(42));
+    return buffer;
+  }
+
+  /**
+   * Datagram with the template followed by a data flowset filling the remainder.
+   */
+  static ByteBuf mixed(int maxLength) {
+    final int records = dataRecords(maxLength - HEADER_LENGTH - TEMPLATE_FLOWSET_LENGTH);
+    ByteBuf buffer = Unpooled.buffer(maxLength);
+    writeHeader(buffer, records + 1);
+    writeTemplate(buffer, TEMPLATE_ID);
+    writeData(buffer, records, new Random(42));
+    return buffer;
+  }
+
+  static int dataRecords(int available) {
+    return (available - 4) / RECORD_LENGTH;
+  }
+
+  static void writeHeader(ByteBuf buffer, int count) {
+    buffer.writeShort(9);
+    buffer.writeShort(count);
+    buffer.writeInt(1000);
+    buffer.writeInt(1484702821);
+    buffer.writeInt(1);
+    buffer.writeInt(0);
+  }
+
+  static void writeTemplate(ByteBuf buffer, int templateID) {
+    buffer.writeShort(0);
+    buffer.writeShort(TEMPLATE_FLOWSET_LENGTH);
+    buffer.writeShort(templateID);
+    buffer.writeShort(FIELDS.length);
+    for (int[] field : FIELDS) {
+      buffer.writeShort(field[0]);
+      buffer.writeShort(field[1]);
+    }
+  }
+
+  static void writeData(ByteBuf buffer, int records, Random random) {
+    final int length = 4 + records * RECORD_LENGTH;
+    final int padding = (4 - length % 4) % 4;
+    buffer.writeShort(TEMPLATE_ID);
+    buffer.writeShort(length + padding);
+    for (int i = 0; i < records; i++) {
+      buffer.writeInt(0x0A000000 | random.nextInt(0xFFFFFF));
+      buffer.writeInt(0xC0A80000 | random.nextInt(0xFFFF));
+      buffer.writeInt(64 + random.nextInt(1500 * 64));
+      buffer.writeInt(1 + random.nextInt(64));
+      buffer.writeInt(1000 + i);
+      buffer.writeInt(2000 + i);
+      buffer.writeShort(1024 + random.nextInt(60000));
+      buffer.writeShort(443);
+      buffer.writeByte(6);
+      buffer.writeByte(0x18);
+      buffer.writeByte(0);
+    }
+    buffer.writeZero(padding);
+  }
+}
@@ -0,0 +1,231 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decode hot path of NetFlowV9Decoder. The primary score is packets per second, records per second and
+ * bytes per second are reported as secondary scores. Run with -prof gc for the bytes allocated per packet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NetFlowV9DecoderBenchmark {
+  static final InetSocketAddress SENDER = new InetSocketAddress("127.0.0.1", 2055);
+  static final InetSocketAddress RECIPIENT = new InetSocketAddress("127.0.0.1", 2056);
+
+  /**
+   * template: datagrams of template flowsets only. data: a single data flowset. mixed: the template
+   * followed by data, as sent by exporters that repeat the template in every datagram.
+   */
+  @Param({"data", "template", "mixed"})
+  public String mix;
+
+  /**
+   * UDP payload of a standard and of a jumbo frame.
+   */
+  @Param({"1472", "8972"})
+  public int datagramSize;
+
+  @Param({"heap", "pooledDirect"})
+  public String bufferType;
+
+  @Param({"false", "true"})
+  public boolean retainBuffers;
+
+  /**
+   * default: NetFlowFactoryImpl. recycling: RecyclingNetFlowFactory, which pools messages and flowsets.
+   */
+  @Param({"default", "recycling"})
+  public String factory;
+
+  NetFlowV9Decoder decoder;
+  DatagramPacket packet;
+  ByteBuf content;
+  ByteBuf templateFlowSet;
+  ByteBuf dataFlowSet;
+  RecordLayout layout;
+  int recordsPerPacket;
+  final List<Object> output = new ArrayList<>();
+
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class Counters {
+    public long records;
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      this.records = 0;
+      this.bytes = 0;
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    final ByteBuf packetBytes;
+    switch (this.mix) {
+      case "data":
+        packetBytes = BenchmarkPackets.data(this.datagramSize);
+        this.recordsPerPacket = BenchmarkPackets.dataRecords(this.datagramSize - BenchmarkPackets.HEADER_LENGTH);
+        break;
+      case "template":
+        packetBytes = BenchmarkPackets.templates(this.datagramSize);
+        this.recordsPerPacket = 0;
+        break;
+      case "mixed":
+        packetBytes = BenchmarkPackets.mixed(this.datagramSize);
+        this.recordsPerPacket = BenchmarkPackets.dataRecords(
+            this.datagramSize - BenchmarkPackets.HEADER_LENGTH - BenchmarkPackets.TEMPLATE_FLOWSET_LENGTH
+        );
+        break;
+      default:
+        throw new IllegalStateException(String.format("mix %s is not supported.", this.mix));
+    }
+
+    this.decoder = new NetFlowV9Decoder(
+        NetFlowDecoderConfig.builder()
+            .netflowFactory("recycling".equals(this.factory) ? new RecyclingNetFlowFactory() : new NetFlowFactoryImpl())
+            .retainBuffers(this.retainBuffers)
+            .build()
+    );
+    this.content = allocate(packetBytes);
+    this.packet = new DatagramPacket(this.content, RECIPIENT, SENDER);
+
+    // Prime the template cache so data only datagrams can be decoded.
+    ByteBuf templates = BenchmarkPackets.templates(this.datagramSize);
+    this.decoder.decode(null, new DatagramPacket(templates, RECIPIENT, SENDER), this.output);
+    releaseOutput();
+    templates.release();
+    this.layout = this.decoder.templateRegistry.get(SENDER, 0, BenchmarkPackets.TEMPLATE_ID);
+
+    // decodeTemplate and decodeData are positioned after the flowset id.
+    ByteBuf template = BenchmarkPackets.templates(BenchmarkPackets.HEADER_LENGTH + BenchmarkPackets.TEMPLATE_FLOWSET_LENGTH);
+    this.templateFlowSet = allocate(template.skipBytes(BenchmarkPackets.HEADER_LENGTH + 2));
+    template.release();
+    ByteBuf data = BenchmarkPackets.data(this.datagramSize);
+    this.dataFlowSet = allocate(data.skipBytes(BenchmarkPackets.HEADER_LENGTH + 2));
+    data.release();
+  }
+
+  ByteBuf allocate(ByteBuf bytes) {
+    ByteBuf result = "pooledDirect".equals(this.bufferType) ?
+        PooledByteBufAllocator.DEFAULT.directBuffer(bytes.readableBytes()) :
+        PooledByteBufAllocator.DEFAULT.heapBuffer(bytes.readableBytes());
+    result.writeBytes(bytes);
+    return result;
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    this.content.release();
+    this.templateFlowSet.release();
+    this.dataFlowSet.release();
+  }
+
+  void releaseOutput() {
+    for (Object message : this.output) {
+      ReferenceCountUtil.release(message);
+    }
+    this.output.clear();
+  }
+
+  @Benchmark
+  public void decode(Counters counters) throws Exception {
+    this.content.readerIndex(0);
+    this.decoder.decode(null, this.packet, this.output);
+    releaseOutput();
+    counters.records += this.recordsPerPacket;
+    counters.bytes += this.content.writerIndex();
+  }
+
+  /**
+   * Decodes and walks every record with a cursor, reading the fields a typical consumer needs.
+   */
+  @Benchmark
+  public void decodeAndRead(Counters counters, Blackhole blackhole) throws Exception {
+    this.content.readerIndex(0);
+    this.decoder.decode(null, this.packet, this.output);
+    FlowRecordCursor cursor = new FlowRecordCursor();
+    for (Object message : this.output) {
+      for (NetFlowV9Decoder.FlowSet flowSet : ((NetFlowV9Decoder.NetFlowMessage) message).flowsets()) {
+        if (flowSet instanceof NetFlowV9Decoder.DataFlowSet) {
+          cursor.reset((NetFlowV9Decoder.DataFlowSet) flowSet);
+          while (cursor.next()) {
+            blackhole.consume(cursor.getInt(FieldType.IPV4_SRC_ADDR));
+            blackhole.consume(cursor.getLong(FieldType.IN_BYTES));
+            blackhole.consume(cursor.getInt(FieldType.L4_DST_PORT));
+          }
+        }
+      }
+    }
+    releaseOutput();
+    counters.records += this.recordsPerPacket;
+    counters.bytes += this.content.writerIndex();
+  }
+
+  @Benchmark
+  public NetFlowV9Decoder.TemplateFlowSet decodeTemplate() {
+    this.templateFlowSet.readerIndex(0);
+    return this.decoder.decodeTemplate(this.templateFlowSet, (short) 0);
+  }
+
+  /**
+   * The flowset is consumed and then returned the way its message would return it, so the recycling
+   * factory is measured with a warm pool.
+   */
+  @Benchmark
+  public void decodeData(Blackhole blackhole) {
+    this.dataFlowSet.readerIndex(0);
+    NetFlowV9Decoder.DataFlowSet result = this.decoder.decodeData(
+        this.dataFlowSet, (short) BenchmarkPackets.TEMPLATE_ID, this.layout
+    );
+    blackhole.consume(result);
+    if (this.retainBuffers) {
+      result.content().release();
+    }
+    if (result instanceof RecyclingNetFlowFactory.RecycledDataFlowSet) {
+      ((RecyclingNetFlowFactory.RecycledDataFlowSet) result).recycle();
+    }
+  }
+}
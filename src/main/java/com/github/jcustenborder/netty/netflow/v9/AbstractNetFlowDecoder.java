@@ -0,0 +1,414 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.handler.codec.MessageToMessageDecoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decoding engine shared by the NetFlow decoders. Subclasses decode the header and the flowsets of their
+ * protocol, data sets are handled here.
+ */
+abstract class AbstractNetFlowDecoder extends MessageToMessageDecoder<DatagramPacket> {
+  private static final Logger log = LoggerFactory.getLogger(AbstractNetFlowDecoder.class);
+  static final Logger PACKET_LOG = LoggerFactory.getLogger("com.github.jcustenborder.netty.netflow.v9.packets");
+
+  final NetFlowV9Decoder.NetflowFactory netflowFactory;
+  final TemplateRegistry templateRegistry;
+  final boolean retainBuffers;
+  final PendingFlowSetBuffer pendingFlowSets;
+  final int packetLogSampleRate;
+  final NetFlowMetrics metrics;
+  final SequenceTracker sequenceTracker;
+  final NetFlowBatcher batcher;
+  final FlowFilter filter;
+  final SamplingTracker samplingTracker;
+  final FlowRecordCursor samplingCursor;
+  final TemplateInterner templateInterner;
+  final TemplateInterner.Key templateProbe = new TemplateInterner.Key();
+  List<PendingFlowSetBuffer.Entry> replay;
+  long packets;
+  /**
+   * Records of the current datagram dropped by the filter.
+   */
+  int filteredRecords;
+  int pendingInPacket;
+
+  /**
+   * @param batch when false the decoder never batches, even if the config sets maxBatchSize. Used by
+   *              NetFlowDecoder, which batches the output of its decoders itself.
+   */
+  AbstractNetFlowDecoder(NetFlowDecoderConfig config, boolean batch) {
+    this.netflowFactory = config.netflowFactory;
+    this.templateRegistry = config.templateRegistry;
+    this.retainBuffers = config.retainBuffers;
+    this.pendingFlowSets = config.pendingFlowSets;
+    this.packetLogSampleRate = config.packetLogSampleRate;
+    this.metrics = config.metrics;
+    this.sequenceTracker = config.sequenceTracker;
+    this.batcher = batch ? NetFlowBatcher.of(config) : null;
+    this.filter = FlowFilter.of(config);
+    this.samplingTracker = config.samplingTracker;
+    this.samplingCursor = null != this.samplingTracker ? new FlowRecordCursor() : null;
+    this.templateInterner = config.templateInterner;
+  }
+
+  abstract NetFlowV9Decoder.Header decodeHeader(ByteBuf b, InetSocketAddress sender, InetSocketAddress recipient);
+
+  abstract void decodeFlowSets(ByteBuf input, NetFlowV9Decoder.Header header, List<NetFlowV9Decoder.FlowSet> flowSets);
+
+  /**
+   * Amount the header sequence number advances by after this datagram, or -1 if it cannot be determined.
+   * NetFlow v9 numbers datagrams.
+   */
+  long sequenceIncrement(NetFlowV9Decoder.Header header, List<NetFlowV9Decoder.FlowSet> flowSets) {
+    return 1;
+  }
+
+  void checkReadFully(ByteBuf input) {
+    if (input.readableBytes() > 0) {
+      throw new IllegalStateException(
+          String.format("input has %s bytes remaining.", input.readableBytes())
+      );
+    }
+  }
+
+  /**
+   * Returns the interned layout of the length bytes of field specifiers at the reader index and skips them,
+   * or null if the template has to be parsed and passed to {@link #intern}. Truncated templates are never
+   * found, so parsing them fails as usual.
+   */
+  RecordLayout interned(ByteBuf input, int kind, int scopeFieldCount, int length) {
+    if (null == this.templateInterner || length > input.readableBytes()) {
+      return null;
+    }
+    final RecordLayout result = this.templateInterner.get(
+        this.templateProbe, kind, scopeFieldCount, input, input.readerIndex(), length
+    );
+    if (null != result) {
+      input.skipBytes(length);
+    }
+    return result;
+  }
+
+  RecordLayout intern(ByteBuf input, int kind, int scopeFieldCount, int start, RecordLayout layout) {
+    final int length = input.readerIndex() - start;
+    if (null == this.templateInterner || 0 == length) {
+      return layout;
+    }
+    return this.templateInterner.intern(kind, scopeFieldCount, input, start, length, layout);
+  }
+
+  void putTemplate(NetFlowV9Decoder.Header header, int templateID, RecordLayout layout) {
+    this.templateRegistry.put(header.sender, header.sourceID, templateID, layout);
+    if (null != this.pendingFlowSets) {
+      List<PendingFlowSetBuffer.Entry> entries = this.pendingFlowSets.drain(header.sender, header.sourceID, templateID);
+      if (!entries.isEmpty()) {
+        if (log.isTraceEnabled()) {
+          log.trace("Replaying {} flowset(s) for template {} from {}.", entries.size(), templateID, header.sender);
+        }
+        if (null == this.replay) {
+          this.replay = new ArrayList<>();
+        }
+        this.replay.addAll(entries);
+      }
+    }
+  }
+
+  /**
+   * Decodes a data flowset with the cached template. When a pending flowset buffer is configured, flowsets
+   * without a template are buffered for replay instead of being emitted and null is returned, so downstream
+   * handlers see each flowset once.
+   */
+  NetFlowV9Decoder.DataFlowSet decodeData(ByteBuf b, final short flowSetID, NetFlowV9Decoder.Header header) {
+    final RecordLayout layout = this.templateRegistry.get(header.sender, header.sourceID, flowSetID & 0xFFFF);
+    if (null == layout && null != this.pendingFlowSets) {
+      final int length = b.readUnsignedShort() - 4;
+      this.pendingFlowSets.add(header, flowSetID, b.readSlice(length));
+      this.pendingInPacket++;
+      return null;
+    }
+    final NetFlowV9Decoder.DataFlowSet dataFlowSet = decodeData(b, flowSetID, layout);
+    if (null != this.samplingTracker && null != layout) {
+      return sample(header, dataFlowSet);
+    }
+    return dataFlowSet;
+  }
+
+  /**
+   * Learns sampling intervals from options records and attaches the current intervals of the exporter to
+   * other data flowsets through {@link NetFlowV9Decoder.NetflowFactory#withSamplingRates}.
+   */
+  NetFlowV9Decoder.DataFlowSet sample(NetFlowV9Decoder.Header header, NetFlowV9Decoder.DataFlowSet dataFlowSet) {
+    if (dataFlowSet.layout().isOptions()) {
+      this.samplingTracker.options(header, dataFlowSet, this.samplingCursor);
+      return dataFlowSet;
+    }
+    final SamplingTracker.Rates rates = this.samplingTracker.rates(header.sender, header.sourceID);
+    if (SamplingTracker.Rates.UNSAMPLED == rates) {
+      return dataFlowSet;
+    }
+    return this.netflowFactory.withSamplingRates(dataFlowSet, rates);
+  }
+
+  NetFlowV9Decoder.DataFlowSet decodeData(ByteBuf b, final short flowSetID, RecordLayout layout) {
+    final int length = b.readUnsignedShort() - 4;
+    return readData(b, flowSetID, length, layout);
+  }
+
+  NetFlowV9Decoder.DataFlowSet readData(ByteBuf b, final short flowSetID, final int length, RecordLayout layout) {
+    if (null != this.filter && null != layout) {
+      final ByteBuf input = b.readSlice(length);
+      if (this.filter.filter(layout, input)) {
+        this.filteredRecords += this.filter.dropped;
+        if (this.retainBuffers) {
+          ByteBuf content = input.alloc().buffer(this.filter.matchedBytes());
+          this.filter.copy(input, content);
+          return this.netflowFactory.dataFlowSet(flowSetID, content, layout);
+        }
+        return this.netflowFactory.dataFlowSet(flowSetID, this.filter.copy(input), layout);
+      }
+      b.readerIndex(b.readerIndex() - length);
+    }
+    if (this.retainBuffers) {
+      if (log.isTraceEnabled()) {
+        log.trace("readRetainedSlice({})", length);
+      }
+      return this.netflowFactory.dataFlowSet(flowSetID, b.readRetainedSlice(length), layout);
+    }
+    if (log.isTraceEnabled()) {
+      log.trace("readSlice({})", length);
+    }
+    final ByteBuf input = b.readSlice(length);
+    byte[] data = new byte[length];
+    input.readBytes(data);
+    return this.netflowFactory.dataFlowSet(flowSetID, data, layout);
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (null != this.batcher && acceptInboundMessage(msg)) {
+      this.batcher.channelRead(ctx, (DatagramPacket) msg, this::decode);
+    } else {
+      super.channelRead(ctx, msg);
+    }
+  }
+
+  @Override
+  public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+    if (null != this.batcher) {
+      this.batcher.flush(ctx);
+    }
+    super.channelReadComplete(ctx);
+  }
+
+  @Override
+  public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+    if (null != this.batcher) {
+      this.batcher.release();
+    }
+    super.handlerRemoved(ctx);
+  }
+
+  @Override
+  protected void decode(ChannelHandlerContext channelHandlerContext, DatagramPacket datagramPacket, List<Object> output) throws Exception {
+    ByteBuf input = datagramPacket.content();
+
+    if (null == input || !input.isReadable()) {
+      if (log.isTraceEnabled()) {
+        log.trace("Message from {} was not usable.", datagramPacket.sender());
+      }
+      return;
+    }
+
+    final boolean packetLogEnabled = this.packetLogSampleRate > 0 && PACKET_LOG.isDebugEnabled();
+    final long startNanos = null != this.metrics ? System.nanoTime() : 0L;
+    final int start = input.readerIndex();
+    this.filteredRecords = 0;
+    this.pendingInPacket = 0;
+    NetFlowV9Decoder.Header header = null;
+    List<NetFlowV9Decoder.FlowSet> flowSets = this.netflowFactory.newFlowSetList();
+
+    try {
+      try {
+        header = decodeHeader(input, datagramPacket.sender(), datagramPacket.recipient());
+        if (log.isTraceEnabled()) {
+          log.trace("Read {} for header. {} remaining", input.readerIndex(), input.readableBytes());
+        }
+        decodeFlowSets(input, header, flowSets);
+      } catch (RuntimeException ex) {
+        if (null != this.metrics) {
+          this.metrics.packetFailed(datagramPacket.sender(), null == header ? -1 : header.sourceID, input.writerIndex() - start, ex);
+        }
+        if (packetLogEnabled) {
+          logPacket(datagramPacket, start, header, flowSets, ex);
+        }
+        releaseFlowSets(flowSets);
+        throw ex;
+      }
+      if (null != this.metrics) {
+        recordMetrics(datagramPacket, header, flowSets, input.writerIndex() - start, System.nanoTime() - startNanos);
+      }
+      if (packetLogEnabled && 0 == this.packets++ % this.packetLogSampleRate) {
+        logPacket(datagramPacket, start, header, flowSets, null);
+      }
+      long sequenceGap = 0;
+      if (null != this.sequenceTracker) {
+        sequenceGap = this.sequenceTracker.track(
+            header.sender, header.sourceID, header.flowSequence & 0xFFFFFFFFL, sequenceIncrement(header, flowSets)
+        );
+      }
+      output.add(netflowMessage(header, flowSets, sequenceGap));
+    } finally {
+      if (null != this.replay) {
+        replay(output);
+      }
+    }
+  }
+
+  void recordMetrics(DatagramPacket datagramPacket, NetFlowV9Decoder.Header header, List<NetFlowV9Decoder.FlowSet> flowSets, int bytes, long decodeNanos) {
+    int templates = 0;
+    int records = 0;
+    for (int i = 0; i < flowSets.size(); i++) {
+      NetFlowV9Decoder.FlowSet flowSet = flowSets.get(i);
+      if (flowSet instanceof NetFlowV9Decoder.DataFlowSet) {
+        NetFlowV9Decoder.DataFlowSet dataFlowSet = (NetFlowV9Decoder.DataFlowSet) flowSet;
+        if (null != dataFlowSet.layout()) {
+          records += dataFlowSet.layout().recordCount(dataFlowSet.content());
+        }
+      } else {
+        templates++;
+      }
+    }
+    records += this.filteredRecords;
+    this.metrics.packetDecoded(datagramPacket.sender(), header.sourceID, bytes, flowSets.size(), templates, records, decodeNanos);
+  }
+
+  /**
+   * Writes a single line summary of a packet. The datagram is hex dumped when decoding failed or the packet
+   * logger is at TRACE.
+   */
+  void logPacket(DatagramPacket datagramPacket, int start, NetFlowV9Decoder.Header header, List<NetFlowV9Decoder.FlowSet> flowSets, RuntimeException error) {
+    final ByteBuf content = datagramPacket.content();
+    StringBuilder builder = new StringBuilder(128);
+    builder.append("sender=").append(datagramPacket.sender())
+        .append(" length=").append(content.writerIndex() - start);
+    if (null != header) {
+      builder.append(" version=").append(header.version)
+          .append(" sourceID=").append(header.sourceID)
+          .append(" sequence=").append(header.flowSequence & 0xFFFFFFFFL)
+          .append(" count=").append(header.count & 0xFFFF);
+    }
+    builder.append(" flowsets=[");
+    for (int i = 0; i < flowSets.size(); i++) {
+      NetFlowV9Decoder.FlowSet flowSet = flowSets.get(i);
+      if (i > 0) {
+        builder.append(' ');
+      }
+      if (flowSet instanceof NetFlowV9Decoder.TemplateFlowSet) {
+        builder.append("template:").append(((NetFlowV9Decoder.TemplateFlowSet) flowSet).templateID() & 0xFFFF);
+      } else if (flowSet instanceof NetFlowV9Decoder.OptionsTemplateFlowSet) {
+        builder.append("options:").append(((NetFlowV9Decoder.OptionsTemplateFlowSet) flowSet).templateID() & 0xFFFF);
+      } else if (flowSet instanceof NetFlowV9Decoder.DataFlowSet) {
+        NetFlowV9Decoder.DataFlowSet dataFlowSet = (NetFlowV9Decoder.DataFlowSet) flowSet;
+        builder.append("data:").append(flowSet.flowsetID() & 0xFFFF)
+            .append('/').append(dataFlowSet.content().readableBytes());
+        if (null == dataFlowSet.layout()) {
+          builder.append("/noTemplate");
+        }
+      }
+    }
+    builder.append(']');
+    if (null != error) {
+      builder.append(" offset=").append(content.readerIndex() - start)
+          .append(" error=\"").append(error.getMessage()).append('"');
+    }
+    if (null != error || PACKET_LOG.isTraceEnabled()) {
+      builder.append(" hex=").append(ByteBufUtil.hexDump(content, start, content.writerIndex() - start));
+    }
+    PACKET_LOG.debug(builder.toString());
+  }
+
+  NetFlowV9Decoder.NetFlowMessage netflowMessage(NetFlowV9Decoder.Header header, List<NetFlowV9Decoder.FlowSet> flowSets, long sequenceGap) {
+    return this.netflowFactory.netflowMessage(
+        header.version,
+        header.count,
+        header.uptime,
+        header.timestamp,
+        header.flowSequence,
+        header.sourceID,
+        header.sender,
+        header.recipient,
+        flowSets,
+        sequenceGap
+    );
+  }
+
+  /**
+   * Emits the flowsets released by templates of the current datagram. Flowsets that arrived in the same
+   * datagram are emitted together with the header of that datagram.
+   */
+  private void replay(List<Object> output) {
+    final List<PendingFlowSetBuffer.Entry> entries = this.replay;
+    this.replay = null;
+
+    NetFlowV9Decoder.Header header = null;
+    List<NetFlowV9Decoder.FlowSet> flowSets = null;
+    for (PendingFlowSetBuffer.Entry entry : entries) {
+      if (entry.header != header) {
+        if (null != flowSets) {
+          output.add(netflowMessage(header, flowSets, 0L));
+        }
+        header = entry.header;
+        flowSets = this.netflowFactory.newFlowSetList();
+      }
+      RecordLayout layout = this.templateRegistry.get(header.sender, header.sourceID, entry.flowsetID & 0xFFFF);
+      byte[] data = entry.data;
+      if (null != this.filter && null != layout) {
+        final ByteBuf input = Unpooled.wrappedBuffer(data);
+        if (this.filter.filter(layout, input)) {
+          data = this.filter.copy(input);
+        }
+      }
+      final NetFlowV9Decoder.DataFlowSet dataFlowSet = this.netflowFactory.dataFlowSet(entry.flowsetID, data, layout);
+      flowSets.add(null != this.samplingTracker && null != layout ? sample(header, dataFlowSet) : dataFlowSet);
+    }
+    if (null != flowSets) {
+      output.add(netflowMessage(header, flowSets, 0L));
+    }
+  }
+
+  void releaseFlowSets(List<NetFlowV9Decoder.FlowSet> flowSets) {
+    if (!this.retainBuffers) {
+      return;
+    }
+    for (NetFlowV9Decoder.FlowSet flowSet : flowSets) {
+      if (flowSet instanceof NetFlowV9Decoder.DataFlowSet) {
+        ((NetFlowV9Decoder.DataFlowSet) flowSet).content().release();
+      }
+    }
+  }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+/**
+ * Intrusive doubly linked list of nodes in access order, most recently used first. Adding, moving and
+ * removing a node and finding the least recently used node are O(1), so bounded per exporter state can evict
+ * without scanning. The list is not thread safe, callers synchronize on it.
+ */
+class AccessOrder<N extends AccessOrder.Node<N>> {
+  N head;
+  N tail;
+  int size;
+
+  /**
+   * Adds a node that is not in the list as the most recently used one.
+   */
+  void addFirst(N node) {
+    if (node.linked) {
+      return;
+    }
+    node.linked = true;
+    node.previous = null;
+    node.next = this.head;
+    if (null == this.head) {
+      this.tail = node;
+    } else {
+      this.head.previous = node;
+    }
+    this.head = node;
+    this.size++;
+  }
+
+  /**
+   * Marks a node of the list as the most recently used one. Nodes that are not in the list are ignored.
+   */
+  void moveToFront(N node) {
+    if (!node.linked || this.head == node) {
+      return;
+    }
+    unlink(node);
+    addFirst(node);
+  }
+
+  /**
+   * Removes a node from the list.
+   *
+   * @return false if the node was not in the list.
+   */
+  boolean remove(N node) {
+    if (!node.linked) {
+      return false;
+    }
+    unlink(node);
+    return true;
+  }
+
+  private void unlink(N node) {
+    if (null == node.previous) {
+      this.head = node.next;
+    } else {
+      node.previous.next = node.next;
+    }
+    if (null == node.next) {
+      this.tail = node.previous;
+    } else {
+      node.next.previous = node.previous;
+    }
+    node.previous = null;
+    node.next = null;
+    node.linked = false;
+    this.size--;
+  }
+
+  /**
+   * Least recently used node or null if the list is empty.
+   */
+  N last() {
+    return this.tail;
+  }
+
+  int size() {
+    return this.size;
+  }
+
+  void clear() {
+    N node = this.head;
+    while (null != node) {
+      final N next = node.next;
+      node.previous = null;
+      node.next = null;
+      node.linked = false;
+      node = next;
+    }
+    this.head = null;
+    this.tail = null;
+    this.size = 0;
+  }
+
+  /**
+   * Links of a node. lastAccessNanos is read without holding the lock of the list, so lookups can decide
+   * whether a node has to be moved before taking it.
+   */
+  static class Node<N extends Node<N>> {
+    N previous;
+    N next;
+    boolean linked;
+    volatile long lastAccessNanos;
+  }
+}
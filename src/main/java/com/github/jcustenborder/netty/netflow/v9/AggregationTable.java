@@ -0,0 +1,234 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+/**
+ * Open addressing hash table from fixed length keys to long counters, stored in direct buffers. Entries are
+ * kept densely in insertion order, so iterating them is a linear scan, and a separate index of (hash, entry)
+ * slots is probed linearly. The table grows by doubling up to maxEntries. Tables are not thread safe.
+ */
+final class AggregationTable {
+  static final int MIN_ENTRIES = 1024;
+  static final int SLOT_LENGTH = 8;
+
+  final ByteBufAllocator allocator;
+  final int keyLength;
+  final int counterCount;
+  final int entryLength;
+  final int maxEntries;
+  ByteBuf entries;
+  ByteBuf index;
+  int capacity;
+  int mask;
+  int size;
+
+  AggregationTable(ByteBufAllocator allocator, int keyLength, int counterCount, int maxEntries) {
+    this.allocator = allocator;
+    this.keyLength = keyLength;
+    this.counterCount = counterCount;
+    this.entryLength = keyLength + 8 * counterCount;
+    this.maxEntries = maxEntries;
+    allocate(Math.min(MIN_ENTRIES, maxEntries));
+  }
+
+  void allocate(int capacity) {
+    this.capacity = capacity;
+    final int slots = Integer.highestOneBit(Math.max(2, capacity * 2 - 1)) << 1;
+    this.mask = slots - 1;
+    this.index = this.allocator.directBuffer(slots * SLOT_LENGTH, slots * SLOT_LENGTH);
+    this.index.setZero(0, slots * SLOT_LENGTH);
+    final ByteBuf entries = this.allocator.directBuffer(capacity * this.entryLength, capacity * this.entryLength);
+    if (null != this.entries) {
+      entries.setBytes(0, this.entries, 0, this.size * this.entryLength);
+      this.entries.release();
+    }
+    this.entries = entries;
+  }
+
+  void grow() {
+    final ByteBuf previous = this.index;
+    allocate(Math.min(this.capacity * 2, this.maxEntries));
+    previous.release();
+    for (int entry = 0; entry < this.size; entry++) {
+      final int hash = hash(this.entries, entry * this.entryLength, this.keyLength);
+      int slot = hash & this.mask;
+      while (0 != this.index.getInt(slot * SLOT_LENGTH + 4)) {
+        slot = (slot + 1) & this.mask;
+      }
+      this.index.setInt(slot * SLOT_LENGTH, hash);
+      this.index.setInt(slot * SLOT_LENGTH + 4, entry + 1);
+    }
+  }
+
+  static int hash(ByteBuf key, int offset, int length) {
+    long h = 0x9E3779B97F4A7C15L * (length + 1);
+    int i = 0;
+    for (; i + 8 <= length; i += 8) {
+      h = (h ^ key.getLong(offset + i)) * 0xC2B2AE3D27D4EB4FL;
+      h ^= h >>> 29;
+    }
+    for (; i < length; i++) {
+      h = (h ^ key.getByte(offset + i)) * 0x100000001B3L;
+    }
+    h ^= h >>> 32;
+    return (int) h;
+  }
+
+  boolean keyEquals(int entry, ByteBuf key) {
+    final int offset = entry * this.entryLength;
+    int i = 0;
+    for (; i + 8 <= this.keyLength; i += 8) {
+      if (this.entries.getLong(offset + i) != key.getLong(i)) {
+        return false;
+      }
+    }
+    for (; i < this.keyLength; i++) {
+      if (this.entries.getByte(offset + i) != key.getByte(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Probes for the key in the first keyLength bytes of key.
+   *
+   * @return the entry, or -(slot + 1) of the free slot where the key belongs.
+   */
+  int find(ByteBuf key, int hash) {
+    int slot = hash & this.mask;
+    int entry;
+    while (0 != (entry = this.index.getInt(slot * SLOT_LENGTH + 4))) {
+      if (this.index.getInt(slot * SLOT_LENGTH) == hash && keyEquals(entry - 1, key)) {
+        return entry - 1;
+      }
+      slot = (slot + 1) & this.mask;
+    }
+    return -(slot + 1);
+  }
+
+  /**
+   * Returns the entry for the key, or -1 if it is missing.
+   */
+  int get(ByteBuf key) {
+    final int result = find(key, hash(key, 0, this.keyLength));
+    return result >= 0 ? result : -1;
+  }
+
+  /**
+   * Returns the entry for the key, adding it with zero counters if it is missing, or -1 if the key is missing
+   * and the table is full.
+   */
+  int entry(ByteBuf key) {
+    final int hash = hash(key, 0, this.keyLength);
+    int result = find(key, hash);
+    if (result >= 0) {
+      return result;
+    }
+    if (this.size == this.capacity) {
+      if (this.capacity == this.maxEntries) {
+        return -1;
+      }
+      grow();
+      result = find(key, hash);
+    }
+    final int entry = this.size++;
+    write(entry, -result - 1, hash, key);
+    return entry;
+  }
+
+  /**
+   * Replaces the key of an entry and zeroes its counters, keeping the entry index.
+   */
+  void replace(int entry, ByteBuf key) {
+    deleteSlot(slotOf(entry));
+    final int hash = hash(key, 0, this.keyLength);
+    write(entry, -find(key, hash) - 1, hash, key);
+  }
+
+  void write(int entry, int slot, int hash, ByteBuf key) {
+    final int offset = entry * this.entryLength;
+    this.entries.setBytes(offset, key, 0, this.keyLength);
+    this.entries.setZero(offset + this.keyLength, 8 * this.counterCount);
+    this.index.setInt(slot * SLOT_LENGTH, hash);
+    this.index.setInt(slot * SLOT_LENGTH + 4, entry + 1);
+  }
+
+  int slotOf(int entry) {
+    final int hash = hash(this.entries, entry * this.entryLength, this.keyLength);
+    int slot = hash & this.mask;
+    while (this.index.getInt(slot * SLOT_LENGTH + 4) != entry + 1) {
+      slot = (slot + 1) & this.mask;
+    }
+    return slot;
+  }
+
+  /**
+   * Backward shift deletion keeps every remaining key reachable from its home slot without tombstones.
+   */
+  void deleteSlot(int slot) {
+    int hole = slot;
+    int next = (hole + 1) & this.mask;
+    while (0 != this.index.getInt(next * SLOT_LENGTH + 4)) {
+      final int home = this.index.getInt(next * SLOT_LENGTH) & this.mask;
+      // Move the entry back unless its home lies cyclically in (hole, next].
+      if (((next - home) & this.mask) >= ((next - hole) & this.mask)) {
+        this.index.setLong(hole * SLOT_LENGTH, this.index.getLong(next * SLOT_LENGTH));
+        hole = next;
+      }
+      next = (next + 1) & this.mask;
+    }
+    this.index.setLong(hole * SLOT_LENGTH, 0L);
+  }
+
+  long counter(int entry, int counter) {
+    return this.entries.getLong(entry * this.entryLength + this.keyLength + 8 * counter);
+  }
+
+  void counter(int entry, int counter, long value) {
+    this.entries.setLong(entry * this.entryLength + this.keyLength + 8 * counter, value);
+  }
+
+  void add(int entry, int counter, long value) {
+    final int offset = entry * this.entryLength + this.keyLength + 8 * counter;
+    this.entries.setLong(offset, this.entries.getLong(offset) + value);
+  }
+
+  void key(int entry, byte[] dst) {
+    this.entries.getBytes(entry * this.entryLength, dst, 0, this.keyLength);
+  }
+
+  int size() {
+    return this.size;
+  }
+
+  boolean isFull() {
+    return this.size == this.maxEntries;
+  }
+
+  void clear() {
+    this.index.setZero(0, this.index.capacity());
+    this.size = 0;
+  }
+
+  void release() {
+    this.entries.release();
+    this.index.release();
+  }
+}
@@ -0,0 +1,192 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * TemplateCache with bounded memory, so a flood of template ids or spoofed exporters cannot grow the heap
+ * without limit. Bounds are the number of exporters, the number of templates per exporter, an approximate
+ * byte budget for all layouts and an idle timeout. A bound of 0 disables it.
+ * <p>
+ * Exporters are kept in access order by ExporterStates, the same bound the metrics and trackers use, so the
+ * least recently used exporter is evicted and idle exporters are expired without scanning the cache. An
+ * exporter over its template limit loses the template that was defined longest ago. Evicted templates are
+ * reported to the listener like removals, so a TemplateSnapshotStore stays in sync.
+ * <pre>
+ * TemplateCache templateCache = new BoundedTemplateCache(10000, 512, 64 * 1024 * 1024, 1, TimeUnit.HOURS);
+ * </pre>
+ */
+public class BoundedTemplateCache extends TemplateCache {
+  private static final Logger log = LoggerFactory.getLogger(BoundedTemplateCache.class);
+  static final int LAYOUT_OVERHEAD = 160;
+  static final int FIELD_OVERHEAD = 48;
+
+  final int maxTemplatesPerExporter;
+  final long maxBytes;
+  final AtomicLong bytes = new AtomicLong();
+  final LongAdder templatesEvicted = new LongAdder();
+
+  public BoundedTemplateCache(int maxExporters, int maxTemplatesPerExporter, long maxBytes, long idleTimeout, TimeUnit unit) {
+    super(maxExporters, idleTimeout, unit, true);
+    if (maxTemplatesPerExporter < 0) {
+      throw new IllegalArgumentException("maxTemplatesPerExporter must be greater than or equal to 0.");
+    }
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("maxBytes must be greater than or equal to 0.");
+    }
+    this.maxTemplatesPerExporter = maxTemplatesPerExporter;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Approximate heap used by a layout, its field list and lookup arrays.
+   */
+  static long estimatedBytes(RecordLayout layout) {
+    if (null == layout) {
+      return 0;
+    }
+    return LAYOUT_OVERHEAD + (long) layout.fieldCount() * FIELD_OVERHEAD + 4L * layout.indexByType.length;
+  }
+
+  @Override
+  Exporter newExporter(ExporterKey key) {
+    return new BoundedExporter(key);
+  }
+
+  @Override
+  void exporterRemoved(Exporter exporter) {
+    if (log.isDebugEnabled()) {
+      log.debug("Removing {} with {} template(s).", exporter.key, exporter.table.get().size());
+    }
+    super.exporterRemoved(exporter);
+  }
+
+  @Override
+  void templatePut(Exporter exporter, int templateID, RecordLayout previous, RecordLayout layout) {
+    final BoundedExporter boundedExporter = (BoundedExporter) exporter;
+    boolean full = false;
+    synchronized (boundedExporter) {
+      boundedExporter.order.remove(templateID);
+      if (null != layout) {
+        boundedExporter.order.add(templateID);
+        full = this.maxTemplatesPerExporter > 0 && boundedExporter.order.size() > this.maxTemplatesPerExporter;
+      }
+    }
+    this.bytes.addAndGet(estimatedBytes(layout) - estimatedBytes(previous));
+    if (null == layout) {
+      return;
+    }
+    if (this.exporters.getIfPresent(exporter.key) != exporter) {
+      // The exporter was evicted while the template was added, nothing references the layout anymore.
+      this.bytes.addAndGet(-estimatedBytes(layout));
+      return;
+    }
+
+    if (full && evictTemplate(boundedExporter, templateID)) {
+      this.templatesEvicted.increment();
+    }
+    while (this.maxBytes > 0 && this.bytes.get() > this.maxBytes) {
+      if (this.exporters.evictLeastRecentlyUsed(exporter.key)) {
+        continue;
+      }
+      if (evictTemplate(boundedExporter, templateID)) {
+        this.templatesEvicted.increment();
+      } else {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Evicts the template of the exporter that was defined longest ago, or keep if it is the only one left.
+   */
+  boolean evictTemplate(BoundedExporter exporter, int keep) {
+    int templateID = -1;
+    synchronized (exporter) {
+      Iterator<Integer> iterator = exporter.order.iterator();
+      while (iterator.hasNext()) {
+        int candidate = iterator.next();
+        if (candidate != keep || exporter.order.size() == 1) {
+          templateID = candidate;
+          break;
+        }
+      }
+    }
+    if (templateID < 0) {
+      return false;
+    }
+    if (log.isDebugEnabled()) {
+      log.debug("Evicting template {} of {}.", templateID, exporter.key);
+    }
+    return null != remove(new TemplateKey(exporter.key, templateID), true);
+  }
+
+  /**
+   * Removes the exporters that have been idle longer than the idle timeout. This runs as templates are
+   * added and looked up, call it periodically if the cache must shrink while no exporter sends templates.
+   */
+  public void cleanUp() {
+    this.exporters.cleanUp();
+  }
+
+  /**
+   * Approximate heap used by the templates in the cache.
+   */
+  public long bytes() {
+    return this.bytes.get();
+  }
+
+  public int exporterCount() {
+    return this.exporters.size();
+  }
+
+  /**
+   * Exporters evicted because maxExporters or maxBytes was exceeded.
+   */
+  public long exportersEvicted() {
+    return this.exporters.evicted.sum();
+  }
+
+  /**
+   * Exporters removed after the idle timeout.
+   */
+  public long exportersExpired() {
+    return this.exporters.expired.sum();
+  }
+
+  /**
+   * Templates evicted because maxTemplatesPerExporter or maxBytes was exceeded.
+   */
+  public long templatesEvicted() {
+    return this.templatesEvicted.sum();
+  }
+
+  static class BoundedExporter extends Exporter {
+    final LinkedHashSet<Integer> order = new LinkedHashSet<>();
+
+    BoundedExporter(ExporterKey key) {
+      super(key);
+    }
+  }
+}
@@ -0,0 +1,223 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageDecoder;
+
+import java.util.List;
+
+/**
+ * Re-encodes the data flowsets of decoded messages into a compact columnar format, for shipping flows to a
+ * message broker without building an object per record. Values are copied straight from the flowset buffers,
+ * column by column, in network byte order as the exporter sent them. Flowsets without a template and template
+ * flowsets are skipped. {@link #encode(NetFlowV9Decoder.NetFlowMessage, ByteBuf)} writes a single message.
+ * <p>
+ * As a handler it is inbound and goes after the decoder. It replaces every NetFlowMessage and NetFlowBatch read
+ * from the channel with one ByteBuf per message that has data, releases the message, and passes other messages
+ * through.
+ * <pre>
+ * pipeline.addLast("netflow-decoder", new NetFlowDecoder(config));
+ * pipeline.addLast("columnar-encoder", new ColumnarFlowEncoder());
+ * pipeline.addLast("kafka-producer", new MyProducerHandler());
+ * </pre>
+ * <pre>
+ * message  := magic:int32 ("NFCB") formatVersion:int8 addressLength:int8 address:byte[addressLength]
+ *             version:int16 uptime:int32 timestamp:int32 flowSequence:int32 sourceID:int32 batchCount:int16 batch*
+ * batch    := templateID:int16 scopeFieldCount:int16 fieldCount:int16 recordCount:int32 field* column*
+ * field    := type:int16 length:int16 enterpriseNumber:int32
+ * column   := value:byte[length] * recordCount                          for fixed length fields
+ *           | offset:int32 * (recordCount + 1) data:byte[last offset]   for variable length fields
+ * </pre>
+ * The schema of a batch is the template, so every record of a batch has the same fields.
+ */
+@ChannelHandler.Sharable
+public class ColumnarFlowEncoder extends MessageToMessageDecoder<Object> {
+  public static final int MAGIC = 0x4E464342;
+  public static final byte FORMAT_VERSION = 1;
+
+  @Override
+  public boolean acceptInboundMessage(Object msg) throws Exception {
+    return msg instanceof NetFlowV9Decoder.NetFlowMessage || msg instanceof NetFlowV9Decoder.NetFlowBatch;
+  }
+
+  @Override
+  protected void decode(ChannelHandlerContext ctx, Object msg, List<Object> out) throws Exception {
+    if (msg instanceof NetFlowV9Decoder.NetFlowBatch) {
+      for (NetFlowV9Decoder.NetFlowMessage message : ((NetFlowV9Decoder.NetFlowBatch) msg).messages()) {
+        encodeMessage(ctx, message, out);
+      }
+    } else {
+      encodeMessage(ctx, (NetFlowV9Decoder.NetFlowMessage) msg, out);
+    }
+  }
+
+  void encodeMessage(ChannelHandlerContext ctx, NetFlowV9Decoder.NetFlowMessage message, List<Object> out) {
+    final int size = encodedSize(message);
+    if (size < 0) {
+      return;
+    }
+    ByteBuf output = ctx.alloc().buffer(size);
+    try {
+      encode(message, output);
+      out.add(output);
+      output = null;
+    } finally {
+      if (null != output) {
+        output.release();
+      }
+    }
+  }
+
+  /**
+   * Upper bound of the encoded size of a message, or -1 if it has no data flowset with a template.
+   */
+  static int encodedSize(NetFlowV9Decoder.NetFlowMessage message) {
+    int result = 4 + 1 + 1 + 16 + 2 + 4 + 4 + 4 + 4 + 2;
+    boolean data = false;
+    for (NetFlowV9Decoder.FlowSet flowSet : message.flowsets()) {
+      if (!(flowSet instanceof NetFlowV9Decoder.DataFlowSet)) {
+        continue;
+      }
+      final NetFlowV9Decoder.DataFlowSet dataFlowSet = (NetFlowV9Decoder.DataFlowSet) flowSet;
+      final RecordLayout layout = dataFlowSet.layout();
+      if (null == layout) {
+        continue;
+      }
+      data = true;
+      result += 10 + 8 * layout.fieldCount() + dataFlowSet.content().readableBytes();
+      if (layout.isVariableLength()) {
+        final int records = dataFlowSet.content().readableBytes() / Math.max(1, layout.minimumRecordLength);
+        result += 4 * layout.fieldCount() * (records + 1);
+      }
+    }
+    return data ? result : -1;
+  }
+
+  /**
+   * Writes the columnar encoding of a message to output.
+   */
+  public static void encode(NetFlowV9Decoder.NetFlowMessage message, ByteBuf output) {
+    final byte[] address = null == message.sender() || null == message.sender().getAddress() ?
+        new byte[0] :
+        message.sender().getAddress().getAddress();
+    output.writeInt(MAGIC);
+    output.writeByte(FORMAT_VERSION);
+    output.writeByte(address.length);
+    output.writeBytes(address);
+    output.writeShort(message.version());
+    output.writeInt(message.uptime());
+    output.writeInt(message.timestamp());
+    output.writeInt(message.flowSequence());
+    output.writeInt(message.sourceID());
+    final int batchCountIndex = output.writerIndex();
+    output.writeShort(0);
+
+    final FlowRecordCursor cursor = new FlowRecordCursor();
+    int batchCount = 0;
+    for (NetFlowV9Decoder.FlowSet flowSet : message.flowsets()) {
+      if (!(flowSet instanceof NetFlowV9Decoder.DataFlowSet)) {
+        continue;
+      }
+      final NetFlowV9Decoder.DataFlowSet dataFlowSet = (NetFlowV9Decoder.DataFlowSet) flowSet;
+      if (null == dataFlowSet.layout()) {
+        continue;
+      }
+      writeBatch(dataFlowSet, cursor, output);
+      batchCount++;
+    }
+    output.setShort(batchCountIndex, batchCount);
+  }
+
+  static void writeBatch(NetFlowV9Decoder.DataFlowSet dataFlowSet, FlowRecordCursor cursor, ByteBuf output) {
+    final RecordLayout layout = dataFlowSet.layout();
+    final ByteBuf content = dataFlowSet.content();
+    cursor.reset(layout, content);
+    final int recordCount = cursor.recordCount();
+    output.writeShort(dataFlowSet.flowsetID());
+    output.writeShort(layout.scopeFieldCount());
+    output.writeShort(layout.fieldCount());
+    output.writeInt(recordCount);
+    for (int i = 0; i < layout.fieldCount(); i++) {
+      output.writeShort(layout.fieldType(i));
+      output.writeShort(layout.fieldLength(i));
+      output.writeInt(layout.enterpriseNumber(i));
+    }
+
+    if (!layout.isVariableLength()) {
+      for (int i = 0; i < layout.fieldCount(); i++) {
+        writeColumn(content, content.readerIndex() + layout.fieldOffset(i), layout.recordLength(), recordCount, layout.fieldLength(i), output);
+      }
+      return;
+    }
+
+    for (int i = 0; i < layout.fieldCount(); i++) {
+      cursor.reset(layout, content);
+      if (RecordLayout.VARIABLE_LENGTH == layout.fieldLength(i)) {
+        int offsetIndex = output.writerIndex();
+        output.writeZero(4 * (recordCount + 1));
+        final int dataStart = output.writerIndex();
+        while (cursor.next()) {
+          output.writeBytes(content, cursor.offsetAt(i), cursor.lengthAt(i));
+          offsetIndex += 4;
+          output.setInt(offsetIndex, output.writerIndex() - dataStart);
+        }
+      } else {
+        while (cursor.next()) {
+          output.writeBytes(content, cursor.offsetAt(i), cursor.lengthAt(i));
+        }
+      }
+    }
+  }
+
+  /**
+   * Gathers one field of every record of a fixed length layout into a contiguous column.
+   */
+  static void writeColumn(ByteBuf content, int index, int stride, int count, int length, ByteBuf output) {
+    output.ensureWritable(count * length);
+    int target = output.writerIndex();
+    switch (length) {
+      case 1:
+        for (int i = 0; i < count; i++, index += stride, target += 1) {
+          output.setByte(target, content.getByte(index));
+        }
+        break;
+      case 2:
+        for (int i = 0; i < count; i++, index += stride, target += 2) {
+          output.setShort(target, content.getShort(index));
+        }
+        break;
+      case 4:
+        for (int i = 0; i < count; i++, index += stride, target += 4) {
+          output.setInt(target, content.getInt(index));
+        }
+        break;
+      case 8:
+        for (int i = 0; i < count; i++, index += stride, target += 8) {
+          output.setLong(target, content.getLong(index));
+        }
+        break;
+      default:
+        for (int i = 0; i < count; i++, index += stride, target += length) {
+          output.setBytes(target, content, index, length);
+        }
+        break;
+    }
+    output.writerIndex(target);
+  }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * Identifies an exporter by address and source id, the observation domain id for IPFIX. The source port is
+ * ignored like it is by the TemplateCache.
+ */
+public final class ExporterKey {
+  InetAddress exporter;
+  int sourceID;
+  int hashCode;
+
+  public ExporterKey(InetSocketAddress sender, int sourceID) {
+    this(null == sender ? null : sender.getAddress(), sourceID);
+  }
+
+  public ExporterKey(InetAddress exporter, int sourceID) {
+    set(exporter, sourceID);
+  }
+
+  /**
+   * Reuses a key as a lookup probe. Only for keys that are never stored in a map.
+   */
+  ExporterKey set(InetAddress exporter, int sourceID) {
+    this.exporter = exporter;
+    this.sourceID = sourceID;
+    this.hashCode = 31 * (null == exporter ? 0 : exporter.hashCode()) + sourceID;
+    return this;
+  }
+
+  public InetAddress exporter() {
+    return this.exporter;
+  }
+
+  public int sourceID() {
+    return this.sourceID;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof ExporterKey)) {
+      return false;
+    }
+    ExporterKey that = (ExporterKey) o;
+    return this.sourceID == that.sourceID &&
+        (null == this.exporter ? null == that.exporter : this.exporter.equals(that.exporter));
+  }
+
+  @Override
+  public int hashCode() {
+    return this.hashCode;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s/%s", null == this.exporter ? null : this.exporter.getHostAddress(), this.sourceID & 0xFFFFFFFFL);
+  }
+}
@@ -0,0 +1,279 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * Per exporter state of the template cache, the metrics and the trackers, bounded by the number of exporters
+ * and an idle timeout so spoofed exporters cannot grow it without limit. A bound of 0 disables it.
+ * <p>
+ * Entries are linked in an AccessOrder list, so the least recently used exporter is evicted and idle
+ * exporters are expired without scanning. Lookups of known exporters are lock free and take the lock of the
+ * list at most once per millisecond and exporter. Without access order, as for an unbounded template cache,
+ * lookups are a plain map get.
+ */
+class ExporterStates<V> {
+  static final int DEFAULT_MAX_EXPORTERS = 10000;
+  static final long DEFAULT_IDLE_TIMEOUT_HOURS = 1;
+  static final long ACCESS_RESOLUTION_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  final ConcurrentMap<ExporterKey, Entry<V>> entries = new ConcurrentHashMap<>();
+  final AccessOrder<Entry<V>> accessOrder = new AccessOrder<>();
+  final int maxExporters;
+  final long idleTimeoutNanos;
+  final Function<ExporterKey, V> factory;
+  final boolean accessOrdered;
+  final AtomicLong nextSweepNanos = new AtomicLong();
+  final LongAdder evicted = new LongAdder();
+  final LongAdder expired = new LongAdder();
+  LongSupplier ticker;
+
+  ExporterStates(int maxExporters, long idleTimeout, TimeUnit unit, Function<ExporterKey, V> factory) {
+    this(maxExporters, idleTimeout, unit, factory, maxExporters > 0 || idleTimeout > 0);
+  }
+
+  /**
+   * @param accessOrdered whether to keep exporters in access order when neither bound is set, so the
+   *                      owner can evict them for bounds of its own.
+   */
+  ExporterStates(int maxExporters, long idleTimeout, TimeUnit unit, Function<ExporterKey, V> factory, boolean accessOrdered) {
+    if (maxExporters < 0) {
+      throw new IllegalArgumentException("maxExporters must be greater than or equal to 0.");
+    }
+    if (idleTimeout < 0) {
+      throw new IllegalArgumentException("idleTimeout must be greater than or equal to 0.");
+    }
+    this.maxExporters = maxExporters;
+    this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+    this.factory = factory;
+    this.accessOrdered = accessOrdered || maxExporters > 0 || idleTimeout > 0;
+    ticker(System::nanoTime);
+  }
+
+  void ticker(LongSupplier ticker) {
+    this.ticker = ticker;
+    this.nextSweepNanos.set(ticker.getAsLong() + this.idleTimeoutNanos);
+  }
+
+  /**
+   * Called after an exporter was evicted, expired or removed.
+   */
+  void removed(Entry<V> entry) {
+
+  }
+
+  /**
+   * State of an exporter, created if the exporter is not known yet.
+   */
+  V get(ExporterKey key) {
+    return entry(key).value;
+  }
+
+  /**
+   * State of an exporter or null if it is not known. Counts as an access.
+   */
+  V getIfPresent(ExporterKey key) {
+    final Entry<V> entry = this.entries.get(key);
+    if (null == entry) {
+      return null;
+    }
+    accessed(entry);
+    return entry.value;
+  }
+
+  /**
+   * Replaces the state of an exporter with the result of update, creating it first if necessary. The
+   * exporter is removed when update returns null.
+   */
+  V update(ExporterKey key, UnaryOperator<V> update) {
+    final Entry<V> entry = entry(key);
+    synchronized (entry) {
+      final V value = update.apply(entry.value);
+      if (null == value) {
+        remove(entry);
+      } else {
+        entry.value = value;
+      }
+      return value;
+    }
+  }
+
+  void remove(Entry<V> entry) {
+    if (this.entries.remove(entry.key, entry)) {
+      synchronized (this.accessOrder) {
+        this.accessOrder.remove(entry);
+      }
+      removed(entry);
+    }
+  }
+
+  /**
+   * Removes every exporter.
+   */
+  void clear() {
+    for (Entry<V> entry : this.entries.values()) {
+      remove(entry);
+    }
+  }
+
+  Entry<V> entry(ExporterKey key) {
+    Entry<V> result = this.entries.get(key);
+    if (null != result) {
+      accessed(result);
+      return result;
+    }
+    boolean[] created = new boolean[1];
+    result = this.entries.computeIfAbsent(key, k -> {
+      created[0] = true;
+      Entry<V> entry = new Entry<>(k, this.factory.apply(k));
+      entry.lastAccessNanos = this.ticker.getAsLong();
+      return entry;
+    });
+    if (created[0]) {
+      created(result);
+    }
+    return result;
+  }
+
+  void created(Entry<V> entry) {
+    if (!this.accessOrdered) {
+      return;
+    }
+    synchronized (this.accessOrder) {
+      if (this.entries.get(entry.key) == entry) {
+        this.accessOrder.addFirst(entry);
+      }
+    }
+    if (this.maxExporters > 0) {
+      while (this.entries.size() > this.maxExporters) {
+        if (!evictLeastRecentlyUsed(entry.key)) {
+          break;
+        }
+      }
+    }
+    expireIfDue(entry.lastAccessNanos);
+  }
+
+  void accessed(Entry<V> entry) {
+    if (!this.accessOrdered) {
+      return;
+    }
+    final long now = this.ticker.getAsLong();
+    if (now - entry.lastAccessNanos > ACCESS_RESOLUTION_NANOS) {
+      synchronized (this.accessOrder) {
+        entry.lastAccessNanos = now;
+        this.accessOrder.moveToFront(entry);
+      }
+      expireIfDue(now);
+    }
+  }
+
+  /**
+   * Evicts the exporter that was accessed longest ago, except exclude.
+   *
+   * @return false if there is no other exporter.
+   */
+  boolean evictLeastRecentlyUsed(ExporterKey exclude) {
+    Entry<V> eldest;
+    synchronized (this.accessOrder) {
+      eldest = this.accessOrder.last();
+      if (null != eldest && eldest.key.equals(exclude)) {
+        eldest = eldest.previous;
+      }
+      if (null == eldest) {
+        return false;
+      }
+      this.accessOrder.remove(eldest);
+    }
+    if (this.entries.remove(eldest.key, eldest)) {
+      this.evicted.increment();
+      removed(eldest);
+    }
+    return true;
+  }
+
+  void expireIfDue(long now) {
+    if (0 == this.idleTimeoutNanos) {
+      return;
+    }
+    final long next = this.nextSweepNanos.get();
+    if (now - next >= 0 && this.nextSweepNanos.compareAndSet(next, now + this.idleTimeoutNanos / 2)) {
+      expire(now);
+    }
+  }
+
+  /**
+   * Removes the exporters that have been idle longer than the idle timeout. This runs as exporters are
+   * looked up, call it periodically if state must be released while no datagrams arrive.
+   */
+  void cleanUp() {
+    if (this.idleTimeoutNanos > 0) {
+      expire(this.ticker.getAsLong());
+    }
+  }
+
+  void expire(long now) {
+    while (true) {
+      final Entry<V> entry;
+      synchronized (this.accessOrder) {
+        entry = this.accessOrder.last();
+        if (null == entry || now - entry.lastAccessNanos <= this.idleTimeoutNanos) {
+          return;
+        }
+        this.accessOrder.remove(entry);
+      }
+      if (this.entries.remove(entry.key, entry)) {
+        this.expired.increment();
+        removed(entry);
+      }
+    }
+  }
+
+  int size() {
+    return this.entries.size();
+  }
+
+  /**
+   * Copy of the state of every exporter.
+   */
+  Map<ExporterKey, V> snapshot() {
+    Map<ExporterKey, V> result = new HashMap<>(this.entries.size() * 2);
+    for (Entry<V> entry : this.entries.values()) {
+      result.put(entry.key, entry.value);
+    }
+    return result;
+  }
+
+  static final class Entry<V> extends AccessOrder.Node<Entry<V>> {
+    final ExporterKey key;
+    volatile V value;
+
+    Entry(ExporterKey key, V value) {
+      this.key = key;
+      this.value = value;
+    }
+  }
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+/**
+ * Field type identifiers defined by RFC 3954.
+ */
+public final class FieldType {
+  public static final int IN_BYTES = 1;
+  public static final int IN_PKTS = 2;
+  public static final int FLOWS = 3;
+  public static final int PROTOCOL = 4;
+  public static final int SRC_TOS = 5;
+  public static final int TCP_FLAGS = 6;
+  public static final int L4_SRC_PORT = 7;
+  public static final int IPV4_SRC_ADDR = 8;
+  public static final int SRC_MASK = 9;
+  public static final int INPUT_SNMP = 10;
+  public static final int L4_DST_PORT = 11;
+  public static final int IPV4_DST_ADDR = 12;
+  public static final int DST_MASK = 13;
+  public static final int OUTPUT_SNMP = 14;
+  public static final int IPV4_NEXT_HOP = 15;
+  public static final int SRC_AS = 16;
+  public static final int DST_AS = 17;
+  public static final int BGP_IPV4_NEXT_HOP = 18;
+  public static final int MUL_DST_PKTS = 19;
+  public static final int MUL_DST_BYTES = 20;
+  public static final int LAST_SWITCHED = 21;
+  public static final int FIRST_SWITCHED = 22;
+  public static final int OUT_BYTES = 23;
+  public static final int OUT_PKTS = 24;
+  public static final int IPV6_SRC_ADDR = 27;
+  public static final int IPV6_DST_ADDR = 28;
+  public static final int IPV6_SRC_MASK = 29;
+  public static final int IPV6_DST_MASK = 30;
+  public static final int IPV6_FLOW_LABEL = 31;
+  public static final int ICMP_TYPE = 32;
+  public static final int SAMPLING_INTERVAL = 34;
+  public static final int SAMPLING_ALGORITHM = 35;
+  public static final int ENGINE_TYPE = 38;
+  public static final int ENGINE_ID = 39;
+  public static final int FLOW_SAMPLER_ID = 48;
+  public static final int FLOW_SAMPLER_MODE = 49;
+  public static final int FLOW_SAMPLER_RANDOM_INTERVAL = 50;
+  public static final int DIRECTION = 61;
+  public static final int IPV6_NEXT_HOP = 62;
+  public static final int IF_NAME = 82;
+  public static final int IF_DESC = 83;
+  public static final int PADDING_OCTETS = 210;
+
+  private FieldType() {
+
+  }
+}
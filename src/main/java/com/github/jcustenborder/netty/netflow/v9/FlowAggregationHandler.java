@@ -0,0 +1,582 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rolls flow records up by key over tumbling windows, so only aggregates travel further down the pipeline.
+ * Install it after the decoder. It consumes NetFlowMessages and NetFlowBatches and emits a {@link Window} when a
+ * window closes. Records are read in place with a FlowRecordCursor and accumulated in an off-heap open
+ * addressing table of primitive counters. Options records are ignored.
+ * <p>
+ * In exact mode a window is emitted early, marked partial, when the table reaches maxEntries. In heavy hitter
+ * mode the table keeps the k keys with the largest rank counter using the Space-Saving algorithm, so memory is
+ * bounded however many keys there are. A key that replaces another inherits its rank as overestimation error.
+ * Handlers are not sharable, install one per channel.
+ * <pre>
+ * FlowAggregationHandler handler = FlowAggregationHandler.builder()
+ *     .key(FieldType.IPV4_SRC_ADDR, 4, 24)
+ *     .key(FieldType.L4_DST_PORT, 2)
+ *     .sum(FieldType.IN_BYTES)
+ *     .sum(FieldType.IN_PKTS)
+ *     .window(1, TimeUnit.MINUTES)
+ *     .build();
+ * </pre>
+ */
+public class FlowAggregationHandler extends ChannelInboundHandlerAdapter {
+  static final int MAX_BINDINGS = 4096;
+
+  final KeyField[] keyFields;
+  final int[] sumFields;
+  final int keyLength;
+  final int[] keyOffsets;
+  final long windowMillis;
+  final boolean heavyHitters;
+  final int rankCounter;
+  final int errorCounter;
+  final AggregationTable table;
+  final ByteBuf key;
+  final FlowRecordCursor cursor = new FlowRecordCursor();
+  final Map<RecordLayout, Binding> bindings = new IdentityHashMap<>();
+  RecordLayout lastLayout;
+  Binding lastBinding;
+  int[] heap;
+  int[] heapPositions;
+  long windowStart;
+  ScheduledFuture<?> flushFuture;
+
+  FlowAggregationHandler(Builder builder) {
+    this.keyFields = builder.keyFields.toArray(new KeyField[0]);
+    this.sumFields = builder.sumFields.stream().mapToInt(Integer::intValue).toArray();
+    this.keyOffsets = new int[this.keyFields.length];
+    int keyLength = 0;
+    for (int i = 0; i < this.keyFields.length; i++) {
+      this.keyOffsets[i] = keyLength;
+      keyLength += this.keyFields[i].width;
+    }
+    this.keyLength = keyLength;
+    this.windowMillis = builder.windowMillis;
+    this.heavyHitters = builder.heavyHitters > 0;
+    // Counter 0 counts records, sums follow and heavy hitter mode adds the error.
+    this.rankCounter = 0 == builder.rankBy ? 0 : 1 + builder.sumFields.indexOf(builder.rankBy);
+    this.errorCounter = this.heavyHitters ? 1 + this.sumFields.length : -1;
+    final int counters = 1 + this.sumFields.length + (this.heavyHitters ? 1 : 0);
+    final int maxEntries = this.heavyHitters ? builder.heavyHitters : builder.maxEntries;
+    this.table = new AggregationTable(builder.allocator, this.keyLength, counters, maxEntries);
+    this.key = Unpooled.buffer(Math.max(8, this.keyLength));
+    if (this.heavyHitters) {
+      this.heap = new int[maxEntries];
+      this.heapPositions = new int[maxEntries];
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  long nowMillis() {
+    return System.currentTimeMillis();
+  }
+
+  long windowStart(long now) {
+    return now - Math.floorMod(now, this.windowMillis);
+  }
+
+  @Override
+  public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+    final long now = nowMillis();
+    this.windowStart = windowStart(now);
+    final long delay = this.windowStart + this.windowMillis - now;
+    this.flushFuture = ctx.executor().scheduleAtFixedRate(
+        () -> flushIfDue(ctx), delay, this.windowMillis, TimeUnit.MILLISECONDS
+    );
+  }
+
+  @Override
+  public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+    if (null != this.flushFuture) {
+      this.flushFuture.cancel(false);
+    }
+    this.table.release();
+    this.key.release();
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    flush(ctx, false, nowMillis());
+    super.channelInactive(ctx);
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    flushIfDue(ctx);
+    if (msg instanceof NetFlowV9Decoder.NetFlowMessage) {
+      try {
+        aggregate(ctx, (NetFlowV9Decoder.NetFlowMessage) msg);
+      } finally {
+        ReferenceCountUtil.release(msg);
+      }
+    } else if (msg instanceof NetFlowV9Decoder.NetFlowBatch) {
+      try {
+        for (NetFlowV9Decoder.NetFlowMessage message : ((NetFlowV9Decoder.NetFlowBatch) msg).messages()) {
+          aggregate(ctx, message);
+        }
+      } finally {
+        ReferenceCountUtil.release(msg);
+      }
+    } else {
+      ctx.fireChannelRead(msg);
+    }
+  }
+
+  void flushIfDue(ChannelHandlerContext ctx) {
+    final long now = nowMillis();
+    if (now >= this.windowStart + this.windowMillis) {
+      flush(ctx, false, this.windowStart + this.windowMillis);
+      this.windowStart = windowStart(now);
+    }
+  }
+
+  /**
+   * Emits the aggregates of the current window, if any, and clears the table.
+   */
+  void flush(ChannelHandlerContext ctx, boolean partial, long endMillis) {
+    final int size = this.table.size();
+    if (0 == size) {
+      return;
+    }
+    List<Aggregate> aggregates = new ArrayList<>(size);
+    for (int entry = 0; entry < size; entry++) {
+      byte[] key = new byte[this.keyLength];
+      this.table.key(entry, key);
+      long[] counters = new long[this.table.counterCount];
+      for (int i = 0; i < counters.length; i++) {
+        counters[i] = this.table.counter(entry, i);
+      }
+      aggregates.add(new Aggregate(this, key, counters));
+    }
+    this.table.clear();
+    ctx.fireChannelRead(new Window(this.windowStart, endMillis, partial, Collections.unmodifiableList(aggregates)));
+  }
+
+  void aggregate(ChannelHandlerContext ctx, NetFlowV9Decoder.NetFlowMessage message) {
+    for (NetFlowV9Decoder.FlowSet flowSet : message.flowsets()) {
+      if (!(flowSet instanceof NetFlowV9Decoder.DataFlowSet)) {
+        continue;
+      }
+      final NetFlowV9Decoder.DataFlowSet dataFlowSet = (NetFlowV9Decoder.DataFlowSet) flowSet;
+      final RecordLayout layout = dataFlowSet.layout();
+      if (null == layout || layout.isOptions()) {
+        continue;
+      }
+      final Binding binding = binding(layout);
+      final FlowRecordCursor cursor = this.cursor.reset(dataFlowSet);
+      while (cursor.next()) {
+        writeKey(binding, cursor);
+        if (this.heavyHitters) {
+          addHeavyHitter(binding, cursor);
+        } else {
+          int entry = this.table.entry(this.key);
+          if (entry < 0) {
+            flush(ctx, true, nowMillis());
+            entry = this.table.entry(this.key);
+          }
+          addCounters(entry, binding, cursor);
+        }
+      }
+    }
+  }
+
+  Binding binding(RecordLayout layout) {
+    if (layout == this.lastLayout) {
+      return this.lastBinding;
+    }
+    Binding result = this.bindings.get(layout);
+    if (null == result) {
+      if (this.bindings.size() >= MAX_BINDINGS) {
+        this.bindings.clear();
+      }
+      result = new Binding(layout);
+      this.bindings.put(layout, result);
+    }
+    this.lastLayout = layout;
+    this.lastBinding = result;
+    return result;
+  }
+
+  void writeKey(Binding binding, FlowRecordCursor cursor) {
+    final ByteBuf key = this.key;
+    for (int i = 0; i < this.keyFields.length; i++) {
+      final KeyField keyField = this.keyFields[i];
+      final int offset = this.keyOffsets[i];
+      final int index = binding.keyIndexes[i];
+      if (keyField.width <= 8) {
+        long value = index < 0 || cursor.lengthAt(index) > 8 ? 0L : cursor.getLongAt(index);
+        value &= keyField.mask;
+        for (int j = keyField.width - 1; j >= 0; j--) {
+          key.setByte(offset + j, (int) value);
+          value >>>= 8;
+        }
+      } else if (index < 0 || cursor.lengthAt(index) != keyField.width) {
+        key.setZero(offset, keyField.width);
+      } else {
+        key.setBytes(offset, cursor.buffer(), cursor.offsetAt(index), keyField.width);
+        if (keyField.prefixLength >= 0) {
+          for (int j = 0; j < keyField.width; j++) {
+            final int bits = Math.max(0, Math.min(8, keyField.prefixLength - j * 8));
+            key.setByte(offset + j, key.getByte(offset + j) & (0xFF00 >>> bits));
+          }
+        }
+      }
+    }
+  }
+
+  long value(Binding binding, FlowRecordCursor cursor, int sum) {
+    final int index = binding.sumIndexes[sum];
+    return index < 0 || cursor.lengthAt(index) > 8 ? 0L : cursor.getLongAt(index);
+  }
+
+  void addCounters(int entry, Binding binding, FlowRecordCursor cursor) {
+    this.table.add(entry, 0, 1);
+    for (int i = 0; i < this.sumFields.length; i++) {
+      this.table.add(entry, 1 + i, value(binding, cursor, i));
+    }
+  }
+
+  /**
+   * Space-Saving update. A min heap on the rank counter finds the key to replace in O(log k).
+   */
+  void addHeavyHitter(Binding binding, FlowRecordCursor cursor) {
+    int entry = this.table.get(this.key);
+    if (entry < 0 && !this.table.isFull()) {
+      entry = this.table.entry(this.key);
+      this.heap[entry] = entry;
+      this.heapPositions[entry] = entry;
+      addCounters(entry, binding, cursor);
+      siftUp(entry);
+      return;
+    }
+    if (entry < 0) {
+      entry = this.heap[0];
+      final long minimum = this.table.counter(entry, this.rankCounter);
+      this.table.replace(entry, this.key);
+      this.table.counter(entry, this.rankCounter, minimum);
+      this.table.counter(entry, this.errorCounter, minimum);
+    }
+    addCounters(entry, binding, cursor);
+    siftDown(this.heapPositions[entry]);
+  }
+
+  long rank(int heapPosition) {
+    return this.table.counter(this.heap[heapPosition], this.rankCounter);
+  }
+
+  void swap(int a, int b) {
+    final int entry = this.heap[a];
+    this.heap[a] = this.heap[b];
+    this.heap[b] = entry;
+    this.heapPositions[this.heap[a]] = a;
+    this.heapPositions[this.heap[b]] = b;
+  }
+
+  void siftUp(int position) {
+    while (position > 0) {
+      final int parent = (position - 1) >>> 1;
+      if (Long.compareUnsigned(rank(parent), rank(position)) <= 0) {
+        break;
+      }
+      swap(parent, position);
+      position = parent;
+    }
+  }
+
+  void siftDown(int position) {
+    final int size = this.table.size();
+    while (true) {
+      final int left = 2 * position + 1;
+      if (left >= size) {
+        break;
+      }
+      int smallest = left;
+      if (left + 1 < size && Long.compareUnsigned(rank(left + 1), rank(left)) < 0) {
+        smallest = left + 1;
+      }
+      if (Long.compareUnsigned(rank(position), rank(smallest)) <= 0) {
+        break;
+      }
+      swap(position, smallest);
+      position = smallest;
+    }
+  }
+
+  /**
+   * Field indexes of the key and sum fields in one layout, -1 for missing fields.
+   */
+  final class Binding {
+    final int[] keyIndexes;
+    final int[] sumIndexes;
+
+    Binding(RecordLayout layout) {
+      this.keyIndexes = new int[FlowAggregationHandler.this.keyFields.length];
+      for (int i = 0; i < this.keyIndexes.length; i++) {
+        this.keyIndexes[i] = layout.indexOf(FlowAggregationHandler.this.keyFields[i].fieldType);
+      }
+      this.sumIndexes = new int[FlowAggregationHandler.this.sumFields.length];
+      for (int i = 0; i < this.sumIndexes.length; i++) {
+        this.sumIndexes[i] = layout.indexOf(FlowAggregationHandler.this.sumFields[i]);
+      }
+    }
+  }
+
+  static final class KeyField {
+    final int fieldType;
+    final int width;
+    final int prefixLength;
+    final long mask;
+
+    KeyField(int fieldType, int width, int prefixLength) {
+      this.fieldType = fieldType;
+      this.width = width;
+      this.prefixLength = prefixLength;
+      final int bits = width * 8;
+      if (width > 8) {
+        this.mask = -1L;
+      } else if (prefixLength < 0) {
+        this.mask = 64 == bits ? -1L : (1L << bits) - 1;
+      } else {
+        this.mask = 0 == prefixLength ? 0L : ((64 == bits ? -1L : (1L << bits) - 1) >>> (bits - prefixLength)) << (bits - prefixLength);
+      }
+    }
+  }
+
+  /**
+   * Aggregates of one window. Windows are aligned to multiples of the window length since the epoch.
+   */
+  public static final class Window {
+    final long startMillis;
+    final long endMillis;
+    final boolean partial;
+    final List<Aggregate> aggregates;
+
+    Window(long startMillis, long endMillis, boolean partial, List<Aggregate> aggregates) {
+      this.startMillis = startMillis;
+      this.endMillis = endMillis;
+      this.partial = partial;
+      this.aggregates = aggregates;
+    }
+
+    public long startMillis() {
+      return this.startMillis;
+    }
+
+    public long endMillis() {
+      return this.endMillis;
+    }
+
+    /**
+     * True if the window was emitted early because the table was full. More windows with the same start follow.
+     */
+    public boolean isPartial() {
+      return this.partial;
+    }
+
+    public List<Aggregate> aggregates() {
+      return this.aggregates;
+    }
+  }
+
+  public static final class Aggregate {
+    final FlowAggregationHandler handler;
+    final byte[] key;
+    final long[] counters;
+
+    Aggregate(FlowAggregationHandler handler, byte[] key, long[] counters) {
+      this.handler = handler;
+      this.key = key;
+      this.counters = counters;
+    }
+
+    /**
+     * Raw key, the key fields concatenated in the order they were configured.
+     */
+    public byte[] key() {
+      return this.key;
+    }
+
+    /**
+     * Value of a numeric key field of up to 8 bytes.
+     */
+    public long keyLong(int keyIndex) {
+      final KeyField keyField = this.handler.keyFields[keyIndex];
+      return RecordLayout.readUnsigned(Unpooled.wrappedBuffer(this.key), this.handler.keyOffsets[keyIndex], keyField.width);
+    }
+
+    /**
+     * Bytes of a key field such as an address.
+     */
+    public byte[] keyBytes(int keyIndex) {
+      final int offset = this.handler.keyOffsets[keyIndex];
+      final byte[] result = new byte[this.handler.keyFields[keyIndex].width];
+      System.arraycopy(this.key, offset, result, 0, result.length);
+      return result;
+    }
+
+    public long records() {
+      return this.counters[0];
+    }
+
+    /**
+     * Total of the sum field with the index it was configured with.
+     */
+    public long sum(int sumIndex) {
+      return this.counters[1 + sumIndex];
+    }
+
+    /**
+     * Upper bound of the overcount of the rank counter in heavy hitter mode, 0 otherwise.
+     */
+    public long error() {
+      return this.handler.heavyHitters ? this.counters[this.handler.errorCounter] : 0L;
+    }
+  }
+
+  public static class Builder {
+    final List<KeyField> keyFields = new ArrayList<>();
+    final List<Integer> sumFields = new ArrayList<>();
+    long windowMillis = TimeUnit.MINUTES.toMillis(1);
+    int maxEntries = 1 << 20;
+    int heavyHitters;
+    int rankBy;
+    ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+
+    Builder() {
+
+    }
+
+    /**
+     * Adds a key field stored in width bytes. Numeric fields of up to 8 bytes are right aligned, longer fields
+     * such as IPv6 addresses must have exactly width bytes. Missing fields are zero.
+     */
+    public Builder key(int fieldType, int width) {
+      return key(fieldType, width, -1);
+    }
+
+    /**
+     * Adds a key field truncated to its first prefixLength bits, such as an address prefix.
+     */
+    public Builder key(int fieldType, int width, int prefixLength) {
+      if (width < 1 || width > 255) {
+        throw new IllegalArgumentException("width must be between 1 and 255.");
+      }
+      if (prefixLength > width * 8) {
+        throw new IllegalArgumentException(
+            String.format("prefixLength %s is longer than %s bytes.", prefixLength, width)
+        );
+      }
+      this.keyFields.add(new KeyField(fieldType, width, prefixLength));
+      return this;
+    }
+
+    /**
+     * Keys on the IPv4 5-tuple.
+     */
+    public Builder fiveTuple() {
+      return key(FieldType.IPV4_SRC_ADDR, 4)
+          .key(FieldType.IPV4_DST_ADDR, 4)
+          .key(FieldType.L4_SRC_PORT, 2)
+          .key(FieldType.L4_DST_PORT, 2)
+          .key(FieldType.PROTOCOL, 1);
+    }
+
+    /**
+     * Adds a numeric field such as IN_BYTES or IN_PKTS that is summed per key.
+     */
+    public Builder sum(int fieldType) {
+      this.sumFields.add(fieldType);
+      return this;
+    }
+
+    public Builder window(long window, TimeUnit unit) {
+      if (unit.toMillis(window) < 1) {
+        throw new IllegalArgumentException("window must be at least 1 millisecond.");
+      }
+      this.windowMillis = unit.toMillis(window);
+      return this;
+    }
+
+    /**
+     * Keys per window in exact mode before the window is emitted early.
+     */
+    public Builder maxEntries(int maxEntries) {
+      if (maxEntries < 1) {
+        throw new IllegalArgumentException("maxEntries must be greater than 0.");
+      }
+      this.maxEntries = maxEntries;
+      return this;
+    }
+
+    /**
+     * Switches to heavy hitter mode, keeping the k keys with the largest rank counter per window.
+     */
+    public Builder heavyHitters(int k) {
+      if (k < 1) {
+        throw new IllegalArgumentException("k must be greater than 0.");
+      }
+      this.heavyHitters = k;
+      return this;
+    }
+
+    /**
+     * Sum field that ranks keys in heavy hitter mode. Defaults to the number of records.
+     */
+    public Builder rankBy(int fieldType) {
+      this.rankBy = fieldType;
+      return this;
+    }
+
+    public Builder allocator(ByteBufAllocator allocator) {
+      this.allocator = allocator;
+      return this;
+    }
+
+    public FlowAggregationHandler build() {
+      if (this.keyFields.isEmpty()) {
+        throw new IllegalStateException("At least one key field must be set.");
+      }
+      if (0 != this.rankBy && !this.sumFields.contains(this.rankBy)) {
+        throw new IllegalStateException(
+            String.format("rankBy fieldType %s must be a sum field.", this.rankBy)
+        );
+      }
+      return new FlowAggregationHandler(this);
+    }
+  }
+}
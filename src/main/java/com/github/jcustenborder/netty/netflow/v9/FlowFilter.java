@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Applies a FlowPredicate to data flowsets while they are decoded, so records that do not match are never
+ * copied or emitted. Matchers are bound once per layout. Options records always pass, they describe the
+ * exporter rather than flows. Filters are not thread safe, every decoder has its own.
+ */
+final class FlowFilter {
+  static final int MAX_MATCHERS = 4096;
+
+  final FlowPredicate predicate;
+  final Map<RecordLayout, FlowPredicate.Matcher> matchers = new IdentityHashMap<>();
+  final FlowRecordCursor cursor = new FlowRecordCursor();
+  RecordLayout lastLayout;
+  FlowPredicate.Matcher lastMatcher;
+  int[] offsets = new int[64];
+  int[] lengths = new int[64];
+  int matched;
+  int matchedBytes;
+  int dropped;
+
+  FlowFilter(FlowPredicate predicate) {
+    this.predicate = predicate;
+  }
+
+  static FlowFilter of(NetFlowDecoderConfig config) {
+    return null == config.filter ? null : new FlowFilter(config.filter);
+  }
+
+  FlowPredicate.Matcher matcher(RecordLayout layout) {
+    if (layout == this.lastLayout) {
+      return this.lastMatcher;
+    }
+    FlowPredicate.Matcher result = this.matchers.get(layout);
+    if (null == result) {
+      if (this.matchers.size() >= MAX_MATCHERS) {
+        this.matchers.clear();
+      }
+      result = layout.isOptions() ? FlowPredicate.ALWAYS : this.predicate.bind(layout);
+      this.matchers.put(layout, result);
+    }
+    this.lastLayout = layout;
+    this.lastMatcher = result;
+    return result;
+  }
+
+  /**
+   * Tests every record in the readable bytes of content.
+   *
+   * @return true if any record was dropped, the matching records can then be copied with {@link #copy(ByteBuf, ByteBuf)}.
+   */
+  boolean filter(RecordLayout layout, ByteBuf content) {
+    this.matched = 0;
+    this.matchedBytes = 0;
+    this.dropped = 0;
+    final FlowPredicate.Matcher matcher = matcher(layout);
+    if (FlowPredicate.ALWAYS == matcher) {
+      return false;
+    }
+    final FlowRecordCursor cursor = this.cursor.reset(layout, content);
+    if (FlowPredicate.NEVER == matcher) {
+      this.dropped = cursor.recordCount();
+      return this.dropped > 0;
+    }
+    while (cursor.next()) {
+      if (!matcher.test(cursor)) {
+        this.dropped++;
+        continue;
+      }
+      if (this.matched == this.offsets.length) {
+        this.offsets = Arrays.copyOf(this.offsets, this.matched * 2);
+        this.lengths = Arrays.copyOf(this.lengths, this.matched * 2);
+      }
+      this.offsets[this.matched] = cursor.recordOffset();
+      this.lengths[this.matched] = cursor.recordLength();
+      this.matched++;
+      this.matchedBytes += cursor.recordLength();
+    }
+    return this.dropped > 0;
+  }
+
+  /**
+   * Bytes of the records that matched in the last call to filter.
+   */
+  int matchedBytes() {
+    return this.matchedBytes;
+  }
+
+  /**
+   * Copies the records that matched in the last call to filter, adjacent records in one go.
+   */
+  void copy(ByteBuf content, ByteBuf output) {
+    int i = 0;
+    while (i < this.matched) {
+      final int start = this.offsets[i];
+      int end = start + this.lengths[i];
+      i++;
+      while (i < this.matched && this.offsets[i] == end) {
+        end += this.lengths[i];
+        i++;
+      }
+      output.writeBytes(content, start, end - start);
+    }
+  }
+
+  byte[] copy(ByteBuf content) {
+    byte[] result = new byte[this.matchedBytes];
+    int position = 0;
+    for (int i = 0; i < this.matched; i++) {
+      content.getBytes(this.offsets[i], result, position, this.lengths[i]);
+      position += this.lengths[i];
+    }
+    return result;
+  }
+}
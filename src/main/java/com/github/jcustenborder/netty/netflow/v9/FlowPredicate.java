@@ -0,0 +1,284 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Condition on the fields of a flow record that is evaluated against the raw record bytes. A predicate is bound
+ * to a RecordLayout once, which resolves field offsets, and the resulting Matcher is then tested against each
+ * record of a {@link FlowRecordCursor}. Records that lack a field never match a condition on it.
+ * <pre>
+ * FlowPredicate predicate = FlowPredicate.and(
+ *     FlowPredicate.prefix(FieldType.IPV4_SRC_ADDR, InetAddress.getByName("10.0.0.0"), 8),
+ *     FlowPredicate.range(FieldType.IN_BYTES, 1000000, Long.MAX_VALUE)
+ * );
+ * </pre>
+ */
+public abstract class FlowPredicate {
+  static final Matcher NEVER = cursor -> false;
+  static final Matcher ALWAYS = cursor -> true;
+
+  /**
+   * Resolves the fields of this predicate in layout.
+   */
+  public abstract Matcher bind(RecordLayout layout);
+
+  public interface Matcher {
+    /**
+     * Tests the current record of the cursor. The cursor must be positioned on a record of the layout the
+     * matcher was bound to.
+     */
+    boolean test(FlowRecordCursor cursor);
+  }
+
+  /**
+   * Matches address fields such as IPV4_SRC_ADDR or IPV6_DST_ADDR in the network address/prefixLength.
+   */
+  public static FlowPredicate prefix(int fieldType, InetAddress network, int prefixLength) {
+    final byte[] address = network.getAddress();
+    if (prefixLength < 0 || prefixLength > address.length * 8) {
+      throw new IllegalArgumentException(
+          String.format("prefixLength %s is not valid for %s.", prefixLength, network.getHostAddress())
+      );
+    }
+    return new PrefixPredicate(fieldType, address, prefixLength);
+  }
+
+  /**
+   * Matches numeric fields of up to 8 bytes between min and max inclusive. Values are unsigned.
+   */
+  public static FlowPredicate range(int fieldType, long min, long max) {
+    if (Long.compareUnsigned(min, max) > 0) {
+      throw new IllegalArgumentException("min must be less than or equal to max.");
+    }
+    return new RangePredicate(fieldType, min, max);
+  }
+
+  /**
+   * Matches numeric fields of up to 8 bytes, such as ports or interfaces, equal to one of values.
+   */
+  public static FlowPredicate anyOf(int fieldType, long... values) {
+    if (0 == values.length) {
+      throw new IllegalArgumentException("values must not be empty.");
+    }
+    long[] sorted = values.clone();
+    Arrays.sort(sorted);
+    return new AnyOfPredicate(fieldType, sorted);
+  }
+
+  public static FlowPredicate equalTo(int fieldType, long value) {
+    return anyOf(fieldType, value);
+  }
+
+  public static FlowPredicate and(FlowPredicate... predicates) {
+    return new AndPredicate(predicates.clone());
+  }
+
+  public static FlowPredicate or(FlowPredicate... predicates) {
+    return new OrPredicate(predicates.clone());
+  }
+
+  public static FlowPredicate not(FlowPredicate predicate) {
+    return new FlowPredicate() {
+      @Override
+      public Matcher bind(RecordLayout layout) {
+        final Matcher matcher = predicate.bind(layout);
+        if (NEVER == matcher) {
+          return ALWAYS;
+        } else if (ALWAYS == matcher) {
+          return NEVER;
+        }
+        return cursor -> !matcher.test(cursor);
+      }
+    };
+  }
+
+  static class PrefixPredicate extends FlowPredicate {
+    final int fieldType;
+    final byte[] network;
+    final int prefixLength;
+
+    PrefixPredicate(int fieldType, byte[] network, int prefixLength) {
+      this.fieldType = fieldType;
+      this.network = network;
+      this.prefixLength = prefixLength;
+    }
+
+    /**
+     * Mask of the bits of the prefix within the 8 bytes of the address starting at word * 8.
+     */
+    long mask(int word, int width) {
+      final int bits = Math.max(0, Math.min(width, this.prefixLength - word * width));
+      return 0 == bits ? 0L : -1L << (width - bits);
+    }
+
+    @Override
+    public Matcher bind(RecordLayout layout) {
+      final int index = layout.indexOf(this.fieldType);
+      if (index < 0 || layout.fieldLength(index) != this.network.length) {
+        return NEVER;
+      }
+      if (4 == this.network.length) {
+        final int mask = (int) mask(0, 32);
+        final int value = ByteBuffer.wrap(this.network).getInt() & mask;
+        return cursor -> (cursor.buffer().getInt(cursor.offsetAt(index)) & mask) == value;
+      }
+      final ByteBuffer network = ByteBuffer.wrap(this.network);
+      final long highMask = mask(0, 64);
+      final long lowMask = mask(1, 64);
+      final long high = network.getLong(0) & highMask;
+      final long low = network.getLong(8) & lowMask;
+      return cursor -> {
+        final ByteBuf buffer = cursor.buffer();
+        final int offset = cursor.offsetAt(index);
+        return (buffer.getLong(offset) & highMask) == high && (buffer.getLong(offset + 8) & lowMask) == low;
+      };
+    }
+  }
+
+  static abstract class NumericPredicate extends FlowPredicate {
+    final int fieldType;
+
+    NumericPredicate(int fieldType) {
+      this.fieldType = fieldType;
+    }
+
+    abstract boolean test(long value);
+
+    @Override
+    public Matcher bind(RecordLayout layout) {
+      final int index = layout.indexOf(this.fieldType);
+      if (index < 0) {
+        return NEVER;
+      }
+      final int length = layout.fieldLength(index);
+      if (RecordLayout.VARIABLE_LENGTH == length) {
+        return cursor -> cursor.lengthAt(index) <= 8 && test(cursor.getLongAt(index));
+      }
+      if (length > 8) {
+        return NEVER;
+      }
+      return cursor -> test(RecordLayout.readUnsigned(cursor.buffer(), cursor.offsetAt(index), length));
+    }
+  }
+
+  static class RangePredicate extends NumericPredicate {
+    final long min;
+    final long max;
+
+    RangePredicate(int fieldType, long min, long max) {
+      super(fieldType);
+      this.min = min;
+      this.max = max;
+    }
+
+    @Override
+    boolean test(long value) {
+      return Long.compareUnsigned(value, this.min) >= 0 && Long.compareUnsigned(value, this.max) <= 0;
+    }
+  }
+
+  static class AnyOfPredicate extends NumericPredicate {
+    final long[] values;
+
+    AnyOfPredicate(int fieldType, long[] values) {
+      super(fieldType);
+      this.values = values;
+    }
+
+    @Override
+    boolean test(long value) {
+      return 1 == this.values.length ? this.values[0] == value : Arrays.binarySearch(this.values, value) >= 0;
+    }
+  }
+
+  static class AndPredicate extends FlowPredicate {
+    final FlowPredicate[] predicates;
+
+    AndPredicate(FlowPredicate[] predicates) {
+      this.predicates = predicates;
+    }
+
+    @Override
+    public Matcher bind(RecordLayout layout) {
+      List<Matcher> matchers = new ArrayList<>(this.predicates.length);
+      for (FlowPredicate predicate : this.predicates) {
+        final Matcher matcher = predicate.bind(layout);
+        if (NEVER == matcher) {
+          return NEVER;
+        } else if (ALWAYS != matcher) {
+          matchers.add(matcher);
+        }
+      }
+      if (matchers.isEmpty()) {
+        return ALWAYS;
+      } else if (1 == matchers.size()) {
+        return matchers.get(0);
+      }
+      final Matcher[] array = matchers.toArray(new Matcher[0]);
+      return cursor -> {
+        for (Matcher matcher : array) {
+          if (!matcher.test(cursor)) {
+            return false;
+          }
+        }
+        return true;
+      };
+    }
+  }
+
+  static class OrPredicate extends FlowPredicate {
+    final FlowPredicate[] predicates;
+
+    OrPredicate(FlowPredicate[] predicates) {
+      this.predicates = predicates;
+    }
+
+    @Override
+    public Matcher bind(RecordLayout layout) {
+      List<Matcher> matchers = new ArrayList<>(this.predicates.length);
+      for (FlowPredicate predicate : this.predicates) {
+        final Matcher matcher = predicate.bind(layout);
+        if (ALWAYS == matcher) {
+          return ALWAYS;
+        } else if (NEVER != matcher) {
+          matchers.add(matcher);
+        }
+      }
+      if (matchers.isEmpty()) {
+        return NEVER;
+      } else if (1 == matchers.size()) {
+        return matchers.get(0);
+      }
+      final Matcher[] array = matchers.toArray(new Matcher[0]);
+      return cursor -> {
+        for (Matcher matcher : array) {
+          if (matcher.test(cursor)) {
+            return true;
+          }
+        }
+        return false;
+      };
+    }
+  }
+}
@@ -0,0 +1,242 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Flyweight over the records of a data flowset. Fields are read in place from the flowset buffer, so
+ * walking a flowset allocates nothing per record. A single cursor can be reused across flowsets with
+ * {@link #reset(NetFlowV9Decoder.DataFlowSet)}. Cursors are not thread safe.
+ * <pre>
+ * FlowRecordCursor cursor = new FlowRecordCursor();
+ * cursor.reset(dataFlowSet);
+ * while (cursor.next()) {
+ *   long bytes = cursor.getLong(FieldType.IN_BYTES);
+ * }
+ * </pre>
+ */
+public final class FlowRecordCursor {
+  RecordLayout layout;
+  ByteBuf buffer;
+  int start;
+  int limit;
+  int recordCount;
+  int index;
+  int offset;
+  int nextOffset;
+  int[] fieldOffsets = new int[0];
+  int[] fieldLengths = new int[0];
+  SamplingTracker.Rates samplingRates = SamplingTracker.Rates.UNSAMPLED;
+  int samplerIndex = -1;
+  int intervalIndex = -1;
+
+  public FlowRecordCursor() {
+    reset(null, null);
+  }
+
+  public FlowRecordCursor(NetFlowV9Decoder.DataFlowSet dataFlowSet) {
+    reset(dataFlowSet);
+  }
+
+  public FlowRecordCursor reset(NetFlowV9Decoder.DataFlowSet dataFlowSet) {
+    reset(dataFlowSet.layout(), dataFlowSet.content());
+    this.samplingRates = dataFlowSet.samplingRates();
+    return this;
+  }
+
+  /**
+   * Positions the cursor before the first record of the buffer. The readable bytes of the buffer are
+   * treated as the flowset body. A null layout yields no records.
+   */
+  public FlowRecordCursor reset(RecordLayout layout, ByteBuf buffer) {
+    this.layout = layout;
+    this.buffer = buffer;
+    this.start = null == buffer ? 0 : buffer.readerIndex();
+    this.limit = null == buffer ? 0 : buffer.writerIndex();
+    this.recordCount = null == layout || null == buffer ? 0 : layout.recordCount(buffer);
+    this.index = -1;
+    this.offset = this.start;
+    this.nextOffset = this.start;
+    if (null != layout && layout.isVariableLength() && this.fieldOffsets.length < layout.fieldCount()) {
+      this.fieldOffsets = new int[layout.fieldCount()];
+      this.fieldLengths = new int[layout.fieldCount()];
+    }
+    this.samplingRates = SamplingTracker.Rates.UNSAMPLED;
+    this.samplerIndex = null == layout ? -1 : layout.indexOf(FieldType.FLOW_SAMPLER_ID);
+    this.intervalIndex = null == layout ? -1 : layout.indexOf(FieldType.SAMPLING_INTERVAL);
+    return this;
+  }
+
+  public boolean next() {
+    if (this.index + 1 >= this.recordCount) {
+      this.index = this.recordCount;
+      return false;
+    }
+    this.index++;
+    this.offset = this.nextOffset;
+    if (this.layout.isVariableLength()) {
+      this.nextOffset = this.layout.scan(this.buffer, this.offset, this.limit, this.fieldOffsets, this.fieldLengths);
+    } else {
+      this.nextOffset = this.offset + this.layout.recordLength();
+    }
+    return true;
+  }
+
+  public RecordLayout layout() {
+    return this.layout;
+  }
+
+  public int recordCount() {
+    return this.recordCount;
+  }
+
+  public int index() {
+    return this.index;
+  }
+
+  /**
+   * Absolute buffer index of the current record.
+   */
+  public int recordOffset() {
+    return this.offset;
+  }
+
+  /**
+   * Length in bytes of the current record.
+   */
+  public int recordLength() {
+    return this.nextOffset - this.offset;
+  }
+
+  public ByteBuf buffer() {
+    return this.buffer;
+  }
+
+  /**
+   * Absolute buffer index of a field of the current record.
+   */
+  public int offsetAt(int fieldIndex) {
+    return this.layout.isVariableLength() ?
+        this.fieldOffsets[fieldIndex] :
+        this.offset + this.layout.fieldOffset(fieldIndex);
+  }
+
+  /**
+   * Length of a field of the current record. Differs from the template for variable length fields.
+   */
+  public int lengthAt(int fieldIndex) {
+    return this.layout.isVariableLength() ?
+        this.fieldLengths[fieldIndex] :
+        this.layout.fieldLength(fieldIndex);
+  }
+
+  /**
+   * Decodes every numeric field of the current record into values, indexed like the fields of the layout,
+   * using the decoder compiled for the layout.
+   *
+   * @return values
+   */
+  public long[] decode(long[] values) {
+    this.layout.decoder().decode(this, values);
+    return values;
+  }
+
+  /**
+   * Sampling interval of the current record. A SAMPLING_INTERVAL field of the record wins, then the sampler
+   * referenced by FLOW_SAMPLER_ID, then the interval of the exporter.
+   */
+  public long samplingInterval() {
+    if (this.intervalIndex >= 0 && lengthAt(this.intervalIndex) <= 8) {
+      return Math.max(1L, getLongAt(this.intervalIndex));
+    }
+    if (this.samplerIndex >= 0 && lengthAt(this.samplerIndex) <= 8) {
+      return this.samplingRates.interval(getLongAt(this.samplerIndex));
+    }
+    return this.samplingRates.interval();
+  }
+
+  /**
+   * Reads a counter such as IN_BYTES or IN_PKTS multiplied by the sampling interval of the current record.
+   */
+  public long getScaledLong(int fieldType) {
+    return getLong(fieldType) * samplingInterval();
+  }
+
+  public long getLongAt(int fieldIndex) {
+    return RecordLayout.readUnsigned(this.buffer, offsetAt(fieldIndex), lengthAt(fieldIndex));
+  }
+
+  public boolean hasField(int fieldType) {
+    return null != this.layout && this.layout.indexOf(fieldType) >= 0;
+  }
+
+  public boolean hasScope(int scopeType) {
+    return null != this.layout && this.layout.indexOfScope(scopeType) >= 0;
+  }
+
+  /**
+   * Reads a scope field of an options record as an unsigned value.
+   */
+  public long getScopeLong(int scopeType) {
+    return getLongAt(this.layout.requireScopeIndex(scopeType));
+  }
+
+  /**
+   * Reads a numeric field of up to 8 bytes as an unsigned value.
+   */
+  public long getLong(int fieldType) {
+    return getLongAt(this.layout.requireIndex(fieldType));
+  }
+
+  /**
+   * Reads an IPFIX enterprise specific numeric field of up to 8 bytes as an unsigned value.
+   */
+  public long getLong(int enterpriseNumber, int fieldType) {
+    return getLongAt(this.layout.requireIndex(enterpriseNumber, fieldType));
+  }
+
+  /**
+   * Reads a numeric field of up to 4 bytes. IPv4 addresses are returned in network order.
+   */
+  public int getInt(int fieldType) {
+    final int fieldIndex = this.layout.requireIndex(fieldType);
+    final int length = lengthAt(fieldIndex);
+    if (length > 4) {
+      throw new IllegalStateException(
+          String.format("fieldType %s has length %s and cannot be read as an int.", fieldType, length)
+      );
+    }
+    return (int) RecordLayout.readUnsigned(this.buffer, offsetAt(fieldIndex), length);
+  }
+
+  /**
+   * Copies the raw bytes of a field such as IPV4_SRC_ADDR or IPV6_SRC_ADDR into dst.
+   *
+   * @return dst
+   */
+  public byte[] getAddress(int fieldType, byte[] dst) {
+    final int fieldIndex = this.layout.requireIndex(fieldType);
+    final int length = lengthAt(fieldIndex);
+    if (dst.length < length) {
+      throw new IllegalArgumentException(
+          String.format("dst has length %s but fieldType %s has length %s.", dst.length, fieldType, length)
+      );
+    }
+    this.buffer.getBytes(offsetAt(fieldIndex), dst, 0, length);
+    return dst;
+  }
+}
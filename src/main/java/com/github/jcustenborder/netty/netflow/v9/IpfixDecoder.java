@@ -0,0 +1,246 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Decoder for IPFIX (NetFlow v10) as defined by RFC 7011. IPFIX messages are emitted as NetFlowMessages
+ * with version 10. The export time is reported as the timestamp, the observation domain as the sourceID,
+ * and count and uptime are 0 because the IPFIX header does not carry them.
+ * Each template record of a template set is emitted as its own TemplateFlowSet.
+ */
+public class IpfixDecoder extends AbstractNetFlowDecoder {
+  private static final Logger log = LoggerFactory.getLogger(IpfixDecoder.class);
+  static final short VERSION = 10;
+  static final short TEMPLATE_SET_ID = 2;
+  static final short OPTIONS_TEMPLATE_SET_ID = 3;
+  static final int HEADER_LENGTH = 16;
+
+  /**
+   * Length of the current message from its header.
+   */
+  int messageLength;
+
+  public IpfixDecoder(NetFlowDecoderConfig config) {
+    this(config, true);
+  }
+
+  IpfixDecoder(NetFlowDecoderConfig config, boolean batch) {
+    super(config, batch);
+  }
+
+  public IpfixDecoder(NetFlowV9Decoder.NetflowFactory netflowFactory, TemplateCache templateCache, boolean retainBuffers) {
+    this(
+        NetFlowDecoderConfig.builder()
+            .netflowFactory(netflowFactory)
+            .templateCache(templateCache)
+            .retainBuffers(retainBuffers)
+            .build()
+    );
+  }
+
+  public IpfixDecoder(NetFlowV9Decoder.NetflowFactory netflowFactory, TemplateCache templateCache) {
+    this(netflowFactory, templateCache, false);
+  }
+
+  public IpfixDecoder() {
+    this(new NetFlowFactoryImpl(), new TemplateCache());
+  }
+
+  @Override
+  NetFlowV9Decoder.Header decodeHeader(ByteBuf b, InetSocketAddress sender, InetSocketAddress recipient) {
+    final ByteBuf input = b.readSlice(HEADER_LENGTH);
+
+    short version = input.readShort();
+    int length = input.readUnsignedShort();
+    int exportTime = input.readInt();
+    int sequence = input.readInt();
+    int observationDomainID = input.readInt();
+
+    if (log.isTraceEnabled()) {
+      log.trace("version = {} length = {} exportTime = {} sequence = {} observationDomainID = {}",
+          version, length, exportTime, sequence, observationDomainID
+      );
+    }
+
+    if (VERSION != version) {
+      throw new IllegalStateException(
+          String.format("version %s is not supported by %s.", version, IpfixDecoder.class.getSimpleName())
+      );
+    }
+    if (length < HEADER_LENGTH || length - HEADER_LENGTH > b.readableBytes()) {
+      throw new IllegalStateException(
+          String.format("length %s does not fit a datagram of %s bytes.", length, b.readableBytes() + HEADER_LENGTH)
+      );
+    }
+    checkReadFully(input);
+    this.messageLength = length;
+    return new NetFlowV9Decoder.Header(version, (short) 0, 0, exportTime, sequence, observationDomainID, sender, recipient);
+  }
+
+  /**
+   * IPFIX numbers data records. They cannot be counted when the template of a data set is unknown.
+   */
+  @Override
+  long sequenceIncrement(NetFlowV9Decoder.Header header, List<NetFlowV9Decoder.FlowSet> flowSets) {
+    if (this.pendingInPacket > 0) {
+      return -1;
+    }
+    long records = 0;
+    for (NetFlowV9Decoder.FlowSet flowSet : flowSets) {
+      if (flowSet instanceof NetFlowV9Decoder.DataFlowSet) {
+        NetFlowV9Decoder.DataFlowSet dataFlowSet = (NetFlowV9Decoder.DataFlowSet) flowSet;
+        if (null == dataFlowSet.layout()) {
+          return -1;
+        }
+        records += dataFlowSet.layout().recordCount(dataFlowSet.content());
+      }
+    }
+    // Records dropped by the filter were still sent by the exporter.
+    return records + this.filteredRecords;
+  }
+
+  @Override
+  void decodeFlowSets(ByteBuf datagram, NetFlowV9Decoder.Header header, List<NetFlowV9Decoder.FlowSet> flowSets) {
+    // Sets are parsed within the length of the message, anything after it is not part of the message.
+    final ByteBuf input = datagram.readSlice(this.messageLength - HEADER_LENGTH);
+    if (datagram.isReadable()) {
+      if (log.isTraceEnabled()) {
+        log.trace("Skipping {} bytes after the message.", datagram.readableBytes());
+      }
+      datagram.skipBytes(datagram.readableBytes());
+    }
+    while (input.readableBytes() > 0) {
+      final short setID = input.readShort();
+      if (log.isTraceEnabled()) {
+        log.trace("Processing set {}", setID);
+      }
+
+      if (TEMPLATE_SET_ID == setID || OPTIONS_TEMPLATE_SET_ID == setID) {
+        decodeTemplates(input, setID, header, flowSets);
+      } else if ((setID & 0xFFFF) >= 256) {
+        final NetFlowV9Decoder.DataFlowSet dataFlowSet = decodeData(input, setID, header);
+        if (null != dataFlowSet) {
+          flowSets.add(dataFlowSet);
+        }
+      } else {
+        final int length = input.readUnsignedShort() - 4;
+        if (log.isTraceEnabled()) {
+          log.trace("Skipping reserved set {} of {} bytes.", setID, length);
+        }
+        input.skipBytes(length);
+      }
+
+      if (log.isTraceEnabled()) {
+        log.trace("Read {}. Available {}", input.readerIndex(), input.readableBytes());
+      }
+    }
+  }
+
+  void decodeTemplates(ByteBuf b, final short setID, NetFlowV9Decoder.Header header, List<NetFlowV9Decoder.FlowSet> flowSets) {
+    final int length = b.readUnsignedShort() - 4;
+    if (log.isTraceEnabled()) {
+      log.trace("readSlice({})", length);
+    }
+    final ByteBuf input = b.readSlice(length);
+    final boolean options = OPTIONS_TEMPLATE_SET_ID == setID;
+
+    // A set may contain several template records followed by padding.
+    while (input.readableBytes() >= 4) {
+      final short templateID = input.readShort();
+      final int fieldCount = input.readUnsignedShort();
+      if (0 == templateID) {
+        break;
+      }
+
+      if (0 == fieldCount) {
+        if (log.isTraceEnabled()) {
+          log.trace("Template {} withdrawn by {}.", templateID, header.sender);
+        }
+        this.templateRegistry.remove(header.sender, header.sourceID, templateID & 0xFFFF);
+        List<NetFlowV9Decoder.TemplateField> empty = Collections.emptyList();
+        flowSets.add(this.netflowFactory.templateFlowSet(setID, templateID, empty));
+        continue;
+      }
+
+      final int scopeFieldCount = options ? input.readUnsignedShort() : 0;
+      if (log.isTraceEnabled()) {
+        log.trace("templateID = {} fieldCount = {} scopeFieldCount = {}", templateID, fieldCount, scopeFieldCount);
+      }
+      RecordLayout layout = interned(input, TemplateInterner.IPFIX, scopeFieldCount, specifierLength(input, fieldCount));
+      if (null == layout) {
+        final int start = input.readerIndex();
+        List<NetFlowV9Decoder.TemplateField> scopeFields = readFields(input, scopeFieldCount);
+        List<NetFlowV9Decoder.TemplateField> fields = readFields(input, fieldCount - scopeFieldCount);
+        layout = intern(input, TemplateInterner.IPFIX, scopeFieldCount, start, options ? RecordLayout.of(scopeFields, fields) : RecordLayout.of(fields));
+      }
+
+      putTemplate(header, templateID & 0xFFFF, layout);
+      final List<NetFlowV9Decoder.TemplateField> fields = layout.fields();
+      if (options) {
+        flowSets.add(this.netflowFactory.optionsTemplateFlowSet(
+            setID, templateID, fields.subList(0, scopeFieldCount), fields.subList(scopeFieldCount, fields.size())
+        ));
+      } else {
+        flowSets.add(this.netflowFactory.templateFlowSet(setID, templateID, fields));
+      }
+    }
+    input.skipBytes(input.readableBytes());
+  }
+
+  /**
+   * Length of the field specifiers at the reader index. Enterprise specific fields carry 4 more bytes. Longer
+   * than the readable bytes if the template is truncated.
+   */
+  static int specifierLength(ByteBuf input, int fieldCount) {
+    final int start = input.readerIndex();
+    int length = 0;
+    for (int j = 0; j < fieldCount; j++) {
+      if (start + length + 2 > input.writerIndex()) {
+        return Integer.MAX_VALUE;
+      }
+      length += (input.getUnsignedShort(start + length) & 0x8000) != 0 ? 8 : 4;
+    }
+    return length;
+  }
+
+  private List<NetFlowV9Decoder.TemplateField> readFields(ByteBuf input, int fieldCount) {
+    List<NetFlowV9Decoder.TemplateField> fields = new ArrayList<>(fieldCount);
+    final boolean trace = log.isTraceEnabled();
+    for (int j = 1; j <= fieldCount; j++) {
+      int fieldType = input.readUnsignedShort();
+      short fieldLength = input.readShort();
+      int enterpriseNumber = 0;
+      if ((fieldType & 0x8000) != 0) {
+        fieldType &= 0x7FFF;
+        enterpriseNumber = input.readInt();
+      }
+      if (trace) {
+        log.trace("field({}/{}): type = {} length = {} enterpriseNumber = {}", j, fieldCount, fieldType, fieldLength, enterpriseNumber);
+      }
+      fields.add(this.netflowFactory.templateField((short) fieldType, fieldLength, enterpriseNumber));
+    }
+    return fields;
+  }
+}
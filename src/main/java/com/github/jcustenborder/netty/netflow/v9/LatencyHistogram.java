@@ -0,0 +1,133 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free log-linear histogram in the style of HdrHistogram. Every power of two is split into 8 buckets,
+ * so reported values are within 12.5% of the recorded value. Values are expected in nanoseconds.
+ * <p>
+ * A histogram recorded by many threads can be striped like a LongAdder: each thread counts into the stripe of
+ * its id and the stripes are summed when read.
+ */
+public final class LatencyHistogram {
+  static final int SUB_BUCKET_BITS = 3;
+  static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  final int stripeMask;
+  final AtomicLongArray counts;
+
+  public LatencyHistogram() {
+    this(1);
+  }
+
+  /**
+   * @param stripes number of stripes, rounded up to a power of two.
+   */
+  LatencyHistogram(int stripes) {
+    if (stripes < 1) {
+      throw new IllegalArgumentException("stripes must be greater than 0.");
+    }
+    final int size = Integer.highestOneBit(stripes - 1) << 1;
+    this.stripeMask = Math.max(1, size) - 1;
+    this.counts = new AtomicLongArray((this.stripeMask + 1) * BUCKETS);
+  }
+
+  static int bucket(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) Math.max(0, value);
+    }
+    final int exponent = 63 - Long.numberOfLeadingZeros(value);
+    final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  static long lowestValue(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    final int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    return ((long) (SUB_BUCKETS + bucket % SUB_BUCKETS)) << (exponent - SUB_BUCKET_BITS);
+  }
+
+  static long highestValue(int bucket) {
+    return bucket + 1 < BUCKETS ? lowestValue(bucket + 1) - 1 : Long.MAX_VALUE;
+  }
+
+  public void record(long value) {
+    final int stripe = 0 == this.stripeMask ? 0 : (int) Thread.currentThread().getId() & this.stripeMask;
+    this.counts.incrementAndGet(stripe * BUCKETS + bucket(value));
+  }
+
+  long bucketCount(int bucket) {
+    long result = 0;
+    for (int i = bucket; i < this.counts.length(); i += BUCKETS) {
+      result += this.counts.get(i);
+    }
+    return result;
+  }
+
+  public long count() {
+    long result = 0;
+    for (int i = 0; i < this.counts.length(); i++) {
+      result += this.counts.get(i);
+    }
+    return result;
+  }
+
+  /**
+   * Upper bound of the bucket holding the value at percentile, 0 if nothing was recorded.
+   *
+   * @param percentile between 0 and 100.
+   */
+  public long valueAtPercentile(double percentile) {
+    final long[] snapshot = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = bucketCount(i);
+      total += snapshot[i];
+    }
+    if (0 == total) {
+      return 0;
+    }
+    final long target = Math.max(1, (long) Math.ceil(total * Math.min(100D, percentile) / 100D));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= target) {
+        return highestValue(i);
+      }
+    }
+    return highestValue(BUCKETS - 1);
+  }
+
+  public long max() {
+    for (int i = BUCKETS - 1; i >= 0; i--) {
+      if (bucketCount(i) > 0) {
+        return highestValue(i);
+      }
+    }
+    return 0;
+  }
+
+  public void reset() {
+    for (int i = 0; i < this.counts.length(); i++) {
+      this.counts.set(i, 0);
+    }
+  }
+}
@@ -0,0 +1,170 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Default NetFlowMetrics. Counters are kept per exporter and source id in striped LongAdders, so decoders on
+ * several event loops update them without locking. Only the first datagram of a new exporter touches the map
+ * for writing.
+ * <p>
+ * Counters of an exporter take about 4 KB because of their latency histogram. At most maxExporters exporters
+ * are tracked, the least recently seen one is dropped to make room, and exporters idle longer than the idle
+ * timeout are dropped as well. Dropped exporters are still counted in {@link #total()}. The latency histogram
+ * of the total is recorded by every event loop, so it is striped per thread like the LongAdders.
+ * <pre>
+ * LongAdderNetFlowMetrics metrics = new LongAdderNetFlowMetrics();
+ * new NetFlowDecoder(NetFlowDecoderConfig.builder().metrics(metrics).build());
+ * metrics.exporters().forEach((key, counters) -&gt; ...);
+ * </pre>
+ */
+public class LongAdderNetFlowMetrics implements NetFlowMetrics {
+  final ExporterStates<Counters> exporters;
+  final Counters total = new Counters(Runtime.getRuntime().availableProcessors());
+
+  /**
+   * @param maxExporters exporters to keep counters for. 0 disables the bound.
+   * @param idleTimeout  time without datagrams after which the counters of an exporter are dropped. 0
+   *                     disables the timeout.
+   */
+  public LongAdderNetFlowMetrics(int maxExporters, long idleTimeout, TimeUnit unit) {
+    this.exporters = new ExporterStates<>(maxExporters, idleTimeout, unit, key -> new Counters());
+  }
+
+  public LongAdderNetFlowMetrics() {
+    this(ExporterStates.DEFAULT_MAX_EXPORTERS, ExporterStates.DEFAULT_IDLE_TIMEOUT_HOURS, TimeUnit.HOURS);
+  }
+
+  Counters counters(InetSocketAddress sender, int sourceID) {
+    return this.exporters.get(new ExporterKey(sender, sourceID));
+  }
+
+  @Override
+  public void packetDecoded(InetSocketAddress sender, int sourceID, int bytes, int flowSets, int templates, int records, long decodeNanos) {
+    counters(sender, sourceID).packetDecoded(bytes, flowSets, templates, records, decodeNanos);
+    this.total.packetDecoded(bytes, flowSets, templates, records, decodeNanos);
+  }
+
+  @Override
+  public void packetFailed(InetSocketAddress sender, int sourceID, int bytes, RuntimeException error) {
+    counters(sender, sourceID).packetFailed(bytes);
+    this.total.packetFailed(bytes);
+  }
+
+  /**
+   * Copy of the counters per exporter and source id. Datagrams whose header could not be decoded are
+   * counted with source id -1.
+   */
+  public Map<ExporterKey, Counters> exporters() {
+    return this.exporters.snapshot();
+  }
+
+  /**
+   * Exporters dropped because maxExporters was exceeded.
+   */
+  public long exportersEvicted() {
+    return this.exporters.evicted.sum();
+  }
+
+  /**
+   * Exporters dropped after the idle timeout.
+   */
+  public long exportersExpired() {
+    return this.exporters.expired.sum();
+  }
+
+  /**
+   * Drops the counters of idle exporters. This runs as datagrams arrive, call it periodically if counters
+   * must be released while no datagrams arrive.
+   */
+  public void cleanUp() {
+    this.exporters.cleanUp();
+  }
+
+  /**
+   * Counters across all exporters.
+   */
+  public Counters total() {
+    return this.total;
+  }
+
+  public static class Counters {
+    final LongAdder packets = new LongAdder();
+    final LongAdder flowSets = new LongAdder();
+    final LongAdder templates = new LongAdder();
+    final LongAdder records = new LongAdder();
+    final LongAdder bytes = new LongAdder();
+    final LongAdder errors = new LongAdder();
+    final LatencyHistogram decodeLatency;
+
+    Counters() {
+      this(1);
+    }
+
+    Counters(int histogramStripes) {
+      this.decodeLatency = new LatencyHistogram(histogramStripes);
+    }
+
+    void packetDecoded(int bytes, int flowSets, int templates, int records, long decodeNanos) {
+      this.packets.increment();
+      this.flowSets.add(flowSets);
+      this.templates.add(templates);
+      this.records.add(records);
+      this.bytes.add(bytes);
+      this.decodeLatency.record(decodeNanos);
+    }
+
+    void packetFailed(int bytes) {
+      this.errors.increment();
+      this.bytes.add(bytes);
+    }
+
+    public long packets() {
+      return this.packets.sum();
+    }
+
+    public long flowSets() {
+      return this.flowSets.sum();
+    }
+
+    public long templates() {
+      return this.templates.sum();
+    }
+
+    public long records() {
+      return this.records.sum();
+    }
+
+    public long bytes() {
+      return this.bytes.sum();
+    }
+
+    public long errors() {
+      return this.errors.sum();
+    }
+
+    /**
+     * Decode latency in nanoseconds of successfully decoded datagrams.
+     */
+    public LatencyHistogram decodeLatency() {
+      return this.decodeLatency;
+    }
+  }
+}
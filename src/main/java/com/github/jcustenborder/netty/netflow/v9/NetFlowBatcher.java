@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.handler.codec.DecoderException;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the messages decoded from the datagrams of one read and fires them downstream as a single
+ * NetFlowBatch on channelReadComplete, so the rest of the pipeline runs once per read instead of once per
+ * datagram. Owned by a single decoder and only used from its event loop.
+ */
+final class NetFlowBatcher {
+  final NetFlowV9Decoder.NetflowFactory netflowFactory;
+  final int maxBatchSize;
+  final List<Object> output = new ArrayList<>();
+  List<NetFlowV9Decoder.NetFlowMessage> messages;
+
+  NetFlowBatcher(NetFlowV9Decoder.NetflowFactory netflowFactory, int maxBatchSize) {
+    this.netflowFactory = netflowFactory;
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  static NetFlowBatcher of(NetFlowDecoderConfig config) {
+    return config.maxBatchSize > 0 ? new NetFlowBatcher(config.netflowFactory, config.maxBatchSize) : null;
+  }
+
+  interface Decoder {
+    void decode(ChannelHandlerContext ctx, DatagramPacket datagramPacket, List<Object> output) throws Exception;
+  }
+
+  /**
+   * Decodes a datagram into the current batch. Mirrors MessageToMessageDecoder.channelRead.
+   */
+  void channelRead(ChannelHandlerContext ctx, DatagramPacket datagramPacket, Decoder decoder) throws Exception {
+    try {
+      decoder.decode(ctx, datagramPacket, this.output);
+    } catch (DecoderException ex) {
+      throw ex;
+    } catch (Exception ex) {
+      throw new DecoderException(ex);
+    } finally {
+      ReferenceCountUtil.release(datagramPacket);
+      add(ctx);
+    }
+  }
+
+  void add(ChannelHandlerContext ctx) {
+    for (int i = 0; i < this.output.size(); i++) {
+      if (null == this.messages) {
+        this.messages = new ArrayList<>(Math.min(this.maxBatchSize, 64));
+      }
+      this.messages.add((NetFlowV9Decoder.NetFlowMessage) this.output.get(i));
+      if (this.messages.size() >= this.maxBatchSize) {
+        flush(ctx);
+      }
+    }
+    this.output.clear();
+  }
+
+  void flush(ChannelHandlerContext ctx) {
+    final List<NetFlowV9Decoder.NetFlowMessage> messages = this.messages;
+    if (null != messages) {
+      this.messages = null;
+      ctx.fireChannelRead(this.netflowFactory.netflowBatch(messages));
+    }
+  }
+
+  void release() {
+    final List<NetFlowV9Decoder.NetFlowMessage> messages = this.messages;
+    if (null != messages) {
+      this.messages = null;
+      for (NetFlowV9Decoder.NetFlowMessage message : messages) {
+        message.release();
+      }
+    }
+  }
+}
@@ -0,0 +1,288 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.handler.codec.MessageToMessageDecoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Binds one UDP port and decodes NetFlow v5, v9 and IPFIX on it. With native epoll the port is bound by
+ * several channels using SO_REUSEPORT, each served by its own event loop, so the kernel spreads exporters
+ * across cores. Without epoll a single NIO channel is bound. Every channel has its own NetFlowDecoder and
+ * all of them share the TemplateRegistry of the NetFlowDecoderConfig.
+ * <p>
+ * Every read allocates a pooled buffer of maxDatagramSize bytes, since a datagram is truncated when it does not
+ * fit. That buffer goes back to the pool once the datagram is decoded, unless the config retains buffers: then
+ * every DataFlowSet slice pins the whole buffer until it is released. To keep that cost at the size of the
+ * datagram, datagrams smaller than copyThreshold are copied into a buffer of their own before decoding when
+ * buffers are retained.
+ * <pre>
+ * NetFlowCollector collector = NetFlowCollector.builder()
+ *     .bindAddress(new InetSocketAddress(2055))
+ *     .handlerFactory(MyNetFlowHandler::new)
+ *     .start();
+ * </pre>
+ */
+public class NetFlowCollector implements Closeable {
+  private static final Logger log = LoggerFactory.getLogger(NetFlowCollector.class);
+  public static final int MAX_DATAGRAM_SIZE = 65536;
+  public static final int DEFAULT_COPY_THRESHOLD = 16384;
+
+  final EventLoopGroup eventLoopGroup;
+  final List<Channel> channels;
+  final boolean epoll;
+
+  NetFlowCollector(EventLoopGroup eventLoopGroup, List<Channel> channels, boolean epoll) {
+    this.eventLoopGroup = eventLoopGroup;
+    this.channels = Collections.unmodifiableList(channels);
+    this.epoll = epoll;
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public List<Channel> channels() {
+    return this.channels;
+  }
+
+  /**
+   * Address the collector is bound to. Useful when binding port 0.
+   */
+  public InetSocketAddress localAddress() {
+    return (InetSocketAddress) this.channels.get(0).localAddress();
+  }
+
+  public boolean isEpoll() {
+    return this.epoll;
+  }
+
+  @Override
+  public void close() {
+    for (Channel channel : this.channels) {
+      channel.close().syncUninterruptibly();
+    }
+    this.eventLoopGroup.shutdownGracefully().syncUninterruptibly();
+  }
+
+  public static class Builder {
+    InetSocketAddress bindAddress = new InetSocketAddress(2055);
+    int channels = Runtime.getRuntime().availableProcessors();
+    int receiveBufferSize = 16 * 1024 * 1024;
+    boolean preferEpoll = true;
+    int maxMessagesPerRead;
+    int maxDatagramSize = MAX_DATAGRAM_SIZE;
+    int copyThreshold = DEFAULT_COPY_THRESHOLD;
+    NetFlowDecoderConfig config;
+    Supplier<? extends ChannelHandler> handlerFactory;
+
+    Builder() {
+
+    }
+
+    public Builder bindAddress(InetSocketAddress bindAddress) {
+      this.bindAddress = bindAddress;
+      return this;
+    }
+
+    /**
+     * Number of channels bound with SO_REUSEPORT. Defaults to the number of processors. Ignored without epoll.
+     */
+    public Builder channels(int channels) {
+      if (channels < 1) {
+        throw new IllegalArgumentException("channels must be greater than 0.");
+      }
+      this.channels = channels;
+      return this;
+    }
+
+    /**
+     * SO_RCVBUF of each channel. The kernel caps it at net.core.rmem_max.
+     */
+    public Builder receiveBufferSize(int receiveBufferSize) {
+      this.receiveBufferSize = receiveBufferSize;
+      return this;
+    }
+
+    /**
+     * Datagrams read per wakeup of a channel before channelReadComplete. Combine with
+     * NetFlowDecoderConfig.Builder.maxBatchSize to hand each read downstream as one NetFlowBatch.
+     * Defaults to the Netty default when 0.
+     */
+    public Builder maxMessagesPerRead(int maxMessagesPerRead) {
+      if (maxMessagesPerRead < 0) {
+        throw new IllegalArgumentException("maxMessagesPerRead must be greater than or equal to 0.");
+      }
+      this.maxMessagesPerRead = maxMessagesPerRead;
+      return this;
+    }
+
+    /**
+     * Size of the buffer every read allocates. Larger datagrams are truncated. Lower it when the MTU of the
+     * exporters is known to save memory per read. Defaults to MAX_DATAGRAM_SIZE.
+     */
+    public Builder maxDatagramSize(int maxDatagramSize) {
+      if (maxDatagramSize < 1 || maxDatagramSize > MAX_DATAGRAM_SIZE) {
+        throw new IllegalArgumentException("maxDatagramSize must be between 1 and " + MAX_DATAGRAM_SIZE + ".");
+      }
+      this.maxDatagramSize = maxDatagramSize;
+      return this;
+    }
+
+    /**
+     * Datagrams smaller than this are copied into a buffer sized to the datagram when the config retains
+     * buffers, so retained slices do not pin the whole receive buffer. Defaults to DEFAULT_COPY_THRESHOLD.
+     * Copying is disabled when 0.
+     */
+    public Builder copyThreshold(int copyThreshold) {
+      if (copyThreshold < 0) {
+        throw new IllegalArgumentException("copyThreshold must be greater than or equal to 0.");
+      }
+      this.copyThreshold = copyThreshold;
+      return this;
+    }
+
+    public Builder preferEpoll(boolean preferEpoll) {
+      this.preferEpoll = preferEpoll;
+      return this;
+    }
+
+    /**
+     * Decoder settings shared by every channel. The TemplateRegistry is shared between channels.
+     */
+    public Builder config(NetFlowDecoderConfig config) {
+      this.config = config;
+      return this;
+    }
+
+    /**
+     * Creates the handler installed after the decoder of every channel. Called once per channel.
+     */
+    public Builder handlerFactory(Supplier<? extends ChannelHandler> handlerFactory) {
+      this.handlerFactory = handlerFactory;
+      return this;
+    }
+
+    public NetFlowCollector start() throws InterruptedException {
+      if (null == this.handlerFactory) {
+        throw new IllegalStateException("handlerFactory must be set.");
+      }
+      final NetFlowDecoderConfig config = null != this.config ? this.config : NetFlowDecoderConfig.builder().build();
+      final boolean epoll = this.preferEpoll && Epoll.isAvailable();
+      final int channelCount = epoll ? this.channels : 1;
+
+      final EventLoopGroup eventLoopGroup;
+      final Bootstrap bootstrap = new Bootstrap();
+      if (epoll) {
+        eventLoopGroup = new EpollEventLoopGroup(channelCount);
+        bootstrap.channel(EpollDatagramChannel.class)
+            .option(EpollChannelOption.SO_REUSEPORT, true);
+      } else {
+        eventLoopGroup = new NioEventLoopGroup(1);
+        bootstrap.channel(NioDatagramChannel.class);
+      }
+      final int copyThreshold = config.retainBuffers() ? Math.min(this.copyThreshold, this.maxDatagramSize) : 0;
+      final FixedRecvByteBufAllocator recvByteBufAllocator = new FixedRecvByteBufAllocator(this.maxDatagramSize);
+      if (this.maxMessagesPerRead > 0) {
+        recvByteBufAllocator.maxMessagesPerRead(this.maxMessagesPerRead);
+      }
+      bootstrap.group(eventLoopGroup)
+          .option(ChannelOption.SO_RCVBUF, this.receiveBufferSize)
+          .option(ChannelOption.RCVBUF_ALLOCATOR, recvByteBufAllocator)
+          .handler(new ChannelInitializer<DatagramChannel>() {
+            @Override
+            protected void initChannel(DatagramChannel channel) {
+              if (copyThreshold > 0) {
+                channel.pipeline().addLast("datagram-copier", new DatagramCopier(copyThreshold));
+              }
+              channel.pipeline().addLast("netflow-decoder", new NetFlowDecoder(config));
+              channel.pipeline().addLast("netflow-handler", Builder.this.handlerFactory.get());
+            }
+          });
+
+      List<Channel> channels = new ArrayList<>(channelCount);
+      boolean bound = false;
+      try {
+        InetSocketAddress bindAddress = this.bindAddress;
+        for (int i = 0; i < channelCount; i++) {
+          ChannelFuture future = bootstrap.bind(bindAddress).sync();
+          channels.add(future.channel());
+          // Later channels join the port the first one was bound to, which matters for port 0.
+          bindAddress = (InetSocketAddress) future.channel().localAddress();
+        }
+        bound = true;
+      } finally {
+        if (!bound) {
+          for (Channel channel : channels) {
+            channel.close();
+          }
+          eventLoopGroup.shutdownGracefully();
+        }
+      }
+      log.info("Bound {} {} channel(s) to {}.", channels.size(), epoll ? "epoll" : "nio", channels.get(0).localAddress());
+      return new NetFlowCollector(eventLoopGroup, channels, epoll);
+    }
+  }
+
+  /**
+   * Copies datagrams smaller than the threshold out of the receive buffer, which then goes back to the pool.
+   */
+  static class DatagramCopier extends MessageToMessageDecoder<DatagramPacket> {
+    final int threshold;
+
+    DatagramCopier(int threshold) {
+      this.threshold = threshold;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, DatagramPacket packet, List<Object> out) {
+      ByteBuf content = packet.content();
+      if (content.readableBytes() < this.threshold) {
+        ByteBuf copy = ctx.alloc().buffer(content.readableBytes());
+        copy.writeBytes(content);
+        out.add(new DatagramPacket(copy, packet.recipient(), packet.sender()));
+      } else {
+        out.add(packet.retain());
+      }
+    }
+  }
+}
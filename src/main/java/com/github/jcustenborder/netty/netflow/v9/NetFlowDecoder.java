@@ -0,0 +1,124 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.handler.codec.MessageToMessageDecoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+/**
+ * Routes each datagram to the decoder for the version in its header. The v9 and IPFIX decoders share one
+ * template cache.
+ */
+public class NetFlowDecoder extends MessageToMessageDecoder<DatagramPacket> {
+  private static final Logger log = LoggerFactory.getLogger(NetFlowDecoder.class);
+
+  final NetFlowV5Decoder netFlowV5Decoder;
+  final NetFlowV9Decoder netFlowV9Decoder;
+  final IpfixDecoder ipfixDecoder;
+  final NetFlowMetrics metrics;
+  final NetFlowBatcher batcher;
+
+  public NetFlowDecoder(NetFlowDecoderConfig config) {
+    this.metrics = config.metrics;
+    this.batcher = NetFlowBatcher.of(config);
+    // Only decode() of the decoders is called, so batching is left to this decoder.
+    this.netFlowV5Decoder = new NetFlowV5Decoder(config, false);
+    this.netFlowV9Decoder = new NetFlowV9Decoder(config, false);
+    this.ipfixDecoder = new IpfixDecoder(config, false);
+  }
+
+  public NetFlowDecoder(NetFlowV9Decoder.NetflowFactory netflowFactory, TemplateCache templateCache, boolean retainBuffers) {
+    this(
+        NetFlowDecoderConfig.builder()
+            .netflowFactory(netflowFactory)
+            .templateCache(templateCache)
+            .retainBuffers(retainBuffers)
+            .build()
+    );
+  }
+
+  public NetFlowDecoder(NetFlowV9Decoder.NetflowFactory netflowFactory, TemplateCache templateCache) {
+    this(netflowFactory, templateCache, false);
+  }
+
+  public NetFlowDecoder() {
+    this(new NetFlowFactoryImpl(), new TemplateCache());
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (null != this.batcher && acceptInboundMessage(msg)) {
+      this.batcher.channelRead(ctx, (DatagramPacket) msg, this::decode);
+    } else {
+      super.channelRead(ctx, msg);
+    }
+  }
+
+  @Override
+  public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+    if (null != this.batcher) {
+      this.batcher.flush(ctx);
+    }
+    super.channelReadComplete(ctx);
+  }
+
+  @Override
+  public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+    if (null != this.batcher) {
+      this.batcher.release();
+    }
+    super.handlerRemoved(ctx);
+  }
+
+  @Override
+  protected void decode(ChannelHandlerContext channelHandlerContext, DatagramPacket datagramPacket, List<Object> output) throws Exception {
+    final ByteBuf input = datagramPacket.content();
+
+    if (null == input || input.readableBytes() < 2) {
+      if (log.isTraceEnabled()) {
+        log.trace("Message from {} was not usable.", datagramPacket.sender());
+      }
+      return;
+    }
+
+    final int version = input.getUnsignedShort(input.readerIndex());
+    switch (version) {
+      case 5:
+        this.netFlowV5Decoder.decode(channelHandlerContext, datagramPacket, output);
+        break;
+      case 9:
+        this.netFlowV9Decoder.decode(channelHandlerContext, datagramPacket, output);
+        break;
+      case 10:
+        this.ipfixDecoder.decode(channelHandlerContext, datagramPacket, output);
+        break;
+      default:
+        IllegalStateException exception = new IllegalStateException(
+            String.format("version %s from %s is not supported.", version, datagramPacket.sender())
+        );
+        if (null != this.metrics) {
+          this.metrics.packetFailed(datagramPacket.sender(), -1, input.readableBytes(), exception);
+        }
+        throw exception;
+    }
+  }
+}
@@ -0,0 +1,231 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+/**
+ * Settings shared by the NetFlow decoders.
+ * <pre>
+ * NetFlowDecoderConfig config = NetFlowDecoderConfig.builder()
+ *     .retainBuffers(true)
+ *     .build();
+ * new NetFlowDecoder(config);
+ * </pre>
+ */
+public class NetFlowDecoderConfig {
+  final NetFlowV9Decoder.NetflowFactory netflowFactory;
+  final TemplateRegistry templateRegistry;
+  final boolean retainBuffers;
+  final PendingFlowSetBuffer pendingFlowSets;
+  final int packetLogSampleRate;
+  final NetFlowMetrics metrics;
+  final SequenceTracker sequenceTracker;
+  final int maxBatchSize;
+  final FlowPredicate filter;
+  final SamplingTracker samplingTracker;
+  final TemplateInterner templateInterner;
+
+  NetFlowDecoderConfig(Builder builder) {
+    this.netflowFactory = null != builder.netflowFactory ? builder.netflowFactory : new NetFlowFactoryImpl();
+    this.templateRegistry = null != builder.templateRegistry ? builder.templateRegistry : new TemplateCache();
+    this.retainBuffers = builder.retainBuffers;
+    this.pendingFlowSets = builder.pendingFlowSets;
+    this.packetLogSampleRate = builder.packetLogSampleRate;
+    this.metrics = builder.metrics;
+    this.sequenceTracker = builder.sequenceTracker;
+    this.maxBatchSize = builder.maxBatchSize;
+    this.filter = builder.filter;
+    this.samplingTracker = builder.samplingTracker;
+    this.templateInterner = builder.templateInterner;
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public NetFlowV9Decoder.NetflowFactory netflowFactory() {
+    return this.netflowFactory;
+  }
+
+  public TemplateRegistry templateRegistry() {
+    return this.templateRegistry;
+  }
+
+  public boolean retainBuffers() {
+    return this.retainBuffers;
+  }
+
+  public PendingFlowSetBuffer pendingFlowSets() {
+    return this.pendingFlowSets;
+  }
+
+  public int packetLogSampleRate() {
+    return this.packetLogSampleRate;
+  }
+
+  public NetFlowMetrics metrics() {
+    return this.metrics;
+  }
+
+  public SequenceTracker sequenceTracker() {
+    return this.sequenceTracker;
+  }
+
+  public int maxBatchSize() {
+    return this.maxBatchSize;
+  }
+
+  public FlowPredicate filter() {
+    return this.filter;
+  }
+
+  public SamplingTracker samplingTracker() {
+    return this.samplingTracker;
+  }
+
+  public TemplateInterner templateInterner() {
+    return this.templateInterner;
+  }
+
+  public static class Builder {
+    NetFlowV9Decoder.NetflowFactory netflowFactory;
+    TemplateRegistry templateRegistry;
+    boolean retainBuffers;
+    PendingFlowSetBuffer pendingFlowSets;
+    int packetLogSampleRate;
+    NetFlowMetrics metrics;
+    SequenceTracker sequenceTracker;
+    int maxBatchSize;
+    FlowPredicate filter;
+    SamplingTracker samplingTracker;
+    TemplateInterner templateInterner;
+
+    Builder() {
+
+    }
+
+    public Builder netflowFactory(NetFlowV9Decoder.NetflowFactory netflowFactory) {
+      this.netflowFactory = netflowFactory;
+      return this;
+    }
+
+    /**
+     * Template registry to use. Decoders of several channels may share one registry. Defaults to a new
+     * TemplateCache.
+     */
+    public Builder templateRegistry(TemplateRegistry templateRegistry) {
+      this.templateRegistry = templateRegistry;
+      return this;
+    }
+
+    public Builder templateCache(TemplateCache templateCache) {
+      return templateRegistry(templateCache);
+    }
+
+    /**
+     * When true each DataFlowSet references a retained slice of the datagram instead of a copy. The emitted
+     * NetFlowMessage must be released once it has been processed.
+     */
+    public Builder retainBuffers(boolean retainBuffers) {
+      this.retainBuffers = retainBuffers;
+      return this;
+    }
+
+    /**
+     * Buffer for data flowsets that arrive before their template. Buffered flowsets are emitted again in a
+     * separate NetFlowMessage once the template arrives. Disabled when null.
+     */
+    public Builder pendingFlowSets(PendingFlowSetBuffer pendingFlowSets) {
+      this.pendingFlowSets = pendingFlowSets;
+      return this;
+    }
+
+    /**
+     * Logs a summary of one in every packetLogSampleRate packets at DEBUG to the
+     * com.github.jcustenborder.netty.netflow.v9.packets logger. When enabled every packet that fails to decode
+     * is logged with a hex dump. Disabled when 0.
+     */
+    public Builder packetLogSampleRate(int packetLogSampleRate) {
+      if (packetLogSampleRate < 0) {
+        throw new IllegalArgumentException("packetLogSampleRate must be greater than or equal to 0.");
+      }
+      this.packetLogSampleRate = packetLogSampleRate;
+      return this;
+    }
+
+    /**
+     * Receives packet, flowset, template, record, byte and error counts and the decode latency of every
+     * datagram. Disabled when null.
+     */
+    public Builder metrics(NetFlowMetrics metrics) {
+      this.metrics = metrics;
+      return this;
+    }
+
+    /**
+     * Tracks header sequence numbers per exporter and source id. Emitted messages report the size of the
+     * gap before them in NetFlowMessage.sequenceGap(). Disabled when null.
+     */
+    public Builder sequenceTracker(SequenceTracker sequenceTracker) {
+      this.sequenceTracker = sequenceTracker;
+      return this;
+    }
+
+    /**
+     * When greater than 0 the decoder emits a NetFlowBatch with the messages of all datagrams of a read
+     * instead of each NetFlowMessage. A batch is emitted on channelReadComplete or once it holds maxBatchSize
+     * messages. Disabled when 0.
+     */
+    public Builder maxBatchSize(int maxBatchSize) {
+      if (maxBatchSize < 0) {
+        throw new IllegalArgumentException("maxBatchSize must be greater than or equal to 0.");
+      }
+      this.maxBatchSize = maxBatchSize;
+      return this;
+    }
+
+    /**
+     * Drops the flow records that do not match the predicate while data flowsets are decoded, before they are
+     * copied. Options records are never dropped. Disabled when null.
+     */
+    public Builder filter(FlowPredicate filter) {
+      this.filter = filter;
+      return this;
+    }
+
+    /**
+     * Learns the sampling intervals of exporters from options records and NetFlow v5 headers and attaches
+     * them to every data flowset, so counters can be scaled with FlowRecordCursor.getScaledLong. Disabled
+     * when null.
+     */
+    public Builder samplingTracker(SamplingTracker samplingTracker) {
+      this.samplingTracker = samplingTracker;
+      return this;
+    }
+
+    /**
+     * Shares the layouts of byte identical templates between exporters. The interner is shared by every
+     * decoder created from this config. Disabled when null.
+     */
+    public Builder templateInterner(TemplateInterner templateInterner) {
+      this.templateInterner = templateInterner;
+      return this;
+    }
+
+    public NetFlowDecoderConfig build() {
+      return new NetFlowDecoderConfig(this);
+    }
+  }
+}
@@ -15,20 +15,37 @@
  */
 package com.github.jcustenborder.netty.netflow.v9;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.util.AbstractReferenceCounted;
+
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 class NetFlowFactoryImpl implements NetFlowV9Decoder.NetflowFactory {
 
   @Override
   public NetFlowV9Decoder.NetFlowMessage netflowMessage(short version, short count, int uptime, int timestamp, int flowSequence, int sourceID, InetSocketAddress sender, InetSocketAddress recipient, List<NetFlowV9Decoder.FlowSet> flowsets) {
-    return new NetFlowMessageImpl(version, count, uptime, timestamp, flowSequence, sourceID, sender, recipient, flowsets);
+    return new NetFlowMessageImpl(version, count, uptime, timestamp, flowSequence, sourceID, sender, recipient, flowsets, 0L);
+  }
+
+  @Override
+  public NetFlowV9Decoder.NetFlowMessage netflowMessage(short version, short count, int uptime, int timestamp, int flowSequence, int sourceID, InetSocketAddress sender, InetSocketAddress recipient, List<NetFlowV9Decoder.FlowSet> flowsets, long sequenceGap) {
+    return new NetFlowMessageImpl(version, count, uptime, timestamp, flowSequence, sourceID, sender, recipient, flowsets, sequenceGap);
   }
 
   @Override
   public NetFlowV9Decoder.TemplateField templateField(short type, short length) {
-    return new TemplateFieldImpl(type, length);
+    return TemplateFieldImpl.of(type, length, 0);
+  }
+
+  @Override
+  public NetFlowV9Decoder.TemplateField templateField(short type, short length, int enterpriseNumber) {
+    return TemplateFieldImpl.of(type, length, enterpriseNumber);
   }
 
   @Override
@@ -36,23 +53,56 @@ class NetFlowFactoryImpl implements NetFlowV9Decoder.NetflowFactory {
     return new TemplateFlowSetImpl(flowsetID, templateID, fields);
   }
 
+  @Override
+  public NetFlowV9Decoder.OptionsTemplateFlowSet optionsTemplateFlowSet(short flowsetID, short templateID, List<NetFlowV9Decoder.TemplateField> scopeFields, List<NetFlowV9Decoder.TemplateField> optionFields) {
+    return new OptionsTemplateFlowSetImpl(flowsetID, templateID, scopeFields, optionFields);
+  }
+
+  @Override
+  public NetFlowV9Decoder.DataFlowSet withSamplingRates(NetFlowV9Decoder.DataFlowSet dataFlowSet, SamplingTracker.Rates samplingRates) {
+    if (dataFlowSet instanceof DataFlowSetImpl) {
+      ((DataFlowSetImpl) dataFlowSet).samplingRates = samplingRates;
+      return dataFlowSet;
+    }
+    return NetFlowV9Decoder.NetflowFactory.super.withSamplingRates(dataFlowSet, samplingRates);
+  }
+
   @Override
   public NetFlowV9Decoder.DataFlowSet dataFlowSet(short flowsetID, byte[] data) {
-    return new DataFlowSetImpl(flowsetID, data);
+    return new DataFlowSetImpl(flowsetID, null, data, false, null);
+  }
+
+  @Override
+  public NetFlowV9Decoder.DataFlowSet dataFlowSet(short flowsetID, byte[] data, RecordLayout layout) {
+    return new DataFlowSetImpl(flowsetID, null, data, false, layout);
   }
 
-  static class NetFlowMessageImpl implements NetFlowV9Decoder.NetFlowMessage {
-    final short version;
-    final short count;
-    final int uptime;
-    final int timestamp;
-    final int flowSequence;
-    final int sourceID;
-    final InetSocketAddress sender;
-    final InetSocketAddress recipient;
-    final List<NetFlowV9Decoder.FlowSet> flowsets;
+  @Override
+  public NetFlowV9Decoder.DataFlowSet dataFlowSet(short flowsetID, ByteBuf content, RecordLayout layout) {
+    return new DataFlowSetImpl(flowsetID, content, null, true, layout);
+  }
+
+  static class NetFlowMessageImpl extends AbstractReferenceCounted implements NetFlowV9Decoder.NetFlowMessage {
+    short version;
+    short count;
+    int uptime;
+    int timestamp;
+    int flowSequence;
+    int sourceID;
+    InetSocketAddress sender;
+    InetSocketAddress recipient;
+    List<NetFlowV9Decoder.FlowSet> flowsets;
+    long sequenceGap;
+
+    NetFlowMessageImpl() {
+
+    }
+
+    NetFlowMessageImpl(short version, short count, int uptime, int timestamp, int flowSequence, int sourceID, InetSocketAddress sender, InetSocketAddress recipient, List<NetFlowV9Decoder.FlowSet> flowsets, long sequenceGap) {
+      init(version, count, uptime, timestamp, flowSequence, sourceID, sender, recipient, Collections.unmodifiableList(flowsets), sequenceGap);
+    }
 
-    NetFlowMessageImpl(short version, short count, int uptime, int timestamp, int flowSequence, int sourceID, InetSocketAddress sender, InetSocketAddress recipient, List<NetFlowV9Decoder.FlowSet> flowsets) {
+    void init(short version, short count, int uptime, int timestamp, int flowSequence, int sourceID, InetSocketAddress sender, InetSocketAddress recipient, List<NetFlowV9Decoder.FlowSet> flowsets, long sequenceGap) {
       this.version = version;
       this.count = count;
       this.uptime = uptime;
@@ -61,7 +111,8 @@ class NetFlowFactoryImpl implements NetFlowV9Decoder.NetflowFactory {
       this.sourceID = sourceID;
       this.sender = sender;
       this.recipient = recipient;
-      this.flowsets = Collections.unmodifiableList(flowsets);
+      this.flowsets = flowsets;
+      this.sequenceGap = sequenceGap;
     }
 
 
@@ -109,15 +160,124 @@ class NetFlowFactoryImpl implements NetFlowV9Decoder.NetflowFactory {
     public List<NetFlowV9Decoder.FlowSet> flowsets() {
       return this.flowsets;
     }
+
+    @Override
+    public long sequenceGap() {
+      return this.sequenceGap;
+    }
+
+    @Override
+    public NetFlowV9Decoder.NetFlowMessage retain() {
+      super.retain();
+      return this;
+    }
+
+    @Override
+    public NetFlowV9Decoder.NetFlowMessage retain(int increment) {
+      super.retain(increment);
+      return this;
+    }
+
+    @Override
+    public NetFlowV9Decoder.NetFlowMessage touch() {
+      super.touch();
+      return this;
+    }
+
+    @Override
+    public NetFlowV9Decoder.NetFlowMessage touch(Object hint) {
+      for (NetFlowV9Decoder.FlowSet flowSet : this.flowsets) {
+        if (flowSet instanceof DataFlowSetImpl) {
+          ((DataFlowSetImpl) flowSet).touch(hint);
+        }
+      }
+      return this;
+    }
+
+    @Override
+    protected void deallocate() {
+      for (NetFlowV9Decoder.FlowSet flowSet : this.flowsets) {
+        if (flowSet instanceof DataFlowSetImpl) {
+          ((DataFlowSetImpl) flowSet).release();
+        }
+      }
+    }
+  }
+
+  static class NetFlowBatchImpl extends AbstractReferenceCounted implements NetFlowV9Decoder.NetFlowBatch {
+    final List<NetFlowV9Decoder.NetFlowMessage> messages;
+
+    NetFlowBatchImpl(List<NetFlowV9Decoder.NetFlowMessage> messages) {
+      this.messages = Collections.unmodifiableList(messages);
+    }
+
+    @Override
+    public List<NetFlowV9Decoder.NetFlowMessage> messages() {
+      return this.messages;
+    }
+
+    @Override
+    public NetFlowV9Decoder.NetFlowBatch retain() {
+      super.retain();
+      return this;
+    }
+
+    @Override
+    public NetFlowV9Decoder.NetFlowBatch retain(int increment) {
+      super.retain(increment);
+      return this;
+    }
+
+    @Override
+    public NetFlowV9Decoder.NetFlowBatch touch() {
+      super.touch();
+      return this;
+    }
+
+    @Override
+    public NetFlowV9Decoder.NetFlowBatch touch(Object hint) {
+      for (NetFlowV9Decoder.NetFlowMessage message : this.messages) {
+        message.touch(hint);
+      }
+      return this;
+    }
+
+    @Override
+    protected void deallocate() {
+      for (NetFlowV9Decoder.NetFlowMessage message : this.messages) {
+        message.release();
+      }
+    }
   }
 
   static class TemplateFieldImpl implements NetFlowV9Decoder.TemplateField {
+    static final int CACHE_SIZE = 4096;
+    /**
+     * Direct mapped cache of immutable fields, so templates that are resent periodically reuse their fields.
+     * Races only cost a duplicate instance.
+     */
+    static final AtomicReferenceArray<TemplateFieldImpl> CACHE = new AtomicReferenceArray<>(CACHE_SIZE);
+
     final short type;
     final short length;
+    final int enterpriseNumber;
 
-    TemplateFieldImpl(short type, short length) {
+    static TemplateFieldImpl of(short type, short length, int enterpriseNumber) {
+      final int hash = (31 * (31 * enterpriseNumber + type) + length) * 0x9E3779B1;
+      final int slot = hash >>> 20;
+      final TemplateFieldImpl cached = CACHE.get(slot);
+      if (null != cached && cached.type == type && cached.length == length && cached.enterpriseNumber == enterpriseNumber) {
+        return cached;
+      }
+      final TemplateFieldImpl result = new TemplateFieldImpl(type, length, enterpriseNumber);
+      CACHE.set(slot, result);
+      return result;
+    }
+
+    TemplateFieldImpl(short type, short length, int enterpriseNumber) {
       this.type = type;
       this.length = length;
+      this.enterpriseNumber = enterpriseNumber;
     }
 
     @Override
@@ -129,6 +289,11 @@ class NetFlowFactoryImpl implements NetFlowV9Decoder.NetflowFactory {
     public short length() {
       return this.length;
     }
+
+    @Override
+    public int enterpriseNumber() {
+      return this.enterpriseNumber;
+    }
   }
 
   static class TemplateFlowSetImpl implements NetFlowV9Decoder.TemplateFlowSet {
@@ -158,13 +323,120 @@ class NetFlowFactoryImpl implements NetFlowV9Decoder.NetflowFactory {
     }
   }
 
-  static class DataFlowSetImpl implements NetFlowV9Decoder.DataFlowSet {
+  static class OptionsTemplateFlowSetImpl implements NetFlowV9Decoder.OptionsTemplateFlowSet {
     final short flowsetID;
-    final byte[] data;
+    final short templateID;
+    final List<NetFlowV9Decoder.TemplateField> scopeFields;
+    final List<NetFlowV9Decoder.TemplateField> optionFields;
+
+    OptionsTemplateFlowSetImpl(short flowsetID, short templateID, List<NetFlowV9Decoder.TemplateField> scopeFields, List<NetFlowV9Decoder.TemplateField> optionFields) {
+      this.flowsetID = flowsetID;
+      this.templateID = templateID;
+      this.scopeFields = scopeFields;
+      this.optionFields = optionFields;
+    }
+
+    @Override
+    public short flowsetID() {
+      return this.flowsetID;
+    }
+
+    @Override
+    public short templateID() {
+      return this.templateID;
+    }
 
-    DataFlowSetImpl(short flowsetID, byte[] data) {
+    @Override
+    public List<NetFlowV9Decoder.TemplateField> scopeFields() {
+      return this.scopeFields;
+    }
+
+    @Override
+    public List<NetFlowV9Decoder.TemplateField> optionFields() {
+      return this.optionFields;
+    }
+  }
+
+  /**
+   * Data flowset of another factory with the sampling intervals of its exporter.
+   */
+  static final class SampledDataFlowSet implements NetFlowV9Decoder.DataFlowSet {
+    final NetFlowV9Decoder.DataFlowSet dataFlowSet;
+    final SamplingTracker.Rates samplingRates;
+
+    SampledDataFlowSet(NetFlowV9Decoder.DataFlowSet dataFlowSet, SamplingTracker.Rates samplingRates) {
+      this.dataFlowSet = dataFlowSet;
+      this.samplingRates = samplingRates;
+    }
+
+    @Override
+    public short flowsetID() {
+      return this.dataFlowSet.flowsetID();
+    }
+
+    @Override
+    public byte[] data() {
+      return this.dataFlowSet.data();
+    }
+
+    @Override
+    public ByteBuf content() {
+      return this.dataFlowSet.content();
+    }
+
+    @Override
+    public RecordLayout layout() {
+      return this.dataFlowSet.layout();
+    }
+
+    @Override
+    public SamplingTracker.Rates samplingRates() {
+      return this.samplingRates;
+    }
+
+    @Override
+    public List<NetFlowV9Decoder.FlowRecord> records() {
+      return this.dataFlowSet.records();
+    }
+  }
+
+  static class DataFlowSetImpl implements NetFlowV9Decoder.DataFlowSet {
+    short flowsetID;
+    ByteBuf content;
+    boolean retained;
+    RecordLayout layout;
+    byte[] data;
+    List<NetFlowV9Decoder.FlowRecord> records;
+    SamplingTracker.Rates samplingRates = SamplingTracker.Rates.UNSAMPLED;
+
+    DataFlowSetImpl() {
+
+    }
+
+    DataFlowSetImpl(short flowsetID, ByteBuf content, byte[] data, boolean retained, RecordLayout layout) {
+      init(flowsetID, content, data, retained, layout);
+    }
+
+    void init(short flowsetID, ByteBuf content, byte[] data, boolean retained, RecordLayout layout) {
       this.flowsetID = flowsetID;
+      this.content = content;
       this.data = data;
+      this.retained = retained;
+      this.layout = layout;
+      this.records = null;
+      this.samplingRates = SamplingTracker.Rates.UNSAMPLED;
+    }
+
+    void touch(Object hint) {
+      if (this.retained) {
+        this.content.touch(hint);
+      }
+    }
+
+    void release() {
+      if (this.retained) {
+        this.content.release();
+      }
     }
 
     @Override
@@ -174,7 +446,126 @@ class NetFlowFactoryImpl implements NetFlowV9Decoder.NetflowFactory {
 
     @Override
     public byte[] data() {
+      if (null == this.data) {
+        this.data = ByteBufUtil.getBytes(this.content);
+      }
       return this.data;
     }
+
+    @Override
+    public ByteBuf content() {
+      if (null == this.content) {
+        this.content = Unpooled.wrappedBuffer(this.data);
+      }
+      return this.content;
+    }
+
+    @Override
+    public RecordLayout layout() {
+      return this.layout;
+    }
+
+    @Override
+    public SamplingTracker.Rates samplingRates() {
+      return this.samplingRates;
+    }
+
+    @Override
+    public List<NetFlowV9Decoder.FlowRecord> records() {
+      if (null == this.records) {
+        if (null == this.layout) {
+          this.records = Collections.emptyList();
+        } else {
+          FlowRecordCursor cursor = new FlowRecordCursor(this);
+          List<NetFlowV9Decoder.FlowRecord> records = new ArrayList<>(cursor.recordCount());
+          while (cursor.next()) {
+            records.add(FlowRecordImpl.of(cursor));
+          }
+          this.records = Collections.unmodifiableList(records);
+        }
+      }
+      return this.records;
+    }
+  }
+
+  static class FlowRecordImpl implements NetFlowV9Decoder.FlowRecord {
+    final RecordLayout layout;
+    final ByteBuf buffer;
+    final int offset;
+    final int[] fieldOffsets;
+    final int[] fieldLengths;
+
+    FlowRecordImpl(RecordLayout layout, ByteBuf buffer, int offset, int[] fieldOffsets, int[] fieldLengths) {
+      this.layout = layout;
+      this.buffer = buffer;
+      this.offset = offset;
+      this.fieldOffsets = fieldOffsets;
+      this.fieldLengths = fieldLengths;
+    }
+
+    static FlowRecordImpl of(FlowRecordCursor cursor) {
+      final RecordLayout layout = cursor.layout();
+      if (!layout.isVariableLength()) {
+        return new FlowRecordImpl(layout, cursor.buffer(), cursor.recordOffset(), null, null);
+      }
+      int[] fieldOffsets = new int[layout.fieldCount()];
+      int[] fieldLengths = new int[layout.fieldCount()];
+      for (int i = 0; i < fieldOffsets.length; i++) {
+        fieldOffsets[i] = cursor.offsetAt(i);
+        fieldLengths[i] = cursor.lengthAt(i);
+      }
+      return new FlowRecordImpl(layout, cursor.buffer(), cursor.recordOffset(), fieldOffsets, fieldLengths);
+    }
+
+    private int offsetAt(int index) {
+      return null == this.fieldOffsets ? this.offset + this.layout.fieldOffset(index) : this.fieldOffsets[index];
+    }
+
+    private int lengthAt(int index) {
+      return null == this.fieldLengths ? this.layout.fieldLength(index) : this.fieldLengths[index];
+    }
+
+    @Override
+    public RecordLayout layout() {
+      return this.layout;
+    }
+
+    @Override
+    public boolean hasField(int fieldType) {
+      return this.layout.indexOf(fieldType) >= 0;
+    }
+
+    @Override
+    public long getLong(int fieldType) {
+      final int index = this.layout.requireIndex(fieldType);
+      return RecordLayout.readUnsigned(this.buffer, offsetAt(index), lengthAt(index));
+    }
+
+    @Override
+    public byte[] getBytes(int fieldType) {
+      return bytes(this.layout.requireIndex(fieldType));
+    }
+
+    @Override
+    public boolean hasScope(int scopeType) {
+      return this.layout.indexOfScope(scopeType) >= 0;
+    }
+
+    @Override
+    public long getScopeLong(int scopeType) {
+      final int index = this.layout.requireScopeIndex(scopeType);
+      return RecordLayout.readUnsigned(this.buffer, offsetAt(index), lengthAt(index));
+    }
+
+    @Override
+    public byte[] getScopeBytes(int scopeType) {
+      return bytes(this.layout.requireScopeIndex(scopeType));
+    }
+
+    private byte[] bytes(int index) {
+      byte[] result = new byte[lengthAt(index)];
+      this.buffer.getBytes(offsetAt(index), result);
+      return result;
+    }
   }
 }
@@ -0,0 +1,43 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Instrumentation hook called by the decoders once per datagram. Implementations are called concurrently
+ * from every event loop that decodes and must not block. {@link LongAdderNetFlowMetrics} is the default
+ * implementation, adapters for other metrics libraries implement this interface.
+ */
+public interface NetFlowMetrics {
+  /**
+   * Called after a datagram was decoded.
+   *
+   * @param bytes       length of the datagram.
+   * @param flowSets    number of flowsets, including template flowsets.
+   * @param templates   number of templates and options templates.
+   * @param records     number of data records of flowsets whose template is known.
+   * @param decodeNanos time spent decoding the datagram.
+   */
+  void packetDecoded(InetSocketAddress sender, int sourceID, int bytes, int flowSets, int templates, int records, long decodeNanos);
+
+  /**
+   * Called when a datagram could not be decoded.
+   *
+   * @param sourceID source id of the header, or -1 if the header could not be decoded.
+   */
+  void packetFailed(InetSocketAddress sender, int sourceID, int bytes, RuntimeException error);
+}
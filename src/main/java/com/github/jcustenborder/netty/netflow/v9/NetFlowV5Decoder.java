@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decoder for NetFlow v5. v5 records have a fixed 48 byte layout, so no templates are involved. The records
+ * of a datagram are emitted as a single DataFlowSet with flowset id {@link #FLOWSET_ID} whose layout is
+ * {@link #LAYOUT}, using the v9 field types. The engine type and engine id are reported as the sourceID
+ * ({@code engineType << 8 | engineID}).
+ */
+public class NetFlowV5Decoder extends AbstractNetFlowDecoder {
+  private static final Logger log = LoggerFactory.getLogger(NetFlowV5Decoder.class);
+  static final short VERSION = 5;
+  public static final short FLOWSET_ID = 5;
+  public static final int RECORD_LENGTH = 48;
+  /**
+   * Most records a NetFlow v5 datagram carries.
+   */
+  public static final int MAX_COUNT = 30;
+
+  public static final RecordLayout LAYOUT = RecordLayout.of(
+      Arrays.asList(
+          field(FieldType.IPV4_SRC_ADDR, 4),
+          field(FieldType.IPV4_DST_ADDR, 4),
+          field(FieldType.IPV4_NEXT_HOP, 4),
+          field(FieldType.INPUT_SNMP, 2),
+          field(FieldType.OUTPUT_SNMP, 2),
+          field(FieldType.IN_PKTS, 4),
+          field(FieldType.IN_BYTES, 4),
+          field(FieldType.FIRST_SWITCHED, 4),
+          field(FieldType.LAST_SWITCHED, 4),
+          field(FieldType.L4_SRC_PORT, 2),
+          field(FieldType.L4_DST_PORT, 2),
+          field(FieldType.PADDING_OCTETS, 1),
+          field(FieldType.TCP_FLAGS, 1),
+          field(FieldType.PROTOCOL, 1),
+          field(FieldType.SRC_TOS, 1),
+          field(FieldType.SRC_AS, 2),
+          field(FieldType.DST_AS, 2),
+          field(FieldType.SRC_MASK, 1),
+          field(FieldType.DST_MASK, 1),
+          field(FieldType.PADDING_OCTETS, 2)
+      )
+  );
+
+  public NetFlowV5Decoder(NetFlowDecoderConfig config) {
+    this(config, true);
+  }
+
+  NetFlowV5Decoder(NetFlowDecoderConfig config, boolean batch) {
+    super(config, batch);
+  }
+
+  public NetFlowV5Decoder(NetFlowV9Decoder.NetflowFactory netflowFactory, boolean retainBuffers) {
+    this(
+        NetFlowDecoderConfig.builder()
+            .netflowFactory(netflowFactory)
+            .retainBuffers(retainBuffers)
+            .build()
+    );
+  }
+
+  public NetFlowV5Decoder(NetFlowV9Decoder.NetflowFactory netflowFactory) {
+    this(netflowFactory, false);
+  }
+
+  public NetFlowV5Decoder() {
+    this(new NetFlowFactoryImpl());
+  }
+
+  private static NetFlowV9Decoder.TemplateField field(int type, int length) {
+    return new NetFlowFactoryImpl.TemplateFieldImpl((short) type, (short) length, 0);
+  }
+
+  @Override
+  NetFlowV9Decoder.Header decodeHeader(ByteBuf b, InetSocketAddress sender, InetSocketAddress recipient) {
+    final ByteBuf input = b.readSlice(24);
+
+    short version = input.readShort();
+    short count = input.readShort();
+    int uptime = input.readInt();
+    int timestamp = input.readInt();
+    int timestampNanos = input.readInt();
+    int flowSequence = input.readInt();
+    int engineType = input.readUnsignedByte();
+    int engineID = input.readUnsignedByte();
+    int samplingInterval = input.readUnsignedShort();
+
+    if (log.isTraceEnabled()) {
+      log.trace("version = {} count = {} uptime = {} timestamp = {} timestampNanos = {} flowSequence = {} engineType = {} engineID = {} samplingInterval = {}",
+          version, count, uptime, timestamp, timestampNanos, flowSequence, engineType, engineID, samplingInterval
+      );
+    }
+
+    if (VERSION != version) {
+      throw new IllegalStateException(
+          String.format("version %s is not supported by %s.", version, NetFlowV5Decoder.class.getSimpleName())
+      );
+    }
+    if ((count & 0xFFFF) > MAX_COUNT) {
+      throw new IllegalStateException(
+          String.format("count %s exceeds the maximum of %s records.", count & 0xFFFF, MAX_COUNT)
+      );
+    }
+    checkReadFully(input);
+    final NetFlowV9Decoder.Header header = new NetFlowV9Decoder.Header(version, count, uptime, timestamp, flowSequence, engineType << 8 | engineID, sender, recipient);
+    if (null != this.samplingTracker) {
+      // The top 2 bits are the sampling mode, the interval is in the lower 14.
+      this.samplingTracker.interval(sender, header.sourceID, samplingInterval & 0x3FFF);
+    }
+    return header;
+  }
+
+  /**
+   * NetFlow v5 numbers flow records.
+   */
+  @Override
+  long sequenceIncrement(NetFlowV9Decoder.Header header, List<NetFlowV9Decoder.FlowSet> flowSets) {
+    return header.count & 0xFFFF;
+  }
+
+  @Override
+  void decodeFlowSets(ByteBuf input, NetFlowV9Decoder.Header header, List<NetFlowV9Decoder.FlowSet> flowSets) {
+    final int count = header.count & 0xFFFF;
+    final int length = count * RECORD_LENGTH;
+    if (input.readableBytes() < length) {
+      throw new IllegalStateException(
+          String.format("count %s requires %s bytes but only %s are available.", count, length, input.readableBytes())
+      );
+    }
+    NetFlowV9Decoder.DataFlowSet dataFlowSet = readData(input, FLOWSET_ID, length, LAYOUT);
+    if (null != this.samplingTracker) {
+      dataFlowSet = sample(header, dataFlowSet);
+    }
+    flowSets.add(dataFlowSet);
+    input.skipBytes(input.readableBytes());
+  }
+}
@@ -16,29 +16,59 @@
 package com.github.jcustenborder.netty.netflow.v9;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.socket.DatagramPacket;
-import io.netty.handler.codec.MessageToMessageDecoder;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.util.ReferenceCounted;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
-public class NetFlowV9Decoder extends MessageToMessageDecoder<DatagramPacket> {
+public class NetFlowV9Decoder extends AbstractNetFlowDecoder {
   private static final Logger log = LoggerFactory.getLogger(NetFlowV9Decoder.class);
 
-  final NetflowFactory netflowFactory;
+  public NetFlowV9Decoder(NetFlowDecoderConfig config) {
+    this(config, true);
+  }
+
+  NetFlowV9Decoder(NetFlowDecoderConfig config, boolean batch) {
+    super(config, batch);
+  }
+
+  /**
+   * @param retainBuffers when true each DataFlowSet references a retained slice of the datagram instead
+   *                      of a copy. The emitted NetFlowMessage must be released once it has been processed.
+   */
+  public NetFlowV9Decoder(NetflowFactory netflowFactory, TemplateCache templateCache, boolean retainBuffers) {
+    this(
+        NetFlowDecoderConfig.builder()
+            .netflowFactory(netflowFactory)
+            .templateCache(templateCache)
+            .retainBuffers(retainBuffers)
+            .build()
+    );
+  }
+
+  public NetFlowV9Decoder(NetflowFactory netflowFactory, TemplateCache templateCache) {
+    this(netflowFactory, templateCache, false);
+  }
 
   public NetFlowV9Decoder(NetflowFactory netflowFactory) {
-    this.netflowFactory = netflowFactory;
+    this(netflowFactory, new TemplateCache());
+  }
+
+  public NetFlowV9Decoder(boolean retainBuffers) {
+    this(new NetFlowFactoryImpl(), new TemplateCache(), retainBuffers);
   }
 
   public NetFlowV9Decoder() {
     this(new NetFlowFactoryImpl());
   }
 
+  @Override
   Header decodeHeader(ByteBuf b, InetSocketAddress sender, InetSocketAddress recipient) {
     final ByteBuf input = b.readSlice(20);
 
@@ -49,95 +79,168 @@ public class NetFlowV9Decoder extends MessageToMessageDecoder<DatagramPacket> {
     int flowSequence = input.readInt();
     int sourceID = input.readInt();
 
-    log.trace("version = {} count = {} uptime = {} timestamp = {} flowSequence = {} sourceID = {}",
-        version, count, uptime, timestamp, flowSequence, sourceID
-    );
+    if (log.isTraceEnabled()) {
+      log.trace("version = {} count = {} uptime = {} timestamp = {} flowSequence = {} sourceID = {}",
+          version, count, uptime, timestamp, flowSequence, sourceID
+      );
+    }
 
+    if (9 != version) {
+      throw new IllegalStateException(
+          String.format("version %s is not supported by %s.", version, NetFlowV9Decoder.class.getSimpleName())
+      );
+    }
     checkReadFully(input);
     return new Header(version, count, uptime, timestamp, flowSequence, sourceID, sender, recipient);
   }
 
-  private void checkReadFully(ByteBuf input) {
-    if (input.readableBytes() > 0) {
+  TemplateFlowSet decodeTemplate(ByteBuf b, final short flowSetID) {
+    final ByteBuf input = readFlowSet(b);
+    final TemplateFlowSet result = readTemplate(input, flowSetID, null);
+    checkReadFully(input);
+    return result;
+  }
+
+  OptionsTemplateFlowSet decodeOptionsTemplate(ByteBuf b, final short flowSetID) {
+    final ByteBuf input = readFlowSet(b);
+    final OptionsTemplateFlowSet result = readOptionsTemplate(input, flowSetID, null);
+    input.skipBytes(input.readableBytes());
+    return result;
+  }
+
+  private ByteBuf readFlowSet(ByteBuf b) {
+    final int length = b.readUnsignedShort() - 4;
+    if (length > b.readableBytes()) {
       throw new IllegalStateException(
-          String.format("input has %s bytes remaining.", input.readableBytes())
+          String.format("flowset length %s exceeds the %s bytes remaining.", length + 4, b.readableBytes() + 4)
       );
     }
+    if (log.isTraceEnabled()) {
+      log.trace("readSlice({})", length);
+    }
+    return b.readSlice(length);
   }
 
-  TemplateFlowSet decodeTemplate(ByteBuf b, final short flowSetID) {
-    final int length = b.readShort() - 4;
-    log.trace("readSlice({})", length);
-    final ByteBuf input = b.readSlice(length);
+  /**
+   * Decodes and registers every template of a template flowset. Exporters pack several templates into one
+   * flowset, followed by padding.
+   */
+  void decodeTemplates(ByteBuf b, final short flowSetID, Header header, List<FlowSet> flowSets) {
+    final ByteBuf input = readFlowSet(b);
+    while (input.readableBytes() >= 4 && 0 != input.getShort(input.readerIndex())) {
+      flowSets.add(readTemplate(input, flowSetID, header));
+    }
+    input.skipBytes(input.readableBytes());
+  }
 
+  /**
+   * Decodes and registers every options template of an options template flowset.
+   */
+  void decodeOptionsTemplates(ByteBuf b, final short flowSetID, Header header, List<FlowSet> flowSets) {
+    final ByteBuf input = readFlowSet(b);
+    while (input.readableBytes() >= 6 && 0 != input.getShort(input.readerIndex())) {
+      flowSets.add(readOptionsTemplate(input, flowSetID, header));
+    }
+    input.skipBytes(input.readableBytes());
+  }
+
+  /**
+   * Reads one template record and registers it when header is not null.
+   */
+  TemplateFlowSet readTemplate(ByteBuf input, final short flowSetID, Header header) {
     short templateID = input.readShort();
     short fieldCount = input.readShort();
-    log.trace("templateID = {} fieldCount = {}", templateID, fieldCount);
-    List<TemplateField> fields = new ArrayList<>(fieldCount);
-    for (short j = 1; j <= fieldCount; j++) {
-      short fieldType = input.readShort();
-      short fieldLength = input.readShort();
-      log.trace("field({}/{}): type = {} length = {}", j, fieldCount, fieldType, fieldLength);
-
-      TemplateField templateField = this.netflowFactory.templateField(fieldType, fieldLength);
-      fields.add(templateField);
+    if (log.isTraceEnabled()) {
+      log.trace("templateID = {} fieldCount = {}", templateID, fieldCount);
     }
-    checkReadFully(input);
-    return this.netflowFactory.templateFlowSet(flowSetID, templateID, fields);
+    RecordLayout layout = interned(input, TemplateInterner.NETFLOW_V9, 0, Math.max(0, fieldCount) * 4);
+    if (null == layout) {
+      final int start = input.readerIndex();
+      List<TemplateField> fields = new ArrayList<>(fieldCount);
+      final boolean trace = log.isTraceEnabled();
+      for (short j = 1; j <= fieldCount; j++) {
+        short fieldType = input.readShort();
+        short fieldLength = input.readShort();
+        if (trace) {
+          log.trace("field({}/{}): type = {} length = {}", j, fieldCount, fieldType, fieldLength);
+        }
+
+        TemplateField templateField = this.netflowFactory.templateField(fieldType, fieldLength);
+        fields.add(templateField);
+      }
+      layout = intern(input, TemplateInterner.NETFLOW_V9, 0, start, RecordLayout.of(fields));
+    }
+    if (null != header) {
+      putTemplate(header, templateID & 0xFFFF, layout);
+    }
+    return this.netflowFactory.templateFlowSet(flowSetID, templateID, layout.fields());
   }
 
-  DataFlowSet decodeData(ByteBuf b, final short flowSetID) {
-    final int length = b.readShort() - 4;
-    log.trace("readSlice({})", length);
-    final ByteBuf input = b.readSlice(length);
-    byte[] data = new byte[length];
-    input.readBytes(data);
-    return this.netflowFactory.dataFlowSet(flowSetID, data);
+  /**
+   * Reads one options template record and registers it when header is not null.
+   */
+  OptionsTemplateFlowSet readOptionsTemplate(ByteBuf input, final short flowSetID, Header header) {
+    short templateID = input.readShort();
+    int scopeLength = input.readUnsignedShort();
+    int optionLength = input.readUnsignedShort();
+    if (log.isTraceEnabled()) {
+      log.trace("templateID = {} scopeLength = {} optionLength = {}", templateID, scopeLength, optionLength);
+    }
+    final int scopeFieldCount = scopeLength / 4;
+    final int optionFieldCount = optionLength / 4;
+    RecordLayout layout = interned(input, TemplateInterner.NETFLOW_V9_OPTIONS, scopeFieldCount, (scopeFieldCount + optionFieldCount) * 4);
+    if (null == layout) {
+      final int start = input.readerIndex();
+      List<TemplateField> scopeFields = readFields(input, scopeFieldCount);
+      List<TemplateField> optionFields = readFields(input, optionFieldCount);
+      layout = intern(input, TemplateInterner.NETFLOW_V9_OPTIONS, scopeFieldCount, start, RecordLayout.of(scopeFields, optionFields));
+    }
+    if (null != header) {
+      putTemplate(header, templateID & 0xFFFF, layout);
+    }
+    final List<TemplateField> fields = layout.fields();
+    return this.netflowFactory.optionsTemplateFlowSet(
+        flowSetID, templateID, fields.subList(0, scopeFieldCount), fields.subList(scopeFieldCount, fields.size())
+    );
   }
 
-  @Override
-  protected void decode(ChannelHandlerContext channelHandlerContext, DatagramPacket datagramPacket, List<Object> output) throws Exception {
-    ByteBuf input = datagramPacket.content();
-
-    if (null == input || !input.isReadable()) {
-      log.trace("Message from {} was not usable.", datagramPacket.sender());
-      return;
+  private List<TemplateField> readFields(ByteBuf input, int fieldCount) {
+    List<TemplateField> fields = new ArrayList<>(fieldCount);
+    final boolean trace = log.isTraceEnabled();
+    for (int j = 1; j <= fieldCount; j++) {
+      short fieldType = input.readShort();
+      short fieldLength = input.readShort();
+      if (trace) {
+        log.trace("field({}/{}): type = {} length = {}", j, fieldCount, fieldType, fieldLength);
+      }
+      fields.add(this.netflowFactory.templateField(fieldType, fieldLength));
     }
+    return fields;
+  }
 
-    final Header header = decodeHeader(input, datagramPacket.sender(), datagramPacket.recipient());
-
-    log.trace("Read {} for header. {} remaining", input.readerIndex(), input.readableBytes());
-
-    List<FlowSet> flowSets = new ArrayList<>();
-
+  @Override
+  void decodeFlowSets(ByteBuf input, Header header, List<FlowSet> flowSets) {
     while (input.readableBytes() > 0) {
       final short flowsetID = input.readShort();
-      log.trace("Processing flowset {}", flowsetID);
+      if (log.isTraceEnabled()) {
+        log.trace("Processing flowset {}", flowsetID);
+      }
 
       if (0 == flowsetID) {
-        TemplateFlowSet templateFlowSet = decodeTemplate(input, flowsetID);
-        flowSets.add(templateFlowSet);
+        decodeTemplates(input, flowsetID, header, flowSets);
+      } else if (1 == flowsetID) {
+        decodeOptionsTemplates(input, flowsetID, header, flowSets);
       } else {
-        DataFlowSet dataFlowSet = decodeData(input, flowsetID);
-        flowSets.add(dataFlowSet);
+        DataFlowSet dataFlowSet = decodeData(input, flowsetID, header);
+        if (null != dataFlowSet) {
+          flowSets.add(dataFlowSet);
+        }
       }
 
-      log.trace("Read {}. Available {}", input.readerIndex(), input.readableBytes());
+      if (log.isTraceEnabled()) {
+        log.trace("Read {}. Available {}", input.readerIndex(), input.readableBytes());
+      }
     }
-
-    NetFlowMessage message = this.netflowFactory.netflowMessage(
-        header.version,
-        header.count,
-        header.uptime,
-        header.timestamp,
-        header.flowSequence,
-        header.sourceID,
-        header.sender,
-        header.recipient,
-        flowSets
-    );
-    output.add(message);
-
   }
 
   static class Header {
@@ -162,7 +265,7 @@ public class NetFlowV9Decoder extends MessageToMessageDecoder<DatagramPacket> {
     }
   }
 
-  public interface NetFlowMessage {
+  public interface NetFlowMessage extends ReferenceCounted {
     short version();
 
     short count();
@@ -180,6 +283,46 @@ public class NetFlowV9Decoder extends MessageToMessageDecoder<DatagramPacket> {
     InetSocketAddress recipient();
 
     List<FlowSet> flowsets();
+
+    /**
+     * Number of sequence numbers missing before this message when a SequenceTracker is configured. Counts
+     * datagrams for NetFlow v9 and flow records for NetFlow v5 and IPFIX.
+     */
+    default long sequenceGap() {
+      return 0L;
+    }
+
+    @Override
+    NetFlowMessage retain();
+
+    @Override
+    NetFlowMessage retain(int increment);
+
+    @Override
+    NetFlowMessage touch();
+
+    @Override
+    NetFlowMessage touch(Object hint);
+  }
+
+  /**
+   * Messages decoded from the datagrams of one read when batching is enabled. Releasing the batch releases
+   * every message.
+   */
+  public interface NetFlowBatch extends ReferenceCounted {
+    List<NetFlowMessage> messages();
+
+    @Override
+    NetFlowBatch retain();
+
+    @Override
+    NetFlowBatch retain(int increment);
+
+    @Override
+    NetFlowBatch touch();
+
+    @Override
+    NetFlowBatch touch(Object hint);
   }
 
   public interface FlowSet {
@@ -189,7 +332,17 @@ public class NetFlowV9Decoder extends MessageToMessageDecoder<DatagramPacket> {
   public interface TemplateField {
     short type();
 
+    /**
+     * Field length in bytes. IPFIX variable length fields have a length of 65535.
+     */
     short length();
+
+    /**
+     * IPFIX private enterprise number of the field. 0 for NetFlow v9 and IANA assigned IPFIX fields.
+     */
+    default int enterpriseNumber() {
+      return 0;
+    }
   }
 
   public interface TemplateFlowSet extends FlowSet {
@@ -198,18 +351,145 @@ public class NetFlowV9Decoder extends MessageToMessageDecoder<DatagramPacket> {
     List<TemplateField> fields();
   }
 
+  /**
+   * Options template (flowset id 1). Records of data flowsets that reference an options template have a
+   * RecordLayout whose leading fields are the scope fields.
+   */
+  public interface OptionsTemplateFlowSet extends FlowSet {
+    short templateID();
+
+    List<TemplateField> scopeFields();
+
+    List<TemplateField> optionFields();
+  }
 
   public interface DataFlowSet extends FlowSet {
+    /**
+     * Copy of the flowset body. When the decoder retains buffers the copy is made on first access.
+     */
     byte[] data();
+
+    /**
+     * Flowset body. The buffer is owned by the enclosing NetFlowMessage and is only valid until it is released.
+     * Implementations that only hold a copy wrap {@link #data()}.
+     */
+    default ByteBuf content() {
+      return Unpooled.wrappedBuffer(data());
+    }
+
+    /**
+     * Layout of the template this flowset references, or null if the template has not been received.
+     */
+    default RecordLayout layout() {
+      return null;
+    }
+
+    /**
+     * Sampling intervals of the exporter when this flowset was decoded. Unsampled unless a SamplingTracker
+     * is configured.
+     */
+    default SamplingTracker.Rates samplingRates() {
+      return SamplingTracker.Rates.UNSAMPLED;
+    }
+
+    /**
+     * Interval of flows of this flowset that do not reference a sampler. Use
+     * {@link FlowRecordCursor#samplingInterval()} for the interval of each record.
+     */
+    default long samplingInterval() {
+      return samplingRates().interval();
+    }
+
+    default List<FlowRecord> records() {
+      return Collections.emptyList();
+    }
+
+    /**
+     * Creates a cursor over the records of this flowset. Reuse a cursor with
+     * {@link FlowRecordCursor#reset(DataFlowSet)} to avoid the allocation.
+     */
+    default FlowRecordCursor cursor() {
+      return new FlowRecordCursor(this);
+    }
+  }
+
+  public interface FlowRecord {
+    RecordLayout layout();
+
+    boolean hasField(int fieldType);
+
+    long getLong(int fieldType);
+
+    byte[] getBytes(int fieldType);
+
+    boolean hasScope(int scopeType);
+
+    long getScopeLong(int scopeType);
+
+    byte[] getScopeBytes(int scopeType);
   }
 
   public interface NetflowFactory {
     NetFlowMessage netflowMessage(short version, short count, int uptime, int timestamp, int flowSequence, int sourceID, InetSocketAddress sender, InetSocketAddress recipient, List<FlowSet> flowsets);
 
+    default NetFlowMessage netflowMessage(short version, short count, int uptime, int timestamp, int flowSequence, int sourceID, InetSocketAddress sender, InetSocketAddress recipient, List<FlowSet> flowsets, long sequenceGap) {
+      return netflowMessage(version, count, uptime, timestamp, flowSequence, sourceID, sender, recipient, flowsets);
+    }
+
+    /**
+     * Creates the list the decoder collects the flowsets of a datagram in before passing it to netflowMessage.
+     * Factories that pool messages may return a pooled list.
+     */
+    default List<FlowSet> newFlowSetList() {
+      return new ArrayList<>();
+    }
+
+    default NetFlowBatch netflowBatch(List<NetFlowMessage> messages) {
+      return new NetFlowFactoryImpl.NetFlowBatchImpl(messages);
+    }
+
     TemplateField templateField(short type, short length);
 
+    /**
+     * Creates an IPFIX field. Factories without enterprise support receive enterprise number 0 through
+     * {@link #templateField(short, short)}.
+     */
+    default TemplateField templateField(short type, short length, int enterpriseNumber) {
+      return 0 == enterpriseNumber ? templateField(type, length) : NetFlowFactoryImpl.TemplateFieldImpl.of(type, length, enterpriseNumber);
+    }
+
     TemplateFlowSet templateFlowSet(short flowsetID, short templateID, List<TemplateField> fields);
 
+    default OptionsTemplateFlowSet optionsTemplateFlowSet(short flowsetID, short templateID, List<TemplateField> scopeFields, List<TemplateField> optionFields) {
+      return new NetFlowFactoryImpl.OptionsTemplateFlowSetImpl(flowsetID, templateID, scopeFields, optionFields);
+    }
+
     DataFlowSet dataFlowSet(short flowsetID, byte[] data);
+
+    default DataFlowSet dataFlowSet(short flowsetID, byte[] data, RecordLayout layout) {
+      return dataFlowSet(flowsetID, data);
+    }
+
+    /**
+     * Creates a DataFlowSet backed by a retained slice of the datagram. Implementations that do not
+     * support retained buffers receive a copy and the slice is released.
+     */
+    default DataFlowSet dataFlowSet(short flowsetID, ByteBuf content, RecordLayout layout) {
+      try {
+        return dataFlowSet(flowsetID, ByteBufUtil.getBytes(content), layout);
+      } finally {
+        content.release();
+      }
+    }
+
+    /**
+     * Attaches the sampling intervals of the exporter to a data flowset. Decoders with a SamplingTracker call
+     * this for data flowsets of sampled exporters and emit the result. The default returns a DataFlowSet that
+     * delegates to dataFlowSet and reports samplingRates, implementations may set the rates on their own
+     * flowsets instead.
+     */
+    default DataFlowSet withSamplingRates(DataFlowSet dataFlowSet, SamplingTracker.Rates samplingRates) {
+      return new NetFlowFactoryImpl.SampledDataFlowSet(dataFlowSet, samplingRates);
+    }
   }
 }
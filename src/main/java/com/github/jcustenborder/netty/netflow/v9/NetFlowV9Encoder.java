@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.handler.codec.MessageToMessageEncoder;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+/**
+ * Encodes NetFlowMessages as NetFlow v9 datagrams, for replaying decoded traffic or generating load. Every
+ * template and options template is written in a flowset of its own, data flowsets are written as they are and
+ * flowsets are padded to a 4 byte boundary. The header count is taken from the message. Datagrams are sent to
+ * the recipient of the message unless a recipient is passed to the constructor.
+ */
+@ChannelHandler.Sharable
+public class NetFlowV9Encoder extends MessageToMessageEncoder<NetFlowV9Decoder.NetFlowMessage> {
+  static final int HEADER_LENGTH = 20;
+
+  final InetSocketAddress recipient;
+
+  public NetFlowV9Encoder(InetSocketAddress recipient) {
+    this.recipient = recipient;
+  }
+
+  public NetFlowV9Encoder() {
+    this(null);
+  }
+
+  @Override
+  protected void encode(ChannelHandlerContext ctx, NetFlowV9Decoder.NetFlowMessage message, List<Object> out) throws Exception {
+    final InetSocketAddress recipient = null != this.recipient ? this.recipient : message.recipient();
+    if (null == recipient) {
+      throw new IllegalStateException(
+          String.format("Message with sourceID %s has no recipient.", message.sourceID())
+      );
+    }
+    ByteBuf output = ctx.alloc().ioBuffer(encodedLength(message));
+    try {
+      encode(message, output);
+      out.add(new DatagramPacket(output, recipient));
+      output = null;
+    } finally {
+      if (null != output) {
+        output.release();
+      }
+    }
+  }
+
+  static int padding(int length) {
+    return (4 - (length & 3)) & 3;
+  }
+
+  /**
+   * Length of the datagram for a message.
+   */
+  public static int encodedLength(NetFlowV9Decoder.NetFlowMessage message) {
+    int result = HEADER_LENGTH;
+    for (NetFlowV9Decoder.FlowSet flowSet : message.flowsets()) {
+      result += flowSetLength(flowSet);
+    }
+    return result;
+  }
+
+  static int flowSetLength(NetFlowV9Decoder.FlowSet flowSet) {
+    if (flowSet instanceof NetFlowV9Decoder.TemplateFlowSet) {
+      return 8 + 4 * ((NetFlowV9Decoder.TemplateFlowSet) flowSet).fields().size();
+    } else if (flowSet instanceof NetFlowV9Decoder.OptionsTemplateFlowSet) {
+      final NetFlowV9Decoder.OptionsTemplateFlowSet optionsTemplateFlowSet = (NetFlowV9Decoder.OptionsTemplateFlowSet) flowSet;
+      final int length = 10 + 4 * (optionsTemplateFlowSet.scopeFields().size() + optionsTemplateFlowSet.optionFields().size());
+      return length + padding(length);
+    } else if (flowSet instanceof NetFlowV9Decoder.DataFlowSet) {
+      final int length = 4 + ((NetFlowV9Decoder.DataFlowSet) flowSet).content().readableBytes();
+      return length + padding(length);
+    }
+    throw new IllegalStateException(
+        String.format("FlowSet %s is not supported.", flowSet.getClass().getName())
+    );
+  }
+
+  /**
+   * Writes a message as a NetFlow v9 datagram to output.
+   */
+  public static void encode(NetFlowV9Decoder.NetFlowMessage message, ByteBuf output) {
+    output.writeShort(9);
+    output.writeShort(message.count());
+    output.writeInt(message.uptime());
+    output.writeInt(message.timestamp());
+    output.writeInt(message.flowSequence());
+    output.writeInt(message.sourceID());
+
+    for (NetFlowV9Decoder.FlowSet flowSet : message.flowsets()) {
+      final int length = flowSetLength(flowSet);
+      final int start = output.writerIndex();
+      if (flowSet instanceof NetFlowV9Decoder.TemplateFlowSet) {
+        final NetFlowV9Decoder.TemplateFlowSet templateFlowSet = (NetFlowV9Decoder.TemplateFlowSet) flowSet;
+        output.writeShort(0);
+        output.writeShort(length);
+        output.writeShort(templateFlowSet.templateID());
+        output.writeShort(templateFlowSet.fields().size());
+        writeFields(templateFlowSet.fields(), output);
+      } else if (flowSet instanceof NetFlowV9Decoder.OptionsTemplateFlowSet) {
+        final NetFlowV9Decoder.OptionsTemplateFlowSet optionsTemplateFlowSet = (NetFlowV9Decoder.OptionsTemplateFlowSet) flowSet;
+        output.writeShort(1);
+        output.writeShort(length);
+        output.writeShort(optionsTemplateFlowSet.templateID());
+        output.writeShort(4 * optionsTemplateFlowSet.scopeFields().size());
+        output.writeShort(4 * optionsTemplateFlowSet.optionFields().size());
+        writeFields(optionsTemplateFlowSet.scopeFields(), output);
+        writeFields(optionsTemplateFlowSet.optionFields(), output);
+      } else {
+        final ByteBuf content = ((NetFlowV9Decoder.DataFlowSet) flowSet).content();
+        output.writeShort(flowSet.flowsetID());
+        output.writeShort(length);
+        output.writeBytes(content, content.readerIndex(), content.readableBytes());
+      }
+      output.writeZero(length - (output.writerIndex() - start));
+    }
+  }
+
+  static void writeFields(List<NetFlowV9Decoder.TemplateField> fields, ByteBuf output) {
+    for (NetFlowV9Decoder.TemplateField field : fields) {
+      output.writeShort(field.type());
+      output.writeShort(field.length());
+    }
+  }
+}
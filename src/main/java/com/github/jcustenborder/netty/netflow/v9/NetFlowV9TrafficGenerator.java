@@ -0,0 +1,358 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Generates synthetic NetFlow v9 traffic for load tests. Templates are drawn at random from common IPv4 and IPv6
+ * flow fields and resent every templateInterval packets. Every packet carries one data flowset with random
+ * records for the next template in turn, sized to fit maxDatagramSize. Data flowsets are backed by buffers of the
+ * allocator and released with the message, so pair the generator with a {@link NetFlowV9Encoder}.
+ * Generators are not thread safe.
+ * <pre>
+ * NetFlowV9TrafficGenerator generator = NetFlowV9TrafficGenerator.builder()
+ *     .templates(8)
+ *     .recipient(new InetSocketAddress("127.0.0.1", 2055))
+ *     .build();
+ * channel.writeAndFlush(generator.next());
+ * </pre>
+ */
+public class NetFlowV9TrafficGenerator {
+  static final int FLUSH_INTERVAL = 256;
+  static final int[][] REQUIRED_FIELDS = {
+      {FieldType.IN_BYTES, 4},
+      {FieldType.IN_PKTS, 4},
+      {FieldType.PROTOCOL, 1},
+      {FieldType.L4_SRC_PORT, 2},
+      {FieldType.L4_DST_PORT, 2},
+  };
+  static final int[][] IPV4_FIELDS = {
+      {FieldType.IPV4_SRC_ADDR, 4},
+      {FieldType.IPV4_DST_ADDR, 4},
+  };
+  static final int[][] IPV6_FIELDS = {
+      {FieldType.IPV6_SRC_ADDR, 16},
+      {FieldType.IPV6_DST_ADDR, 16},
+  };
+  static final int[][] OPTIONAL_FIELDS = {
+      {FieldType.SRC_TOS, 1},
+      {FieldType.TCP_FLAGS, 1},
+      {FieldType.SRC_MASK, 1},
+      {FieldType.DST_MASK, 1},
+      {FieldType.INPUT_SNMP, 2},
+      {FieldType.OUTPUT_SNMP, 2},
+      {FieldType.IPV4_NEXT_HOP, 4},
+      {FieldType.SRC_AS, 2},
+      {FieldType.DST_AS, 2},
+      {FieldType.FIRST_SWITCHED, 4},
+      {FieldType.LAST_SWITCHED, 4},
+      {FieldType.OUT_BYTES, 8},
+      {FieldType.OUT_PKTS, 8},
+      {FieldType.DIRECTION, 1},
+  };
+
+  final NetFlowV9Decoder.NetflowFactory netflowFactory;
+  final ByteBufAllocator allocator;
+  final InetSocketAddress sender;
+  final InetSocketAddress recipient;
+  final int sourceID;
+  final int recordsPerPacket;
+  final int templateInterval;
+  final int maxDatagramSize;
+  final SplittableRandom random;
+  final List<NetFlowV9Decoder.TemplateFlowSet> templates;
+  final List<RecordLayout> layouts;
+  final int templatesLength;
+  final long startMillis = System.currentTimeMillis();
+  long packets;
+  int flowSequence;
+
+  NetFlowV9TrafficGenerator(Builder builder) {
+    this.netflowFactory = builder.netflowFactory;
+    this.allocator = builder.allocator;
+    this.sender = builder.sender;
+    this.recipient = builder.recipient;
+    this.sourceID = builder.sourceID;
+    this.recordsPerPacket = builder.recordsPerPacket;
+    this.templateInterval = builder.templateInterval;
+    this.maxDatagramSize = builder.maxDatagramSize;
+    this.random = new SplittableRandom(builder.seed);
+
+    List<NetFlowV9Decoder.TemplateFlowSet> templates = new ArrayList<>(builder.templates);
+    List<RecordLayout> layouts = new ArrayList<>(builder.templates);
+    int templatesLength = 0;
+    for (int i = 0; i < builder.templates; i++) {
+      final List<NetFlowV9Decoder.TemplateField> fields = randomFields(builder.ipv6Ratio);
+      final NetFlowV9Decoder.TemplateFlowSet templateFlowSet = this.netflowFactory.templateFlowSet(
+          (short) 0, (short) (256 + i), fields
+      );
+      templates.add(templateFlowSet);
+      layouts.add(RecordLayout.of(fields));
+      templatesLength += NetFlowV9Encoder.flowSetLength(templateFlowSet);
+    }
+    this.templates = Collections.unmodifiableList(templates);
+    this.layouts = Collections.unmodifiableList(layouts);
+    this.templatesLength = templatesLength;
+
+    if (recordSpace(NetFlowV9Encoder.HEADER_LENGTH + this.templatesLength) < maxRecordLength()) {
+      throw new IllegalStateException(
+          String.format("%s templates and a record do not fit in a datagram of %s bytes.", builder.templates, this.maxDatagramSize)
+      );
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  List<NetFlowV9Decoder.TemplateField> randomFields(double ipv6Ratio) {
+    List<NetFlowV9Decoder.TemplateField> fields = new ArrayList<>();
+    addFields(fields, this.random.nextDouble() < ipv6Ratio ? IPV6_FIELDS : IPV4_FIELDS);
+    addFields(fields, REQUIRED_FIELDS);
+    for (int[] field : OPTIONAL_FIELDS) {
+      if (this.random.nextBoolean()) {
+        fields.add(this.netflowFactory.templateField((short) field[0], (short) field[1]));
+      }
+    }
+    return fields;
+  }
+
+  void addFields(List<NetFlowV9Decoder.TemplateField> fields, int[][] types) {
+    for (int[] field : types) {
+      fields.add(this.netflowFactory.templateField((short) field[0], (short) field[1]));
+    }
+  }
+
+  /**
+   * Bytes left for the records of a data flowset once used bytes of the datagram are taken. The flowset is
+   * padded to a 4 byte boundary, so its length is rounded down to one.
+   */
+  int recordSpace(int used) {
+    return ((this.maxDatagramSize - used) & ~3) - 4;
+  }
+
+  int maxRecordLength() {
+    int result = 0;
+    for (RecordLayout layout : this.layouts) {
+      result = Math.max(result, layout.recordLength());
+    }
+    return result;
+  }
+
+  /**
+   * Templates in the order their template ids were assigned, starting at 256.
+   */
+  public List<NetFlowV9Decoder.TemplateFlowSet> templates() {
+    return this.templates;
+  }
+
+  public List<RecordLayout> layouts() {
+    return this.layouts;
+  }
+
+  public long packets() {
+    return this.packets;
+  }
+
+  /**
+   * Creates the next message. The caller owns the message and must release it, which the encoder does.
+   */
+  public NetFlowV9Decoder.NetFlowMessage next() {
+    final boolean sendTemplates = 0 == this.packets % this.templateInterval;
+    final int templateIndex = (int) (this.packets % this.layouts.size());
+    final RecordLayout layout = this.layouts.get(templateIndex);
+
+    List<NetFlowV9Decoder.FlowSet> flowSets = new ArrayList<>(sendTemplates ? this.templates.size() + 1 : 1);
+    int used = NetFlowV9Encoder.HEADER_LENGTH;
+    int count = 0;
+    if (sendTemplates) {
+      flowSets.addAll(this.templates);
+      used += this.templatesLength;
+      count += this.templates.size();
+    }
+    final int available = recordSpace(used);
+    final int records = Math.min(this.recordsPerPacket, available / layout.recordLength());
+    final ByteBuf content = this.allocator.buffer(records * layout.recordLength());
+    for (int i = 0; i < records; i++) {
+      writeRecord(layout, content);
+    }
+    flowSets.add(this.netflowFactory.dataFlowSet(this.templates.get(templateIndex).templateID(), content, layout));
+    count += records;
+
+    this.packets++;
+    return this.netflowFactory.netflowMessage(
+        (short) 9,
+        (short) count,
+        (int) (System.currentTimeMillis() - this.startMillis),
+        (int) (System.currentTimeMillis() / 1000L),
+        this.flowSequence++,
+        this.sourceID,
+        this.sender,
+        this.recipient,
+        flowSets
+    );
+  }
+
+  void writeRecord(RecordLayout layout, ByteBuf content) {
+    // Every field is random, so the record is filled 8 bytes at a time regardless of field boundaries.
+    int length = layout.recordLength();
+    while (length >= 8) {
+      content.writeLong(this.random.nextLong());
+      length -= 8;
+    }
+    if (length > 0) {
+      final long value = this.random.nextLong();
+      for (int j = 0; j < length; j++) {
+        content.writeByte((int) (value >>> (8 * j)));
+      }
+    }
+  }
+
+  /**
+   * Writes packets to a channel that has a NetFlowV9Encoder in its pipeline, flushing every few hundred
+   * packets and waiting for each flush so the outbound buffer stays bounded. Must not be called from the event
+   * loop of the channel.
+   */
+  public void send(Channel channel, long packets) throws InterruptedException {
+    ChannelFuture future = null;
+    for (long i = 1; i <= packets; i++) {
+      future = channel.write(next());
+      if (0 == i % FLUSH_INTERVAL) {
+        channel.flush();
+        future.sync();
+      }
+    }
+    channel.flush();
+    if (null != future) {
+      future.sync();
+    }
+  }
+
+  public static class Builder {
+    NetFlowV9Decoder.NetflowFactory netflowFactory = new NetFlowFactoryImpl();
+    ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+    InetSocketAddress sender;
+    InetSocketAddress recipient;
+    int sourceID;
+    int templates = 4;
+    double ipv6Ratio = 0.25;
+    int recordsPerPacket = 30;
+    int templateInterval = 20;
+    int maxDatagramSize = 1472;
+    long seed = 0x5EED;
+
+    Builder() {
+
+    }
+
+    public Builder netflowFactory(NetFlowV9Decoder.NetflowFactory netflowFactory) {
+      this.netflowFactory = netflowFactory;
+      return this;
+    }
+
+    public Builder allocator(ByteBufAllocator allocator) {
+      this.allocator = allocator;
+      return this;
+    }
+
+    public Builder sender(InetSocketAddress sender) {
+      this.sender = sender;
+      return this;
+    }
+
+    public Builder recipient(InetSocketAddress recipient) {
+      this.recipient = recipient;
+      return this;
+    }
+
+    public Builder sourceID(int sourceID) {
+      this.sourceID = sourceID;
+      return this;
+    }
+
+    /**
+     * Number of distinct templates. Packets cycle through them.
+     */
+    public Builder templates(int templates) {
+      if (templates < 1 || templates > 65535 - 256) {
+        throw new IllegalArgumentException("templates must be between 1 and 65279.");
+      }
+      this.templates = templates;
+      return this;
+    }
+
+    /**
+     * Share of templates with IPv6 instead of IPv4 addresses.
+     */
+    public Builder ipv6Ratio(double ipv6Ratio) {
+      if (ipv6Ratio < 0 || ipv6Ratio > 1) {
+        throw new IllegalArgumentException("ipv6Ratio must be between 0 and 1.");
+      }
+      this.ipv6Ratio = ipv6Ratio;
+      return this;
+    }
+
+    /**
+     * Records per packet, reduced as needed to fit maxDatagramSize.
+     */
+    public Builder recordsPerPacket(int recordsPerPacket) {
+      if (recordsPerPacket < 1) {
+        throw new IllegalArgumentException("recordsPerPacket must be greater than 0.");
+      }
+      this.recordsPerPacket = recordsPerPacket;
+      return this;
+    }
+
+    /**
+     * Packets between resends of every template. Templates are sent with the first packet.
+     */
+    public Builder templateInterval(int templateInterval) {
+      if (templateInterval < 1) {
+        throw new IllegalArgumentException("templateInterval must be greater than 0.");
+      }
+      this.templateInterval = templateInterval;
+      return this;
+    }
+
+    public Builder maxDatagramSize(int maxDatagramSize) {
+      if (maxDatagramSize < 1 || maxDatagramSize > 65507) {
+        throw new IllegalArgumentException("maxDatagramSize must be between 1 and 65507.");
+      }
+      this.maxDatagramSize = maxDatagramSize;
+      return this;
+    }
+
+    public Builder seed(long seed) {
+      this.seed = seed;
+      return this;
+    }
+
+    public NetFlowV9TrafficGenerator build() {
+      return new NetFlowV9TrafficGenerator(this);
+    }
+  }
+}
@@ -0,0 +1,316 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Decodes NetFlow captured in pcap or pcapng files without a network. One thread maps and parses the captures
+ * with a {@link PcapReader} and hands the datagrams to worker threads, each with its own NetFlowDecoder and
+ * handler in an EmbeddedChannel. Datagrams are partitioned by exporter address, so every exporter is decoded
+ * by a single worker in capture order and its templates are always applied before the data that follows them.
+ * <p>
+ * Datagrams that fail to decode are counted. If a worker fails, for example because the handler factory
+ * throws, the reader stops and {@link #run(List)} throws an IOException with the failure as its cause.
+ * <pre>
+ * PcapIngest ingest = PcapIngest.builder()
+ *     .workers(8)
+ *     .handlerFactory(MyNetFlowHandler::new)
+ *     .build();
+ * ingest.run(Paths.get("capture.pcapng"));
+ * </pre>
+ */
+public class PcapIngest {
+  private static final Logger log = LoggerFactory.getLogger(PcapIngest.class);
+  static final DatagramPacket END = new DatagramPacket(Unpooled.EMPTY_BUFFER, new InetSocketAddress(0));
+  static final long OFFER_TIMEOUT_MILLIS = 100;
+
+  final int workers;
+  final int queueCapacity;
+  final long windowSize;
+  final NetFlowDecoderConfig config;
+  final Supplier<? extends ChannelHandler> handlerFactory;
+  final LongAdder packets = new LongAdder();
+  final LongAdder datagrams = new LongAdder();
+  final LongAdder skipped = new LongAdder();
+  final LongAdder errors = new LongAdder();
+  final AtomicBoolean errorLogged = new AtomicBoolean();
+  final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+  PcapIngest(Builder builder) {
+    this.workers = builder.workers;
+    this.queueCapacity = builder.queueCapacity;
+    this.windowSize = builder.windowSize;
+    this.config = null != builder.config ? builder.config : NetFlowDecoderConfig.builder().build();
+    this.handlerFactory = builder.handlerFactory;
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Decodes the captures in order and returns once every datagram has been handled.
+   *
+   * @throws IOException if a capture cannot be read or a worker failed.
+   */
+  public void run(Path... paths) throws IOException, InterruptedException {
+    run(Arrays.asList(paths));
+  }
+
+  public void run(List<Path> paths) throws IOException, InterruptedException {
+    List<Worker> workers = new ArrayList<>(this.workers);
+    for (int i = 0; i < this.workers; i++) {
+      Worker worker = new Worker(i);
+      workers.add(worker);
+      worker.start();
+    }
+    try {
+      for (Path path : paths) {
+        try (PcapReader reader = PcapReader.open(path, this.windowSize)) {
+          reader.read(datagramPacket -> dispatch(workers, datagramPacket));
+          this.packets.add(reader.packets());
+          this.skipped.add(reader.skipped());
+          this.datagrams.add(reader.datagrams());
+        }
+      }
+    } catch (WorkerFailedException ex) {
+      // Reported below once the other workers have stopped.
+    } finally {
+      for (Worker worker : workers) {
+        worker.send(END);
+      }
+      for (Worker worker : workers) {
+        worker.join();
+        worker.releaseQueued();
+      }
+    }
+    final Throwable failure = this.failure.get();
+    if (null != failure) {
+      throw new IOException("Worker failed while decoding captures.", failure);
+    }
+    log.info("Decoded {} datagram(s) from {} packet(s) in {} capture(s) with {} error(s).", datagrams(), packets(), paths.size(), errors());
+  }
+
+  void dispatch(List<Worker> workers, DatagramPacket datagramPacket) {
+    final int worker = Math.floorMod(datagramPacket.sender().getAddress().hashCode(), workers.size());
+    try {
+      if (!workers.get(worker).send(datagramPacket)) {
+        datagramPacket.release();
+        throw new WorkerFailedException();
+      }
+    } catch (InterruptedException ex) {
+      datagramPacket.release();
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while reading capture.", ex);
+    }
+  }
+
+  public long packets() {
+    return this.packets.sum();
+  }
+
+  public long datagrams() {
+    return this.datagrams.sum();
+  }
+
+  public long skipped() {
+    return this.skipped.sum();
+  }
+
+  /**
+   * Datagrams that failed to decode.
+   */
+  public long errors() {
+    return this.errors.sum();
+  }
+
+  void decodeFailed(DatagramPacket datagramPacket, Exception ex) {
+    this.errors.increment();
+    if (this.errorLogged.compareAndSet(false, true)) {
+      log.warn("Exception thrown while decoding datagram from {}. Later errors are logged at DEBUG.", datagramPacket.sender(), ex);
+    } else if (log.isDebugEnabled()) {
+      log.debug("Exception thrown while decoding datagram from {}.", datagramPacket.sender(), ex);
+    }
+  }
+
+  /**
+   * Thrown out of the reader callback to stop reading once a worker failed.
+   */
+  static class WorkerFailedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    WorkerFailedException() {
+      super(null, null, false, false);
+    }
+  }
+
+  class Worker extends Thread {
+    final BlockingQueue<DatagramPacket> queue = new ArrayBlockingQueue<>(PcapIngest.this.queueCapacity);
+
+    Worker(int index) {
+      super("netflow-pcap-" + index);
+      setDaemon(true);
+    }
+
+    /**
+     * Queues a datagram. Waits while the queue is full, unless a worker failed or this worker has stopped.
+     *
+     * @return false if the datagram was not queued.
+     */
+    boolean send(DatagramPacket datagramPacket) throws InterruptedException {
+      while (true) {
+        if (null != PcapIngest.this.failure.get() && END != datagramPacket) {
+          return false;
+        }
+        if (this.queue.offer(datagramPacket, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+          return true;
+        }
+        if (!isAlive()) {
+          return false;
+        }
+      }
+    }
+
+    void releaseQueued() {
+      DatagramPacket datagramPacket;
+      while (null != (datagramPacket = this.queue.poll())) {
+        if (END != datagramPacket) {
+          datagramPacket.release();
+        }
+      }
+    }
+
+    @Override
+    public void run() {
+      EmbeddedChannel channel = null;
+      try {
+        channel = new EmbeddedChannel(
+            new NetFlowDecoder(PcapIngest.this.config),
+            PcapIngest.this.handlerFactory.get()
+        );
+        DatagramPacket datagramPacket;
+        while (END != (datagramPacket = this.queue.take())) {
+          try {
+            channel.writeInbound(datagramPacket);
+          } catch (Exception ex) {
+            decodeFailed(datagramPacket, ex);
+          }
+          // Messages the handler passed on would otherwise pile up in the channel.
+          Object message;
+          while (null != (message = channel.readInbound())) {
+            ReferenceCountUtil.release(message);
+          }
+        }
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      } catch (RuntimeException | Error ex) {
+        PcapIngest.this.failure.compareAndSet(null, ex);
+        throw ex;
+      } finally {
+        if (null != channel) {
+          channel.finishAndReleaseAll();
+        }
+        releaseQueued();
+      }
+    }
+  }
+
+  public static class Builder {
+    int workers = Runtime.getRuntime().availableProcessors();
+    int queueCapacity = 4096;
+    long windowSize = PcapReader.DEFAULT_WINDOW_SIZE;
+    NetFlowDecoderConfig config;
+    Supplier<? extends ChannelHandler> handlerFactory;
+
+    Builder() {
+
+    }
+
+    /**
+     * Number of decoding threads. Defaults to the number of processors.
+     */
+    public Builder workers(int workers) {
+      if (workers < 1) {
+        throw new IllegalArgumentException("workers must be greater than 0.");
+      }
+      this.workers = workers;
+      return this;
+    }
+
+    /**
+     * Datagrams queued per worker before the reader waits.
+     */
+    public Builder queueCapacity(int queueCapacity) {
+      if (queueCapacity < 1) {
+        throw new IllegalArgumentException("queueCapacity must be greater than 0.");
+      }
+      this.queueCapacity = queueCapacity;
+      return this;
+    }
+
+    /**
+     * Bytes of a capture mapped at a time.
+     */
+    public Builder windowSize(long windowSize) {
+      this.windowSize = windowSize;
+      return this;
+    }
+
+    /**
+     * Decoder settings shared by every worker. The TemplateRegistry is shared between workers.
+     */
+    public Builder config(NetFlowDecoderConfig config) {
+      this.config = config;
+      return this;
+    }
+
+    /**
+     * Creates the handler installed after the decoder of every worker. Called once per worker.
+     */
+    public Builder handlerFactory(Supplier<? extends ChannelHandler> handlerFactory) {
+      this.handlerFactory = handlerFactory;
+      return this;
+    }
+
+    public PcapIngest build() {
+      if (null == this.handlerFactory) {
+        throw new IllegalStateException("handlerFactory must be set.");
+      }
+      return new PcapIngest(this);
+    }
+  }
+}
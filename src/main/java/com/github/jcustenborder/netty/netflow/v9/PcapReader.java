@@ -0,0 +1,391 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.socket.DatagramPacket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Extracts UDP datagrams from pcap and pcapng captures. The file is memory mapped in windows, so captures larger
+ * than 2 GB are read without copying them to the heap, and the payload of each datagram is a slice of the
+ * mapping. Ethernet with VLAN tags, Linux cooked captures, BSD loopback and raw IP link types are supported,
+ * over IPv4 and IPv6. Fragmented and truncated datagrams are skipped and counted. Readers are not thread safe.
+ * <pre>
+ * try (PcapReader reader = PcapReader.open(Paths.get("netflow.pcap"))) {
+ *   reader.read(datagramPacket -&gt; ...);
+ * }
+ * </pre>
+ */
+public class PcapReader implements Closeable {
+  private static final Logger log = LoggerFactory.getLogger(PcapReader.class);
+  public static final long DEFAULT_WINDOW_SIZE = 256L * 1024 * 1024;
+
+  static final int PCAP_MAGIC = 0xA1B2C3D4;
+  static final int PCAP_MAGIC_NANOS = 0xA1B23C4D;
+  static final int PCAP_HEADER_LENGTH = 24;
+  static final int PCAP_RECORD_HEADER_LENGTH = 16;
+  static final int PCAPNG_SECTION_HEADER = 0x0A0D0D0A;
+  static final int PCAPNG_BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+  static final int PCAPNG_INTERFACE_DESCRIPTION = 1;
+  static final int PCAPNG_SIMPLE_PACKET = 3;
+  static final int PCAPNG_ENHANCED_PACKET = 6;
+
+  static final int LINKTYPE_NULL = 0;
+  static final int LINKTYPE_ETHERNET = 1;
+  static final int LINKTYPE_RAW = 101;
+  static final int LINKTYPE_LOOP = 108;
+  static final int LINKTYPE_LINUX_SLL = 113;
+  static final int LINKTYPE_IPV4 = 228;
+  static final int LINKTYPE_IPV6 = 229;
+  static final int LINKTYPE_LINUX_SLL2 = 276;
+
+  final Path path;
+  final FileChannel channel;
+  final long size;
+  final long windowSize;
+  MappedByteBuffer window;
+  ByteBuffer fileView;
+  ByteBuffer network;
+  long windowStart;
+  long windowEnd;
+  ByteOrder order = ByteOrder.LITTLE_ENDIAN;
+  int[] linkTypes = new int[0];
+
+  long packets;
+  long datagrams;
+  long skipped;
+
+  PcapReader(Path path, FileChannel channel, long windowSize) throws IOException {
+    this.path = path;
+    this.channel = channel;
+    this.size = channel.size();
+    this.windowSize = windowSize;
+  }
+
+  public static PcapReader open(Path path) throws IOException {
+    return open(path, DEFAULT_WINDOW_SIZE);
+  }
+
+  /**
+   * Opens a capture mapping at most windowSize bytes of it at a time.
+   */
+  public static PcapReader open(Path path, long windowSize) throws IOException {
+    if (windowSize < 65536 || windowSize > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("windowSize must be between 65536 and 2^31 - 1.");
+    }
+    return new PcapReader(path, FileChannel.open(path, StandardOpenOption.READ), windowSize);
+  }
+
+  /**
+   * Frames read from the capture.
+   */
+  public long packets() {
+    return this.packets;
+  }
+
+  /**
+   * UDP datagrams passed to the consumer.
+   */
+  public long datagrams() {
+    return this.datagrams;
+  }
+
+  /**
+   * Frames that were not UDP, were fragmented or truncated, or used an unsupported link type.
+   */
+  public long skipped() {
+    return this.skipped;
+  }
+
+  /**
+   * Passes every UDP datagram of the capture to consumer in capture order. Payloads are slices of the mapped
+   * file and stay valid after the reader is closed.
+   *
+   * @return number of datagrams read.
+   */
+  public long read(Consumer<DatagramPacket> consumer) throws IOException {
+    if (!map(0, 4)) {
+      throw new IOException(String.format("%s is too short to be a capture.", this.path));
+    }
+    final int magic = this.window.order(ByteOrder.BIG_ENDIAN).getInt(0);
+    if (PCAPNG_SECTION_HEADER == magic) {
+      readPcapng(consumer);
+    } else if (PCAP_MAGIC == magic || PCAP_MAGIC_NANOS == magic) {
+      readPcap(ByteOrder.BIG_ENDIAN, consumer);
+    } else if (PCAP_MAGIC == Integer.reverseBytes(magic) || PCAP_MAGIC_NANOS == Integer.reverseBytes(magic)) {
+      readPcap(ByteOrder.LITTLE_ENDIAN, consumer);
+    } else {
+      throw new IOException(
+          String.format("%s is not a pcap or pcapng capture (magic = %08x).", this.path, magic)
+      );
+    }
+    if (log.isDebugEnabled()) {
+      log.debug("Read {} datagram(s) from {} packet(s) of {}, skipped {}.", this.datagrams, this.packets, this.path, this.skipped);
+    }
+    return this.datagrams;
+  }
+
+  /**
+   * Makes length bytes at position addressable, remapping the window if needed.
+   *
+   * @return false if the file ends before position + length.
+   */
+  boolean map(long position, int length) throws IOException {
+    if (position + length > this.size) {
+      return false;
+    }
+    if (null == this.window || position < this.windowStart || position + length > this.windowEnd) {
+      final long mapLength = Math.min(Math.max(this.windowSize, length), this.size - position);
+      this.window = this.channel.map(FileChannel.MapMode.READ_ONLY, position, mapLength);
+      this.windowStart = position;
+      this.windowEnd = position + mapLength;
+      this.fileView = this.window.duplicate().order(this.order);
+      this.network = this.window.duplicate().order(ByteOrder.BIG_ENDIAN);
+    }
+    return true;
+  }
+
+  void order(ByteOrder order) {
+    this.order = order;
+    this.fileView = this.window.duplicate().order(order);
+  }
+
+  int index(long position) {
+    return (int) (position - this.windowStart);
+  }
+
+  void readPcap(ByteOrder order, Consumer<DatagramPacket> consumer) throws IOException {
+    if (!map(0, PCAP_HEADER_LENGTH)) {
+      throw new IOException(String.format("%s has an incomplete pcap header.", this.path));
+    }
+    order(order);
+    final int linkType = this.fileView.getInt(20) & 0x0FFFFFFF;
+    long position = PCAP_HEADER_LENGTH;
+    while (map(position, PCAP_RECORD_HEADER_LENGTH)) {
+      final int capturedLength = this.fileView.getInt(index(position) + 8);
+      if (capturedLength < 0 || !map(position + PCAP_RECORD_HEADER_LENGTH, capturedLength)) {
+        log.warn("{} ends with an incomplete packet at offset {}.", this.path, position);
+        break;
+      }
+      // map() may have moved the window to the packet data.
+      frame(linkType, index(position + PCAP_RECORD_HEADER_LENGTH), capturedLength, consumer);
+      position += PCAP_RECORD_HEADER_LENGTH + capturedLength;
+    }
+  }
+
+  void readPcapng(Consumer<DatagramPacket> consumer) throws IOException {
+    long position = 0;
+    while (map(position, 12)) {
+      final int blockType = this.window.order(ByteOrder.BIG_ENDIAN).getInt(index(position));
+      if (PCAPNG_SECTION_HEADER == blockType) {
+        final int byteOrderMagic = this.window.getInt(index(position) + 8);
+        order(PCAPNG_BYTE_ORDER_MAGIC == byteOrderMagic ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+        this.linkTypes = new int[0];
+      }
+      final int blockLength = this.fileView.getInt(index(position) + 4);
+      if (blockLength < 12 || 0 != (blockLength & 3) || !map(position, blockLength)) {
+        log.warn("{} ends with an incomplete block at offset {}.", this.path, position);
+        break;
+      }
+      final int body = index(position) + 8;
+      switch (blockType) {
+        case PCAPNG_INTERFACE_DESCRIPTION:
+          this.linkTypes = Arrays.copyOf(this.linkTypes, this.linkTypes.length + 1);
+          this.linkTypes[this.linkTypes.length - 1] = this.fileView.getShort(body) & 0xFFFF;
+          break;
+        case PCAPNG_ENHANCED_PACKET: {
+          final int interfaceID = this.fileView.getInt(body);
+          final int capturedLength = Math.min(this.fileView.getInt(body + 12), blockLength - 32);
+          frame(linkType(interfaceID), body + 20, capturedLength, consumer);
+          break;
+        }
+        case PCAPNG_SIMPLE_PACKET: {
+          final int capturedLength = Math.min(this.fileView.getInt(body), blockLength - 16);
+          frame(linkType(0), body + 4, capturedLength, consumer);
+          break;
+        }
+        default:
+          break;
+      }
+      position += blockLength;
+    }
+  }
+
+  int linkType(int interfaceID) {
+    return interfaceID >= 0 && interfaceID < this.linkTypes.length ? this.linkTypes[interfaceID] : -1;
+  }
+
+  /**
+   * Finds the IP packet in a link layer frame.
+   */
+  void frame(int linkType, int index, int length, Consumer<DatagramPacket> consumer) {
+    this.packets++;
+    final ByteBuffer b = this.network;
+    int offset;
+    switch (linkType) {
+      case LINKTYPE_ETHERNET:
+        offset = 12;
+        while (offset + 2 <= length && isVlan(b.getShort(index + offset) & 0xFFFF)) {
+          offset += 4;
+        }
+        if (offset + 2 > length || !isIp(b.getShort(index + offset) & 0xFFFF)) {
+          this.skipped++;
+          return;
+        }
+        offset += 2;
+        break;
+      case LINKTYPE_NULL:
+      case LINKTYPE_LOOP:
+        offset = 4;
+        break;
+      case LINKTYPE_LINUX_SLL:
+        offset = 16;
+        break;
+      case LINKTYPE_LINUX_SLL2:
+        offset = 20;
+        break;
+      case LINKTYPE_RAW:
+      case LINKTYPE_IPV4:
+      case LINKTYPE_IPV6:
+        offset = 0;
+        break;
+      default:
+        this.skipped++;
+        return;
+    }
+    if (offset >= length) {
+      this.skipped++;
+      return;
+    }
+    final int version = (b.get(index + offset) & 0xFF) >>> 4;
+    if (4 == version) {
+      ipv4(b, index + offset, length - offset, consumer);
+    } else if (6 == version) {
+      ipv6(b, index + offset, length - offset, consumer);
+    } else {
+      this.skipped++;
+    }
+  }
+
+  static boolean isIp(int etherType) {
+    return 0x0800 == etherType || 0x86DD == etherType;
+  }
+
+  static boolean isVlan(int etherType) {
+    return 0x8100 == etherType || 0x88A8 == etherType || 0x9100 == etherType;
+  }
+
+  void ipv4(ByteBuffer b, int index, int length, Consumer<DatagramPacket> consumer) {
+    if (length < 20) {
+      this.skipped++;
+      return;
+    }
+    final int headerLength = (b.get(index) & 0x0F) * 4;
+    final int totalLength = b.getShort(index + 2) & 0xFFFF;
+    final int fragment = b.getShort(index + 6) & 0x3FFF;
+    final int protocol = b.get(index + 9) & 0xFF;
+    if (17 != protocol || 0 != fragment || headerLength < 20 || headerLength > length) {
+      this.skipped++;
+      return;
+    }
+    final byte[] source = new byte[4];
+    final byte[] destination = new byte[4];
+    get(b, index + 12, source);
+    get(b, index + 16, destination);
+    // Captures of offloaded segments can have a total length of 0.
+    final int end = 0 == totalLength ? length : Math.min(length, totalLength);
+    udp(b, index + headerLength, end - headerLength, source, destination, consumer);
+  }
+
+  void ipv6(ByteBuffer b, int index, int length, Consumer<DatagramPacket> consumer) {
+    if (length < 40) {
+      this.skipped++;
+      return;
+    }
+    int nextHeader = b.get(index + 6) & 0xFF;
+    final int end = Math.min(length, 40 + (b.getShort(index + 4) & 0xFFFF));
+    int offset = 40;
+    // Hop-by-hop, routing and destination options headers. Fragments are not reassembled.
+    while ((0 == nextHeader || 43 == nextHeader || 60 == nextHeader) && offset + 8 <= end) {
+      nextHeader = b.get(index + offset) & 0xFF;
+      offset += ((b.get(index + offset + 1) & 0xFF) + 1) * 8;
+    }
+    if (17 != nextHeader || offset > end) {
+      this.skipped++;
+      return;
+    }
+    final byte[] source = new byte[16];
+    final byte[] destination = new byte[16];
+    get(b, index + 8, source);
+    get(b, index + 24, destination);
+    udp(b, index + offset, end - offset, source, destination, consumer);
+  }
+
+  void udp(ByteBuffer b, int index, int length, byte[] source, byte[] destination, Consumer<DatagramPacket> consumer) {
+    if (length < 8) {
+      this.skipped++;
+      return;
+    }
+    final int sourcePort = b.getShort(index) & 0xFFFF;
+    final int destinationPort = b.getShort(index + 2) & 0xFFFF;
+    final int udpLength = b.getShort(index + 4) & 0xFFFF;
+    if (udpLength < 8 || udpLength > length) {
+      this.skipped++;
+      return;
+    }
+    final ByteBuffer payload = b.duplicate();
+    payload.limit(index + udpLength).position(index + 8);
+    final DatagramPacket datagramPacket;
+    try {
+      datagramPacket = new DatagramPacket(
+          Unpooled.wrappedBuffer(payload.slice()),
+          new InetSocketAddress(InetAddress.getByAddress(destination), destinationPort),
+          new InetSocketAddress(InetAddress.getByAddress(source), sourcePort)
+      );
+    } catch (UnknownHostException ex) {
+      throw new IllegalStateException("Address has an invalid length.", ex);
+    }
+    this.datagrams++;
+    consumer.accept(datagramPacket);
+  }
+
+  static void get(ByteBuffer b, int index, byte[] dst) {
+    for (int i = 0; i < dst.length; i++) {
+      dst[i] = b.get(index + i);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.channel.close();
+  }
+}
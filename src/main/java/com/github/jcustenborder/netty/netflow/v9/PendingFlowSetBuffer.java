@@ -0,0 +1,198 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded buffer of data flowsets that arrived before their template, keyed by exporter, source id and
+ * template id. Flowsets are copied when buffered so they do not pin the received datagram. The oldest
+ * flowsets are evicted when the count or byte limit is exceeded or when they are older than the maximum age.
+ * A buffered flowset is held out of the message it arrived in and emitted once, in a message of its own,
+ * when its template is decoded. A buffer may be shared by the decoders of several channels.
+ */
+public class PendingFlowSetBuffer {
+  final int maxFlowSets;
+  final long maxBytes;
+  final long maxAgeNanos;
+  final Map<TemplateCache.TemplateKey, ArrayDeque<Entry>> pending = new HashMap<>();
+  final ArrayDeque<Entry> arrivals = new ArrayDeque<>();
+  final LongAdder buffered = new LongAdder();
+  final LongAdder replayed = new LongAdder();
+  final LongAdder evicted = new LongAdder();
+  final LongAdder expired = new LongAdder();
+  volatile int size;
+  long bytes;
+
+  public PendingFlowSetBuffer(int maxFlowSets, long maxBytes, long maxAge, TimeUnit unit) {
+    if (maxFlowSets <= 0) {
+      throw new IllegalArgumentException("maxFlowSets must be greater than 0.");
+    }
+    if (maxBytes <= 0) {
+      throw new IllegalArgumentException("maxBytes must be greater than 0.");
+    }
+    if (maxAge <= 0) {
+      throw new IllegalArgumentException("maxAge must be greater than 0.");
+    }
+    this.maxFlowSets = maxFlowSets;
+    this.maxBytes = maxBytes;
+    this.maxAgeNanos = unit.toNanos(maxAge);
+  }
+
+  synchronized void add(NetFlowV9Decoder.Header header, short flowsetID, ByteBuf content) {
+    final long now = System.nanoTime();
+    expire(now);
+
+    final TemplateCache.TemplateKey key = new TemplateCache.TemplateKey(header.sender, header.sourceID, flowsetID & 0xFFFF);
+    final Entry entry = new Entry(key, header, flowsetID, ByteBufUtil.getBytes(content), now);
+    ArrayDeque<Entry> entries = this.pending.get(key);
+    if (null == entries) {
+      entries = new ArrayDeque<>();
+      this.pending.put(key, entries);
+    }
+    entries.add(entry);
+    this.arrivals.add(entry);
+    this.size++;
+    this.bytes += entry.data.length;
+    this.buffered.increment();
+
+    while (this.size > this.maxFlowSets || this.bytes > this.maxBytes) {
+      removeOldest();
+      this.evicted.increment();
+    }
+  }
+
+  /**
+   * Removes and returns the flowsets waiting for a template in arrival order.
+   */
+  List<Entry> drain(InetSocketAddress sender, int sourceID, int templateID) {
+    if (0 == this.size) {
+      return Collections.emptyList();
+    }
+    synchronized (this) {
+      expire(System.nanoTime());
+      final ArrayDeque<Entry> entries = this.pending.remove(new TemplateCache.TemplateKey(sender, sourceID, templateID));
+      if (null == entries) {
+        return Collections.emptyList();
+      }
+      List<Entry> result = new ArrayList<>(entries);
+      for (Entry entry : result) {
+        entry.removed = true;
+        this.size--;
+        this.bytes -= entry.data.length;
+      }
+      this.replayed.add(result.size());
+      return result;
+    }
+  }
+
+  private void expire(long now) {
+    Entry oldest;
+    while (null != (oldest = this.arrivals.peek())) {
+      if (oldest.removed) {
+        this.arrivals.poll();
+      } else if (now - oldest.arrivalNanos > this.maxAgeNanos) {
+        removeOldest();
+        this.expired.increment();
+      } else {
+        break;
+      }
+    }
+  }
+
+  private void removeOldest() {
+    Entry oldest;
+    while (null != (oldest = this.arrivals.poll()) && oldest.removed) {
+      // Skip entries that were already replayed.
+    }
+    if (null == oldest) {
+      return;
+    }
+    // The oldest entry overall is also the oldest entry of its key.
+    final ArrayDeque<Entry> entries = this.pending.get(oldest.key);
+    entries.poll();
+    if (entries.isEmpty()) {
+      this.pending.remove(oldest.key);
+    }
+    oldest.removed = true;
+    this.size--;
+    this.bytes -= oldest.data.length;
+  }
+
+  /**
+   * Number of flowsets currently buffered.
+   */
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   * Number of bytes currently buffered.
+   */
+  public synchronized long bytes() {
+    return this.bytes;
+  }
+
+  public long bufferedCount() {
+    return this.buffered.sum();
+  }
+
+  public long replayedCount() {
+    return this.replayed.sum();
+  }
+
+  /**
+   * Number of flowsets dropped because the count or byte limit was exceeded.
+   */
+  public long evictedCount() {
+    return this.evicted.sum();
+  }
+
+  /**
+   * Number of flowsets dropped because their template did not arrive within the maximum age.
+   */
+  public long expiredCount() {
+    return this.expired.sum();
+  }
+
+  static class Entry {
+    final TemplateCache.TemplateKey key;
+    final NetFlowV9Decoder.Header header;
+    final short flowsetID;
+    final byte[] data;
+    final long arrivalNanos;
+    boolean removed;
+
+    Entry(TemplateCache.TemplateKey key, NetFlowV9Decoder.Header header, short flowsetID, byte[] data, long arrivalNanos) {
+      this.key = key;
+      this.header = header;
+      this.flowsetID = flowsetID;
+      this.data = data;
+      this.arrivalNanos = arrivalNanos;
+    }
+  }
+}
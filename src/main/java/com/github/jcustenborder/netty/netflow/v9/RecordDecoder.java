@@ -0,0 +1,181 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes every numeric field of a record into a long[] indexed like the fields of the RecordLayout.
+ * Decoders are compiled once per layout, see {@link RecordLayout#decoder()}. For fixed length layouts adjacent
+ * fields are fused so they are read with a single 1, 2, 4 or 8 byte load and split with shifts. Layouts with
+ * variable length fields use an interpreted decoder. Fields longer than 8 bytes, such as IPv6 addresses,
+ * are left untouched and must be read with the cursor.
+ */
+public abstract class RecordDecoder {
+
+  /**
+   * Decodes the current record of the cursor into values.
+   */
+  public abstract void decode(FlowRecordCursor cursor, long[] values);
+
+  static RecordDecoder compile(RecordLayout layout) {
+    if (layout.isVariableLength()) {
+      return new InterpretedRecordDecoder(layout);
+    }
+    return new FusedRecordDecoder(layout);
+  }
+
+  static boolean isNumeric(int length) {
+    return length > 0 && length <= 8;
+  }
+
+  static class InterpretedRecordDecoder extends RecordDecoder {
+    final RecordLayout layout;
+
+    InterpretedRecordDecoder(RecordLayout layout) {
+      this.layout = layout;
+    }
+
+    @Override
+    public void decode(FlowRecordCursor cursor, long[] values) {
+      for (int i = 0; i < this.layout.fieldCount(); i++) {
+        final int length = cursor.lengthAt(i);
+        if (isNumeric(length)) {
+          values[i] = RecordLayout.readUnsigned(cursor.buffer(), cursor.offsetAt(i), length);
+        }
+      }
+    }
+  }
+
+  static class FusedRecordDecoder extends RecordDecoder {
+    final int[] readOffsets;
+    final int[] readWidths;
+    final int[] firstSlots;
+    final int[] slotCounts;
+    final int[] slots;
+    final int[] shifts;
+    final long[] masks;
+
+    FusedRecordDecoder(RecordLayout layout) {
+      List<int[]> reads = new ArrayList<>();
+      List<int[]> fields = new ArrayList<>();
+
+      int i = 0;
+      while (i < layout.fieldCount()) {
+        if (!isNumeric(layout.fieldLength(i))) {
+          i++;
+          continue;
+        }
+        // Grow the group while the next field is numeric and the group still fits in 8 bytes.
+        final int groupOffset = layout.fieldOffset(i);
+        int end = i + 1;
+        int width = layout.fieldLength(i);
+        while (end < layout.fieldCount() &&
+            isNumeric(layout.fieldLength(end)) &&
+            width + layout.fieldLength(end) <= 8) {
+          width += layout.fieldLength(end);
+          end++;
+        }
+
+        int readWidth = readWidth(width);
+        if (groupOffset + readWidth > layout.recordLength()) {
+          // Reading past the group would run off the end of the record, fall back to one field.
+          end = i + 1;
+          width = layout.fieldLength(i);
+          readWidth = readWidth(width);
+        }
+        if (groupOffset + readWidth > layout.recordLength()) {
+          readWidth = -width;
+        }
+
+        reads.add(new int[]{groupOffset, readWidth, fields.size(), end - i});
+        final int totalBits = Math.abs(readWidth) * 8;
+        for (int field = i; field < end; field++) {
+          final int relativeEnd = layout.fieldOffset(field) - groupOffset + layout.fieldLength(field);
+          fields.add(new int[]{field, totalBits - relativeEnd * 8, layout.fieldLength(field)});
+        }
+        i = end;
+      }
+
+      this.readOffsets = new int[reads.size()];
+      this.readWidths = new int[reads.size()];
+      this.firstSlots = new int[reads.size()];
+      this.slotCounts = new int[reads.size()];
+      for (int r = 0; r < reads.size(); r++) {
+        this.readOffsets[r] = reads.get(r)[0];
+        this.readWidths[r] = reads.get(r)[1];
+        this.firstSlots[r] = reads.get(r)[2];
+        this.slotCounts[r] = reads.get(r)[3];
+      }
+      this.slots = new int[fields.size()];
+      this.shifts = new int[fields.size()];
+      this.masks = new long[fields.size()];
+      for (int f = 0; f < fields.size(); f++) {
+        this.slots[f] = fields.get(f)[0];
+        this.shifts[f] = fields.get(f)[1];
+        this.masks[f] = 8 == fields.get(f)[2] ? -1L : (1L << (fields.get(f)[2] * 8)) - 1;
+      }
+    }
+
+    /**
+     * Smallest primitive load covering width bytes. Odd widths such as 3 are widened to the next load.
+     */
+    static int readWidth(int width) {
+      if (width <= 1) {
+        return 1;
+      } else if (width <= 2) {
+        return 2;
+      } else if (width <= 4) {
+        return 4;
+      }
+      return 8;
+    }
+
+    @Override
+    public void decode(FlowRecordCursor cursor, long[] values) {
+      final ByteBuf buffer = cursor.buffer();
+      final int offset = cursor.recordOffset();
+      for (int r = 0; r < this.readOffsets.length; r++) {
+        final int index = offset + this.readOffsets[r];
+        final long raw;
+        switch (this.readWidths[r]) {
+          case 1:
+            raw = buffer.getUnsignedByte(index);
+            break;
+          case 2:
+            raw = buffer.getUnsignedShort(index);
+            break;
+          case 4:
+            raw = buffer.getUnsignedInt(index);
+            break;
+          case 8:
+            raw = buffer.getLong(index);
+            break;
+          default:
+            raw = RecordLayout.readUnsigned(buffer, index, -this.readWidths[r]);
+            break;
+        }
+        final int last = this.firstSlots[r] + this.slotCounts[r];
+        for (int f = this.firstSlots[r]; f < last; f++) {
+          values[this.slots[f]] = (raw >>> this.shifts[f]) & this.masks[f];
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,342 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Fixed record layout of a template. Field offsets are computed once when the template is
+ * received and reused for every record of every data flowset that references it.
+ * Layouts of options templates start with the scope fields. Scope types are looked up with
+ * {@link #indexOfScope(int)} because their numbers overlap with field types.
+ * IPFIX templates may contain variable length fields. Their offsets depend on the record, so
+ * {@link #isVariableLength()} layouts must be walked with a {@link FlowRecordCursor}.
+ */
+public final class RecordLayout {
+  public static final int VARIABLE_LENGTH = 0xFFFF;
+  /**
+   * Field types below this limit are looked up in a direct table. Higher types are rare and fall back to a
+   * scan of the template, so a single high type does not cost a table of 65536 entries.
+   */
+  static final int DIRECT_INDEX_LIMIT = 512;
+
+  final List<NetFlowV9Decoder.TemplateField> fields;
+  final int scopeFieldCount;
+  final int[] types;
+  final int[] enterprises;
+  final int[] lengths;
+  final int[] offsets;
+  final int recordLength;
+  final boolean variableLength;
+  final int minimumRecordLength;
+  final int[] indexByType;
+  volatile RecordDecoder decoder;
+
+  RecordLayout(List<NetFlowV9Decoder.TemplateField> fields, int scopeFieldCount) {
+    this.fields = Collections.unmodifiableList(fields);
+    this.scopeFieldCount = scopeFieldCount;
+    this.types = new int[fields.size()];
+    this.enterprises = new int[fields.size()];
+    this.lengths = new int[fields.size()];
+    this.offsets = new int[fields.size()];
+
+    int offset = 0;
+    int minimumLength = 0;
+    boolean variable = false;
+    for (int i = 0; i < fields.size(); i++) {
+      NetFlowV9Decoder.TemplateField field = fields.get(i);
+      this.types[i] = field.type() & 0xFFFF;
+      this.enterprises[i] = field.enterpriseNumber();
+      this.lengths[i] = field.length() & 0xFFFF;
+      if (VARIABLE_LENGTH == this.lengths[i]) {
+        variable = true;
+        minimumLength += 1;
+      } else {
+        minimumLength += this.lengths[i];
+      }
+      this.offsets[i] = variable ? -1 : offset;
+      offset += this.lengths[i];
+    }
+    this.variableLength = variable;
+    this.minimumRecordLength = minimumLength;
+    this.recordLength = variable ? -1 : offset;
+    this.indexByType = indexByType(this.types, this.enterprises, scopeFieldCount);
+  }
+
+  /**
+   * Direct lookup table from IANA field type to field index for types below {@link #DIRECT_INDEX_LIMIT}, so
+   * field lookups on the hot path do not scan the template. The first occurrence of a type wins.
+   */
+  static int[] indexByType(int[] types, int[] enterprises, int scopeFieldCount) {
+    int maxType = -1;
+    for (int i = scopeFieldCount; i < types.length; i++) {
+      if (0 == enterprises[i] && types[i] < DIRECT_INDEX_LIMIT) {
+        maxType = Math.max(maxType, types[i]);
+      }
+    }
+    int[] result = new int[maxType + 1];
+    Arrays.fill(result, -1);
+    for (int i = types.length - 1; i >= scopeFieldCount; i--) {
+      if (0 == enterprises[i] && types[i] < DIRECT_INDEX_LIMIT) {
+        result[types[i]] = i;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Decoder compiled for this layout. It is created on first use and shared by every user of the layout.
+   */
+  public RecordDecoder decoder() {
+    RecordDecoder result = this.decoder;
+    if (null == result) {
+      result = RecordDecoder.compile(this);
+      this.decoder = result;
+    }
+    return result;
+  }
+
+  public static RecordLayout of(List<NetFlowV9Decoder.TemplateField> fields) {
+    return new RecordLayout(fields, 0);
+  }
+
+  public static RecordLayout of(List<NetFlowV9Decoder.TemplateField> scopeFields, List<NetFlowV9Decoder.TemplateField> optionFields) {
+    List<NetFlowV9Decoder.TemplateField> fields = new ArrayList<>(scopeFields.size() + optionFields.size());
+    fields.addAll(scopeFields);
+    fields.addAll(optionFields);
+    return new RecordLayout(fields, scopeFields.size());
+  }
+
+  public List<NetFlowV9Decoder.TemplateField> fields() {
+    return this.fields;
+  }
+
+  public boolean isOptions() {
+    return this.scopeFieldCount > 0;
+  }
+
+  public int scopeFieldCount() {
+    return this.scopeFieldCount;
+  }
+
+  public int fieldCount() {
+    return this.types.length;
+  }
+
+  public boolean isVariableLength() {
+    return this.variableLength;
+  }
+
+  public int enterpriseNumber(int index) {
+    return this.enterprises[index];
+  }
+
+  public int fieldType(int index) {
+    return this.types[index];
+  }
+
+  public int fieldLength(int index) {
+    return this.lengths[index];
+  }
+
+  /**
+   * Offset of the field within a record, or -1 if it follows a variable length field.
+   */
+  public int fieldOffset(int index) {
+    return this.offsets[index];
+  }
+
+  /**
+   * Length of a record, or -1 if the layout has variable length fields.
+   */
+  public int recordLength() {
+    return this.recordLength;
+  }
+
+  /**
+   * Returns the number of complete records in a flowset body of the supplied length. Trailing
+   * padding shorter than a record is ignored. Only valid for fixed length layouts.
+   */
+  public int recordCount(int length) {
+    if (this.variableLength) {
+      throw new IllegalStateException("recordCount(int) is not supported for variable length layouts.");
+    }
+    return 0 == this.recordLength ? 0 : length / this.recordLength;
+  }
+
+  /**
+   * Returns the number of complete records in the readable bytes of the buffer.
+   */
+  public int recordCount(ByteBuf buffer) {
+    if (!this.variableLength) {
+      return recordCount(buffer.readableBytes());
+    }
+    final int limit = buffer.writerIndex();
+    int index = buffer.readerIndex();
+    int count = 0;
+    while ((index = scan(buffer, index, limit, null, null)) >= 0) {
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Resolves the offsets and lengths of the fields of the record starting at index.
+   *
+   * @return index of the next record or -1 if there is no complete record before limit.
+   */
+  int scan(ByteBuf buffer, int index, int limit, int[] fieldOffsets, int[] fieldLengths) {
+    if (limit - index < this.minimumRecordLength || 0 == this.minimumRecordLength) {
+      return -1;
+    }
+    for (int i = 0; i < this.lengths.length; i++) {
+      int length = this.lengths[i];
+      if (VARIABLE_LENGTH == length) {
+        if (index >= limit) {
+          return -1;
+        }
+        length = buffer.getUnsignedByte(index++);
+        if (255 == length) {
+          if (index + 2 > limit) {
+            return -1;
+          }
+          length = buffer.getUnsignedShort(index);
+          index += 2;
+        }
+      }
+      if (index + length > limit) {
+        return -1;
+      }
+      if (null != fieldOffsets) {
+        fieldOffsets[i] = index;
+        fieldLengths[i] = length;
+      }
+      index += length;
+    }
+    return index;
+  }
+
+  public int indexOf(int fieldType) {
+    if (fieldType >= 0 && fieldType < this.indexByType.length) {
+      return this.indexByType[fieldType];
+    }
+    return fieldType >= DIRECT_INDEX_LIMIT ? indexOf(0, fieldType) : -1;
+  }
+
+  /**
+   * Looks up an IPFIX enterprise specific field. Enterprise number 0 denotes IANA fields.
+   */
+  public int indexOf(int enterpriseNumber, int fieldType) {
+    for (int i = this.scopeFieldCount; i < this.types.length; i++) {
+      if (this.types[i] == fieldType && this.enterprises[i] == enterpriseNumber) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  public int indexOfScope(int scopeType) {
+    for (int i = 0; i < this.scopeFieldCount; i++) {
+      if (this.types[i] == scopeType) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  int requireScopeIndex(int scopeType) {
+    final int index = indexOfScope(scopeType);
+    if (index < 0) {
+      throw new IllegalArgumentException(
+          String.format("scopeType %s is not present in the options template.", scopeType)
+      );
+    }
+    return index;
+  }
+
+  int requireIndex(int fieldType) {
+    final int index = indexOf(fieldType);
+    if (index < 0) {
+      throw new IllegalArgumentException(
+          String.format("fieldType %s is not present in the template.", fieldType)
+      );
+    }
+    return index;
+  }
+
+  int requireIndex(int enterpriseNumber, int fieldType) {
+    final int index = indexOf(enterpriseNumber, fieldType);
+    if (index < 0) {
+      throw new IllegalArgumentException(
+          String.format("fieldType %s (enterprise %s) is not present in the template.", fieldType, enterpriseNumber)
+      );
+    }
+    return index;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof RecordLayout)) {
+      return false;
+    }
+    RecordLayout that = (RecordLayout) o;
+    return this.scopeFieldCount == that.scopeFieldCount &&
+        Arrays.equals(this.types, that.types) &&
+        Arrays.equals(this.lengths, that.lengths) &&
+        Arrays.equals(this.enterprises, that.enterprises);
+  }
+
+  @Override
+  public int hashCode() {
+    int result = this.scopeFieldCount;
+    result = 31 * result + Arrays.hashCode(this.types);
+    result = 31 * result + Arrays.hashCode(this.lengths);
+    result = 31 * result + Arrays.hashCode(this.enterprises);
+    return result;
+  }
+
+  static long readUnsigned(ByteBuf buffer, int index, int length) {
+    switch (length) {
+      case 1:
+        return buffer.getUnsignedByte(index);
+      case 2:
+        return buffer.getUnsignedShort(index);
+      case 4:
+        return buffer.getUnsignedInt(index);
+      case 8:
+        return buffer.getLong(index);
+      default:
+        if (length > 8) {
+          throw new IllegalStateException(
+              String.format("Field length %s cannot be read as a number.", length)
+          );
+        }
+        long result = 0;
+        for (int i = 0; i < length; i++) {
+          result = (result << 8) | buffer.getUnsignedByte(index + i);
+        }
+        return result;
+    }
+  }
+}
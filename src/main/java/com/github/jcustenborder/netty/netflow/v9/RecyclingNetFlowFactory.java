@@ -0,0 +1,166 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.Recycler;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * NetflowFactory that reuses NetFlowMessages, their flowset lists and DataFlowSets through Netty's Recycler.
+ * Together with retained buffers the decoder allocates next to nothing per datagram once the pools are warm.
+ * <p>
+ * Objects return to the pool when the NetFlowMessage is released, so a message and everything reached from
+ * it, including DataFlowSets, cursors and records, must not be used after release. Messages may be released
+ * on any thread.
+ * <pre>
+ * NetFlowDecoderConfig config = NetFlowDecoderConfig.builder()
+ *     .netflowFactory(new RecyclingNetFlowFactory())
+ *     .retainBuffers(true)
+ *     .build();
+ * </pre>
+ */
+public class RecyclingNetFlowFactory extends NetFlowFactoryImpl {
+  static final Recycler<RecycledMessage> MESSAGES = new Recycler<RecycledMessage>() {
+    @Override
+    protected RecycledMessage newObject(Handle<RecycledMessage> handle) {
+      return new RecycledMessage(handle);
+    }
+  };
+  static final Recycler<RecycledDataFlowSet> DATA_FLOW_SETS = new Recycler<RecycledDataFlowSet>() {
+    @Override
+    protected RecycledDataFlowSet newObject(Handle<RecycledDataFlowSet> handle) {
+      return new RecycledDataFlowSet(handle);
+    }
+  };
+  static final Recycler<FlowSetList> FLOW_SET_LISTS = new Recycler<FlowSetList>() {
+    @Override
+    protected FlowSetList newObject(Handle<FlowSetList> handle) {
+      return new FlowSetList(handle);
+    }
+  };
+
+  @Override
+  public List<NetFlowV9Decoder.FlowSet> newFlowSetList() {
+    return FLOW_SET_LISTS.get();
+  }
+
+  @Override
+  public NetFlowV9Decoder.NetFlowMessage netflowMessage(short version, short count, int uptime, int timestamp, int flowSequence, int sourceID, InetSocketAddress sender, InetSocketAddress recipient, List<NetFlowV9Decoder.FlowSet> flowsets) {
+    return netflowMessage(version, count, uptime, timestamp, flowSequence, sourceID, sender, recipient, flowsets, 0L);
+  }
+
+  @Override
+  public NetFlowV9Decoder.NetFlowMessage netflowMessage(short version, short count, int uptime, int timestamp, int flowSequence, int sourceID, InetSocketAddress sender, InetSocketAddress recipient, List<NetFlowV9Decoder.FlowSet> flowsets, long sequenceGap) {
+    final FlowSetList list;
+    if (flowsets instanceof FlowSetList) {
+      list = (FlowSetList) flowsets;
+    } else {
+      list = FLOW_SET_LISTS.get();
+      list.addAll(flowsets);
+    }
+    final RecycledMessage message = MESSAGES.get();
+    message.init(version, count, uptime, timestamp, flowSequence, sourceID, sender, recipient, list.view, sequenceGap);
+    message.list = list;
+    message.reuse();
+    return message;
+  }
+
+  @Override
+  public NetFlowV9Decoder.DataFlowSet dataFlowSet(short flowsetID, byte[] data) {
+    return dataFlowSet(flowsetID, data, null);
+  }
+
+  @Override
+  public NetFlowV9Decoder.DataFlowSet dataFlowSet(short flowsetID, byte[] data, RecordLayout layout) {
+    final RecycledDataFlowSet result = DATA_FLOW_SETS.get();
+    result.init(flowsetID, null, data, false, layout);
+    return result;
+  }
+
+  @Override
+  public NetFlowV9Decoder.DataFlowSet dataFlowSet(short flowsetID, ByteBuf content, RecordLayout layout) {
+    final RecycledDataFlowSet result = DATA_FLOW_SETS.get();
+    result.init(flowsetID, content, null, true, layout);
+    return result;
+  }
+
+  /**
+   * Pooled list of flowsets with an unmodifiable view that is created once.
+   */
+  static final class FlowSetList extends ArrayList<NetFlowV9Decoder.FlowSet> {
+    private static final long serialVersionUID = 1L;
+    final Recycler.Handle<FlowSetList> handle;
+    final List<NetFlowV9Decoder.FlowSet> view = Collections.unmodifiableList(this);
+
+    FlowSetList(Recycler.Handle<FlowSetList> handle) {
+      this.handle = handle;
+    }
+
+    void recycle() {
+      clear();
+      this.handle.recycle(this);
+    }
+  }
+
+  static final class RecycledMessage extends NetFlowMessageImpl {
+    final Recycler.Handle<RecycledMessage> handle;
+    FlowSetList list;
+
+    RecycledMessage(Recycler.Handle<RecycledMessage> handle) {
+      this.handle = handle;
+    }
+
+    void reuse() {
+      setRefCnt(1);
+    }
+
+    @Override
+    protected void deallocate() {
+      super.deallocate();
+      final FlowSetList list = this.list;
+      for (int i = 0; i < list.size(); i++) {
+        final NetFlowV9Decoder.FlowSet flowSet = list.get(i);
+        if (flowSet instanceof RecycledDataFlowSet) {
+          ((RecycledDataFlowSet) flowSet).recycle();
+        }
+      }
+      list.recycle();
+      this.list = null;
+      this.flowsets = null;
+      this.sender = null;
+      this.recipient = null;
+      this.handle.recycle(this);
+    }
+  }
+
+  static final class RecycledDataFlowSet extends DataFlowSetImpl {
+    final Recycler.Handle<RecycledDataFlowSet> handle;
+
+    RecycledDataFlowSet(Recycler.Handle<RecycledDataFlowSet> handle) {
+      this.handle = handle;
+    }
+
+    void recycle() {
+      init((short) 0, null, null, false, null);
+      this.handle.recycle(this);
+    }
+  }
+}
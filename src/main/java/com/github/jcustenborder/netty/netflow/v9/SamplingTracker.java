@@ -0,0 +1,214 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the packet sampling configuration of every exporter and source id so byte and packet counters of
+ * sampled flows can be scaled back up. Intervals are learned from options records with SAMPLING_INTERVAL or
+ * FLOW_SAMPLER_RANDOM_INTERVAL, keyed by FLOW_SAMPLER_ID when present, and from the NetFlow v5 header.
+ * <p>
+ * Each data flowset is decoded with the Rates that were current for its exporter, read with
+ * {@link NetFlowV9Decoder.DataFlowSet#samplingRates()} and {@link FlowRecordCursor#getScaledLong(int)}.
+ * Rates are immutable and replaced on change, so lookups never lock.
+ * <p>
+ * Only exporters that reported a sampler or an interval above 1 are tracked. At most maxExporters of them are
+ * kept, the least recently used one is dropped to make room, and exporters whose rates have not been read or
+ * updated within the idle timeout are dropped as well. A dropped exporter is unsampled until it reports its
+ * intervals again.
+ */
+public class SamplingTracker {
+  final ExporterStates<Rates> exporters;
+
+  /**
+   * @param maxExporters exporters to track. 0 disables the bound.
+   * @param idleTimeout  time without data or options records after which an exporter is dropped. 0
+   *                     disables the timeout.
+   */
+  public SamplingTracker(int maxExporters, long idleTimeout, TimeUnit unit) {
+    this.exporters = new ExporterStates<>(maxExporters, idleTimeout, unit, key -> Rates.UNSAMPLED);
+  }
+
+  public SamplingTracker() {
+    this(ExporterStates.DEFAULT_MAX_EXPORTERS, ExporterStates.DEFAULT_IDLE_TIMEOUT_HOURS, TimeUnit.HOURS);
+  }
+
+  /**
+   * Sampling intervals of an exporter, 1 when it is not known to sample.
+   */
+  public Rates rates(InetSocketAddress sender, int sourceID) {
+    final Rates result = this.exporters.getIfPresent(new ExporterKey(sender, sourceID));
+    return null == result ? Rates.UNSAMPLED : result;
+  }
+
+  /**
+   * Sets the interval that applies to every flow of an exporter without a sampler of its own. Exporters
+   * without samplers that report an interval of 1 are not tracked.
+   */
+  public void interval(InetSocketAddress sender, int sourceID, long interval) {
+    final ExporterKey key = new ExporterKey(sender, sourceID);
+    final long value = Math.max(1L, interval);
+    final Rates current = this.exporters.getIfPresent(key);
+    if (null == current ? 1L == value : current.interval == value) {
+      return;
+    }
+    this.exporters.update(key, rates -> {
+      final Rates result = rates.withInterval(value);
+      return result.isUnsampled() ? null : result;
+    });
+  }
+
+  /**
+   * Sets the interval of the sampler that data records reference with FLOW_SAMPLER_ID.
+   */
+  public void interval(InetSocketAddress sender, int sourceID, long samplerID, long interval) {
+    final ExporterKey key = new ExporterKey(sender, sourceID);
+    final long value = Math.max(1L, interval);
+    final Rates current = this.exporters.getIfPresent(key);
+    if (null != current && current.indexOf(samplerID) >= 0 && current.interval(samplerID) == value) {
+      return;
+    }
+    this.exporters.update(key, rates -> rates.withSampler(samplerID, value));
+  }
+
+  /**
+   * Learns the intervals in the records of an options data flowset.
+   */
+  void options(NetFlowV9Decoder.Header header, NetFlowV9Decoder.DataFlowSet dataFlowSet, FlowRecordCursor cursor) {
+    final RecordLayout layout = dataFlowSet.layout();
+    int intervalIndex = layout.indexOf(FieldType.FLOW_SAMPLER_RANDOM_INTERVAL);
+    if (intervalIndex < 0) {
+      intervalIndex = layout.indexOf(FieldType.SAMPLING_INTERVAL);
+    }
+    if (intervalIndex < 0) {
+      return;
+    }
+    final int samplerIndex = layout.indexOf(FieldType.FLOW_SAMPLER_ID);
+    cursor.reset(dataFlowSet);
+    while (cursor.next()) {
+      if (cursor.lengthAt(intervalIndex) > 8) {
+        continue;
+      }
+      final long interval = cursor.getLongAt(intervalIndex);
+      if (samplerIndex >= 0 && cursor.lengthAt(samplerIndex) <= 8) {
+        interval(header.sender, header.sourceID, cursor.getLongAt(samplerIndex), interval);
+      } else {
+        interval(header.sender, header.sourceID, interval);
+      }
+    }
+  }
+
+  /**
+   * Copy of the rates per exporter and source id.
+   */
+  public Map<ExporterKey, Rates> exporters() {
+    return this.exporters.snapshot();
+  }
+
+  /**
+   * Exporters dropped because maxExporters was exceeded.
+   */
+  public long exportersEvicted() {
+    return this.exporters.evicted.sum();
+  }
+
+  /**
+   * Exporters dropped after the idle timeout.
+   */
+  public long exportersExpired() {
+    return this.exporters.expired.sum();
+  }
+
+  /**
+   * Drops idle exporters. This runs as flowsets are decoded, call it periodically if state must be released
+   * while no datagrams arrive.
+   */
+  public void cleanUp() {
+    this.exporters.cleanUp();
+  }
+
+  /**
+   * Immutable sampling intervals of one exporter and source id. Exporters rarely have more than a few
+   * samplers, so they are kept in primitive arrays.
+   */
+  public static final class Rates {
+    public static final Rates UNSAMPLED = new Rates(1L, new long[0], new long[0]);
+
+    final long interval;
+    final long[] samplerIDs;
+    final long[] intervals;
+
+    Rates(long interval, long[] samplerIDs, long[] intervals) {
+      this.interval = interval;
+      this.samplerIDs = samplerIDs;
+      this.intervals = intervals;
+    }
+
+    /**
+     * Interval of flows that do not reference a known sampler.
+     */
+    public long interval() {
+      return this.interval;
+    }
+
+    /**
+     * Interval of a sampler, falling back to {@link #interval()} for unknown samplers.
+     */
+    public long interval(long samplerID) {
+      final int index = indexOf(samplerID);
+      return index < 0 ? this.interval : this.intervals[index];
+    }
+
+    int indexOf(long samplerID) {
+      for (int i = 0; i < this.samplerIDs.length; i++) {
+        if (this.samplerIDs[i] == samplerID) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    boolean isUnsampled() {
+      return 1L == this.interval && 0 == this.samplerIDs.length;
+    }
+
+    Rates withInterval(long interval) {
+      return new Rates(interval, this.samplerIDs, this.intervals);
+    }
+
+    Rates withSampler(long samplerID, long interval) {
+      int index = indexOf(samplerID);
+      long[] samplerIDs = this.samplerIDs;
+      long[] intervals = Arrays.copyOf(this.intervals, this.intervals.length + (index < 0 ? 1 : 0));
+      if (index < 0) {
+        index = samplerIDs.length;
+        samplerIDs = Arrays.copyOf(samplerIDs, samplerIDs.length + 1);
+        samplerIDs[index] = samplerID;
+      }
+      intervals[index] = interval;
+      return new Rates(this.interval, samplerIDs, intervals);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("Rates{interval=%s, samplerIDs=%s, intervals=%s}", this.interval, Arrays.toString(this.samplerIDs), Arrays.toString(this.intervals));
+    }
+  }
+}
@@ -0,0 +1,31 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+/**
+ * Scope field types of options templates defined by RFC 3954.
+ */
+public final class ScopeType {
+  public static final int SYSTEM = 1;
+  public static final int INTERFACE = 2;
+  public static final int LINE_CARD = 3;
+  public static final int CACHE = 4;
+  public static final int TEMPLATE = 5;
+
+  private ScopeType() {
+
+  }
+}
@@ -0,0 +1,182 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tracks the header sequence number of every exporter and source id to tell datagrams lost in transit apart
+ * from exporters that are quiet. Sequence numbers count datagrams for NetFlow v9 and flow records for NetFlow
+ * v5 and IPFIX, so gaps are reported in the same unit.
+ * <p>
+ * A sequence number ahead of the expected one by at most maxGap is a gap. One behind by at most reorderWindow
+ * is a late datagram that was already counted as lost. Anything else is treated as an exporter restart and
+ * the tracker resynchronizes. Lookups and updates are lock free.
+ * <p>
+ * At most maxExporters exporters are tracked, the least recently seen one is dropped to make room, and
+ * exporters idle longer than the idle timeout are dropped as well. A dropped exporter resynchronizes on its
+ * next datagram.
+ */
+public class SequenceTracker {
+  static final long UNKNOWN = Long.MIN_VALUE;
+
+  final ExporterStates<Counters> exporters;
+  final long maxGap;
+  final long reorderWindow;
+
+  /**
+   * @param maxExporters exporters to track. 0 disables the bound.
+   * @param idleTimeout  time without datagrams after which an exporter is dropped. 0 disables the timeout.
+   */
+  public SequenceTracker(long maxGap, long reorderWindow, int maxExporters, long idleTimeout, TimeUnit unit) {
+    if (maxGap < 1 || maxGap >= 1L << 31) {
+      throw new IllegalArgumentException("maxGap must be between 1 and 2^31 - 1.");
+    }
+    if (reorderWindow < 0 || reorderWindow >= 1L << 31) {
+      throw new IllegalArgumentException("reorderWindow must be between 0 and 2^31 - 1.");
+    }
+    this.maxGap = maxGap;
+    this.reorderWindow = reorderWindow;
+    this.exporters = new ExporterStates<>(maxExporters, idleTimeout, unit, key -> new Counters());
+  }
+
+  public SequenceTracker(long maxGap, long reorderWindow) {
+    this(maxGap, reorderWindow, ExporterStates.DEFAULT_MAX_EXPORTERS, ExporterStates.DEFAULT_IDLE_TIMEOUT_HOURS, TimeUnit.HOURS);
+  }
+
+  public SequenceTracker() {
+    this(1 << 20, 1024);
+  }
+
+  Counters counters(InetSocketAddress sender, int sourceID) {
+    return this.exporters.get(new ExporterKey(sender, sourceID));
+  }
+
+  /**
+   * Records a datagram.
+   *
+   * @param sequence  unsigned 32 bit sequence number of the header.
+   * @param increment amount the sequence number advances by after this datagram, or -1 if it is not known
+   *                  in which case the next datagram resynchronizes the tracker.
+   * @return number of sequence numbers missing before this datagram, 0 if there is no gap.
+   */
+  public long track(InetSocketAddress sender, int sourceID, long sequence, long increment) {
+    final Counters counters = counters(sender, sourceID);
+    counters.received.increment();
+    final long next = increment < 0 ? UNKNOWN : (sequence + increment) & 0xFFFFFFFFL;
+
+    while (true) {
+      final long expected = counters.expected.get();
+      if (UNKNOWN == expected) {
+        if (counters.expected.compareAndSet(expected, next)) {
+          return 0;
+        }
+        continue;
+      }
+
+      // Distance in 32 bit sequence space so wrap around is not mistaken for a reset.
+      final long delta = (int) (sequence - expected);
+      if (delta < 0 && -delta <= this.reorderWindow) {
+        counters.reordered.increment();
+        if (increment > 0) {
+          counters.lost.add(-increment);
+        }
+        return 0;
+      }
+      if (!counters.expected.compareAndSet(expected, next)) {
+        continue;
+      }
+      if (0 == delta) {
+        return 0;
+      } else if (delta > 0 && delta <= this.maxGap) {
+        counters.gaps.increment();
+        counters.lost.add(delta);
+        return delta;
+      }
+      counters.resets.increment();
+      return 0;
+    }
+  }
+
+  /**
+   * Copy of the counters per exporter and source id.
+   */
+  public Map<ExporterKey, Counters> exporters() {
+    return this.exporters.snapshot();
+  }
+
+  /**
+   * Exporters dropped because maxExporters was exceeded.
+   */
+  public long exportersEvicted() {
+    return this.exporters.evicted.sum();
+  }
+
+  /**
+   * Exporters dropped after the idle timeout.
+   */
+  public long exportersExpired() {
+    return this.exporters.expired.sum();
+  }
+
+  /**
+   * Drops idle exporters. This runs as datagrams arrive, call it periodically if state must be released
+   * while no datagrams arrive.
+   */
+  public void cleanUp() {
+    this.exporters.cleanUp();
+  }
+
+  public static class Counters {
+    final AtomicLong expected = new AtomicLong(UNKNOWN);
+    final LongAdder received = new LongAdder();
+    final LongAdder lost = new LongAdder();
+    final LongAdder gaps = new LongAdder();
+    final LongAdder reordered = new LongAdder();
+    final LongAdder resets = new LongAdder();
+
+    Counters() {
+
+    }
+
+    public long received() {
+      return this.received.sum();
+    }
+
+    /**
+     * Sequence numbers missing so far, less those that arrived late.
+     */
+    public long lost() {
+      return this.lost.sum();
+    }
+
+    public long gaps() {
+      return this.gaps.sum();
+    }
+
+    public long reordered() {
+      return this.reordered.sum();
+    }
+
+    public long resets() {
+      return this.resets.sum();
+    }
+  }
+}
@@ -0,0 +1,263 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.util.concurrent.FastThreadLocal;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Default TemplateRegistry. Templates are keyed by exporter address, source id and template id. Exporters
+ * are identified by address only so a change of source port does not orphan the templates an exporter has
+ * already sent.
+ * <p>
+ * Every exporter and source id has an immutable TemplateTable that is replaced atomically on change, so a
+ * lookup is a ConcurrentHashMap get followed by a probe of primitive arrays and never takes a lock. Lookups
+ * use a per thread probe key, so they do not allocate. Exporters resend unchanged templates periodically,
+ * those resends do not copy the table.
+ */
+public class TemplateCache implements TemplateRegistry {
+  static final FastThreadLocal<ExporterKey> PROBE = new FastThreadLocal<ExporterKey>() {
+    @Override
+    protected ExporterKey initialValue() {
+      return new ExporterKey((InetAddress) null, 0);
+    }
+  };
+
+  final ExporterStates<Exporter> exporters;
+  volatile Listener listener;
+
+  public TemplateCache() {
+    this(0, 0, TimeUnit.SECONDS, false);
+  }
+
+  /**
+   * @param accessOrdered whether to keep exporters in access order, so a subclass can evict them.
+   */
+  TemplateCache(int maxExporters, long idleTimeout, TimeUnit unit, boolean accessOrdered) {
+    this.exporters = new ExporterStates<Exporter>(maxExporters, idleTimeout, unit, this::newExporter, accessOrdered) {
+      @Override
+      void removed(Entry<Exporter> entry) {
+        exporterRemoved(entry.value);
+      }
+    };
+  }
+
+  public RecordLayout put(InetSocketAddress sender, int sourceID, int templateID, List<NetFlowV9Decoder.TemplateField> fields) {
+    return put(sender, sourceID, templateID, RecordLayout.of(fields));
+  }
+
+  @Override
+  public RecordLayout put(InetSocketAddress sender, int sourceID, int templateID, RecordLayout layout) {
+    return put(new TemplateKey(sender, sourceID, templateID), layout, true);
+  }
+
+  RecordLayout put(TemplateKey key, RecordLayout layout, boolean notify) {
+    final Exporter exporter = exporter(key.exporterKey);
+    RecordLayout previous;
+    while (true) {
+      final TemplateTable table = exporter.table.get();
+      previous = table.get(key.templateID);
+      if (layout.equals(previous)) {
+        return previous;
+      }
+      if (exporter.table.compareAndSet(table, table.with(key.templateID, layout))) {
+        break;
+      }
+    }
+    templatePut(exporter, key.templateID, previous, layout);
+    final Listener listener = this.listener;
+    if (notify && null != listener) {
+      listener.onPut(key, layout);
+    }
+    return layout;
+  }
+
+  Exporter exporter(ExporterKey key) {
+    return this.exporters.get(key);
+  }
+
+  Exporter newExporter(ExporterKey key) {
+    return new Exporter(key);
+  }
+
+  /**
+   * Called after a template was added, replaced or removed. layout is null for removals.
+   */
+  void templatePut(Exporter exporter, int templateID, RecordLayout previous, RecordLayout layout) {
+
+  }
+
+  /**
+   * Key of the current thread for lookups. It must not be kept or stored.
+   */
+  static ExporterKey probe(InetSocketAddress sender, int sourceID) {
+    return PROBE.get().set(null == sender ? null : sender.getAddress(), sourceID);
+  }
+
+  @Override
+  public RecordLayout get(InetSocketAddress sender, int sourceID, int templateID) {
+    final Exporter exporter = this.exporters.getIfPresent(probe(sender, sourceID));
+    return null == exporter ? null : exporter.table.get().get(templateID);
+  }
+
+  @Override
+  public TemplateTable table(InetSocketAddress sender, int sourceID) {
+    final Exporter exporter = this.exporters.getIfPresent(probe(sender, sourceID));
+    return null == exporter ? TemplateTable.EMPTY : exporter.table.get();
+  }
+
+  @Override
+  public RecordLayout remove(InetSocketAddress sender, int sourceID, int templateID) {
+    return remove(new TemplateKey(sender, sourceID, templateID), true);
+  }
+
+  RecordLayout remove(TemplateKey key, boolean notify) {
+    final ExporterStates.Entry<Exporter> entry = this.exporters.entries.get(key.exporterKey);
+    if (null == entry) {
+      return null;
+    }
+    final Exporter exporter = entry.value;
+    RecordLayout previous;
+    while (true) {
+      final TemplateTable table = exporter.table.get();
+      previous = table.get(key.templateID);
+      if (null == previous) {
+        return null;
+      }
+      if (exporter.table.compareAndSet(table, table.without(key.templateID))) {
+        break;
+      }
+    }
+    templatePut(exporter, key.templateID, previous, null);
+    final Listener listener = this.listener;
+    if (notify && null != listener) {
+      listener.onRemove(key);
+    }
+    return previous;
+  }
+
+  /**
+   * Called after an exporter was evicted, expired or cleared, reports all of its templates as removed.
+   */
+  void exporterRemoved(Exporter exporter) {
+    final TemplateTable table = exporter.table.getAndSet(TemplateTable.EMPTY);
+    final Listener listener = this.listener;
+    for (int templateID : table.templateIDs()) {
+      templatePut(exporter, templateID, table.get(templateID), null);
+      if (null != listener) {
+        listener.onRemove(new TemplateKey(exporter.key, templateID));
+      }
+    }
+  }
+
+  @Override
+  public int size() {
+    int result = 0;
+    for (ExporterStates.Entry<Exporter> entry : this.exporters.entries.values()) {
+      result += entry.value.table.get().size();
+    }
+    return result;
+  }
+
+  /**
+   * Removes every exporter. The removed templates are reported to the listener, so a TemplateSnapshotStore
+   * stays in sync.
+   */
+  @Override
+  public void clear() {
+    this.exporters.clear();
+  }
+
+  /**
+   * Copy of every template in the cache.
+   */
+  Map<TemplateKey, RecordLayout> templates() {
+    Map<TemplateKey, RecordLayout> result = new HashMap<>();
+    for (ExporterStates.Entry<Exporter> entry : this.exporters.entries.values()) {
+      final TemplateTable table = entry.value.table.get();
+      for (int templateID : table.templateIDs()) {
+        result.put(new TemplateKey(entry.key, templateID), table.get(templateID));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Templates of an exporter and source id. The current TemplateTable is replaced atomically.
+   */
+  static class Exporter {
+    final ExporterKey key;
+    final AtomicReference<TemplateTable> table = new AtomicReference<>(TemplateTable.EMPTY);
+
+    Exporter(ExporterKey key) {
+      this.key = key;
+    }
+  }
+
+  interface Listener {
+    void onPut(TemplateKey key, RecordLayout layout);
+
+    void onRemove(TemplateKey key);
+  }
+
+  static class TemplateKey {
+    final ExporterKey exporterKey;
+    final InetAddress exporter;
+    final int sourceID;
+    final int templateID;
+    final int hashCode;
+
+    TemplateKey(InetSocketAddress sender, int sourceID, int templateID) {
+      this(new ExporterKey(sender, sourceID), templateID);
+    }
+
+    TemplateKey(InetAddress exporter, int sourceID, int templateID) {
+      this(new ExporterKey(exporter, sourceID), templateID);
+    }
+
+    TemplateKey(ExporterKey exporterKey, int templateID) {
+      this.exporterKey = exporterKey;
+      this.exporter = exporterKey.exporter;
+      this.sourceID = exporterKey.sourceID;
+      this.templateID = templateID;
+      this.hashCode = 31 * exporterKey.hashCode() + templateID;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof TemplateKey)) {
+        return false;
+      }
+      TemplateKey that = (TemplateKey) o;
+      return this.templateID == that.templateID && this.exporterKey.equals(that.exporterKey);
+    }
+
+    @Override
+    public int hashCode() {
+      return this.hashCode;
+    }
+  }
+}
@@ -0,0 +1,226 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shares one immutable RecordLayout between every exporter that sends a byte identical template. Templates
+ * are looked up by the raw bytes of their field specifiers, so a resent or duplicate template is neither
+ * parsed nor allocated again, and the RecordDecoder compiled for a layout is shared as well.
+ * <p>
+ * Layouts are held weakly, so a layout is released once the template caches and the flowsets in flight no
+ * longer reference it, for example after a BoundedTemplateCache evicted it. At most maxTemplates distinct
+ * templates are interned at a time, later templates are decoded without interning and counted by
+ * {@link #skipped()} so a flood of bogus templates cannot grow it. Interning is disabled unless an interner
+ * is set on the NetFlowDecoderConfig, and decoders created from one config share it.
+ */
+public class TemplateInterner {
+  static final int NETFLOW_V9 = 1;
+  static final int NETFLOW_V9_OPTIONS = 2;
+  static final int IPFIX = 3;
+
+  final ConcurrentMap<Key, Entry> layouts = new ConcurrentHashMap<>();
+  final ReferenceQueue<RecordLayout> released = new ReferenceQueue<>();
+  final AtomicInteger size = new AtomicInteger();
+  final int maxTemplates;
+  final LongAdder hits = new LongAdder();
+  final LongAdder misses = new LongAdder();
+  final LongAdder skipped = new LongAdder();
+
+  /**
+   * @param maxTemplates distinct templates to keep. 0 disables interning.
+   */
+  public TemplateInterner(int maxTemplates) {
+    if (maxTemplates < 0) {
+      throw new IllegalArgumentException("maxTemplates must be greater than or equal to 0.");
+    }
+    this.maxTemplates = maxTemplates;
+  }
+
+  public TemplateInterner() {
+    this(4096);
+  }
+
+  /**
+   * Looks up the layout of the field specifiers in buffer from offset to offset + length.
+   *
+   * @param probe key owned by the calling decoder, reused for every lookup.
+   * @return the interned layout or null.
+   */
+  RecordLayout get(Key probe, int kind, int scopeFieldCount, ByteBuf buffer, int offset, int length) {
+    if (0 == this.maxTemplates) {
+      return null;
+    }
+    probe.set(kind, scopeFieldCount, buffer, offset, length);
+    final Entry entry = this.layouts.get(probe);
+    probe.buffer = null;
+    final RecordLayout result = null == entry ? null : entry.get();
+    if (null == result) {
+      this.misses.increment();
+    } else {
+      this.hits.increment();
+    }
+    return result;
+  }
+
+  /**
+   * Interns a layout parsed from the field specifiers in buffer.
+   *
+   * @return the layout that is shared from now on, layout itself if the interner is full.
+   */
+  RecordLayout intern(int kind, int scopeFieldCount, ByteBuf buffer, int offset, int length, RecordLayout layout) {
+    if (0 == this.maxTemplates) {
+      return layout;
+    }
+    expungeReleased();
+    if (this.size.get() >= this.maxTemplates) {
+      this.skipped.increment();
+      return layout;
+    }
+    final byte[] bytes = new byte[length];
+    buffer.getBytes(offset, bytes);
+    final Key key = new Key();
+    key.set(kind, scopeFieldCount, Unpooled.wrappedBuffer(bytes), 0, length);
+    final Entry entry = new Entry(key, layout, this.released);
+    while (true) {
+      final Entry previous = this.layouts.putIfAbsent(key, entry);
+      if (null == previous) {
+        this.size.incrementAndGet();
+        return layout;
+      }
+      final RecordLayout shared = previous.get();
+      if (null != shared) {
+        return shared;
+      }
+      // The previous layout was released but not expunged yet, its slot is reused.
+      if (this.layouts.replace(key, previous, entry)) {
+        return layout;
+      }
+    }
+  }
+
+  /**
+   * Removes the entries of layouts that have been garbage collected.
+   */
+  void expungeReleased() {
+    Entry entry;
+    while (null != (entry = (Entry) this.released.poll())) {
+      if (this.layouts.remove(entry.key, entry)) {
+        this.size.decrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Number of interned templates whose layout is still referenced.
+   */
+  public int size() {
+    expungeReleased();
+    return this.size.get();
+  }
+
+  /**
+   * Templates that were found in the interner.
+   */
+  public long hits() {
+    return this.hits.sum();
+  }
+
+  public long misses() {
+    return this.misses.sum();
+  }
+
+  /**
+   * Templates that were not interned because maxTemplates templates were already interned.
+   */
+  public long skipped() {
+    return this.skipped.sum();
+  }
+
+  public void clear() {
+    this.layouts.clear();
+    this.size.set(0);
+  }
+
+  static final class Entry extends WeakReference<RecordLayout> {
+    final Key key;
+
+    Entry(Key key, RecordLayout layout, ReferenceQueue<RecordLayout> queue) {
+      super(layout, queue);
+      this.key = key;
+    }
+  }
+
+  /**
+   * Raw field specifiers of a template. Probes reference the datagram, stored keys a copy.
+   */
+  static final class Key {
+    int kind;
+    int scopeFieldCount;
+    ByteBuf buffer;
+    int offset;
+    int length;
+    int hash;
+
+    void set(int kind, int scopeFieldCount, ByteBuf buffer, int offset, int length) {
+      this.kind = kind;
+      this.scopeFieldCount = scopeFieldCount;
+      this.buffer = buffer;
+      this.offset = offset;
+      this.length = length;
+      int hash = 31 * kind + scopeFieldCount;
+      int i = 0;
+      for (; i + 4 <= length; i += 4) {
+        hash = 31 * hash + buffer.getInt(offset + i);
+      }
+      for (; i < length; i++) {
+        hash = 31 * hash + buffer.getByte(offset + i);
+      }
+      this.hash = hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key that = (Key) o;
+      return this.hash == that.hash &&
+          this.kind == that.kind &&
+          this.scopeFieldCount == that.scopeFieldCount &&
+          this.length == that.length &&
+          ByteBufUtil.equals(this.buffer, this.offset, that.buffer, that.offset, this.length);
+    }
+
+    @Override
+    public int hashCode() {
+      return this.hash;
+    }
+  }
+}
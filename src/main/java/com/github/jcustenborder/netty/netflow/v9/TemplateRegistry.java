@@ -0,0 +1,48 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Templates of every exporter, shared by the decoders of all event loops. Reads must not block.
+ * <p>
+ * Versioning: a data flowset is bound to the RecordLayout returned by {@link #get} when it is decoded, and
+ * layouts are immutable. Redefining a template only affects flowsets decoded afterwards, records of
+ * flowsets already decoded are always read with the layout that was current when their packet arrived.
+ */
+public interface TemplateRegistry {
+  RecordLayout get(InetSocketAddress sender, int sourceID, int templateID);
+
+  /**
+   * Registers a template.
+   *
+   * @return the registered layout. When an equal layout was already registered that instance is kept and
+   * returned.
+   */
+  RecordLayout put(InetSocketAddress sender, int sourceID, int templateID, RecordLayout layout);
+
+  RecordLayout remove(InetSocketAddress sender, int sourceID, int templateID);
+
+  /**
+   * Immutable snapshot of the templates of an exporter and source id.
+   */
+  TemplateTable table(InetSocketAddress sender, int sourceID);
+
+  int size();
+
+  void clear();
+}
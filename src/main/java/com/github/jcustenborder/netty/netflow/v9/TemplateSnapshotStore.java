@@ -0,0 +1,339 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persists the templates of a TemplateCache to an append only log so a restarted collector can decode data
+ * immediately instead of waiting for exporters to resend their templates. Changes are appended on a
+ * dedicated thread, so the event loop only enqueues them. Changes waiting to be written are coalesced per
+ * template, so the queue never holds more than one entry for each template. The log is compacted once it
+ * holds many more entries than there are live templates.
+ * <pre>
+ * TemplateCache templateCache = new TemplateCache();
+ * try (TemplateSnapshotStore store = TemplateSnapshotStore.open(Paths.get("templates.log"), templateCache)) {
+ *   ...
+ * }
+ * </pre>
+ */
+public class TemplateSnapshotStore implements Closeable, TemplateCache.Listener {
+  private static final Logger log = LoggerFactory.getLogger(TemplateSnapshotStore.class);
+  static final int MAGIC = 0x4E46544C;
+  static final int FILE_HEADER_LENGTH = 8;
+  static final short FORMAT_VERSION = 1;
+  static final byte PUT = 1;
+  static final byte REMOVE = 2;
+  static final int COMPACT_THRESHOLD = 1024;
+
+  final Path path;
+  final TemplateCache templateCache;
+  final ExecutorService executor;
+  final Map<TemplateCache.TemplateKey, ByteBuffer> queued = new LinkedHashMap<>();
+  boolean writeScheduled;
+  FileChannel channel;
+  long entries;
+
+  TemplateSnapshotStore(Path path, TemplateCache templateCache) {
+    this.path = path;
+    this.templateCache = templateCache;
+    this.executor = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "netflow-template-snapshot");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Loads the templates stored at path into the cache and records every later change of the cache.
+   */
+  public static TemplateSnapshotStore open(Path path, TemplateCache templateCache) throws IOException {
+    TemplateSnapshotStore store = new TemplateSnapshotStore(path, templateCache);
+    try {
+      store.load();
+    } catch (IOException | RuntimeException ex) {
+      store.executor.shutdown();
+      throw ex;
+    }
+    templateCache.listener = store;
+    return store;
+  }
+
+  void load() throws IOException {
+    long validLength = FILE_HEADER_LENGTH;
+    if (Files.exists(this.path) && Files.size(this.path) >= FILE_HEADER_LENGTH) {
+      try (FileChannel input = FileChannel.open(this.path, StandardOpenOption.READ)) {
+        MappedByteBuffer buffer = input.map(FileChannel.MapMode.READ_ONLY, 0, input.size());
+        validLength = read(buffer);
+      }
+    }
+
+    this.channel = FileChannel.open(this.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+    if (this.channel.size() < FILE_HEADER_LENGTH) {
+      writeFileHeader(this.channel);
+    } else if (this.channel.size() > validLength) {
+      log.warn("Truncating {} from {} to {} bytes after an incomplete or malformed entry.", this.path, this.channel.size(), validLength);
+      this.channel.truncate(validLength);
+    }
+    this.channel.position(this.channel.size());
+    log.info("Loaded {} template(s) from {}.", this.templateCache.size(), this.path);
+  }
+
+  /**
+   * Applies the entries of the log to the cache.
+   *
+   * @return length of the log up to the end of the last complete entry. Reading stops at the first entry
+   * that is incomplete or malformed, the same way as at a torn tail.
+   */
+  long read(ByteBuffer buffer) throws IOException {
+    final int magic = buffer.getInt();
+    final short version = buffer.getShort();
+    buffer.getShort();
+    if (MAGIC != magic || FORMAT_VERSION != version) {
+      throw new IOException(
+          String.format("%s is not a template snapshot (magic = %x version = %s).", this.path, magic, version)
+      );
+    }
+
+    while (buffer.remaining() >= 4) {
+      final int start = buffer.position();
+      final int length = buffer.getInt();
+      if (length <= 0 || buffer.remaining() < length) {
+        buffer.position(start);
+        break;
+      }
+      final ByteBuffer entry = buffer.slice();
+      entry.limit(length);
+
+      final byte kind;
+      final TemplateCache.TemplateKey key;
+      RecordLayout layout = null;
+      try {
+        kind = entry.get();
+        if (PUT != kind && REMOVE != kind) {
+          throw new IOException(String.format("Unknown entry kind %s.", kind));
+        }
+        final byte[] address = new byte[entry.get() & 0xFF];
+        entry.get(address);
+        key = new TemplateCache.TemplateKey(
+            InetAddress.getByAddress(address),
+            entry.getInt(),
+            entry.getShort() & 0xFFFF
+        );
+        if (PUT == kind) {
+          final int scopeFieldCount = entry.getShort() & 0xFFFF;
+          final int fieldCount = entry.getShort() & 0xFFFF;
+          if (scopeFieldCount > fieldCount) {
+            throw new IOException(String.format("scopeFieldCount %s exceeds fieldCount %s.", scopeFieldCount, fieldCount));
+          }
+          List<NetFlowV9Decoder.TemplateField> fields = new ArrayList<>(fieldCount);
+          for (int i = 0; i < fieldCount; i++) {
+            fields.add(new NetFlowFactoryImpl.TemplateFieldImpl(entry.getShort(), entry.getShort(), entry.getInt()));
+          }
+          layout = new RecordLayout(fields, scopeFieldCount);
+        }
+        if (entry.hasRemaining()) {
+          throw new IOException(String.format("%s byte(s) left over.", entry.remaining()));
+        }
+      } catch (IOException | BufferUnderflowException | IllegalArgumentException ex) {
+        log.warn("Malformed entry at offset {} of {}.", start, this.path, ex);
+        buffer.position(start);
+        break;
+      }
+      buffer.position(buffer.position() + length);
+
+      if (REMOVE == kind) {
+        this.templateCache.remove(key, false);
+      } else {
+        this.templateCache.put(key, layout, false);
+      }
+      this.entries++;
+    }
+    return buffer.position();
+  }
+
+  static void writeFileHeader(FileChannel channel) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_LENGTH);
+    header.putInt(MAGIC).putShort(FORMAT_VERSION).putShort((short) 0);
+    header.flip();
+    channel.write(header, 0);
+  }
+
+  static ByteBuffer entry(byte kind, TemplateCache.TemplateKey key, RecordLayout layout) {
+    final byte[] address = key.exporter.getAddress();
+    final int fieldCount = null == layout ? 0 : layout.fieldCount();
+    final int length = 1 + 1 + address.length + 4 + 2 + (null == layout ? 0 : 4 + fieldCount * 8);
+    ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+    buffer.putInt(length);
+    buffer.put(kind);
+    buffer.put((byte) address.length);
+    buffer.put(address);
+    buffer.putInt(key.sourceID);
+    buffer.putShort((short) key.templateID);
+    if (null != layout) {
+      buffer.putShort((short) layout.scopeFieldCount());
+      buffer.putShort((short) fieldCount);
+      for (int i = 0; i < fieldCount; i++) {
+        buffer.putShort((short) layout.fieldType(i));
+        buffer.putShort((short) layout.fieldLength(i));
+        buffer.putInt(layout.enterpriseNumber(i));
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  @Override
+  public void onPut(TemplateCache.TemplateKey key, RecordLayout layout) {
+    if (null == key.exporter) {
+      return;
+    }
+    submit(key, entry(PUT, key, layout));
+  }
+
+  @Override
+  public void onRemove(TemplateCache.TemplateKey key) {
+    if (null == key.exporter) {
+      return;
+    }
+    submit(key, entry(REMOVE, key, null));
+  }
+
+  /**
+   * Queues an entry, replacing an entry for the same template that has not been written yet. A single write
+   * task is scheduled for all queued entries.
+   */
+  private void submit(TemplateCache.TemplateKey key, ByteBuffer entry) {
+    if (this.executor.isShutdown()) {
+      return;
+    }
+    synchronized (this.queued) {
+      this.queued.put(key, entry);
+      if (this.writeScheduled) {
+        return;
+      }
+      this.writeScheduled = true;
+    }
+    this.executor.execute(this::writeQueued);
+  }
+
+  void writeQueued() {
+    final List<ByteBuffer> pending;
+    synchronized (this.queued) {
+      pending = new ArrayList<>(this.queued.values());
+      this.queued.clear();
+      this.writeScheduled = false;
+    }
+    try {
+      for (ByteBuffer entry : pending) {
+        while (entry.hasRemaining()) {
+          this.channel.write(entry);
+        }
+        this.entries++;
+      }
+      if (this.entries > 2L * this.templateCache.size() + COMPACT_THRESHOLD) {
+        compact();
+      }
+    } catch (IOException ex) {
+      log.error("Exception thrown while writing template snapshot to {}.", this.path, ex);
+    }
+  }
+
+  /**
+   * Rewrites the log with only the templates currently in the cache. Runs on the snapshot thread.
+   */
+  void compact() throws IOException {
+    final Path temporary = this.path.resolveSibling(this.path.getFileName() + ".compact");
+    long count = 0;
+    try (FileChannel output = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      writeFileHeader(output);
+      output.position(FILE_HEADER_LENGTH);
+      for (Map.Entry<TemplateCache.TemplateKey, RecordLayout> template : this.templateCache.templates().entrySet()) {
+        if (null == template.getKey().exporter) {
+          continue;
+        }
+        ByteBuffer entry = entry(PUT, template.getKey(), template.getValue());
+        while (entry.hasRemaining()) {
+          output.write(entry);
+        }
+        count++;
+      }
+      output.force(true);
+    }
+    this.channel.close();
+    Files.move(temporary, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    this.channel = FileChannel.open(this.path, StandardOpenOption.WRITE, StandardOpenOption.READ);
+    this.channel.position(this.channel.size());
+    log.debug("Compacted {} from {} to {} entries.", this.path, this.entries, count);
+    this.entries = count;
+  }
+
+  /**
+   * Waits until every change recorded so far has been written and synced to disk.
+   */
+  public void flush() throws IOException {
+    try {
+      this.executor.submit(() -> {
+        this.channel.force(false);
+        return null;
+      }).get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while flushing template snapshot.", ex);
+    } catch (ExecutionException ex) {
+      throw new IOException("Exception thrown while flushing template snapshot.", ex.getCause());
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (this.templateCache.listener == this) {
+      this.templateCache.listener = null;
+    }
+    try {
+      flush();
+    } finally {
+      this.executor.shutdown();
+      try {
+        this.executor.awaitTermination(30, TimeUnit.SECONDS);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      this.channel.close();
+    }
+  }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import java.util.Arrays;
+
+/**
+ * Immutable table of the templates of one exporter and source id, keyed by template id with open addressing
+ * over primitive arrays. Updates copy the table and increment its version, readers that hold a table keep
+ * seeing the templates it was created with.
+ */
+public final class TemplateTable {
+  static final TemplateTable EMPTY = new TemplateTable(new int[0], new RecordLayout[0], 0, 0L);
+  static final int FREE = -1;
+
+  final int[] keys;
+  final RecordLayout[] values;
+  final int size;
+  final long version;
+
+  TemplateTable(int[] keys, RecordLayout[] values, int size, long version) {
+    this.keys = keys;
+    this.values = values;
+    this.size = size;
+    this.version = version;
+  }
+
+  static int slot(int templateID, int mask) {
+    final int hash = templateID * 0x9E3779B9;
+    return (hash ^ (hash >>> 16)) & mask;
+  }
+
+  public RecordLayout get(int templateID) {
+    final int[] keys = this.keys;
+    if (0 == keys.length) {
+      return null;
+    }
+    final int mask = keys.length - 1;
+    int slot = slot(templateID, mask);
+    while (true) {
+      final int key = keys[slot];
+      if (key == templateID) {
+        return this.values[slot];
+      } else if (FREE == key) {
+        return null;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   * Incremented by every change of the templates of the exporter.
+   */
+  public long version() {
+    return this.version;
+  }
+
+  public int[] templateIDs() {
+    int[] result = new int[this.size];
+    int index = 0;
+    for (int key : this.keys) {
+      if (FREE != key) {
+        result[index++] = key;
+      }
+    }
+    return result;
+  }
+
+  TemplateTable with(int templateID, RecordLayout layout) {
+    final boolean present = null != get(templateID);
+    return rebuild(present ? this.size : this.size + 1, templateID, layout);
+  }
+
+  TemplateTable without(int templateID) {
+    if (null == get(templateID)) {
+      return this;
+    }
+    return rebuild(this.size - 1, templateID, null);
+  }
+
+  /**
+   * Copies the table into arrays sized for size entries, replacing or dropping templateID.
+   */
+  private TemplateTable rebuild(int size, int templateID, RecordLayout layout) {
+    int capacity = 4;
+    while (capacity < size * 2) {
+      capacity <<= 1;
+    }
+    int[] keys = new int[capacity];
+    Arrays.fill(keys, FREE);
+    RecordLayout[] values = new RecordLayout[capacity];
+    for (int i = 0; i < this.keys.length; i++) {
+      if (FREE != this.keys[i] && templateID != this.keys[i]) {
+        insert(keys, values, this.keys[i], this.values[i]);
+      }
+    }
+    if (null != layout) {
+      insert(keys, values, templateID, layout);
+    }
+    return new TemplateTable(keys, values, size, this.version + 1);
+  }
+
+  private static void insert(int[] keys, RecordLayout[] values, int templateID, RecordLayout layout) {
+    final int mask = keys.length - 1;
+    int slot = slot(templateID, mask);
+    while (FREE != keys[slot]) {
+      slot = (slot + 1) & mask;
+    }
+    keys[slot] = templateID;
+    values[slot] = layout;
+  }
+}
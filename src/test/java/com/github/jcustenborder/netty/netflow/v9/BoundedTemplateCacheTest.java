@@ -0,0 +1,143 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.jupiter.api.Test;
+
+import java.lang.ref.WeakReference;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.jcustenborder.netty.netflow.v9.TemplateCacheTest.EXPORTER;
+import static com.github.jcustenborder.netty.netflow.v9.TemplateCacheTest.layout;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BoundedTemplateCacheTest {
+
+  static class TestCache extends BoundedTemplateCache {
+    long now;
+
+    TestCache(int maxExporters, int maxTemplatesPerExporter, long maxBytes, long idleTimeout, TimeUnit unit) {
+      super(maxExporters, maxTemplatesPerExporter, maxBytes, idleTimeout, unit);
+      this.exporters.ticker(() -> this.now);
+    }
+  }
+
+  static InetSocketAddress exporter(int i) {
+    return new InetSocketAddress(String.format("10.0.%s.%s", i / 256, i % 256), 2055);
+  }
+
+  @Test
+  public void templateFlood() {
+    BoundedTemplateCache templateCache = new BoundedTemplateCache(0, 100, 0, 0, TimeUnit.SECONDS);
+    final RecordLayout layout = layout(4, 4);
+    for (int templateID = 256; templateID < 65536; templateID++) {
+      templateCache.put(EXPORTER, 1, templateID, layout);
+    }
+    assertEquals(100, templateCache.size(), "size does not match.");
+    assertEquals(65280 - 100, templateCache.templatesEvicted(), "templatesEvicted does not match.");
+    assertEquals(100 * BoundedTemplateCache.estimatedBytes(layout), templateCache.bytes(), "bytes does not match.");
+    assertNull(templateCache.get(EXPORTER, 1, 256), "the oldest template should be evicted.");
+    assertSame(layout, templateCache.get(EXPORTER, 1, 65535));
+  }
+
+  @Test
+  public void exporterFlood() {
+    TestCache templateCache = new TestCache(10, 0, 0, 0, TimeUnit.SECONDS);
+    final RecordLayout layout = layout(4);
+    templateCache.put(exporter(0), 1, 256, layout);
+    for (int i = 1; i < 1000; i++) {
+      templateCache.now += TimeUnit.SECONDS.toNanos(1);
+      assertSame(layout, templateCache.get(exporter(0), 1, 256), "an active exporter should be kept.");
+      templateCache.put(exporter(i), 1, 256, layout);
+    }
+    assertEquals(10, templateCache.exporterCount(), "exporterCount does not match.");
+    assertEquals(10, templateCache.exporters.accessOrder.size(), "accessOrder should track every exporter.");
+    assertEquals(990, templateCache.exportersEvicted(), "exportersEvicted does not match.");
+    assertNull(templateCache.get(exporter(989), 1, 256));
+    assertSame(layout, templateCache.get(exporter(999), 1, 256));
+  }
+
+  @Test
+  public void byteBudget() {
+    final RecordLayout layout = layout(4, 4, 4, 4);
+    final long maxBytes = 50 * BoundedTemplateCache.estimatedBytes(layout);
+    TestCache templateCache = new TestCache(0, 0, maxBytes, 0, TimeUnit.SECONDS);
+    for (int i = 0; i < 100; i++) {
+      templateCache.now += TimeUnit.SECONDS.toNanos(1);
+      templateCache.put(exporter(i), 1, 256, layout);
+      assertTrue(templateCache.bytes() <= maxBytes, "bytes should stay within the budget.");
+    }
+    assertEquals(50, templateCache.size(), "size does not match.");
+    assertEquals(50, templateCache.exportersEvicted(), "exportersEvicted does not match.");
+    for (int templateID = 257; templateID < 1000; templateID++) {
+      templateCache.put(exporter(99), 1, templateID, layout);
+      assertTrue(templateCache.bytes() <= maxBytes, "bytes should stay within the budget.");
+    }
+    assertEquals(1, templateCache.exporterCount(), "exporterCount does not match.");
+  }
+
+  @Test
+  public void idleTimeout() {
+    TestCache templateCache = new TestCache(0, 0, 0, 10, TimeUnit.MINUTES);
+    final RecordLayout layout = layout(4);
+    templateCache.put(exporter(1), 1, 256, layout);
+    templateCache.now += TimeUnit.MINUTES.toNanos(5);
+    templateCache.put(exporter(2), 1, 256, layout);
+    templateCache.now += TimeUnit.MINUTES.toNanos(6);
+    templateCache.cleanUp();
+    assertNull(templateCache.get(exporter(1), 1, 256), "idle exporter should expire.");
+    assertSame(layout, templateCache.get(exporter(2), 1, 256));
+    assertEquals(1, templateCache.exportersExpired(), "exportersExpired does not match.");
+    assertEquals(BoundedTemplateCache.estimatedBytes(layout), templateCache.bytes(), "bytes does not match.");
+  }
+
+  @Test
+  public void evictedLayoutsAreReleased() throws InterruptedException {
+    BoundedTemplateCache templateCache = new BoundedTemplateCache(1, 0, 0, 0, TimeUnit.SECONDS);
+    TemplateInterner templateInterner = new TemplateInterner();
+    NetFlowDecoderConfig config = NetFlowDecoderConfig.builder()
+        .templateCache(templateCache)
+        .templateInterner(templateInterner)
+        .build();
+    TemplateInternerTest.decode(config, SamplingTrackerTest::samplers, 1);
+    WeakReference<RecordLayout> evicted = new WeakReference<>(templateCache.get(TemplateInternerTest.exporter(0), 7, 256));
+    assertNotNull(evicted.get(), "template should be cached.");
+
+    EmbeddedChannel channel = new EmbeddedChannel(new NetFlowDecoder(config));
+    channel.writeInbound(new DatagramPacket(IpfixDecoderTest.ipfix(), TemplateInternerTest.RECIPIENT, exporter(1)));
+    ReferenceCountUtil.release(channel.readInbound());
+    assertFalse(channel.finish());
+
+    assertEquals(1, templateCache.exportersEvicted(), "exportersEvicted does not match.");
+    RecordLayout remaining = templateCache.get(exporter(1), 7, 256);
+    assertEquals(BoundedTemplateCache.estimatedBytes(remaining), templateCache.bytes(), "only the remaining layout should be accounted.");
+    for (int i = 0; i < 50 && null != evicted.get(); i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertNull(evicted.get(), "evicted layouts should not be retained.");
+    assertEquals(1, templateInterner.size(), "the interner should only hold the remaining layout.");
+  }
+
+  @Test
+  public void invalidBounds() {
+    assertThrows(IllegalArgumentException.class, () -> new BoundedTemplateCache(-1, 0, 0, 0, TimeUnit.SECONDS));
+  }
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+public class ColumnarFlowEncoderTest {
+  static final InetSocketAddress SENDER = new InetSocketAddress("8.8.8.8", 64321);
+  static final InetSocketAddress RECIPIENT = new InetSocketAddress("8.8.4.4", 2055);
+
+  static DatagramPacket testcase001() throws Exception {
+    return new DatagramPacket(Unpooled.wrappedBuffer(PendingFlowSetBufferTest.testcase001()), RECIPIENT, SENDER);
+  }
+
+  static NetFlowV9Decoder.NetFlowMessage decode() throws Exception {
+    DatagramPacket datagramPacket = testcase001();
+    List<Object> output = new ArrayList<>();
+    new NetFlowV9Decoder().decode(mock(ChannelHandlerContext.class), datagramPacket, output);
+    datagramPacket.release();
+    assertEquals(1, output.size(), "output size does not match.");
+    return (NetFlowV9Decoder.NetFlowMessage) output.get(0);
+  }
+
+  static void assertEncoded(NetFlowV9Decoder.NetFlowMessage expected, ByteBuf output) {
+    NetFlowV9Decoder.DataFlowSet dataFlowSet = (NetFlowV9Decoder.DataFlowSet) expected.flowsets().get(2);
+    RecordLayout layout = dataFlowSet.layout();
+
+    assertEquals(ColumnarFlowEncoder.MAGIC, output.readInt(), "magic does not match.");
+    assertEquals(ColumnarFlowEncoder.FORMAT_VERSION, output.readByte(), "formatVersion does not match.");
+    assertEquals(4, output.readByte(), "addressLength does not match.");
+    output.skipBytes(4);
+    assertEquals(expected.version(), output.readShort(), "version does not match.");
+    output.skipBytes(8);
+    assertEquals(expected.flowSequence(), output.readInt(), "flowSequence does not match.");
+    assertEquals(expected.sourceID(), output.readInt(), "sourceID does not match.");
+    assertEquals(1, output.readShort(), "batchCount does not match.");
+
+    assertEquals(dataFlowSet.flowsetID(), output.readShort(), "templateID does not match.");
+    assertEquals(0, output.readShort(), "scopeFieldCount does not match.");
+    assertEquals(layout.fieldCount(), output.readShort(), "fieldCount does not match.");
+    final int recordCount = output.readInt();
+    assertEquals(12, recordCount, "recordCount does not match.");
+    output.skipBytes(8 * layout.fieldCount());
+    for (int i = 0; i < layout.fieldCount(); i++) {
+      FlowRecordCursor cursor = dataFlowSet.cursor();
+      while (cursor.next()) {
+        assertEquals(cursor.getLongAt(i), RecordLayout.readUnsigned(output, output.readerIndex(), layout.fieldLength(i)), String.format("field %s of record %s does not match.", i, cursor.index()));
+        output.skipBytes(layout.fieldLength(i));
+      }
+    }
+    assertEquals(0, output.readableBytes(), "readableBytes should be 0.");
+  }
+
+  @Test
+  public void encode() throws Exception {
+    NetFlowV9Decoder.NetFlowMessage message = decode();
+    ByteBuf output = Unpooled.buffer();
+    try {
+      ColumnarFlowEncoder.encode(message, output);
+      assertEncoded(message, output);
+    } finally {
+      output.release();
+      message.release();
+    }
+  }
+
+  @Test
+  public void afterDecoder() throws Exception {
+    NetFlowV9Decoder.NetFlowMessage expected = decode();
+    EmbeddedChannel channel = new EmbeddedChannel(new NetFlowDecoder(), new ColumnarFlowEncoder());
+    channel.writeInbound(testcase001());
+    ByteBuf output = channel.readInbound();
+    try {
+      assertEncoded(expected, output);
+    } finally {
+      output.release();
+      expected.release();
+    }
+    assertNull(channel.readInbound(), "only one buffer should be emitted.");
+    assertFalse(channel.finish());
+  }
+
+  @Test
+  public void batch() throws Exception {
+    EmbeddedChannel channel = new EmbeddedChannel(
+        new NetFlowDecoder(NetFlowDecoderConfig.builder().maxBatchSize(2).build()),
+        new ColumnarFlowEncoder()
+    );
+    channel.writeInbound(testcase001(), testcase001());
+    for (int i = 0; i < 2; i++) {
+      ByteBuf output = channel.readInbound();
+      assertEquals(ColumnarFlowEncoder.MAGIC, output.getInt(output.readerIndex()), "magic does not match.");
+      output.release();
+    }
+    assertNull(channel.readInbound(), "each message of the batch should be emitted.");
+    assertFalse(channel.finish());
+  }
+
+  @Test
+  public void passThrough() {
+    EmbeddedChannel channel = new EmbeddedChannel(new ColumnarFlowEncoder());
+    channel.writeInbound("other");
+    assertEquals("other", channel.readInbound(), "other messages should be passed through.");
+    assertFalse(channel.finish());
+  }
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ExporterStatesTest {
+  static final ExporterKey ACTIVE = key(255);
+
+  static ExporterKey key(int i) {
+    return new ExporterKey(new InetSocketAddress(String.format("10.0.0.%s", i), 2055), 1);
+  }
+
+  static class TestStates extends ExporterStates<String> {
+    final List<ExporterKey> removed = new ArrayList<>();
+    long now;
+
+    TestStates(int maxExporters, long idleTimeout, TimeUnit unit) {
+      super(maxExporters, idleTimeout, unit, ExporterKey::toString);
+      ticker(() -> this.now);
+    }
+
+    @Override
+    void removed(Entry<String> entry) {
+      this.removed.add(entry.key);
+    }
+  }
+
+  @Test
+  public void leastRecentlyUsed() {
+    TestStates states = new TestStates(10, 0, TimeUnit.SECONDS);
+    states.get(ACTIVE);
+    for (int i = 0; i < 100; i++) {
+      states.now += TimeUnit.MILLISECONDS.toNanos(2);
+      assertNotNull(states.getIfPresent(ACTIVE), "an active exporter should be kept.");
+      states.get(key(i));
+    }
+    assertEquals(10, states.size(), "exporters should be bounded.");
+    assertEquals(10, states.accessOrder.size(), "accessOrder should track every exporter.");
+    assertEquals(91, states.evicted.sum(), "evicted does not match.");
+    assertEquals(91, states.removed.size(), "every evicted exporter should be reported.");
+    assertEquals(key(0), states.removed.get(0), "the least recently used exporter should be evicted first.");
+    assertNull(states.getIfPresent(key(89)));
+    assertNotNull(states.getIfPresent(key(99)));
+  }
+
+  @Test
+  public void accessResolution() {
+    TestStates states = new TestStates(2, 0, TimeUnit.SECONDS);
+    states.get(key(1));
+    states.get(key(2));
+    states.getIfPresent(key(1));
+    states.get(key(3));
+    assertNull(states.getIfPresent(key(1)), "accesses within the resolution should not reorder.");
+    states.now += TimeUnit.MILLISECONDS.toNanos(2);
+    states.getIfPresent(key(2));
+    states.get(key(4));
+    assertNotNull(states.getIfPresent(key(2)), "accesses after the resolution should reorder.");
+    assertNull(states.getIfPresent(key(3)));
+  }
+
+  @Test
+  public void idleTimeout() {
+    TestStates states = new TestStates(0, 10, TimeUnit.MINUTES);
+    states.get(key(1));
+    states.now += TimeUnit.MINUTES.toNanos(5);
+    states.get(key(2));
+    states.now += TimeUnit.MINUTES.toNanos(6);
+    states.cleanUp();
+    assertNull(states.getIfPresent(key(1)), "idle exporter should expire.");
+    assertNotNull(states.getIfPresent(key(2)));
+    assertEquals(1, states.expired.sum(), "expired does not match.");
+    assertEquals(1, states.removed.size(), "the expired exporter should be reported.");
+
+    states.now += TimeUnit.MINUTES.toNanos(11);
+    states.get(key(3));
+    assertNull(states.entries.get(key(2)), "lookups should expire idle exporters once the sweep is due.");
+    assertEquals(2, states.expired.sum(), "expired does not match.");
+  }
+
+  @Test
+  public void update() {
+    TestStates states = new TestStates(10, 0, TimeUnit.SECONDS);
+    assertEquals("updated", states.update(key(1), value -> "updated"));
+    assertEquals("updated", states.getIfPresent(key(1)));
+    assertNull(states.update(key(1), value -> null));
+    assertEquals(0, states.size(), "an update to null should remove the exporter.");
+    assertEquals(0, states.accessOrder.size(), "a removed exporter should be unlinked.");
+    assertEquals(1, states.removed.size(), "the removed exporter should be reported.");
+  }
+
+  @Test
+  public void clear() {
+    TestStates states = new TestStates(10, 0, TimeUnit.SECONDS);
+    for (int i = 0; i < 5; i++) {
+      states.get(key(i));
+    }
+    states.clear();
+    assertEquals(0, states.size(), "size does not match.");
+    assertEquals(0, states.accessOrder.size(), "accessOrder should be empty.");
+    assertEquals(5, states.removed.size(), "every cleared exporter should be reported.");
+  }
+
+  @Test
+  public void unbounded() {
+    ExporterStates<String> states = new ExporterStates<>(0, 0, TimeUnit.SECONDS, ExporterKey::toString);
+    for (int i = 0; i < 100; i++) {
+      states.get(key(i));
+    }
+    assertEquals(100, states.size(), "size does not match.");
+    assertEquals(0, states.accessOrder.size(), "unbounded states should not keep an access order.");
+  }
+
+  @Test
+  public void invalidBounds() {
+    assertThrows(IllegalArgumentException.class, () -> new ExporterStates<String>(-1, 0, TimeUnit.SECONDS, ExporterKey::toString));
+    assertThrows(IllegalArgumentException.class, () -> new ExporterStates<String>(0, -1, TimeUnit.SECONDS, ExporterKey::toString));
+  }
+}
@@ -0,0 +1,209 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FlowAggregationHandlerTest {
+  static final long WINDOW = TimeUnit.MINUTES.toMillis(1);
+
+  static List<NetFlowV9Decoder.NetFlowMessage> messages() {
+    NetFlowV9TrafficGenerator generator = NetFlowV9TrafficGenerator.builder()
+        .templates(8)
+        .ipv6Ratio(0.25)
+        .build();
+    List<NetFlowV9Decoder.NetFlowMessage> result = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      result.add(generator.next());
+    }
+    return result;
+  }
+
+  /**
+   * Records and bytes per top 4 bits of the destination port, computed record by record.
+   */
+  static Map<Long, long[]> expected(List<NetFlowV9Decoder.NetFlowMessage> messages) {
+    Map<Long, long[]> result = new HashMap<>();
+    for (NetFlowV9Decoder.NetFlowMessage message : messages) {
+      for (NetFlowV9Decoder.FlowSet flowSet : message.flowsets()) {
+        if (flowSet instanceof NetFlowV9Decoder.DataFlowSet) {
+          FlowRecordCursor cursor = ((NetFlowV9Decoder.DataFlowSet) flowSet).cursor();
+          while (cursor.next()) {
+            long port = cursor.hasField(FieldType.L4_DST_PORT) ? cursor.getLong(FieldType.L4_DST_PORT) & 0xF000 : 0;
+            long bytes = cursor.hasField(FieldType.IN_BYTES) ? cursor.getLong(FieldType.IN_BYTES) : 0;
+            long[] counters = result.computeIfAbsent(port, k -> new long[2]);
+            counters[0]++;
+            counters[1] += bytes;
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  static class Clock {
+    long millis = 10 * WINDOW + 5;
+  }
+
+  static FlowAggregationHandler handler(FlowAggregationHandler.Builder builder, Clock clock) {
+    return new FlowAggregationHandler(builder.allocator(UnpooledByteBufAllocator.DEFAULT)) {
+      @Override
+      long nowMillis() {
+        return clock.millis;
+      }
+    };
+  }
+
+  static List<FlowAggregationHandler.Window> aggregate(FlowAggregationHandler.Builder builder, List<NetFlowV9Decoder.NetFlowMessage> messages) {
+    Clock clock = new Clock();
+    EmbeddedChannel channel = new EmbeddedChannel(handler(builder, clock));
+    for (NetFlowV9Decoder.NetFlowMessage message : messages) {
+      channel.writeInbound(message.retain());
+      assertEquals(1, message.refCnt(), "messages should be released.");
+    }
+    clock.millis += WINDOW;
+    channel.writeInbound("unrelated");
+    List<FlowAggregationHandler.Window> result = new ArrayList<>();
+    Object msg;
+    while (null != (msg = channel.readInbound())) {
+      if (msg instanceof FlowAggregationHandler.Window) {
+        result.add((FlowAggregationHandler.Window) msg);
+      } else {
+        assertEquals("unrelated", msg, "other messages should pass through.");
+      }
+    }
+    assertFalse(channel.finish());
+    return result;
+  }
+
+  static FlowAggregationHandler.Builder builder() {
+    return FlowAggregationHandler.builder()
+        .key(FieldType.L4_DST_PORT, 2, 4)
+        .sum(FieldType.IN_BYTES);
+  }
+
+  @Test
+  public void exact() {
+    List<NetFlowV9Decoder.NetFlowMessage> messages = messages();
+    Map<Long, long[]> expected = expected(messages);
+    List<FlowAggregationHandler.Window> windows = aggregate(builder(), messages);
+    assertEquals(1, windows.size(), "windows does not match.");
+    FlowAggregationHandler.Window window = windows.get(0);
+    assertFalse(window.isPartial());
+    assertEquals(10 * WINDOW, window.startMillis(), "windows should be aligned.");
+    assertEquals(11 * WINDOW, window.endMillis());
+    assertEquals(expected.size(), window.aggregates().size(), "keys does not match.");
+    for (FlowAggregationHandler.Aggregate aggregate : window.aggregates()) {
+      long[] counters = expected.get(aggregate.keyLong(0));
+      assertNotNull(counters, "unexpected key.");
+      assertEquals(counters[0], aggregate.records(), "records does not match.");
+      assertEquals(counters[1], aggregate.sum(0), "bytes does not match.");
+      assertEquals(0, aggregate.error());
+    }
+    messages.forEach(NetFlowV9Decoder.NetFlowMessage::release);
+  }
+
+  @Test
+  public void partial() {
+    List<NetFlowV9Decoder.NetFlowMessage> messages = messages();
+    Map<Long, long[]> expected = expected(messages);
+    List<FlowAggregationHandler.Window> windows = aggregate(builder().maxEntries(4), messages);
+    assertTrue(windows.size() > 1, "a full table should emit partial windows.");
+    Map<Long, long[]> actual = new HashMap<>();
+    for (int i = 0; i < windows.size(); i++) {
+      assertEquals(i < windows.size() - 1, windows.get(i).isPartial());
+      assertTrue(windows.get(i).aggregates().size() <= 4);
+      for (FlowAggregationHandler.Aggregate aggregate : windows.get(i).aggregates()) {
+        long[] counters = actual.computeIfAbsent(aggregate.keyLong(0), k -> new long[2]);
+        counters[0] += aggregate.records();
+        counters[1] += aggregate.sum(0);
+      }
+    }
+    assertEquals(expected.keySet(), actual.keySet());
+    for (Map.Entry<Long, long[]> entry : expected.entrySet()) {
+      assertArrayEquals(entry.getValue(), actual.get(entry.getKey()), "partial windows should add up.");
+    }
+    messages.forEach(NetFlowV9Decoder.NetFlowMessage::release);
+  }
+
+  @Test
+  public void heavyHitters() {
+    List<NetFlowV9Decoder.NetFlowMessage> messages = messages();
+    Map<Long, long[]> expected = expected(messages);
+    long total = expected.values().stream().mapToLong(counters -> counters[1]).sum();
+    List<FlowAggregationHandler.Window> windows = aggregate(builder().heavyHitters(4).rankBy(FieldType.IN_BYTES), messages);
+    assertEquals(1, windows.size(), "windows does not match.");
+    List<FlowAggregationHandler.Aggregate> aggregates = windows.get(0).aggregates();
+    assertEquals(4, aggregates.size(), "k keys should be kept.");
+    long reported = 0;
+    for (FlowAggregationHandler.Aggregate aggregate : aggregates) {
+      long actual = expected.get(aggregate.keyLong(0))[1];
+      assertTrue(aggregate.sum(0) >= actual, "Space-Saving never underestimates.");
+      assertTrue(aggregate.sum(0) - aggregate.error() <= actual, "error should bound the overestimate.");
+      reported += aggregate.sum(0);
+    }
+    assertEquals(total, reported, "the ranks should add up to the total.");
+    messages.forEach(NetFlowV9Decoder.NetFlowMessage::release);
+  }
+
+  @Test
+  public void table() {
+    AggregationTable table = new AggregationTable(UnpooledByteBufAllocator.DEFAULT, 6, 1, 5000);
+    Map<Long, Long> expected = new HashMap<>();
+    Random random = new Random(1234);
+    ByteBuf key = Unpooled.buffer(8);
+    ByteBuf replacement = Unpooled.buffer(8);
+    for (int i = 0; i < 100000; i++) {
+      long value = random.nextInt(4000);
+      key.setInt(0, (int) value).setShort(4, (int) value);
+      if (random.nextInt(4) == 0) {
+        int entry = table.get(key);
+        assertEquals(expected.containsKey(value), entry >= 0);
+        long replacementValue = random.nextInt(4000);
+        if (entry >= 0 && !expected.containsKey(replacementValue)) {
+          assertEquals((long) expected.remove(value), table.counter(entry, 0));
+          replacement.setInt(0, (int) replacementValue).setShort(4, (int) replacementValue);
+          table.replace(entry, replacement);
+          expected.put(replacementValue, 0L);
+          assertEquals(-1, table.get(key), "a replaced key should be gone.");
+        }
+      } else {
+        int entry = table.entry(key);
+        table.add(entry, 0, 1);
+        expected.merge(value, 1L, Long::sum);
+      }
+    }
+    assertEquals(expected.size(), table.size(), "size does not match.");
+    for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+      key.setInt(0, entry.getKey().intValue()).setShort(4, entry.getKey().intValue());
+      assertEquals((long) entry.getValue(), table.counter(table.get(key), 0));
+    }
+    table.release();
+  }
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FlowPredicateTest {
+  static final InetSocketAddress SENDER = new InetSocketAddress("127.0.0.2", 50000);
+  static final InetSocketAddress RECIPIENT = new InetSocketAddress("127.0.0.1", 2055);
+
+  static List<ByteBuf> packets(double ipv6Ratio) {
+    NetFlowV9TrafficGenerator generator = NetFlowV9TrafficGenerator.builder()
+        .templates(8)
+        .ipv6Ratio(ipv6Ratio)
+        .build();
+    List<ByteBuf> result = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      NetFlowV9Decoder.NetFlowMessage message = generator.next();
+      ByteBuf packet = Unpooled.buffer();
+      NetFlowV9Encoder.encode(message, packet);
+      message.release();
+      result.add(packet);
+    }
+    return result;
+  }
+
+  /**
+   * Decodes the packets and counts the records accepted by check.
+   */
+  static long count(List<ByteBuf> packets, NetFlowDecoderConfig config, Predicate<FlowRecordCursor> check) {
+    EmbeddedChannel channel = new EmbeddedChannel(new NetFlowDecoder(config));
+    long result = 0;
+    for (ByteBuf packet : packets) {
+      channel.writeInbound(new DatagramPacket(packet.retainedDuplicate(), RECIPIENT, SENDER));
+      NetFlowV9Decoder.NetFlowMessage message = channel.readInbound();
+      for (NetFlowV9Decoder.FlowSet flowSet : message.flowsets()) {
+        if (flowSet instanceof NetFlowV9Decoder.DataFlowSet) {
+          FlowRecordCursor cursor = ((NetFlowV9Decoder.DataFlowSet) flowSet).cursor();
+          while (cursor.next()) {
+            if (check.test(cursor)) {
+              result++;
+            }
+          }
+        }
+      }
+      message.release();
+    }
+    assertFalse(channel.finish());
+    return result;
+  }
+
+  void assertFiltered(List<ByteBuf> packets, FlowPredicate predicate, Predicate<FlowRecordCursor> expected) {
+    final long expectedCount = count(packets, NetFlowDecoderConfig.builder().build(), expected);
+    assertTrue(expectedCount > 0, "the predicate should match some records.");
+    for (boolean retainBuffers : new boolean[]{false, true}) {
+      NetFlowDecoderConfig config = NetFlowDecoderConfig.builder()
+          .retainBuffers(retainBuffers)
+          .filter(predicate)
+          .build();
+      assertEquals(expectedCount, count(packets, config, cursor -> {
+        assertTrue(expected.test(cursor), "only matching records should be emitted.");
+        return true;
+      }), "records does not match.");
+    }
+  }
+
+  @Test
+  public void range() {
+    List<ByteBuf> packets = packets(0.25);
+    assertFiltered(
+        packets,
+        FlowPredicate.range(FieldType.IN_BYTES, 0, 0x3FFFFFFFL),
+        cursor -> cursor.getLong(FieldType.IN_BYTES) <= 0x3FFFFFFFL
+    );
+  }
+
+  @Test
+  public void prefix() throws Exception {
+    List<ByteBuf> packets = packets(0.5);
+    assertFiltered(
+        packets,
+        FlowPredicate.or(
+            FlowPredicate.prefix(FieldType.IPV4_SRC_ADDR, InetAddress.getByName("192.0.0.0"), 2),
+            FlowPredicate.prefix(FieldType.IPV6_DST_ADDR, InetAddress.getByName("ff00::"), 3)
+        ),
+        cursor -> cursor.hasField(FieldType.IPV4_SRC_ADDR) ?
+            (cursor.getAddress(FieldType.IPV4_SRC_ADDR, new byte[4])[0] & 0xC0) == 0xC0 :
+            (cursor.getAddress(FieldType.IPV6_DST_ADDR, new byte[16])[0] & 0xE0) == 0xE0
+    );
+  }
+
+  @Test
+  public void anyOf() {
+    List<ByteBuf> packets = packets(0.25);
+    assertFiltered(
+        packets,
+        FlowPredicate.and(
+            FlowPredicate.not(FlowPredicate.anyOf(FieldType.PROTOCOL, 6, 17)),
+            FlowPredicate.range(FieldType.L4_DST_PORT, 0, 32767)
+        ),
+        cursor -> cursor.getLong(FieldType.PROTOCOL) != 6 && cursor.getLong(FieldType.PROTOCOL) != 17 &&
+            cursor.getLong(FieldType.L4_DST_PORT) <= 32767
+    );
+  }
+
+  @Test
+  public void bind() throws Exception {
+    RecordLayout layout = TemplateCacheTest.layout(4, 4);
+    assertSame(FlowPredicate.NEVER, FlowPredicate.equalTo(FieldType.L4_DST_PORT, 443).bind(layout), "missing fields should never match.");
+    assertSame(FlowPredicate.ALWAYS, FlowPredicate.not(FlowPredicate.equalTo(FieldType.L4_DST_PORT, 443)).bind(layout));
+    assertSame(FlowPredicate.NEVER, FlowPredicate.prefix(1, InetAddress.getByName("::1"), 128).bind(layout), "address length should match.");
+    assertThrows(IllegalArgumentException.class, () -> FlowPredicate.prefix(FieldType.IPV4_SRC_ADDR, InetAddress.getByName("10.0.0.0"), 33));
+  }
+}
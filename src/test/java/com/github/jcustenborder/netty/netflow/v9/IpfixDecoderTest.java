@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.handler.codec.MessageToMessageDecoder;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+public class IpfixDecoderTest {
+  static final int APPLICATION_NAME = 96;
+  static final int ENTERPRISE_NUMBER = 9;
+
+  static ByteBuf ipfix() {
+    ByteBuf input = Unpooled.buffer();
+    input.writeShort(10).writeShort(0).writeInt(1484702821).writeInt(42).writeInt(7);
+
+    int start = input.writerIndex();
+    input.writeShort(2).writeShort(0);
+    input.writeShort(256).writeShort(5);
+    input.writeShort(FieldType.IPV4_SRC_ADDR).writeShort(4);
+    input.writeShort(FieldType.IPV4_DST_ADDR).writeShort(4);
+    input.writeShort(FieldType.IN_BYTES).writeShort(8);
+    input.writeShort(0x8000 | 100).writeShort(4).writeInt(ENTERPRISE_NUMBER);
+    input.writeShort(APPLICATION_NAME).writeShort(RecordLayout.VARIABLE_LENGTH);
+    input.setShort(start + 2, input.writerIndex() - start);
+
+    start = input.writerIndex();
+    input.writeShort(256).writeShort(0);
+    input.writeBytes(new byte[]{10, 0, 0, 1}).writeBytes(new byte[]{10, 0, 0, 2}).writeLong(1500L).writeInt(11);
+    input.writeByte(4).writeBytes("http".getBytes(StandardCharsets.US_ASCII));
+    input.writeBytes(new byte[]{10, 0, 0, 3}).writeBytes(new byte[]{10, 0, 0, 4}).writeLong(64L).writeInt(12);
+    input.writeByte(255).writeShort(3).writeBytes("dns".getBytes(StandardCharsets.US_ASCII));
+    input.writeShort(0);
+    input.setShort(start + 2, input.writerIndex() - start);
+
+    input.setShort(2, input.writerIndex());
+    return input;
+  }
+
+  static List<Object> decode(MessageToMessageDecoder<DatagramPacket> decoder, ByteBuf input) throws Exception {
+    DatagramPacket datagramPacket = new DatagramPacket(input, new InetSocketAddress("127.0.0.1", 4739), new InetSocketAddress("127.0.0.2", 50000));
+    List<Object> output = new ArrayList<>();
+    if (decoder instanceof AbstractNetFlowDecoder) {
+      ((AbstractNetFlowDecoder) decoder).decode(mock(ChannelHandlerContext.class), datagramPacket, output);
+    } else {
+      ((NetFlowDecoder) decoder).decode(mock(ChannelHandlerContext.class), datagramPacket, output);
+    }
+    assertEquals(0, input.readableBytes(), "readableBytes should be 0.");
+    return output;
+  }
+
+  @Test
+  public void decode() throws Exception {
+    List<Object> output = decode(new IpfixDecoder(), ipfix());
+    assertEquals(1, output.size(), "output size does not match.");
+    NetFlowV9Decoder.NetFlowMessage message = (NetFlowV9Decoder.NetFlowMessage) output.get(0);
+    assertEquals(10, message.version(), "version does not match.");
+    assertEquals(42, message.flowSequence(), "flowSequence does not match.");
+    assertEquals(7, message.sourceID(), "sourceID does not match.");
+    assertEquals(1484702821, message.timestamp(), "timestamp does not match.");
+    assertEquals(2, message.flowsets().size(), "flowsets.size() does not match.");
+
+    NetFlowV9Decoder.TemplateFlowSet template = (NetFlowV9Decoder.TemplateFlowSet) message.flowsets().get(0);
+    assertEquals(5, template.fields().size(), "fields().size() does not match.");
+    assertEquals(ENTERPRISE_NUMBER, template.fields().get(3).enterpriseNumber(), "enterpriseNumber does not match.");
+    assertEquals(100, template.fields().get(3).type(), "type does not match.");
+
+    NetFlowV9Decoder.DataFlowSet dataFlowSet = (NetFlowV9Decoder.DataFlowSet) message.flowsets().get(1);
+    assertTrue(dataFlowSet.layout().isVariableLength(), "layout should be variable length.");
+    FlowRecordCursor cursor = dataFlowSet.cursor();
+    assertEquals(2, cursor.recordCount(), "recordCount() does not match.");
+
+    byte[] name = new byte[16];
+    assertTrue(cursor.next());
+    assertEquals(1500L, cursor.getLong(FieldType.IN_BYTES), "IN_BYTES does not match.");
+    assertEquals(11L, cursor.getLong(ENTERPRISE_NUMBER, 100), "enterprise field does not match.");
+    assertFalse(cursor.hasField(100), "enterprise field should not match an IANA lookup.");
+    int index = cursor.layout().indexOf(APPLICATION_NAME);
+    assertEquals(4, cursor.lengthAt(index), "length of applicationName does not match.");
+    assertEquals("http", new String(cursor.getAddress(APPLICATION_NAME, name), 0, 4, StandardCharsets.US_ASCII));
+
+    assertTrue(cursor.next());
+    assertEquals(64L, cursor.getLong(FieldType.IN_BYTES), "IN_BYTES does not match.");
+    assertEquals(0x0A000004, cursor.getInt(FieldType.IPV4_DST_ADDR), "IPV4_DST_ADDR does not match.");
+    assertEquals(3, cursor.lengthAt(index), "length of applicationName does not match.");
+    long[] values = cursor.decode(new long[cursor.layout().fieldCount()]);
+    assertEquals(64L, values[cursor.layout().indexOf(FieldType.IN_BYTES)], "decoded IN_BYTES does not match.");
+    assertFalse(cursor.next());
+
+    assertEquals(2, dataFlowSet.records().size(), "records().size() does not match.");
+    assertArrayEquals("dns".getBytes(StandardCharsets.US_ASCII), dataFlowSet.records().get(1).getBytes(APPLICATION_NAME));
+  }
+
+  @Test
+  public void messageLength() throws Exception {
+    ByteBuf input = ipfix();
+    input.writeBytes(new byte[]{0, 2, 0, 8, 1, 2, 3, 4});
+    NetFlowV9Decoder.NetFlowMessage message = (NetFlowV9Decoder.NetFlowMessage) decode(new IpfixDecoder(), input).get(0);
+    assertEquals(2, message.flowsets().size(), "bytes after the message should not be parsed.");
+
+    ByteBuf truncated = ipfix();
+    truncated.writerIndex(truncated.writerIndex() - 1);
+    assertThrows(IllegalStateException.class, () -> decode(new IpfixDecoder(), truncated));
+  }
+
+  @Test
+  public void largeSet() throws Exception {
+    ByteBuf input = Unpooled.buffer();
+    input.writeShort(9).writeShort(2).writeInt(1000).writeInt(1484702821).writeInt(1).writeInt(0);
+    input.writeShort(0).writeShort(12).writeShort(256).writeShort(1).writeShort(FieldType.IN_BYTES).writeShort(4);
+    input.writeShort(256).writeShort(4 + 9000 * 4);
+    for (int i = 0; i < 9000; i++) {
+      input.writeInt(i);
+    }
+    NetFlowV9Decoder.NetFlowMessage message = (NetFlowV9Decoder.NetFlowMessage) decode(new NetFlowV9Decoder(), input).get(0);
+    FlowRecordCursor cursor = ((NetFlowV9Decoder.DataFlowSet) message.flowsets().get(1)).cursor();
+    assertEquals(9000, cursor.recordCount(), "sets over 32767 bytes should decode.");
+  }
+
+  @Test
+  public void dispatch() throws Exception {
+    NetFlowDecoder decoder = new NetFlowDecoder();
+    ByteBuf v9 = Unpooled.buffer();
+    v9.writeShort(9).writeShort(0).writeInt(1000).writeInt(1484702821).writeInt(1).writeInt(0);
+
+    NetFlowV9Decoder.NetFlowMessage message = (NetFlowV9Decoder.NetFlowMessage) decode(decoder, v9).get(0);
+    assertEquals(9, message.version(), "version does not match.");
+    message = (NetFlowV9Decoder.NetFlowMessage) decode(decoder, ipfix()).get(0);
+    assertEquals(10, message.version(), "version does not match.");
+  }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LongAdderNetFlowMetricsTest {
+
+  @Test
+  public void counters() throws Exception {
+    LongAdderNetFlowMetrics metrics = new LongAdderNetFlowMetrics();
+    NetFlowDecoder decoder = new NetFlowDecoder(NetFlowDecoderConfig.builder().metrics(metrics).build());
+    ByteBuf input = IpfixDecoderTest.ipfix();
+    final int length = input.readableBytes();
+    IpfixDecoderTest.decode(decoder, input);
+    IpfixDecoderTest.decode(decoder, IpfixDecoderTest.ipfix());
+
+    ByteBuf unsupported = Unpooled.buffer().writeShort(7).writeShort(0);
+    assertThrows(IllegalStateException.class, () -> IpfixDecoderTest.decode(decoder, unsupported));
+
+    LongAdderNetFlowMetrics.Counters counters = metrics.exporters().get(new ExporterKey(InetAddress.getByName("127.0.0.2"), 7));
+    assertNotNull(counters, "counters for sourceID 7 should exist.");
+    assertEquals(2, counters.packets(), "packets does not match.");
+    assertEquals(4, counters.flowSets(), "flowSets does not match.");
+    assertEquals(2, counters.templates(), "templates does not match.");
+    assertEquals(4, counters.records(), "records does not match.");
+    assertEquals(2L * length, counters.bytes(), "bytes does not match.");
+    assertEquals(0, counters.errors(), "errors does not match.");
+    assertEquals(2, counters.decodeLatency().count(), "decodeLatency count does not match.");
+
+    assertEquals(1, metrics.total().errors(), "total errors does not match.");
+    assertEquals(2, metrics.total().packets(), "total packets does not match.");
+  }
+
+  @Test
+  public void boundedExporters() {
+    LongAdderNetFlowMetrics metrics = new LongAdderNetFlowMetrics(1, 1, TimeUnit.MINUTES);
+    final long[] now = new long[1];
+    metrics.exporters.ticker = () -> now[0];
+    metrics.packetDecoded(new InetSocketAddress("10.0.0.1", 2055), 1, 100, 1, 0, 1, 1000);
+    metrics.packetDecoded(new InetSocketAddress("10.0.0.2", 2055), 1, 100, 1, 0, 1, 1000);
+    assertEquals(1, metrics.exporters().size(), "exporters should be bounded.");
+    assertEquals(1, metrics.exportersEvicted(), "exportersEvicted does not match.");
+    assertEquals(2, metrics.total().packets(), "evicted exporters should stay in the total.");
+
+    now[0] += TimeUnit.MINUTES.toNanos(2);
+    metrics.cleanUp();
+    assertTrue(metrics.exporters().isEmpty(), "idle exporters should expire.");
+    assertEquals(1, metrics.exportersExpired(), "exportersExpired does not match.");
+  }
+
+  @Test
+  public void histogram() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.valueAtPercentile(50), "empty histogram should report 0.");
+    for (long i = 1; i <= 1000; i++) {
+      histogram.record(i * 1000);
+    }
+    assertEquals(1000, histogram.count(), "count does not match.");
+    long median = histogram.valueAtPercentile(50);
+    assertTrue(median >= 500000 && median <= 500000 * 1.125, String.format("median %s is out of range.", median));
+    long max = histogram.max();
+    assertTrue(max >= 1000000 && max <= 1000000 * 1.125, String.format("max %s is out of range.", max));
+
+    for (long value : new long[]{0, 1, 7, 8, 9, 1023, 1024, Long.MAX_VALUE}) {
+      int bucket = LatencyHistogram.bucket(value);
+      assertTrue(LatencyHistogram.lowestValue(bucket) <= value && value <= LatencyHistogram.highestValue(bucket),
+          String.format("value %s is not within bucket %s.", value, bucket));
+    }
+  }
+
+  @Test
+  public void stripedHistogram() throws Exception {
+    LatencyHistogram histogram = new LatencyHistogram(3);
+    assertEquals(3, histogram.stripeMask, "stripes should be rounded up to a power of two.");
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      final long value = (t + 1) * 1000L;
+      threads[t] = new Thread(() -> {
+        for (int i = 0; i < 1000; i++) {
+          histogram.record(value);
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(4000, histogram.count(), "count does not match.");
+    long median = histogram.valueAtPercentile(50);
+    assertTrue(median >= 2000 && median <= 2000 * 1.125, String.format("median %s is out of range.", median));
+    long max = histogram.max();
+    assertTrue(max >= 4000 && max <= 4000 * 1.125, String.format("max %s is out of range.", max));
+    histogram.reset();
+    assertEquals(0, histogram.count(), "reset should clear every stripe.");
+  }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NetFlowCollectorTest {
+
+  void loopback(boolean preferEpoll) throws Exception {
+    final BlockingQueue<Integer> sequences = new LinkedBlockingQueue<>();
+    try (NetFlowCollector collector = NetFlowCollector.builder()
+        .bindAddress(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))
+        .channels(2)
+        .receiveBufferSize(1024 * 1024)
+        .preferEpoll(preferEpoll)
+        .config(NetFlowDecoderConfig.builder().retainBuffers(true).build())
+        .handlerFactory(() -> new SimpleChannelInboundHandler<NetFlowV9Decoder.NetFlowMessage>() {
+          @Override
+          protected void channelRead0(ChannelHandlerContext ctx, NetFlowV9Decoder.NetFlowMessage message) {
+            sequences.add(message.flowSequence());
+          }
+        })
+        .start()) {
+      assertEquals(collector.isEpoll() ? 2 : 1, collector.channels().size(), "channels does not match.");
+
+      try (DatagramSocket socket = new DatagramSocket()) {
+        for (int sequence = 1; sequence <= 10; sequence++) {
+          byte[] datagram = SequenceTrackerTest.v9(sequence).array();
+          socket.send(new DatagramPacket(datagram, 20, collector.localAddress()));
+        }
+      }
+      int received = 0;
+      while (received < 10) {
+        assertNotNull(sequences.poll(10, TimeUnit.SECONDS), "timed out waiting for datagrams.");
+        received++;
+      }
+    }
+  }
+
+  @Test
+  public void nio() throws Exception {
+    loopback(false);
+  }
+
+  @Test
+  public void epoll() throws Exception {
+    loopback(true);
+  }
+
+  @Test
+  public void copySmallDatagrams() {
+    EmbeddedChannel channel = new EmbeddedChannel(new NetFlowCollector.DatagramCopier(100));
+    InetSocketAddress recipient = new InetSocketAddress(InetAddress.getLoopbackAddress(), 2055);
+    InetSocketAddress sender = new InetSocketAddress(InetAddress.getLoopbackAddress(), 1234);
+
+    ByteBuf small = Unpooled.buffer(1024).writeZero(20);
+    channel.writeInbound(new io.netty.channel.socket.DatagramPacket(small, recipient, sender));
+    io.netty.channel.socket.DatagramPacket copied = channel.readInbound();
+    assertEquals(0, small.refCnt(), "receive buffer should be released.");
+    assertEquals(20, copied.content().capacity(), "copy should be sized to the datagram.");
+    assertEquals(sender, copied.sender(), "sender does not match.");
+    copied.release();
+
+    ByteBuf large = Unpooled.buffer(1024).writeZero(200);
+    channel.writeInbound(new io.netty.channel.socket.DatagramPacket(large, recipient, sender));
+    io.netty.channel.socket.DatagramPacket passed = channel.readInbound();
+    assertSame(large, passed.content(), "large datagrams should not be copied.");
+    assertEquals(1, large.refCnt(), "refCnt does not match.");
+    passed.release();
+    assertFalse(channel.finish());
+  }
+
+  @Test
+  public void invalidSizes() {
+    assertThrows(IllegalArgumentException.class, () -> NetFlowCollector.builder().maxDatagramSize(0));
+    assertThrows(IllegalArgumentException.class, () -> NetFlowCollector.builder().maxDatagramSize(65537));
+    assertThrows(IllegalArgumentException.class, () -> NetFlowCollector.builder().copyThreshold(-1));
+  }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NetFlowV5DecoderTest {
+
+  static ByteBuf v5(int count) {
+    ByteBuf input = Unpooled.buffer();
+    input.writeShort(5).writeShort(count).writeInt(340561).writeInt(1484702821).writeInt(0).writeInt(1000);
+    input.writeByte(1).writeByte(2).writeShort(0);
+    for (int i = 0; i < count; i++) {
+      input.writeBytes(new byte[]{10, 10, 1, (byte) i});
+      input.writeBytes(new byte[]{23, 76, (byte) 195, 66});
+      input.writeInt(0);
+      input.writeShort(1).writeShort(2);
+      input.writeInt(9 + i).writeInt(1087 + i);
+      input.writeInt(193029).writeInt(194309);
+      input.writeShort(50974).writeShort(443);
+      input.writeByte(0).writeByte(0x1f).writeByte(6).writeByte(0);
+      input.writeShort(65000).writeShort(15169);
+      input.writeByte(24).writeByte(16).writeShort(0);
+    }
+    return input;
+  }
+
+  @Test
+  public void decode() throws Exception {
+    List<Object> output = IpfixDecoderTest.decode(new NetFlowV5Decoder(), v5(3));
+    NetFlowV9Decoder.NetFlowMessage message = (NetFlowV9Decoder.NetFlowMessage) output.get(0);
+    assertEquals(5, message.version(), "version does not match.");
+    assertEquals(3, message.count(), "count does not match.");
+    assertEquals(1000, message.flowSequence(), "flowSequence does not match.");
+    assertEquals(0x0102, message.sourceID(), "sourceID does not match.");
+    assertEquals(1, message.flowsets().size(), "flowsets.size() does not match.");
+
+    NetFlowV9Decoder.DataFlowSet dataFlowSet = (NetFlowV9Decoder.DataFlowSet) message.flowsets().get(0);
+    assertEquals(NetFlowV5Decoder.RECORD_LENGTH, dataFlowSet.layout().recordLength(), "recordLength does not match.");
+    FlowRecordCursor cursor = dataFlowSet.cursor();
+    assertEquals(3, cursor.recordCount(), "recordCount() does not match.");
+    byte[] address = new byte[4];
+    for (int i = 0; cursor.next(); i++) {
+      assertArrayEquals(new byte[]{10, 10, 1, (byte) i}, cursor.getAddress(FieldType.IPV4_SRC_ADDR, address));
+      assertEquals(1087L + i, cursor.getLong(FieldType.IN_BYTES), "IN_BYTES does not match.");
+      assertEquals(9L + i, cursor.getLong(FieldType.IN_PKTS), "IN_PKTS does not match.");
+      assertEquals(443, cursor.getInt(FieldType.L4_DST_PORT), "L4_DST_PORT does not match.");
+      assertEquals(6, cursor.getInt(FieldType.PROTOCOL), "PROTOCOL does not match.");
+      assertEquals(15169L, cursor.getLong(FieldType.DST_AS), "DST_AS does not match.");
+      assertEquals(16, cursor.getInt(FieldType.DST_MASK), "DST_MASK does not match.");
+    }
+  }
+
+  @Test
+  public void truncated() {
+    ByteBuf input = v5(2);
+    input.writerIndex(input.writerIndex() - 1);
+    assertThrows(IllegalStateException.class, () -> IpfixDecoderTest.decode(new NetFlowV5Decoder(), input));
+  }
+
+  @Test
+  public void invalidCount() {
+    for (int count : new int[]{31, 0x8000, 0xFFFF}) {
+      ByteBuf input = v5(1);
+      input.setShort(2, count);
+      IllegalStateException exception = assertThrows(IllegalStateException.class, () -> IpfixDecoderTest.decode(new NetFlowV5Decoder(), input));
+      assertTrue(exception.getMessage().contains("count " + count + " exceeds"), exception.getMessage());
+    }
+  }
+
+  @Test
+  public void dispatch() throws Exception {
+    List<Object> output = IpfixDecoderTest.decode(new NetFlowDecoder(), v5(1));
+    NetFlowV9Decoder.NetFlowMessage message = (NetFlowV9Decoder.NetFlowMessage) output.get(0);
+    assertEquals(5, message.version(), "version does not match.");
+  }
+}
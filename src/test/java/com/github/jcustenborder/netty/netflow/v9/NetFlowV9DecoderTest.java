@@ -15,12 +15,16 @@
  */
 package com.github.jcustenborder.netty.netflow.v9;
 
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
 import com.github.jcustenborder.netty.netflow.v9.json.ObjectMapperSingleton;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
 import io.netty.channel.socket.DatagramPacket;
 import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -103,8 +107,7 @@ public class NetFlowV9DecoderTest {
     }
   }
 
-  void decode(String testCaseFile) throws Exception {
-    TestCase testCase = readTestCase(testCaseFile);
+  NetFlowV9Decoder.NetFlowMessage decode(TestCase testCase) throws Exception {
     ByteBuf byteBuf = testCase.byteBuf();
     log.trace("length {}", byteBuf.readableBytes());
 
@@ -122,11 +125,226 @@ public class NetFlowV9DecoderTest {
     assertEquals(0, datagramPacket.content().readableBytes(), "readableBytes should be 0.");
     assertEquals(1, list.size(), "list size does not match.");
     assertTrue(list.get(0) instanceof NetFlowV9Decoder.NetFlowMessage, "Object must be instanceof NetFlowMessage.");
-    NetFlowV9Decoder.NetFlowMessage actual = (NetFlowV9Decoder.NetFlowMessage) list.get(0);
+    return (NetFlowV9Decoder.NetFlowMessage) list.get(0);
+  }
+
+  void decode(String testCaseFile) throws Exception {
+    TestCase testCase = readTestCase(testCaseFile);
+    NetFlowV9Decoder.NetFlowMessage actual = decode(testCase);
 //    log.trace(ObjectMapperSingleton.instance.writeValueAsString(actual));
     assertMessage(testCase.expected, actual);
   }
 
+  @Test
+  public void records() throws Exception {
+    TestCase testCase = readTestCase("testcase001.json");
+    NetFlowV9Decoder.NetFlowMessage actual = decode(testCase);
+    NetFlowV9Decoder.DataFlowSet dataFlowSet = (NetFlowV9Decoder.DataFlowSet) actual.flowsets().get(2);
+    assertNotNull(dataFlowSet.layout(), "layout should be resolved from the template in the same message.");
+    assertEquals(31, dataFlowSet.layout().recordLength(), "recordLength does not match.");
+    assertEquals(12, dataFlowSet.records().size(), "records().size() does not match.");
+
+    NetFlowV9Decoder.FlowRecord record = dataFlowSet.records().get(0);
+    assertArrayEquals(new byte[]{10, 10, 1, 17}, record.getBytes(FieldType.IPV4_SRC_ADDR), "IPV4_SRC_ADDR does not match.");
+    assertEquals(1087L, record.getLong(FieldType.IN_BYTES), "IN_BYTES does not match.");
+    assertEquals(9L, record.getLong(FieldType.IN_PKTS), "IN_PKTS does not match.");
+    assertEquals(50974L, record.getLong(FieldType.L4_SRC_PORT), "L4_SRC_PORT does not match.");
+    assertEquals(443L, record.getLong(FieldType.L4_DST_PORT), "L4_DST_PORT does not match.");
+    assertEquals(6L, record.getLong(FieldType.PROTOCOL), "PROTOCOL does not match.");
+    assertFalse(record.hasField(FieldType.IPV6_SRC_ADDR), "IPV6_SRC_ADDR should not be present.");
+  }
+
+
+  @Test
+  public void cursor() throws Exception {
+    TestCase testCase = readTestCase("testcase001.json");
+    NetFlowV9Decoder.NetFlowMessage actual = decode(testCase);
+    NetFlowV9Decoder.DataFlowSet dataFlowSet = (NetFlowV9Decoder.DataFlowSet) actual.flowsets().get(2);
+
+    FlowRecordCursor cursor = new FlowRecordCursor();
+    cursor.reset(dataFlowSet);
+    assertEquals(12, cursor.recordCount(), "recordCount() does not match.");
+
+    byte[] address = new byte[4];
+    int records = 0;
+    while (cursor.next()) {
+      NetFlowV9Decoder.FlowRecord expected = dataFlowSet.records().get(records);
+      assertArrayEquals(expected.getBytes(FieldType.IPV4_DST_ADDR), cursor.getAddress(FieldType.IPV4_DST_ADDR, address), "IPV4_DST_ADDR does not match.");
+      assertEquals(expected.getLong(FieldType.IN_BYTES), cursor.getLong(FieldType.IN_BYTES), "IN_BYTES does not match.");
+      assertEquals((int) expected.getLong(FieldType.L4_DST_PORT), cursor.getInt(FieldType.L4_DST_PORT), "L4_DST_PORT does not match.");
+      records++;
+    }
+    assertEquals(12, records, "records does not match.");
+    assertFalse(cursor.next(), "next() should stay false once exhausted.");
+  }
+
+  @Test
+  public void compiledDecoder() throws Exception {
+    TestCase testCase = readTestCase("testcase001.json");
+    NetFlowV9Decoder.NetFlowMessage actual = decode(testCase);
+    NetFlowV9Decoder.DataFlowSet dataFlowSet = (NetFlowV9Decoder.DataFlowSet) actual.flowsets().get(2);
+    RecordLayout layout = dataFlowSet.layout();
+    assertTrue(layout.decoder() instanceof RecordDecoder.FusedRecordDecoder, "decoder should be fused.");
+    assertSame(layout.decoder(), layout.decoder(), "decoder should be compiled once.");
+
+    FlowRecordCursor cursor = dataFlowSet.cursor();
+    long[] values = new long[layout.fieldCount()];
+    while (cursor.next()) {
+      cursor.decode(values);
+      for (int i = 0; i < layout.fieldCount(); i++) {
+        assertEquals(cursor.getLongAt(i), values[i], String.format("field %s does not match.", i));
+      }
+    }
+  }
+
+  @Test
+  public void packetLog() throws Exception {
+    ListAppender<ILoggingEvent> appender = new ListAppender<>();
+    appender.start();
+    ch.qos.logback.classic.Logger packetLog = (ch.qos.logback.classic.Logger) AbstractNetFlowDecoder.PACKET_LOG;
+    packetLog.addAppender(appender);
+    try {
+      this.decoder = new NetFlowV9Decoder(NetFlowDecoderConfig.builder().packetLogSampleRate(2).build());
+      TestCase testCase = readTestCase("testcase001.json");
+      decode(testCase);
+      decode(testCase);
+      assertEquals(1, appender.list.size(), "only the first of two packets should be sampled.");
+      String message = appender.list.get(0).getFormattedMessage();
+      assertTrue(message.contains("version=9"), message);
+      assertTrue(message.contains("flowsets=[template:1024 template:2048 data:1024/"), message);
+
+      ByteBuf input = Unpooled.buffer();
+      input.writeShort(9).writeShort(1).writeInt(1000).writeInt(1484702821).writeInt(1).writeInt(0);
+      input.writeShort(0).writeShort(64);
+      DatagramPacket datagramPacket = new DatagramPacket(input, new InetSocketAddress(2055), new InetSocketAddress(64321));
+      assertThrows(RuntimeException.class, () -> this.decoder.decode(mock(ChannelHandlerContext.class), datagramPacket, new ArrayList<>()));
+      assertEquals(2, appender.list.size(), "failed packets should always be logged.");
+      message = appender.list.get(1).getFormattedMessage();
+      assertTrue(message.contains("error="), message);
+      assertTrue(message.contains("hex=00090001"), message);
+    } finally {
+      packetLog.detachAppender(appender);
+    }
+  }
+
+  @Test
+  public void batch() throws Exception {
+    InetSocketAddress sender = new InetSocketAddress("127.0.0.2", 50000);
+    InetSocketAddress recipient = new InetSocketAddress("127.0.0.1", 2055);
+    NetFlowDecoder decoder = new NetFlowDecoder(NetFlowDecoderConfig.builder().maxBatchSize(2).build());
+    assertNotNull(decoder.batcher, "the dispatcher should batch.");
+    assertNull(decoder.netFlowV5Decoder.batcher, "the v5 decoder should not batch.");
+    assertNull(decoder.netFlowV9Decoder.batcher, "the v9 decoder should not batch.");
+    assertNull(decoder.ipfixDecoder.batcher, "the IPFIX decoder should not batch.");
+    EmbeddedChannel channel = new EmbeddedChannel(decoder);
+    channel.writeInbound(
+        new DatagramPacket(SequenceTrackerTest.v9(1), recipient, sender),
+        new DatagramPacket(SequenceTrackerTest.v9(2), recipient, sender),
+        new DatagramPacket(SequenceTrackerTest.v9(3), recipient, sender)
+    );
+
+    NetFlowV9Decoder.NetFlowBatch batch = channel.readInbound();
+    assertEquals(2, batch.messages().size(), "a full batch should be emitted before channelReadComplete.");
+    assertEquals(1, batch.messages().get(0).flowSequence(), "flowSequence does not match.");
+    batch.release();
+    batch = channel.readInbound();
+    assertEquals(1, batch.messages().size(), "the remainder should be emitted on channelReadComplete.");
+    assertEquals(3, batch.messages().get(0).flowSequence(), "flowSequence does not match.");
+    assertEquals(1, batch.messages().get(0).refCnt(), "refCnt does not match.");
+    batch.release();
+    assertEquals(0, batch.messages().get(0).refCnt(), "releasing the batch should release its messages.");
+    assertNull(channel.readInbound(), "no more batches should be emitted.");
+    assertFalse(channel.finish());
+  }
+
+  @Test
+  public void multipleTemplates() throws Exception {
+    ByteBuf input = Unpooled.buffer();
+    input.writeShort(9).writeShort(4).writeInt(1000).writeInt(1484702821).writeInt(1).writeInt(0);
+    // Templates 256 and 257 packed into one flowset with two bytes of padding.
+    input.writeShort(0).writeShort(4 + 12 + 8 + 2);
+    input.writeShort(256).writeShort(2)
+        .writeShort(FieldType.IN_BYTES).writeShort(4)
+        .writeShort(FieldType.IN_PKTS).writeShort(4);
+    input.writeShort(257).writeShort(1)
+        .writeShort(FieldType.L4_SRC_PORT).writeShort(2);
+    input.writeShort(0);
+    input.writeShort(256).writeShort(4 + 8).writeInt(1500).writeInt(3);
+    input.writeShort(257).writeShort(4 + 4).writeShort(443).writeShort(0);
+
+    DatagramPacket datagramPacket = new DatagramPacket(input, new InetSocketAddress(2055), new InetSocketAddress(64321));
+    List<Object> list = new ArrayList<>();
+    this.decoder.decode(mock(ChannelHandlerContext.class), datagramPacket, list);
+    NetFlowV9Decoder.NetFlowMessage actual = (NetFlowV9Decoder.NetFlowMessage) list.get(0);
+    assertEquals(4, actual.flowsets().size(), "flowsets.size() does not match.");
+    assertEquals(256, ((NetFlowV9Decoder.TemplateFlowSet) actual.flowsets().get(0)).templateID(), "templateID does not match.");
+    assertEquals(257, ((NetFlowV9Decoder.TemplateFlowSet) actual.flowsets().get(1)).templateID(), "templateID does not match.");
+
+    NetFlowV9Decoder.DataFlowSet dataFlowSet = (NetFlowV9Decoder.DataFlowSet) actual.flowsets().get(2);
+    assertEquals(1500L, dataFlowSet.records().get(0).getLong(FieldType.IN_BYTES), "IN_BYTES does not match.");
+    dataFlowSet = (NetFlowV9Decoder.DataFlowSet) actual.flowsets().get(3);
+    assertNotNull(dataFlowSet.layout(), "the second template should be registered.");
+    assertEquals(443L, dataFlowSet.records().get(0).getLong(FieldType.L4_SRC_PORT), "L4_SRC_PORT does not match.");
+  }
+
+  @Test
+  public void optionsTemplate() throws Exception {
+    ByteBuf input = Unpooled.buffer();
+    input.writeShort(9).writeShort(2).writeInt(1000).writeInt(1484702821).writeInt(1).writeInt(0);
+    // Options template 256 scoped by interface with a 4 byte sampling interval and 8 byte interface name.
+    input.writeShort(1).writeShort(24).writeShort(256).writeShort(4).writeShort(8);
+    input.writeShort(ScopeType.INTERFACE).writeShort(4);
+    input.writeShort(FieldType.SAMPLING_INTERVAL).writeShort(4);
+    input.writeShort(FieldType.IF_NAME).writeShort(8);
+    input.writeShort(0);
+    // Options data with two records and two bytes of padding.
+    input.writeShort(256).writeShort(4 + 32 + 2);
+    input.writeInt(3).writeInt(100).writeBytes("Gi0/0/3\0".getBytes("US-ASCII"));
+    input.writeInt(4).writeInt(1000).writeBytes("Gi0/0/4\0".getBytes("US-ASCII"));
+    input.writeShort(0);
+
+    DatagramPacket datagramPacket = new DatagramPacket(input, new InetSocketAddress(2055), new InetSocketAddress(64321));
+    List<Object> list = new ArrayList<>();
+    this.decoder.decode(mock(ChannelHandlerContext.class), datagramPacket, list);
+    NetFlowV9Decoder.NetFlowMessage actual = (NetFlowV9Decoder.NetFlowMessage) list.get(0);
+    assertEquals(2, actual.flowsets().size(), "flowsets.size() does not match.");
+
+    NetFlowV9Decoder.OptionsTemplateFlowSet optionsTemplateFlowSet = (NetFlowV9Decoder.OptionsTemplateFlowSet) actual.flowsets().get(0);
+    assertEquals(256, optionsTemplateFlowSet.templateID(), "templateID does not match.");
+    assertEquals(1, optionsTemplateFlowSet.scopeFields().size(), "scopeFields().size() does not match.");
+    assertEquals(2, optionsTemplateFlowSet.optionFields().size(), "optionFields().size() does not match.");
+
+    NetFlowV9Decoder.DataFlowSet dataFlowSet = (NetFlowV9Decoder.DataFlowSet) actual.flowsets().get(1);
+    assertTrue(dataFlowSet.layout().isOptions(), "layout should be an options layout.");
+    assertEquals(2, dataFlowSet.records().size(), "records().size() does not match.");
+    NetFlowV9Decoder.FlowRecord record = dataFlowSet.records().get(1);
+    assertEquals(4L, record.getScopeLong(ScopeType.INTERFACE), "INTERFACE scope does not match.");
+    assertEquals(1000L, record.getLong(FieldType.SAMPLING_INTERVAL), "SAMPLING_INTERVAL does not match.");
+    assertArrayEquals("Gi0/0/4\0".getBytes("US-ASCII"), record.getBytes(FieldType.IF_NAME), "IF_NAME does not match.");
+  }
+
+  @Test
+  public void retainBuffers() throws Exception {
+    TestCase testCase = readTestCase("testcase001.json");
+    this.decoder = new NetFlowV9Decoder(new NetFlowFactoryImpl(), new TemplateCache(), true);
+    ByteBuf byteBuf = testCase.byteBuf();
+    InetSocketAddress sender = new InetSocketAddress("8.8.8.8", 64321);
+    InetSocketAddress recipient = new InetSocketAddress("8.8.4.4", 2055);
+    DatagramPacket datagramPacket = new DatagramPacket(byteBuf, recipient, sender);
+    List<Object> list = new ArrayList<>();
+    this.decoder.decode(mock(ChannelHandlerContext.class), datagramPacket, list);
+    datagramPacket.release();
+
+    NetFlowV9Decoder.NetFlowMessage actual = (NetFlowV9Decoder.NetFlowMessage) list.get(0);
+    assertEquals(1, byteBuf.refCnt(), "datagram should be retained by the data flowset.");
+    NetFlowV9Decoder.DataFlowSet dataFlowSet = (NetFlowV9Decoder.DataFlowSet) actual.flowsets().get(2);
+    assertEquals(372, dataFlowSet.content().readableBytes(), "content().readableBytes() does not match.");
+    assertEquals(12, dataFlowSet.records().size(), "records().size() does not match.");
+    assertMessage(testCase.expected, actual);
+
+    assertTrue(actual.release(), "message should be deallocated.");
+    assertEquals(0, byteBuf.refCnt(), "datagram should be released with the message.");
+  }
 
   public static class TestCase {
     public byte[] input;
@@ -0,0 +1,169 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NetFlowV9EncoderTest {
+  static final InetSocketAddress SENDER = new InetSocketAddress("127.0.0.2", 50000);
+  static final InetSocketAddress RECIPIENT = new InetSocketAddress("127.0.0.1", 2055);
+
+  @Test
+  public void fullDatagrams() {
+    for (int maxDatagramSize : new int[]{1472, 1473, 1474, 1475, 1500, 9000}) {
+      for (long seed = 0; seed < 8; seed++) {
+        NetFlowV9TrafficGenerator generator = NetFlowV9TrafficGenerator.builder()
+            .seed(seed)
+            .templates(8)
+            .recordsPerPacket(10000)
+            .maxDatagramSize(maxDatagramSize)
+            .build();
+        for (int packet = 0; packet < 50; packet++) {
+          NetFlowV9Decoder.NetFlowMessage message = generator.next();
+          try {
+            final int length = NetFlowV9Encoder.encodedLength(message);
+            assertTrue(length <= maxDatagramSize, String.format("%s bytes exceed maxDatagramSize %s.", length, maxDatagramSize));
+            assertTrue(length > maxDatagramSize - 4 - generator.maxRecordLength() - 3, String.format("%s bytes should fill maxDatagramSize %s.", length, maxDatagramSize));
+          } finally {
+            message.release();
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void roundTrip() {
+    NetFlowV9TrafficGenerator generator = NetFlowV9TrafficGenerator.builder()
+        .sender(SENDER)
+        .recipient(RECIPIENT)
+        .sourceID(7)
+        .templates(16)
+        .ipv6Ratio(0.5)
+        .templateInterval(5)
+        .build();
+    EmbeddedChannel encoder = new EmbeddedChannel(new NetFlowV9Encoder());
+    EmbeddedChannel decoder = new EmbeddedChannel(new NetFlowV9Decoder(true));
+
+    for (int packet = 0; packet < 1000; packet++) {
+      NetFlowV9Decoder.NetFlowMessage expected = generator.next().retain();
+      try {
+        encoder.writeOutbound(expected);
+        DatagramPacket datagramPacket = encoder.readOutbound();
+        assertEquals(RECIPIENT, datagramPacket.recipient(), "recipient does not match.");
+        assertTrue(datagramPacket.content().readableBytes() <= 1472, "datagram should fit maxDatagramSize.");
+        assertEquals(NetFlowV9Encoder.encodedLength(expected), datagramPacket.content().readableBytes(), "length does not match.");
+        decoder.writeInbound(new DatagramPacket(datagramPacket.content(), RECIPIENT, SENDER));
+
+        NetFlowV9Decoder.NetFlowMessage actual = decoder.readInbound();
+        try {
+          assertEquals(expected.count(), actual.count(), "count does not match.");
+          assertEquals(expected.flowSequence(), actual.flowSequence(), "flowSequence does not match.");
+          assertEquals(expected.sourceID(), actual.sourceID(), "sourceID does not match.");
+          assertEquals(expected.flowsets().size(), actual.flowsets().size(), "flowsets does not match.");
+          for (int i = 0; i < expected.flowsets().size(); i++) {
+            NetFlowV9Decoder.FlowSet expectedFlowSet = expected.flowsets().get(i);
+            NetFlowV9Decoder.FlowSet actualFlowSet = actual.flowsets().get(i);
+            if (expectedFlowSet instanceof NetFlowV9Decoder.TemplateFlowSet) {
+              assertEquals(
+                  RecordLayout.of(((NetFlowV9Decoder.TemplateFlowSet) expectedFlowSet).fields()),
+                  RecordLayout.of(((NetFlowV9Decoder.TemplateFlowSet) actualFlowSet).fields()),
+                  "template does not match."
+              );
+            } else {
+              NetFlowV9Decoder.DataFlowSet expectedData = (NetFlowV9Decoder.DataFlowSet) expectedFlowSet;
+              NetFlowV9Decoder.DataFlowSet actualData = (NetFlowV9Decoder.DataFlowSet) actualFlowSet;
+              assertEquals(expectedData.layout(), actualData.layout(), "layout does not match.");
+              FlowRecordCursor expectedCursor = expectedData.cursor();
+              FlowRecordCursor actualCursor = actualData.cursor();
+              assertEquals(expectedCursor.recordCount(), actualCursor.recordCount(), "recordCount does not match.");
+              while (expectedCursor.next() && actualCursor.next()) {
+                assertTrue(
+                    ByteBufUtil.equals(expectedCursor.buffer(), expectedCursor.recordOffset(), actualCursor.buffer(), actualCursor.recordOffset(), expectedCursor.recordLength()),
+                    "record does not match."
+                );
+              }
+            }
+          }
+        } finally {
+          actual.release();
+        }
+      } finally {
+        expected.release();
+      }
+    }
+    assertFalse(encoder.finish());
+    assertFalse(decoder.finish());
+  }
+
+  @Test
+  public void loopback() throws Exception {
+    final BlockingQueue<NetFlowV9Decoder.NetFlowMessage> messages = new LinkedBlockingQueue<>();
+    EventLoopGroup eventLoopGroup = new NioEventLoopGroup(1);
+    try (NetFlowCollector collector = NetFlowCollector.builder()
+        .bindAddress(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))
+        .preferEpoll(false)
+        .receiveBufferSize(4 * 1024 * 1024)
+        .handlerFactory(() -> new SimpleChannelInboundHandler<NetFlowV9Decoder.NetFlowMessage>(false) {
+          @Override
+          protected void channelRead0(ChannelHandlerContext ctx, NetFlowV9Decoder.NetFlowMessage message) {
+            messages.add(message);
+          }
+        })
+        .start()) {
+      Channel channel = new Bootstrap()
+          .group(eventLoopGroup)
+          .channel(NioDatagramChannel.class)
+          .handler(new NetFlowV9Encoder(collector.localAddress()))
+          .bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))
+          .sync()
+          .channel();
+      NetFlowV9TrafficGenerator generator = NetFlowV9TrafficGenerator.builder()
+          .templateInterval(1)
+          .build();
+      generator.send(channel, 100);
+      assertEquals(100, generator.packets(), "packets does not match.");
+
+      NetFlowV9Decoder.NetFlowMessage message = messages.poll(10, TimeUnit.SECONDS);
+      assertNotNull(message, "timed out waiting for datagrams.");
+      NetFlowV9Decoder.FlowSet last = message.flowsets().get(message.flowsets().size() - 1);
+      assertNotNull(((NetFlowV9Decoder.DataFlowSet) last).layout(), "data should be decoded with the templates of the packet.");
+      assertTrue(((NetFlowV9Decoder.DataFlowSet) last).cursor().recordCount() > 0, "records should be decoded.");
+      message.release();
+      channel.close().sync();
+    } finally {
+      eventLoopGroup.shutdownGracefully().syncUninterruptibly();
+    }
+  }
+}
@@ -0,0 +1,232 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PcapIngestTest {
+  static final InetSocketAddress COLLECTOR = new InetSocketAddress("10.0.0.1", 2055);
+
+  static ByteBuf udp(InetSocketAddress sender, ByteBuf payload, boolean ipv6) {
+    ByteBuf result = Unpooled.buffer();
+    final int udpLength = 8 + payload.readableBytes();
+    if (ipv6) {
+      result.writeInt(0x60000000).writeShort(udpLength).writeByte(17).writeByte(64);
+      // IPv4 compatible addresses keep the exporters of both captures alike.
+      result.writeZero(12).writeBytes(sender.getAddress().getAddress());
+      result.writeZero(12).writeBytes(COLLECTOR.getAddress().getAddress());
+    } else {
+      result.writeByte(0x45).writeByte(0).writeShort(20 + udpLength).writeShort(0).writeShort(0x4000);
+      result.writeByte(64).writeByte(17).writeShort(0);
+      result.writeBytes(sender.getAddress().getAddress()).writeBytes(COLLECTOR.getAddress().getAddress());
+    }
+    result.writeShort(sender.getPort()).writeShort(COLLECTOR.getPort()).writeShort(udpLength).writeShort(0);
+    result.writeBytes(payload);
+    payload.release();
+    return result;
+  }
+
+  static ByteBuf ethernet(ByteBuf ip) {
+    ByteBuf result = Unpooled.buffer();
+    result.writeZero(12).writeShort(0x8100).writeShort(42).writeShort(0x0800);
+    result.writeBytes(ip);
+    ip.release();
+    return result;
+  }
+
+  static NetFlowV9TrafficGenerator[] generators(int count) {
+    NetFlowV9TrafficGenerator[] result = new NetFlowV9TrafficGenerator[count];
+    for (int i = 0; i < count; i++) {
+      result[i] = NetFlowV9TrafficGenerator.builder()
+          .sender(new InetSocketAddress("10.1.0." + (i + 1), 40000 + i))
+          .seed(i)
+          .templates(8)
+          .templateInterval(50)
+          .build();
+    }
+    return result;
+  }
+
+  /**
+   * Writes interleaved packets of several exporters and returns the number of flow records.
+   */
+  static long writePcap(Path path, int exporters, int packets) throws IOException {
+    NetFlowV9TrafficGenerator[] generators = generators(exporters);
+    long records = 0;
+    try (OutputStream output = Files.newOutputStream(path)) {
+      ByteBuf header = Unpooled.buffer();
+      header.writeIntLE(PcapReader.PCAP_MAGIC).writeShortLE(2).writeShortLE(4).writeIntLE(0).writeIntLE(0).writeIntLE(65535).writeIntLE(PcapReader.LINKTYPE_ETHERNET);
+      header.readBytes(output, header.readableBytes());
+      for (int packet = 0; packet < packets; packet++) {
+        for (NetFlowV9TrafficGenerator generator : generators) {
+          NetFlowV9Decoder.NetFlowMessage message = generator.next();
+          records += records(message);
+          ByteBuf payload = Unpooled.buffer();
+          NetFlowV9Encoder.encode(message, payload);
+          message.release();
+          ByteBuf frame = ethernet(udp(message.sender(), payload, false));
+          ByteBuf record = Unpooled.buffer();
+          record.writeIntLE(packet).writeIntLE(0).writeIntLE(frame.readableBytes()).writeIntLE(frame.readableBytes());
+          record.readBytes(output, record.readableBytes());
+          frame.readBytes(output, frame.readableBytes());
+          frame.release();
+        }
+      }
+    }
+    return records;
+  }
+
+  static long writePcapng(Path path, int exporters, int packets) throws IOException {
+    NetFlowV9TrafficGenerator[] generators = generators(exporters);
+    long records = 0;
+    try (OutputStream output = Files.newOutputStream(path)) {
+      ByteBuf blocks = Unpooled.buffer();
+      blocks.writeInt(PcapReader.PCAPNG_SECTION_HEADER).writeInt(28).writeInt(PcapReader.PCAPNG_BYTE_ORDER_MAGIC)
+          .writeShort(1).writeShort(0).writeLong(-1L).writeInt(28);
+      blocks.writeInt(PcapReader.PCAPNG_INTERFACE_DESCRIPTION).writeInt(20).writeShort(PcapReader.LINKTYPE_RAW)
+          .writeShort(0).writeInt(65535).writeInt(20);
+      for (int packet = 0; packet < packets; packet++) {
+        for (NetFlowV9TrafficGenerator generator : generators) {
+          NetFlowV9Decoder.NetFlowMessage message = generator.next();
+          records += records(message);
+          ByteBuf payload = Unpooled.buffer();
+          NetFlowV9Encoder.encode(message, payload);
+          message.release();
+          ByteBuf frame = udp(message.sender(), payload, true);
+          final int length = frame.readableBytes();
+          final int padding = (4 - (length & 3)) & 3;
+          final int blockLength = 32 + length + padding;
+          blocks.writeInt(PcapReader.PCAPNG_ENHANCED_PACKET).writeInt(blockLength).writeInt(0).writeInt(0).writeInt(packet)
+              .writeInt(length).writeInt(length).writeBytes(frame).writeZero(padding).writeInt(blockLength);
+          frame.release();
+        }
+        blocks.readBytes(output, blocks.readableBytes());
+        blocks.clear();
+      }
+    }
+    return records;
+  }
+
+  static long records(NetFlowV9Decoder.NetFlowMessage message) {
+    long result = 0;
+    for (NetFlowV9Decoder.FlowSet flowSet : message.flowsets()) {
+      if (flowSet instanceof NetFlowV9Decoder.DataFlowSet) {
+        result += ((NetFlowV9Decoder.DataFlowSet) flowSet).cursor().recordCount();
+      }
+    }
+    return result;
+  }
+
+  static long ingest(Path path, long windowSize, LongAdder undecoded) throws Exception {
+    final LongAdder records = new LongAdder();
+    PcapIngest ingest = PcapIngest.builder()
+        .workers(4)
+        .windowSize(windowSize)
+        .handlerFactory(() -> new SimpleChannelInboundHandler<NetFlowV9Decoder.NetFlowMessage>() {
+          @Override
+          protected void channelRead0(ChannelHandlerContext ctx, NetFlowV9Decoder.NetFlowMessage message) {
+            for (NetFlowV9Decoder.FlowSet flowSet : message.flowsets()) {
+              if (flowSet instanceof NetFlowV9Decoder.DataFlowSet) {
+                NetFlowV9Decoder.DataFlowSet dataFlowSet = (NetFlowV9Decoder.DataFlowSet) flowSet;
+                if (null == dataFlowSet.layout()) {
+                  undecoded.increment();
+                } else {
+                  records.add(dataFlowSet.cursor().recordCount());
+                }
+              }
+            }
+          }
+        })
+        .build();
+    ingest.run(path);
+    assertEquals(0, ingest.errors(), "errors does not match.");
+    assertEquals(0, ingest.skipped(), "skipped does not match.");
+    assertEquals(ingest.packets(), ingest.datagrams(), "every packet should be a datagram.");
+    return records.sum();
+  }
+
+  @Test
+  public void pcap() throws Exception {
+    Path path = Files.createTempFile("netflow", ".pcap");
+    try {
+      final long expected = writePcap(path, 16, 200);
+      final LongAdder undecoded = new LongAdder();
+      // A small window forces packets to straddle window boundaries.
+      assertEquals(expected, ingest(path, 65536, undecoded), "records does not match.");
+      assertEquals(0, undecoded.sum(), "templates should be applied in capture order per exporter.");
+    } finally {
+      Files.deleteIfExists(path);
+    }
+  }
+
+  @Test
+  public void pcapng() throws Exception {
+    Path path = Files.createTempFile("netflow", ".pcapng");
+    try {
+      final long expected = writePcapng(path, 8, 100);
+      final LongAdder undecoded = new LongAdder();
+      assertEquals(expected, ingest(path, PcapReader.DEFAULT_WINDOW_SIZE, undecoded), "records does not match.");
+      assertEquals(0, undecoded.sum(), "templates should be applied in capture order per exporter.");
+    } finally {
+      Files.deleteIfExists(path);
+    }
+  }
+
+  @Test
+  public void workerFailure() throws Exception {
+    Path path = Files.createTempFile("netflow", ".pcap");
+    try {
+      writePcap(path, 16, 200);
+      PcapIngest ingest = PcapIngest.builder()
+          .workers(2)
+          .queueCapacity(1)
+          .handlerFactory(() -> {
+            throw new IllegalStateException("handler could not be created.");
+          })
+          .build();
+      IOException ex = assertThrows(IOException.class, () -> ingest.run(path));
+      assertTrue(ex.getCause() instanceof IllegalStateException, "cause should be the worker failure.");
+    } finally {
+      Files.deleteIfExists(path);
+    }
+  }
+
+  @Test
+  public void notACapture() throws Exception {
+    Path path = Files.createTempFile("netflow", ".pcap");
+    try {
+      Files.write(path, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+      try (PcapReader reader = PcapReader.open(path)) {
+        assertThrows(IOException.class, () -> reader.read(datagramPacket -> datagramPacket.release()));
+      }
+    } finally {
+      Files.deleteIfExists(path);
+    }
+  }
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import com.github.jcustenborder.netty.netflow.v9.json.ObjectMapperSingleton;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.socket.DatagramPacket;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+public class PendingFlowSetBufferTest {
+  static final int HEADER_LENGTH = 20;
+  static final int TEMPLATES_LENGTH = 104;
+
+  static byte[] testcase001() throws Exception {
+    try (InputStream inputStream = PendingFlowSetBufferTest.class.getResourceAsStream("testcase001.json")) {
+      return ObjectMapperSingleton.instance.readTree(inputStream).get("input").binaryValue();
+    }
+  }
+
+  static List<Object> decode(NetFlowV9Decoder decoder, ByteBuf input) throws Exception {
+    DatagramPacket datagramPacket = new DatagramPacket(input, new InetSocketAddress("127.0.0.1", 2055), new InetSocketAddress("127.0.0.2", 50000));
+    List<Object> output = new ArrayList<>();
+    decoder.decode(mock(ChannelHandlerContext.class), datagramPacket, output);
+    return output;
+  }
+
+  @Test
+  public void replay() throws Exception {
+    final byte[] input = testcase001();
+    ByteBuf dataOnly = Unpooled.buffer();
+    dataOnly.writeBytes(input, 0, HEADER_LENGTH);
+    dataOnly.writeBytes(input, HEADER_LENGTH + TEMPLATES_LENGTH, input.length - HEADER_LENGTH - TEMPLATES_LENGTH);
+    ByteBuf templatesOnly = Unpooled.buffer();
+    templatesOnly.writeBytes(input, 0, HEADER_LENGTH + TEMPLATES_LENGTH);
+
+    PendingFlowSetBuffer pendingFlowSets = new PendingFlowSetBuffer(100, 1024 * 1024, 5, TimeUnit.MINUTES);
+    NetFlowV9Decoder decoder = new NetFlowV9Decoder(
+        NetFlowDecoderConfig.builder()
+            .pendingFlowSets(pendingFlowSets)
+            .build()
+    );
+
+    List<Object> output = decode(decoder, dataOnly);
+    assertEquals(1, output.size(), "output size does not match.");
+    assertTrue(((NetFlowV9Decoder.NetFlowMessage) output.get(0)).flowsets().isEmpty(), "buffered flowset should be held out of the message.");
+    assertEquals(1, pendingFlowSets.size(), "size() does not match.");
+
+    output = decode(decoder, templatesOnly);
+    assertEquals(2, output.size(), "output size does not match.");
+    NetFlowV9Decoder.NetFlowMessage replayed = (NetFlowV9Decoder.NetFlowMessage) output.get(1);
+    assertEquals(328, replayed.flowSequence(), "flowSequence does not match.");
+    assertEquals(1, replayed.flowsets().size(), "flowsets.size() does not match.");
+    NetFlowV9Decoder.DataFlowSet dataFlowSet = (NetFlowV9Decoder.DataFlowSet) replayed.flowsets().get(0);
+    assertEquals(12, dataFlowSet.records().size(), "records().size() does not match.");
+    assertEquals(0, pendingFlowSets.size(), "size() does not match.");
+    assertEquals(1, pendingFlowSets.replayedCount(), "replayedCount() does not match.");
+  }
+
+  @Test
+  public void invalidLimits() {
+    assertThrows(IllegalArgumentException.class, () -> new PendingFlowSetBuffer(0, 1024, 5, TimeUnit.MINUTES));
+    assertThrows(IllegalArgumentException.class, () -> new PendingFlowSetBuffer(100, -1, 5, TimeUnit.MINUTES));
+    assertThrows(IllegalArgumentException.class, () -> new PendingFlowSetBuffer(100, 1024, 0, TimeUnit.MINUTES));
+  }
+
+  static NetFlowV9Decoder.Header header() {
+    return new NetFlowV9Decoder.Header((short) 9, (short) 1, 0, 0, 0, 0, new InetSocketAddress("127.0.0.1", 2055), null);
+  }
+
+  @Test
+  public void evictOldest() {
+    PendingFlowSetBuffer pendingFlowSets = new PendingFlowSetBuffer(2, 1024, 5, TimeUnit.MINUTES);
+    NetFlowV9Decoder.Header header = header();
+    pendingFlowSets.add(header, (short) 256, Unpooled.wrappedBuffer(new byte[8]));
+    pendingFlowSets.add(header, (short) 257, Unpooled.wrappedBuffer(new byte[8]));
+    pendingFlowSets.add(header, (short) 258, Unpooled.wrappedBuffer(new byte[8]));
+    assertEquals(2, pendingFlowSets.size(), "size() does not match.");
+    assertEquals(1, pendingFlowSets.evictedCount(), "evictedCount() does not match.");
+    assertTrue(pendingFlowSets.drain(header.sender, header.sourceID, 256).isEmpty(), "oldest flowset should be evicted.");
+    assertEquals(1, pendingFlowSets.drain(header.sender, header.sourceID, 258).size());
+
+    pendingFlowSets.add(header, (short) 259, Unpooled.wrappedBuffer(new byte[2048]));
+    assertEquals(0, pendingFlowSets.size(), "flowsets over the byte limit should be evicted.");
+    assertEquals(0, pendingFlowSets.bytes(), "bytes() does not match.");
+  }
+
+  @Test
+  public void expire() throws Exception {
+    PendingFlowSetBuffer pendingFlowSets = new PendingFlowSetBuffer(100, 1024, 1, TimeUnit.MILLISECONDS);
+    NetFlowV9Decoder.Header header = header();
+    pendingFlowSets.add(header, (short) 256, Unpooled.wrappedBuffer(new byte[8]));
+    Thread.sleep(10);
+    assertTrue(pendingFlowSets.drain(header.sender, header.sourceID, 256).isEmpty(), "flowset should have expired.");
+    assertEquals(1, pendingFlowSets.expiredCount(), "expiredCount() does not match.");
+    assertEquals(0, pendingFlowSets.size(), "size() does not match.");
+  }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RecyclingNetFlowFactoryTest {
+
+  /**
+   * Decodes every packet and returns the numeric values of every record.
+   */
+  static List<Long> values(List<ByteBuf> packets, NetFlowDecoderConfig config) {
+    EmbeddedChannel channel = new EmbeddedChannel(new NetFlowDecoder(config));
+    FlowRecordCursor cursor = new FlowRecordCursor();
+    List<Long> result = new ArrayList<>();
+    for (ByteBuf packet : packets) {
+      ByteBuf datagram = packet.retainedDuplicate();
+      channel.writeInbound(new DatagramPacket(datagram, FlowPredicateTest.RECIPIENT, FlowPredicateTest.SENDER));
+      NetFlowV9Decoder.NetFlowMessage message = channel.readInbound();
+      for (NetFlowV9Decoder.FlowSet flowSet : message.flowsets()) {
+        if (flowSet instanceof NetFlowV9Decoder.DataFlowSet) {
+          cursor.reset((NetFlowV9Decoder.DataFlowSet) flowSet);
+          long[] decoded = new long[cursor.layout().fieldCount()];
+          while (cursor.next()) {
+            for (long value : cursor.decode(decoded)) {
+              result.add(value);
+            }
+          }
+        }
+      }
+      assertTrue(message.release(), "the message should be deallocated.");
+      assertEquals(1, packet.refCnt(), "retained slices should be released with the message.");
+    }
+    assertFalse(channel.finish());
+    return result;
+  }
+
+  @Test
+  public void decode() {
+    List<ByteBuf> packets = FlowPredicateTest.packets(0.25);
+    List<Long> expected = values(packets, NetFlowDecoderConfig.builder().build());
+    for (boolean retainBuffers : new boolean[]{false, true}) {
+      NetFlowDecoderConfig config = NetFlowDecoderConfig.builder()
+          .netflowFactory(new RecyclingNetFlowFactory())
+          .retainBuffers(retainBuffers)
+          .build();
+      assertEquals(expected, values(packets, config), "recycled objects should decode the same values.");
+    }
+  }
+
+  @Test
+  public void recycle() {
+    RecyclingNetFlowFactory factory = new RecyclingNetFlowFactory();
+    List<NetFlowV9Decoder.FlowSet> flowSets = factory.newFlowSetList();
+    NetFlowV9Decoder.DataFlowSet dataFlowSet = factory.dataFlowSet((short) 256, new byte[8], TemplateCacheTest.layout(4, 4));
+    flowSets.add(dataFlowSet);
+    NetFlowV9Decoder.NetFlowMessage message = factory.netflowMessage((short) 9, (short) 1, 0, 0, 1, 0, FlowPredicateTest.SENDER, FlowPredicateTest.RECIPIENT, flowSets, 0L);
+    assertSame(dataFlowSet, message.flowsets().get(0));
+    assertThrows(UnsupportedOperationException.class, () -> message.flowsets().clear());
+    assertTrue(message.release());
+
+    List<NetFlowV9Decoder.FlowSet> reusedFlowSets = factory.newFlowSetList();
+    assertSame(flowSets, reusedFlowSets, "the list should be reused on the same thread.");
+    assertTrue(reusedFlowSets.isEmpty());
+    NetFlowV9Decoder.DataFlowSet reusedDataFlowSet = factory.dataFlowSet((short) 257, new byte[4], null);
+    assertSame(dataFlowSet, reusedDataFlowSet, "the flowset should be reused on the same thread.");
+    assertEquals(257, reusedDataFlowSet.flowsetID());
+    assertNull(((NetFlowFactoryImpl.DataFlowSetImpl) reusedDataFlowSet).content, "copies should wrap their data on first access.");
+    assertEquals(4, reusedDataFlowSet.content().readableBytes(), "content does not match.");
+    assertNull(reusedDataFlowSet.layout());
+    assertTrue(reusedDataFlowSet.records().isEmpty(), "records of the previous use should be cleared.");
+    NetFlowV9Decoder.NetFlowMessage reused = factory.netflowMessage((short) 9, (short) 0, 0, 0, 2, 0, FlowPredicateTest.SENDER, FlowPredicateTest.RECIPIENT, reusedFlowSets, 0L);
+    assertSame(message, reused, "the message should be reused on the same thread.");
+    assertEquals(1, reused.refCnt(), "refCnt should be reset.");
+    assertEquals(2, reused.flowSequence());
+    reused.release();
+  }
+
+  @Test
+  public void templateFields() {
+    NetFlowV9Decoder.NetflowFactory factory = new NetFlowFactoryImpl();
+    assertSame(factory.templateField((short) 8, (short) 4), factory.templateField((short) 8, (short) 4), "fields should be interned.");
+    assertNotSame(factory.templateField((short) 8, (short) 4), factory.templateField((short) 8, (short) 4, 9));
+  }
+}
@@ -0,0 +1,252 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SamplingTrackerTest {
+  static final InetSocketAddress SENDER = new InetSocketAddress("127.0.0.2", 50000);
+
+  static ByteBuf header(int count) {
+    ByteBuf input = Unpooled.buffer();
+    input.writeShort(9).writeShort(count).writeInt(1000).writeInt(1484702821).writeInt(1).writeInt(7);
+    return input;
+  }
+
+  /**
+   * Options template 257 with sampler 1 at 1:100 and sampler 2 at 1:1000, then template 256 with three
+   * records referencing samplers 1, 2 and the unknown sampler 3.
+   */
+  static ByteBuf samplers() {
+    ByteBuf input = header(4);
+    input.writeShort(1).writeShort(24).writeShort(257).writeShort(4).writeShort(8)
+        .writeShort(ScopeType.SYSTEM).writeShort(4)
+        .writeShort(FieldType.FLOW_SAMPLER_ID).writeShort(1)
+        .writeShort(FieldType.FLOW_SAMPLER_RANDOM_INTERVAL).writeShort(4)
+        .writeShort(0);
+    input.writeShort(257).writeShort(24)
+        .writeInt(0).writeByte(1).writeInt(100)
+        .writeInt(0).writeByte(2).writeInt(1000)
+        .writeShort(0);
+    input.writeShort(0).writeShort(20).writeShort(256).writeShort(3)
+        .writeShort(FieldType.IN_BYTES).writeShort(4)
+        .writeShort(FieldType.IN_PKTS).writeShort(4)
+        .writeShort(FieldType.FLOW_SAMPLER_ID).writeShort(1);
+    input.writeShort(256).writeShort(32);
+    for (int sampler = 1; sampler <= 3; sampler++) {
+      input.writeInt(1500).writeInt(3).writeByte(sampler);
+    }
+    input.writeByte(0);
+    return input;
+  }
+
+  static FlowRecordCursor data(Object message, int index) {
+    NetFlowV9Decoder.NetFlowMessage netFlowMessage = (NetFlowV9Decoder.NetFlowMessage) message;
+    return ((NetFlowV9Decoder.DataFlowSet) netFlowMessage.flowsets().get(index)).cursor();
+  }
+
+  @Test
+  public void optionsRecords() throws Exception {
+    SamplingTracker samplingTracker = new SamplingTracker();
+    NetFlowV9Decoder decoder = new NetFlowV9Decoder(NetFlowDecoderConfig.builder().samplingTracker(samplingTracker).build());
+    List<Object> output = IpfixDecoderTest.decode(decoder, samplers());
+
+    SamplingTracker.Rates rates = samplingTracker.rates(SENDER, 7);
+    assertEquals(100L, rates.interval(1));
+    assertEquals(1000L, rates.interval(2));
+    assertEquals(1L, rates.interval(), "there is no exporter wide interval.");
+
+    FlowRecordCursor cursor = data(output.get(0), 3);
+    long[] expected = {100L, 1000L, 1L};
+    for (int i = 0; cursor.next(); i++) {
+      assertEquals(expected[i], cursor.samplingInterval(), "samplingInterval does not match.");
+      assertEquals(1500L * expected[i], cursor.getScaledLong(FieldType.IN_BYTES), "IN_BYTES does not match.");
+      assertEquals(3L * expected[i], cursor.getScaledLong(FieldType.IN_PKTS), "IN_PKTS does not match.");
+      assertEquals(1500L, cursor.getLong(FieldType.IN_BYTES), "raw values should not change.");
+    }
+    assertSame(SamplingTracker.Rates.UNSAMPLED, ((NetFlowV9Decoder.DataFlowSet) ((NetFlowV9Decoder.NetFlowMessage) output.get(0)).flowsets().get(1)).samplingRates());
+
+    // An exporter wide interval applies to flows without a sampler, unknown samplers fall back to it.
+    samplingTracker.interval(SENDER, 7, 10);
+    output = IpfixDecoderTest.decode(decoder, samplers());
+    cursor = data(output.get(0), 3);
+    expected = new long[]{100L, 1000L, 10L};
+    for (int i = 0; cursor.next(); i++) {
+      assertEquals(expected[i], cursor.samplingInterval(), "samplingInterval does not match.");
+    }
+    assertEquals(10L, ((NetFlowV9Decoder.DataFlowSet) ((NetFlowV9Decoder.NetFlowMessage) output.get(0)).flowsets().get(3)).samplingInterval());
+  }
+
+  @Test
+  public void unsampled() throws Exception {
+    List<Object> output = IpfixDecoderTest.decode(new NetFlowV9Decoder(), samplers());
+    FlowRecordCursor cursor = data(output.get(0), 3);
+    while (cursor.next()) {
+      assertEquals(1L, cursor.samplingInterval(), "flows should be unsampled without a tracker.");
+      assertEquals(1500L, cursor.getScaledLong(FieldType.IN_BYTES));
+    }
+  }
+
+  @Test
+  public void v5() throws Exception {
+    SamplingTracker samplingTracker = new SamplingTracker();
+    NetFlowV5Decoder decoder = new NetFlowV5Decoder(NetFlowDecoderConfig.builder().samplingTracker(samplingTracker).build());
+    ByteBuf input = NetFlowV5DecoderTest.v5(2);
+    input.setShort(22, 0x4000 | 64);
+    List<Object> output = IpfixDecoderTest.decode(decoder, input);
+    assertEquals(64L, samplingTracker.rates(SENDER, 0x0102).interval(), "the sampling mode bits should be masked.");
+    FlowRecordCursor cursor = data(output.get(0), 0);
+    for (int i = 0; cursor.next(); i++) {
+      assertEquals(64L * (1087 + i), cursor.getScaledLong(FieldType.IN_BYTES), "IN_BYTES does not match.");
+    }
+  }
+
+  @Test
+  public void unsampledExporters() throws Exception {
+    SamplingTracker samplingTracker = new SamplingTracker();
+    NetFlowV5Decoder decoder = new NetFlowV5Decoder(NetFlowDecoderConfig.builder().samplingTracker(samplingTracker).build());
+    List<Object> output = IpfixDecoderTest.decode(decoder, NetFlowV5DecoderTest.v5(2));
+    assertTrue(samplingTracker.exporters().isEmpty(), "unsampled exporters should not be tracked.");
+    assertSame(SamplingTracker.Rates.UNSAMPLED, ((NetFlowV9Decoder.DataFlowSet) ((NetFlowV9Decoder.NetFlowMessage) output.get(0)).flowsets().get(0)).samplingRates());
+
+    samplingTracker.interval(SENDER, 7, 10);
+    samplingTracker.interval(SENDER, 7, 1);
+    assertTrue(samplingTracker.exporters().isEmpty(), "exporters that stop sampling should be dropped.");
+    assertSame(SamplingTracker.Rates.UNSAMPLED, samplingTracker.rates(SENDER, 7));
+
+    samplingTracker.interval(SENDER, 7, 1, 100);
+    samplingTracker.interval(SENDER, 7, 1);
+    assertEquals(100L, samplingTracker.rates(SENDER, 7).interval(1), "samplers should be kept.");
+  }
+
+  @Test
+  public void replayed() throws Exception {
+    SamplingTracker samplingTracker = new SamplingTracker();
+    samplingTracker.interval(SENDER, 7, 10);
+    NetFlowV9Decoder decoder = new NetFlowV9Decoder(
+        NetFlowDecoderConfig.builder()
+            .samplingTracker(samplingTracker)
+            .pendingFlowSets(new PendingFlowSetBuffer(100, 1024 * 1024, 5, TimeUnit.MINUTES))
+            .build()
+    );
+    ByteBuf data = header(1);
+    data.writeShort(256).writeShort(12).writeInt(1500).writeInt(3);
+    List<Object> output = IpfixDecoderTest.decode(decoder, data);
+    assertTrue(((NetFlowV9Decoder.NetFlowMessage) output.get(0)).flowsets().isEmpty(), "the flowset should be buffered.");
+
+    ByteBuf template = header(1);
+    template.writeShort(0).writeShort(16).writeShort(256).writeShort(2)
+        .writeShort(FieldType.IN_BYTES).writeShort(4)
+        .writeShort(FieldType.IN_PKTS).writeShort(4);
+    output = IpfixDecoderTest.decode(decoder, template);
+    assertEquals(2, output.size(), "the buffered flowset should be replayed.");
+    NetFlowV9Decoder.DataFlowSet replayed = (NetFlowV9Decoder.DataFlowSet) ((NetFlowV9Decoder.NetFlowMessage) output.get(1)).flowsets().get(0);
+    assertEquals(10L, replayed.samplingInterval(), "replayed flowsets should be sampled.");
+    FlowRecordCursor cursor = replayed.cursor();
+    assertTrue(cursor.next());
+    assertEquals(15000L, cursor.getScaledLong(FieldType.IN_BYTES), "IN_BYTES does not match.");
+  }
+
+  /**
+   * Factory that only implements the required methods and creates its own data flowsets.
+   */
+  static class CustomFactory implements NetFlowV9Decoder.NetflowFactory {
+    final NetFlowFactoryImpl delegate = new NetFlowFactoryImpl();
+
+    @Override
+    public NetFlowV9Decoder.NetFlowMessage netflowMessage(short version, short count, int uptime, int timestamp, int flowSequence, int sourceID, InetSocketAddress sender, InetSocketAddress recipient, List<NetFlowV9Decoder.FlowSet> flowsets) {
+      return this.delegate.netflowMessage(version, count, uptime, timestamp, flowSequence, sourceID, sender, recipient, flowsets);
+    }
+
+    @Override
+    public NetFlowV9Decoder.TemplateField templateField(short type, short length) {
+      return this.delegate.templateField(type, length);
+    }
+
+    @Override
+    public NetFlowV9Decoder.TemplateFlowSet templateFlowSet(short flowsetID, short templateID, List<NetFlowV9Decoder.TemplateField> fields) {
+      return this.delegate.templateFlowSet(flowsetID, templateID, fields);
+    }
+
+    @Override
+    public NetFlowV9Decoder.DataFlowSet dataFlowSet(short flowsetID, byte[] data) {
+      return dataFlowSet(flowsetID, data, null);
+    }
+
+    @Override
+    public NetFlowV9Decoder.DataFlowSet dataFlowSet(short flowsetID, byte[] data, RecordLayout layout) {
+      return new NetFlowV9Decoder.DataFlowSet() {
+        @Override
+        public short flowsetID() {
+          return flowsetID;
+        }
+
+        @Override
+        public byte[] data() {
+          return data;
+        }
+
+        @Override
+        public RecordLayout layout() {
+          return layout;
+        }
+      };
+    }
+  }
+
+  @Test
+  public void customFactory() throws Exception {
+    SamplingTracker samplingTracker = new SamplingTracker();
+    NetFlowV9Decoder decoder = new NetFlowV9Decoder(
+        NetFlowDecoderConfig.builder()
+            .netflowFactory(new CustomFactory())
+            .samplingTracker(samplingTracker)
+            .build()
+    );
+    List<Object> output = IpfixDecoderTest.decode(decoder, samplers());
+    FlowRecordCursor cursor = data(output.get(0), 3);
+    long[] expected = {100L, 1000L, 1L};
+    for (int i = 0; cursor.next(); i++) {
+      assertEquals(expected[i], cursor.samplingInterval(), "flowsets of other factories should keep their sampling.");
+    }
+  }
+
+  @Test
+  public void boundedExporters() {
+    SamplingTracker samplingTracker = new SamplingTracker(1, 10, TimeUnit.MINUTES);
+    final long[] now = new long[1];
+    samplingTracker.exporters.ticker = () -> now[0];
+    samplingTracker.interval(SENDER, 7, 100);
+    samplingTracker.interval(SENDER, 8, 10);
+    assertEquals(1, samplingTracker.exportersEvicted(), "exportersEvicted does not match.");
+    assertEquals(1L, samplingTracker.rates(SENDER, 7).interval(), "an evicted exporter should be unsampled.");
+    assertEquals(1, samplingTracker.exporters().size(), "lookups of unknown exporters should not add them.");
+
+    now[0] += TimeUnit.MINUTES.toNanos(11);
+    samplingTracker.cleanUp();
+    assertTrue(samplingTracker.exporters().isEmpty(), "idle exporters should expire.");
+    assertEquals(1, samplingTracker.exportersExpired(), "exportersExpired does not match.");
+    assertEquals(1L, samplingTracker.rates(SENDER, 8).interval(), "an expired exporter should be unsampled.");
+  }
+}
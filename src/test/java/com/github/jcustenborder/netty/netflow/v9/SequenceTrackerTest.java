@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SequenceTrackerTest {
+  static final InetSocketAddress SENDER = new InetSocketAddress("127.0.0.2", 50000);
+
+  @Test
+  public void track() {
+    SequenceTracker tracker = new SequenceTracker(1000, 10);
+    assertEquals(0, tracker.track(SENDER, 1, 100, 1), "first datagram should not report a gap.");
+    assertEquals(0, tracker.track(SENDER, 1, 101, 1), "in order datagram should not report a gap.");
+    assertEquals(3, tracker.track(SENDER, 1, 105, 1), "gap does not match.");
+    assertEquals(0, tracker.track(SENDER, 1, 103, 1), "late datagram should not report a gap.");
+    assertEquals(0, tracker.track(SENDER, 1, 106, 1), "in order datagram should not report a gap.");
+    assertEquals(0, tracker.track(SENDER, 1, 5, 1), "restart should not report a gap.");
+    assertEquals(0, tracker.track(SENDER, 1, 6, 1), "tracker should resynchronize after a restart.");
+
+    SequenceTracker.Counters counters = tracker.exporters().get(new ExporterKey(SENDER, 1));
+    assertEquals(7, counters.received(), "received does not match.");
+    assertEquals(1, counters.gaps(), "gaps does not match.");
+    assertEquals(2, counters.lost(), "lost does not match.");
+    assertEquals(1, counters.reordered(), "reordered does not match.");
+    assertEquals(1, counters.resets(), "resets does not match.");
+  }
+
+  @Test
+  public void wrapAround() {
+    SequenceTracker tracker = new SequenceTracker();
+    tracker.track(SENDER, 1, 0xFFFFFFFEL, 1);
+    assertEquals(0, tracker.track(SENDER, 1, 0xFFFFFFFFL, 1), "in order datagram should not report a gap.");
+    assertEquals(1, tracker.track(SENDER, 1, 1, 1), "gap across wrap around does not match.");
+  }
+
+  @Test
+  public void records() {
+    SequenceTracker tracker = new SequenceTracker();
+    tracker.track(SENDER, 2, 1000, 30);
+    assertEquals(0, tracker.track(SENDER, 2, 1030, -1), "in order datagram should not report a gap.");
+    assertEquals(0, tracker.track(SENDER, 2, 1100, 30), "unknown increment should resynchronize.");
+    assertEquals(30, tracker.track(SENDER, 2, 1160, 30), "gap does not match.");
+  }
+
+  @Test
+  public void boundedExporters() {
+    SequenceTracker tracker = new SequenceTracker(1000, 10, 1, 10, TimeUnit.MINUTES);
+    final long[] now = new long[1];
+    tracker.exporters.ticker = () -> now[0];
+    tracker.track(SENDER, 1, 100, 1);
+    tracker.track(SENDER, 2, 100, 1);
+    assertEquals(1, tracker.exportersEvicted(), "exportersEvicted does not match.");
+    assertEquals(0, tracker.track(SENDER, 1, 500, 1), "an evicted exporter should resynchronize.");
+
+    now[0] += TimeUnit.MINUTES.toNanos(11);
+    tracker.cleanUp();
+    assertTrue(tracker.exporters().isEmpty(), "idle exporters should expire.");
+    assertEquals(1, tracker.exportersExpired(), "exportersExpired does not match.");
+    assertEquals(0, tracker.track(SENDER, 1, 900, 1), "an expired exporter should resynchronize.");
+  }
+
+  @Test
+  public void invalidBounds() {
+    assertThrows(IllegalArgumentException.class, () -> new SequenceTracker(1000, 10, -1, 0, TimeUnit.SECONDS));
+    assertThrows(IllegalArgumentException.class, () -> new SequenceTracker(1000, 10, 0, -1, TimeUnit.SECONDS));
+  }
+
+  static ByteBuf v9(int flowSequence) {
+    return Unpooled.buffer().writeShort(9).writeShort(0).writeInt(1000).writeInt(1484702821).writeInt(flowSequence).writeInt(0);
+  }
+
+  @Test
+  public void sequenceGap() throws Exception {
+    NetFlowV9Decoder decoder = new NetFlowV9Decoder(
+        NetFlowDecoderConfig.builder().sequenceTracker(new SequenceTracker()).build()
+    );
+    NetFlowV9Decoder.NetFlowMessage message = (NetFlowV9Decoder.NetFlowMessage) IpfixDecoderTest.decode(decoder, v9(1)).get(0);
+    assertEquals(0, message.sequenceGap(), "sequenceGap does not match.");
+    message = (NetFlowV9Decoder.NetFlowMessage) IpfixDecoderTest.decode(decoder, v9(5)).get(0);
+    assertEquals(3, message.sequenceGap(), "sequenceGap does not match.");
+  }
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TemplateCacheTest {
+  static final InetSocketAddress EXPORTER = new InetSocketAddress("127.0.0.2", 50000);
+
+  static RecordLayout layout(int... lengths) {
+    List<NetFlowV9Decoder.TemplateField> fields = new ArrayList<>();
+    for (int i = 0; i < lengths.length; i++) {
+      fields.add(new NetFlowFactoryImpl.TemplateFieldImpl((short) (i + 1), (short) lengths[i], 0));
+    }
+    return RecordLayout.of(fields);
+  }
+
+  @Test
+  public void highFieldType() {
+    RecordLayout layout = RecordLayout.of(Arrays.asList(
+        new NetFlowFactoryImpl.TemplateFieldImpl((short) FieldType.IPV4_SRC_ADDR, (short) 4, 0),
+        new NetFlowFactoryImpl.TemplateFieldImpl((short) 65535, (short) 4, 0),
+        new NetFlowFactoryImpl.TemplateFieldImpl((short) 65535, (short) 2, 0)
+    ));
+    assertEquals(0, layout.indexOf(FieldType.IPV4_SRC_ADDR), "indexOf(IPV4_SRC_ADDR) does not match.");
+    assertEquals(1, layout.indexOf(65535), "first occurrence of a high type should win.");
+    assertEquals(-1, layout.indexOf(600), "indexOf() of a missing high type does not match.");
+    assertTrue(layout.indexByType.length <= RecordLayout.DIRECT_INDEX_LIMIT, "high types should not grow the direct table.");
+    assertTrue(BoundedTemplateCache.estimatedBytes(layout) < 1024, "estimatedBytes() should stay small.");
+  }
+
+  @Test
+  public void redefinition() {
+    TemplateCache templateCache = new TemplateCache();
+    RecordLayout first = layout(4, 4);
+    assertSame(first, templateCache.put(EXPORTER, 1, 256, first));
+    TemplateTable before = templateCache.table(EXPORTER, 1);
+
+    assertSame(first, templateCache.put(EXPORTER, 1, 256, layout(4, 4)), "an equal layout should keep the registered instance.");
+    assertSame(before, templateCache.table(EXPORTER, 1), "resending a template should not copy the table.");
+
+    RecordLayout second = layout(4, 8);
+    templateCache.put(EXPORTER, 1, 256, second);
+    TemplateTable after = templateCache.table(EXPORTER, 1);
+    assertSame(second, templateCache.get(EXPORTER, 1, 256), "layout does not match.");
+    assertSame(first, before.get(256), "a snapshot should keep the layout it was taken with.");
+    assertTrue(after.version() > before.version(), "version should increase.");
+
+    assertSame(second, templateCache.remove(EXPORTER, 1, 256));
+    assertNull(templateCache.get(EXPORTER, 1, 256));
+    assertNull(templateCache.get(new InetSocketAddress("127.0.0.2", 50001), 2, 256));
+    assertEquals(0, templateCache.size(), "size does not match.");
+  }
+
+  @Test
+  public void probe() {
+    TemplateCache templateCache = new TemplateCache();
+    RecordLayout layout = layout(4);
+    assertNull(templateCache.get(EXPORTER, 1, 256));
+    templateCache.put(EXPORTER, 1, 256, layout);
+    assertNull(templateCache.get(new InetSocketAddress("127.0.0.3", 50000), 2, 256));
+    assertSame(layout, templateCache.get(EXPORTER, 1, 256), "layout does not match.");
+    assertNotSame(TemplateCache.PROBE.get(), templateCache.exporters.entries.keySet().iterator().next(), "the probe key must not be stored.");
+  }
+
+  @Test
+  public void clear() {
+    TemplateCache templateCache = new TemplateCache();
+    templateCache.put(EXPORTER, 1, 256, layout(4));
+    templateCache.put(EXPORTER, 1, 257, layout(8));
+    templateCache.put(EXPORTER, 2, 256, layout(4));
+    List<TemplateCache.TemplateKey> removed = new ArrayList<>();
+    templateCache.listener = new TemplateCache.Listener() {
+      @Override
+      public void onPut(TemplateCache.TemplateKey key, RecordLayout layout) {
+        fail("clear() should not put templates.");
+      }
+
+      @Override
+      public void onRemove(TemplateCache.TemplateKey key) {
+        removed.add(key);
+      }
+    };
+    templateCache.clear();
+    assertEquals(0, templateCache.size(), "size does not match.");
+    assertEquals(3, removed.size(), "every template should be reported as removed.");
+    assertTrue(removed.contains(new TemplateCache.TemplateKey(EXPORTER, 1, 257)), "removed templates do not match.");
+  }
+
+  @Test
+  public void table() {
+    TemplateTable table = TemplateTable.EMPTY;
+    RecordLayout layout = layout(4);
+    for (int templateID = 256; templateID < 1256; templateID++) {
+      table = table.with(templateID, layout);
+    }
+    assertEquals(1000, table.size(), "size does not match.");
+    for (int templateID = 256; templateID < 1256; templateID += 2) {
+      table = table.without(templateID);
+    }
+    assertEquals(500, table.size(), "size does not match.");
+    assertNull(table.get(256));
+    assertSame(layout, table.get(257));
+    assertNull(table.get(65535));
+    int[] templateIDs = table.templateIDs();
+    Arrays.sort(templateIDs);
+    assertEquals(257, templateIDs[0]);
+    assertEquals(1255, templateIDs[499]);
+  }
+
+  @Test
+  public void concurrentUpdates() throws Exception {
+    final TemplateCache templateCache = new TemplateCache();
+    final RecordLayout layout = layout(4);
+    ExecutorService executorService = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int thread = 0; thread < 4; thread++) {
+        final int offset = thread * 1000;
+        futures.add(executorService.submit(() -> {
+          for (int templateID = offset; templateID < offset + 1000; templateID++) {
+            templateCache.put(EXPORTER, 1, 256 + templateID, layout);
+            assertSame(layout, templateCache.get(EXPORTER, 1, 256 + templateID));
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get(30, TimeUnit.SECONDS);
+      }
+    } finally {
+      executorService.shutdownNow();
+    }
+    assertEquals(4000, templateCache.size(), "no update should be lost.");
+  }
+}
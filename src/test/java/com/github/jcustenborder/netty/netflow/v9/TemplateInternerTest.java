@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TemplateInternerTest {
+  static final InetSocketAddress RECIPIENT = new InetSocketAddress("127.0.0.1", 2055);
+
+  static InetSocketAddress exporter(int i) {
+    return new InetSocketAddress(String.format("10.0.%s.%s", i / 256, i % 256), 50000);
+  }
+
+  /**
+   * Decodes the same datagram from count exporters.
+   */
+  static void decode(NetFlowDecoderConfig config, Supplier<ByteBuf> packet, int count) {
+    EmbeddedChannel channel = new EmbeddedChannel(new NetFlowDecoder(config));
+    for (int i = 0; i < count; i++) {
+      channel.writeInbound(new DatagramPacket(packet.get(), RECIPIENT, exporter(i)));
+      ReferenceCountUtil.release(channel.readInbound());
+    }
+    assertFalse(channel.finish());
+  }
+
+  @Test
+  public void netflowV9() {
+    TemplateInterner templateInterner = new TemplateInterner();
+    TemplateCache templateCache = new TemplateCache();
+    NetFlowDecoderConfig config = NetFlowDecoderConfig.builder()
+        .templateCache(templateCache)
+        .templateInterner(templateInterner)
+        .build();
+    decode(config, SamplingTrackerTest::samplers, 100);
+
+    assertEquals(2, templateInterner.size(), "one template and one options template should be interned.");
+    assertEquals(198L, templateInterner.hits(), "hits does not match.");
+    RecordLayout layout = templateCache.get(exporter(0), 7, 256);
+    RecordLayout options = templateCache.get(exporter(0), 7, 257);
+    assertTrue(options.isOptions());
+    for (int i = 1; i < 100; i++) {
+      assertSame(layout, templateCache.get(exporter(i), 7, 256), "exporters should share the layout.");
+      assertSame(options, templateCache.get(exporter(i), 7, 257), "exporters should share the options layout.");
+    }
+    assertSame(layout.decoder(), templateCache.get(exporter(99), 7, 256).decoder(), "the compiled decoder should be shared.");
+  }
+
+  @Test
+  public void ipfix() {
+    TemplateInterner templateInterner = new TemplateInterner();
+    TemplateCache templateCache = new TemplateCache();
+    NetFlowDecoderConfig config = NetFlowDecoderConfig.builder()
+        .templateCache(templateCache)
+        .templateInterner(templateInterner)
+        .build();
+    decode(config, IpfixDecoderTest::ipfix, 10);
+    assertEquals(1, templateInterner.size(), "size does not match.");
+    RecordLayout layout = templateCache.get(exporter(0), 7, 256);
+    assertEquals(IpfixDecoderTest.ENTERPRISE_NUMBER, layout.enterpriseNumber(3), "enterpriseNumber does not match.");
+    for (int i = 1; i < 10; i++) {
+      assertSame(layout, templateCache.get(exporter(i), 7, 256), "exporters should share the layout.");
+    }
+  }
+
+  @Test
+  public void bounded() {
+    TemplateInterner templateInterner = new TemplateInterner(1);
+    TemplateCache templateCache = new TemplateCache();
+    NetFlowDecoderConfig config = NetFlowDecoderConfig.builder()
+        .templateCache(templateCache)
+        .templateInterner(templateInterner)
+        .build();
+    decode(config, SamplingTrackerTest::samplers, 2);
+    assertEquals(1, templateInterner.size(), "the interner should not grow past maxTemplates.");
+    assertSame(templateCache.get(exporter(0), 7, 257), templateCache.get(exporter(1), 7, 257));
+    RecordLayout first = templateCache.get(exporter(0), 7, 256);
+    RecordLayout second = templateCache.get(exporter(1), 7, 256);
+    assertNotSame(first, second, "templates past maxTemplates should not be interned.");
+    assertEquals(first, second);
+    assertEquals(2L, templateInterner.skipped(), "the template of each exporter should be skipped.");
+  }
+
+  /**
+   * Runs the garbage collector until the interner has released every layout.
+   */
+  static void awaitReleased(TemplateInterner templateInterner) throws InterruptedException {
+    for (int i = 0; i < 50 && templateInterner.size() > 0; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  public void releasedWhenUnreferenced() throws InterruptedException {
+    TemplateInterner templateInterner = new TemplateInterner(2);
+    TemplateCache templateCache = new TemplateCache();
+    NetFlowDecoderConfig config = NetFlowDecoderConfig.builder()
+        .templateCache(templateCache)
+        .templateInterner(templateInterner)
+        .build();
+    decode(config, SamplingTrackerTest::samplers, 2);
+    assertEquals(2, templateInterner.size(), "size does not match.");
+
+    templateCache.clear();
+    awaitReleased(templateInterner);
+    assertEquals(0, templateInterner.size(), "layouts no longer in the cache should be released.");
+
+    decode(config, IpfixDecoderTest::ipfix, 2);
+    assertEquals(1, templateInterner.size(), "templates should be interned again after a release.");
+    assertSame(templateCache.get(exporter(0), 7, 256), templateCache.get(exporter(1), 7, 256));
+    assertEquals(0L, templateInterner.skipped(), "skipped does not match.");
+  }
+
+  @Test
+  public void disabledByDefault() {
+    assertNull(NetFlowDecoderConfig.builder().build().templateInterner(), "interning should be opt in.");
+  }
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright (C) 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jcustenborder.netty.netflow.v9;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TemplateSnapshotStoreTest {
+  static final InetSocketAddress EXPORTER = new InetSocketAddress("10.1.1.1", 2055);
+  static final List<NetFlowV9Decoder.TemplateField> FIELDS = Arrays.asList(
+      new NetFlowFactoryImpl.TemplateFieldImpl((short) FieldType.IPV4_SRC_ADDR, (short) 4, 0),
+      new NetFlowFactoryImpl.TemplateFieldImpl((short) FieldType.IN_BYTES, (short) 8, 0),
+      new NetFlowFactoryImpl.TemplateFieldImpl((short) 100, (short) -1, 9)
+  );
+  Path path;
+
+  @BeforeEach
+  public void before() throws IOException {
+    this.path = Files.createTempFile("templates", ".log");
+    Files.delete(this.path);
+  }
+
+  @AfterEach
+  public void after() throws IOException {
+    Files.deleteIfExists(this.path);
+  }
+
+  @Test
+  public void roundTrip() throws IOException {
+    TemplateCache templateCache = new TemplateCache();
+    try (TemplateSnapshotStore store = TemplateSnapshotStore.open(this.path, templateCache)) {
+      templateCache.put(EXPORTER, 1, 256, FIELDS);
+      templateCache.put(EXPORTER, 1, 256, FIELDS);
+      templateCache.put(EXPORTER, 1, 257, RecordLayout.of(FIELDS.subList(0, 1), FIELDS.subList(1, 3)));
+      templateCache.put(EXPORTER, 2, 258, FIELDS);
+      store.flush();
+      templateCache.remove(EXPORTER, 2, 258);
+      store.flush();
+      assertEquals(4, store.entries, "unchanged templates should not be written again.");
+    }
+
+    TemplateCache restored = new TemplateCache();
+    try (TemplateSnapshotStore store = TemplateSnapshotStore.open(this.path, restored)) {
+      assertEquals(2, restored.size(), "size() does not match.");
+      assertEquals(RecordLayout.of(FIELDS), restored.get(new InetSocketAddress("10.1.1.1", 40000), 1, 256));
+      RecordLayout options = restored.get(EXPORTER, 1, 257);
+      assertEquals(1, options.scopeFieldCount(), "scopeFieldCount() does not match.");
+      assertEquals(9, options.enterpriseNumber(2), "enterpriseNumber() does not match.");
+      assertNull(restored.get(EXPORTER, 2, 258), "removed template should not be restored.");
+
+      store.compact();
+      assertEquals(2, store.entries, "entries does not match after compaction.");
+    }
+
+    TemplateCache compacted = new TemplateCache();
+    try (TemplateSnapshotStore store = TemplateSnapshotStore.open(this.path, compacted)) {
+      assertEquals(2, compacted.size(), "size() does not match after compaction.");
+      assertEquals(2, store.entries, "entries does not match after reopening.");
+    }
+  }
+
+  @Test
+  public void incompleteEntry() throws IOException {
+    TemplateCache templateCache = new TemplateCache();
+    try (TemplateSnapshotStore store = TemplateSnapshotStore.open(this.path, templateCache)) {
+      templateCache.put(EXPORTER, 1, 256, FIELDS);
+      templateCache.put(EXPORTER, 1, 257, FIELDS);
+      store.flush();
+    }
+    final long size = Files.size(this.path);
+    try (FileChannel channel = FileChannel.open(this.path, StandardOpenOption.WRITE)) {
+      channel.truncate(size - 3);
+    }
+
+    TemplateCache restored = new TemplateCache();
+    try (TemplateSnapshotStore store = TemplateSnapshotStore.open(this.path, restored)) {
+      assertEquals(1, restored.size(), "size() does not match.");
+      assertEquals(1, store.entries, "entries does not match.");
+      restored.put(EXPORTER, 1, 258, FIELDS);
+      store.flush();
+    }
+
+    TemplateCache reopened = new TemplateCache();
+    try (TemplateSnapshotStore store = TemplateSnapshotStore.open(this.path, reopened)) {
+      assertEquals(2, reopened.size(), "entries appended after truncation should be readable.");
+      assertEquals(2, store.entries, "entries does not match.");
+    }
+  }
+
+  @Test
+  public void malformedEntry() throws IOException {
+    TemplateCache templateCache = new TemplateCache();
+    try (TemplateSnapshotStore store = TemplateSnapshotStore.open(this.path, templateCache)) {
+      templateCache.put(EXPORTER, 1, 256, FIELDS);
+      store.flush();
+    }
+    final long size = Files.size(this.path);
+    // A plausible length followed by an address length that does not match any address family.
+    ByteBuffer corrupt = ByteBuffer.allocate(4 + 16);
+    corrupt.putInt(16).put(TemplateSnapshotStore.PUT).put((byte) 3);
+    corrupt.position(0);
+    try (FileChannel channel = FileChannel.open(this.path, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+      channel.write(corrupt);
+    }
+
+    TemplateCache restored = new TemplateCache();
+    try (TemplateSnapshotStore store = TemplateSnapshotStore.open(this.path, restored)) {
+      assertEquals(1, restored.size(), "size() does not match.");
+      assertEquals(1, store.entries, "entries does not match.");
+    }
+    assertEquals(size, Files.size(this.path), "malformed entry should be truncated.");
+  }
+
+  @Test
+  public void coalesceQueuedWrites() throws Exception {
+    TemplateCache templateCache = new TemplateCache();
+    try (TemplateSnapshotStore store = TemplateSnapshotStore.open(this.path, templateCache)) {
+      CountDownLatch blocked = new CountDownLatch(1);
+      store.executor.execute(() -> {
+        try {
+          blocked.await();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+      });
+      templateCache.put(EXPORTER, 1, 256, FIELDS);
+      templateCache.put(EXPORTER, 1, 256, FIELDS.subList(0, 2));
+      templateCache.put(EXPORTER, 1, 256, FIELDS.subList(0, 1));
+      templateCache.put(EXPORTER, 1, 257, FIELDS);
+      assertEquals(2, store.queued.size(), "queued writes should be coalesced per template.");
+      blocked.countDown();
+      store.flush();
+      assertEquals(2, store.entries, "entries does not match.");
+    }
+
+    TemplateCache restored = new TemplateCache();
+    try (TemplateSnapshotStore store = TemplateSnapshotStore.open(this.path, restored)) {
+      assertEquals(1, restored.get(EXPORTER, 1, 256).fieldCount(), "latest template should be written.");
+      assertEquals(2, store.entries, "entries does not match.");
+    }
+  }
+}